@@ -0,0 +1,93 @@
+/**
+ *  Copyright 2011 Alexey Ragozin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.gridkit.offheap.jmemstore;
+
+import sun.misc.Unsafe;
+
+/**
+ * {@link ByteSequence} over raw memory region, e.g. memory allocated by native code.
+ * Caller is responsible for keeping region valid while sequence is in use, no bounds checks are done against the region itself.
+ * <br/>
+ * Requires <code>sun.misc.Unsafe</code>, use {@link #isSupported()} to check its availability.
+ *
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+public final class AddressByteSequence implements ByteSequence {
+
+	private static final Unsafe UNSAFE = ByteArrays.UNSAFE;
+	private static final long BYTE_ARRAY_BASE = UNSAFE == null ? 0 : UNSAFE.arrayBaseOffset(byte[].class);
+
+	public static boolean isSupported() {
+		return UNSAFE != null;
+	}
+	
+	private final long address;
+	private final int len;
+	
+	public AddressByteSequence(long address, int len) {
+		if (UNSAFE == null) {
+			throw new UnsupportedOperationException("sun.misc.Unsafe is not available");
+		}
+		if (address == 0 || len < 0) {
+			throw new IllegalArgumentException("Invalid memory region " + address + " by " + len);
+		}
+		this.address = address;
+		this.len = len;
+	}
+
+	public long address() {
+		return address;
+	}
+
+	@Override
+	public int length() {
+		return len;
+	}
+
+	@Override
+	public byte byteAt(int i) {
+		if (i < 0 || i >= len) {
+			throw new IndexOutOfBoundsException("Index " + i + " length " + len);
+		}
+		return UNSAFE.getByte(address + i);
+	}
+
+	@Override
+	public void copyTo(int offs, byte[] dst, int dstOffs, int len) {
+		if (offs < 0 || len < 0 || offs + len > this.len || dstOffs < 0 || dstOffs + len > dst.length) {
+			throw new IllegalArgumentException("Out of bounds");
+		}
+		UNSAFE.copyMemory(null, address + offs, dst, BYTE_ARRAY_BASE + dstOffs, len);
+	}
+
+	@Override
+	public int getIntLE(int offs) {
+		return ByteArrays.getIntLE(address + offs);
+	}
+
+	@Override
+	public long getLongLE(int offs) {
+		return ByteArrays.getLongLE(address + offs);
+	}
+
+	@Override
+	public String toString() {
+		byte[] data = new byte[len];
+		copyTo(0, data, 0, len);
+		return new ByteChunk(data).toString();
+	}
+}
@@ -0,0 +1,425 @@
+/**
+ *  Copyright 2011 Alexey Ragozin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.gridkit.offheap.jmemstore;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non blocking facade for {@link BinaryKeyValueStore}.
+ * <br/>
+ * Operations are put into queues by segment of key and executed in batches by small pool of worker threads,
+ * so submitting thread never waits for store locks or memory allocation.
+ * Segment is known only for {@link BinaryHashTable} with power of 2 segment count, otherwise queue is chosen by key hash.
+ * Operations on same key are executed in order of submission.
+ * Read of a key which is already waiting in queue (with no write to that key submitted after it)
+ * is coalesced with pending read and shares its {@link Result}.
+ * <br/>
+ * Keys and values are copied on submission, values returned by {@link Result} are shared
+ * between coalesced readers and should not be modified.
+ *
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+public class AsyncKeyValueStore {
+
+	private static final int GET = 1;
+	private static final int PUT = 2;
+	private static final int REMOVE = 3;
+	private static final int COMPARE_AND_PUT = 4;
+	private static final int COMPARE_AND_REMOVE = 5;
+	private static final int PUT_IF_VERSION = 6;
+	private static final int REMOVE_IF_VERSION = 7;
+
+	private static final int MAX_BATCH = 64;
+
+	private final BinaryKeyValueStore store;
+	// null if segments of store are unknown
+	private final BinaryHashTable table;
+	private final OpQueue[] queues;
+	private final ExecutorService workers;
+	private final AtomicInteger queueDepth = new AtomicInteger();
+	private volatile boolean closed;
+
+	/**
+	 * @param queueCount number of operation queues, rounded up to power of 2, each queue serves whole segments of store
+	 * @param workerCount number of threads executing operations
+	 */
+	public AsyncKeyValueStore(final String name, BinaryKeyValueStore store, int queueCount, int workerCount) {
+		if (queueCount < 1 || workerCount < 1) {
+			throw new IllegalArgumentException("Invalid number of queues " + queueCount + " or workers " + workerCount);
+		}
+		this.store = store;
+		this.table = store instanceof BinaryHashTable ? (BinaryHashTable) store : null;
+		int n = 1;
+		while(n < queueCount) {
+			n <<= 1;
+		}
+		this.queues = new OpQueue[n];
+		for(int i = 0; i != queues.length; ++i) {
+			queues[i] = new OpQueue();
+		}
+		this.workers = Executors.newFixedThreadPool(workerCount, new ThreadFactory() {
+			private final AtomicInteger counter = new AtomicInteger();
+			@Override
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task);
+				thread.setName("AsyncKeyValueStore-" + name + "-Worker-" + counter.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	public BinaryKeyValueStore getStore() {
+		return store;
+	}
+
+	/**
+	 * @return number of submitted operations not yet started
+	 */
+	public int getQueueDepth() {
+		return queueDepth.get();
+	}
+
+	public Result<ByteChunk> get(ByteSequence key) {
+		return submit(new Op<ByteChunk>(GET, key, null, null, BinaryKeyValueStore.NO_VERSION));
+	}
+
+	public Result<Void> put(ByteSequence key, ByteSequence value) {
+		return submit(new Op<Void>(PUT, key, value, null, BinaryKeyValueStore.NO_VERSION));
+	}
+
+	public Result<Void> remove(ByteSequence key) {
+		return submit(new Op<Void>(REMOVE, key, null, null, BinaryKeyValueStore.NO_VERSION));
+	}
+
+	public Result<Boolean> compareAndPut(ByteSequence key, ByteSequence expected, ByteSequence newValue) {
+		return submit(new Op<Boolean>(COMPARE_AND_PUT, key, newValue, expected, BinaryKeyValueStore.NO_VERSION));
+	}
+
+	public Result<Boolean> compareAndRemove(ByteSequence key, ByteSequence expected) {
+		return submit(new Op<Boolean>(COMPARE_AND_REMOVE, key, null, expected, BinaryKeyValueStore.NO_VERSION));
+	}
+
+	/**
+	 * @see BinaryKeyValueStore#putIfVersion(ByteSequence, ByteSequence, long)
+	 */
+	public Result<Long> putIfVersion(ByteSequence key, ByteSequence value, long expectedVersion) {
+		return submit(new Op<Long>(PUT_IF_VERSION, key, value, null, expectedVersion));
+	}
+
+	/**
+	 * @see BinaryKeyValueStore#removeIfVersion(ByteSequence, long)
+	 */
+	public Result<Boolean> removeIfVersion(ByteSequence key, long expectedVersion) {
+		return submit(new Op<Boolean>(REMOVE_IF_VERSION, key, null, null, expectedVersion));
+	}
+
+	/**
+	 * Stops accepting new operations. Operations already submitted will be executed,
+	 * operations submitted concurrently with close may fail with {@link IllegalStateException}.
+	 */
+	public void close() {
+		closed = true;
+		workers.shutdown();
+	}
+
+	@SuppressWarnings("unchecked")
+	private <V> Result<V> submit(Op<V> op) {
+		if (closed) {
+			throw new IllegalStateException("Store is closed");
+		}
+		OpQueue queue = queues[queueOf(op.key)];
+		boolean schedule = false;
+		synchronized(queue) {
+			if (op.type == GET) {
+				Op<?> pending = queue.pendingReads.get(op.key);
+				if (pending != null) {
+					return (Result<V>) pending.result;
+				}
+				queue.pendingReads.put(op.key, op);
+			}
+			else {
+				// reads submitted after write should observe it
+				queue.pendingReads.remove(op.key);
+			}
+			queue.ops.add(op);
+			queueDepth.incrementAndGet();
+			if (!queue.scheduled) {
+				queue.scheduled = true;
+				schedule = true;
+			}
+		}
+		if (schedule) {
+			try {
+				workers.execute(queue);
+			}
+			catch(RejectedExecutionException e) {
+				// store has been closed concurrently, operations are never executed by calling thread
+				queue.abort(new IllegalStateException("Store is closed"));
+			}
+		}
+		return op.result;
+	}
+
+	// operations of one segment share queue, so batch touches only few segments
+	private int queueOf(BinaryKey key) {
+		int segment = table == null ? -1 : table.segmentOf(key.bytes);
+		return (segment < 0 ? BinHash.murmur3_fmix(key.hash) : segment) & (queues.length - 1);
+	}
+
+	@SuppressWarnings("unchecked")
+	private void execute(Op<?> op) {
+		try {
+			switch(op.type) {
+			case GET:
+				ByteChunk value = store.get(op.key.bytes);
+				// store may return view of its page, it should not leak to another thread
+				((Op<ByteChunk>)op).result.complete(value == null ? null : BinaryKey.copy(value));
+				break;
+			case PUT:
+				store.put(op.key.bytes, op.value);
+				op.result.complete(null);
+				break;
+			case REMOVE:
+				store.remove(op.key.bytes);
+				op.result.complete(null);
+				break;
+			case COMPARE_AND_PUT:
+				((Op<Boolean>)op).result.complete(store.compareAndPut(op.key.bytes, op.expected, op.value));
+				break;
+			case COMPARE_AND_REMOVE:
+				((Op<Boolean>)op).result.complete(store.compareAndRemove(op.key.bytes, op.expected));
+				break;
+			case PUT_IF_VERSION:
+				((Op<Long>)op).result.complete(store.putIfVersion(op.key.bytes, op.value, op.version));
+				break;
+			case REMOVE_IF_VERSION:
+				((Op<Boolean>)op).result.complete(store.removeIfVersion(op.key.bytes, op.version));
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown operation " + op.type);
+			}
+		}
+		catch(Throwable e) {
+			op.result.fail(e);
+		}
+	}
+
+	private class OpQueue implements Runnable {
+
+		// all fields are guarded by queue monitor
+		final ArrayDeque<Op<?>> ops = new ArrayDeque<Op<?>>();
+		final Map<BinaryKey, Op<?>> pendingReads = new HashMap<BinaryKey, Op<?>>();
+		boolean scheduled;
+
+		@Override
+		public void run() {
+			List<Op<?>> batch = new ArrayList<Op<?>>(MAX_BATCH);
+			while(true) {
+				synchronized(this) {
+					while(batch.size() < MAX_BATCH && !ops.isEmpty()) {
+						Op<?> op = ops.poll();
+						if (op.type == GET && pendingReads.get(op.key) == op) {
+							pendingReads.remove(op.key);
+						}
+						batch.add(op);
+					}
+					queueDepth.addAndGet(-batch.size());
+					if (batch.isEmpty()) {
+						scheduled = false;
+						return;
+					}
+				}
+				for(Op<?> op: batch) {
+					execute(op);
+				}
+				batch.clear();
+				synchronized(this) {
+					if (ops.isEmpty()) {
+						scheduled = false;
+						return;
+					}
+				}
+				try {
+					// let other queues to be served
+					workers.execute(this);
+					return;
+				}
+				catch(RejectedExecutionException e) {
+					// store is closed, queue is drained in place by worker
+				}
+			}
+		}
+
+		// fails operations which will not be scheduled anymore
+		void abort(Throwable error) {
+			List<Op<?>> aborted;
+			synchronized(this) {
+				aborted = new ArrayList<Op<?>>(ops);
+				ops.clear();
+				pendingReads.clear();
+				queueDepth.addAndGet(-aborted.size());
+				scheduled = false;
+			}
+			for(Op<?> op: aborted) {
+				op.result.fail(error);
+			}
+		}
+	}
+
+	private static class Op<V> {
+
+		final int type;
+		final BinaryKey key;
+		final ByteChunk value;
+		final ByteChunk expected;
+		final long version;
+		final Result<V> result = new Result<V>();
+
+		public Op(int type, ByteSequence key, ByteSequence value, ByteSequence expected, long version) {
+			this.type = type;
+			// caller's buffers could be reused right after submission
+			this.key = new BinaryKey(BinaryKey.copy(key));
+			this.value = value == null ? null : BinaryKey.copy(value);
+			this.expected = expected == null ? null : BinaryKey.copy(expected);
+			this.version = version;
+		}
+	}
+
+	/**
+	 * Result of asynchronous operation. Listeners allow to consume result without blocking.
+	 */
+	public static class Result<V> implements Future<V> {
+
+		private final CountDownLatch done = new CountDownLatch(1);
+		// guarded by this, null after completion
+		private List<Runnable> listeners = new ArrayList<Runnable>(1);
+		private V value;
+		private Throwable error;
+
+		Result() {
+		}
+
+		/**
+		 * Listener is called once operation is complete, either by worker thread or, if operation is already
+		 * complete, by calling thread. Listener should not block.
+		 */
+		public void addListener(Runnable listener) {
+			synchronized(this) {
+				if (listeners != null) {
+					listeners.add(listener);
+					return;
+				}
+			}
+			fire(listener);
+		}
+
+		/**
+		 * @return result of complete operation
+		 * @throws IllegalStateException if operation is not complete yet
+		 * @throws ExecutionException if operation has failed
+		 */
+		public V getNow() throws ExecutionException {
+			if (!isDone()) {
+				throw new IllegalStateException("Operation is not complete");
+			}
+			return report();
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return false;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return false;
+		}
+
+		@Override
+		public boolean isDone() {
+			return done.getCount() == 0;
+		}
+
+		@Override
+		public V get() throws InterruptedException, ExecutionException {
+			done.await();
+			return report();
+		}
+
+		@Override
+		public V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+			if (!done.await(timeout, unit)) {
+				throw new TimeoutException();
+			}
+			return report();
+		}
+
+		void complete(V value) {
+			this.value = value;
+			finish();
+		}
+
+		void fail(Throwable error) {
+			this.error = error;
+			finish();
+		}
+
+		private void finish() {
+			List<Runnable> toNotify;
+			synchronized(this) {
+				toNotify = listeners;
+				listeners = null;
+			}
+			done.countDown();
+			for(Runnable listener: toNotify) {
+				fire(listener);
+			}
+		}
+
+		private V report() throws ExecutionException {
+			if (error != null) {
+				throw new ExecutionException(error);
+			}
+			return value;
+		}
+
+		private static void fire(Runnable listener) {
+			try {
+				listener.run();
+			}
+			catch(Throwable e) {
+				System.err.println("AsyncKeyValueStore: listener failure " + e);
+				e.printStackTrace();
+			}
+		}
+	}
+}
@@ -43,7 +43,7 @@ class BinHash {
 		return appendHash(-1, n);
 	}
 	
-	public static int hash(ByteChunk bytes) {
+	public static int hash(ByteSequence bytes) {
 		return appendHash(-1, bytes);
 	}
 	
@@ -55,9 +55,21 @@ class BinHash {
 		return hash;
 	}
 	
-	public static int appendHash(int hash, ByteChunk bytes)	{
-		for (int i = 0; i < bytes.lenght(); i++) {
-			hash = CRC32_TABLE[(hash ^ bytes.at(i)) & 0xFF] ^ (hash >>> 8);
+	public static int appendHash(int hash, ByteSequence bytes)	{
+		if (bytes instanceof ByteChunk) {
+			ByteChunk chunk = (ByteChunk) bytes;
+			byte[] data = chunk.array();
+			int offs = chunk.offset();
+			int len = chunk.lenght();
+			for (int i = 0; i < len; i++) {
+				hash = CRC32_TABLE[(hash ^ data[offs + i]) & 0xFF] ^ (hash >>> 8);
+			}
+		}
+		else {
+			int len = bytes.length();
+			for (int i = 0; i < len; i++) {
+				hash = CRC32_TABLE[(hash ^ bytes.byteAt(i)) & 0xFF] ^ (hash >>> 8);
+			}
 		}
 		return hash;
 	}
@@ -129,4 +141,340 @@ class BinHash {
 		h ^= len;
 		return murmur3_fmix(h);
 	}
+
+	/**
+	 * Standard MurmurHash3 x86_32, blocks are read as little endian words.
+	 */
+	public static int murmur3_32(byte[] data, int offs, int len, int seed) {
+		checkRange(data, offs, len);
+		final int c1 = 0xcc9e2d51;
+		final int c2 = 0x1b873593;
+		int h1 = seed;
+		int p = offs;
+		int l = offs + len;
+		while(p + 3 < l) {
+			int k1 = ByteArrays.getIntLE(data, p);
+			p += 4;
+			k1 *= c1;
+			k1 = Integer.rotateLeft(k1, 15);
+			k1 *= c2;
+			h1 ^= k1;
+			h1 = Integer.rotateLeft(h1, 13);
+			h1 = h1 * 5 + 0xe6546b64;
+		}
+		if (p < l) {
+			int k1 = 0xFF & data[p];
+			if (p + 1 < l) {
+				k1 |= (0xFF & data[p + 1]) << 8;
+			}
+			if (p + 2 < l) {
+				k1 |= (0xFF & data[p + 2]) << 16;
+			}
+			k1 *= c1;
+			k1 = Integer.rotateLeft(k1, 15);
+			k1 *= c2;
+			h1 ^= k1;
+		}
+		return murmur3_32_fmix(h1, len);
+	}
+
+	/**
+	 * Same as {@link #murmur3_32(byte[], int, int, int)}, words are read directly from sequence.
+	 */
+	public static int murmur3_32(ByteSequence data, int seed) {
+		final int c1 = 0xcc9e2d51;
+		final int c2 = 0x1b873593;
+		int h1 = seed;
+		int p = 0;
+		int l = data.length();
+		while(p + 3 < l) {
+			int k1 = data.getIntLE(p);
+			p += 4;
+			k1 *= c1;
+			k1 = Integer.rotateLeft(k1, 15);
+			k1 *= c2;
+			h1 ^= k1;
+			h1 = Integer.rotateLeft(h1, 13);
+			h1 = h1 * 5 + 0xe6546b64;
+		}
+		if (p < l) {
+			int k1 = 0xFF & data.byteAt(p);
+			if (p + 1 < l) {
+				k1 |= (0xFF & data.byteAt(p + 1)) << 8;
+			}
+			if (p + 2 < l) {
+				k1 |= (0xFF & data.byteAt(p + 2)) << 16;
+			}
+			k1 *= c1;
+			k1 = Integer.rotateLeft(k1, 15);
+			k1 *= c2;
+			h1 ^= k1;
+		}
+		return murmur3_32_fmix(h1, l);
+	}
+
+	private static int murmur3_32_fmix(int h1, int len) {
+		h1 ^= len;
+		// unsigned shifts, unlike murmur3_fmix
+		h1 ^= h1 >>> 16;
+		h1 *= 0x85ebca6b;
+		h1 ^= h1 >>> 13;
+		h1 *= 0xc2b2ae35;
+		h1 ^= h1 >>> 16;
+		return h1;
+	}
+
+	private static final int XXH_PRIME1 = 0x9E3779B1;
+	private static final int XXH_PRIME2 = 0x85EBCA77;
+	private static final int XXH_PRIME3 = 0xC2B2AE3D;
+	private static final int XXH_PRIME4 = 0x27D4EB2F;
+	private static final int XXH_PRIME5 = 0x165667B1;
+
+	/**
+	 * Standard xxHash32, processes 16 byte stripes in four independent lanes.
+	 */
+	public static int xxhash32(byte[] data, int offs, int len, int seed) {
+		checkRange(data, offs, len);
+		int p = offs;
+		int l = offs + len;
+		int h;
+		if (len >= 16) {
+			int v1 = seed + XXH_PRIME1 + XXH_PRIME2;
+			int v2 = seed + XXH_PRIME2;
+			int v3 = seed;
+			int v4 = seed - XXH_PRIME1;
+			while(p + 16 <= l) {
+				v1 = Integer.rotateLeft(v1 + ByteArrays.getIntLE(data, p) * XXH_PRIME2, 13) * XXH_PRIME1;
+				v2 = Integer.rotateLeft(v2 + ByteArrays.getIntLE(data, p + 4) * XXH_PRIME2, 13) * XXH_PRIME1;
+				v3 = Integer.rotateLeft(v3 + ByteArrays.getIntLE(data, p + 8) * XXH_PRIME2, 13) * XXH_PRIME1;
+				v4 = Integer.rotateLeft(v4 + ByteArrays.getIntLE(data, p + 12) * XXH_PRIME2, 13) * XXH_PRIME1;
+				p += 16;
+			}
+			h = Integer.rotateLeft(v1, 1) + Integer.rotateLeft(v2, 7) + Integer.rotateLeft(v3, 12) + Integer.rotateLeft(v4, 18);
+		}
+		else {
+			h = seed + XXH_PRIME5;
+		}
+		h += len;
+		while(p + 4 <= l) {
+			h += ByteArrays.getIntLE(data, p) * XXH_PRIME3;
+			h = Integer.rotateLeft(h, 17) * XXH_PRIME4;
+			p += 4;
+		}
+		while(p < l) {
+			h += (0xFF & data[p]) * XXH_PRIME5;
+			h = Integer.rotateLeft(h, 11) * XXH_PRIME1;
+			++p;
+		}
+		return xxh32Avalanche(h);
+	}
+
+	/**
+	 * Same as {@link #xxhash32(byte[], int, int, int)}, words are read directly from sequence.
+	 */
+	public static int xxhash32(ByteSequence data, int seed) {
+		int p = 0;
+		int l = data.length();
+		int h;
+		if (l >= 16) {
+			int v1 = seed + XXH_PRIME1 + XXH_PRIME2;
+			int v2 = seed + XXH_PRIME2;
+			int v3 = seed;
+			int v4 = seed - XXH_PRIME1;
+			while(p + 16 <= l) {
+				v1 = Integer.rotateLeft(v1 + data.getIntLE(p) * XXH_PRIME2, 13) * XXH_PRIME1;
+				v2 = Integer.rotateLeft(v2 + data.getIntLE(p + 4) * XXH_PRIME2, 13) * XXH_PRIME1;
+				v3 = Integer.rotateLeft(v3 + data.getIntLE(p + 8) * XXH_PRIME2, 13) * XXH_PRIME1;
+				v4 = Integer.rotateLeft(v4 + data.getIntLE(p + 12) * XXH_PRIME2, 13) * XXH_PRIME1;
+				p += 16;
+			}
+			h = Integer.rotateLeft(v1, 1) + Integer.rotateLeft(v2, 7) + Integer.rotateLeft(v3, 12) + Integer.rotateLeft(v4, 18);
+		}
+		else {
+			h = seed + XXH_PRIME5;
+		}
+		h += l;
+		while(p + 4 <= l) {
+			h += data.getIntLE(p) * XXH_PRIME3;
+			h = Integer.rotateLeft(h, 17) * XXH_PRIME4;
+			p += 4;
+		}
+		while(p < l) {
+			h += (0xFF & data.byteAt(p)) * XXH_PRIME5;
+			h = Integer.rotateLeft(h, 11) * XXH_PRIME1;
+			++p;
+		}
+		return xxh32Avalanche(h);
+	}
+
+	private static int xxh32Avalanche(int h) {
+		h ^= h >>> 15;
+		h *= XXH_PRIME2;
+		h ^= h >>> 13;
+		h *= XXH_PRIME3;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	private static final long XXH64_PRIME1 = 0x9E3779B185EBCA87l;
+	private static final long XXH64_PRIME2 = 0xC2B2AE3D27D4EB4Fl;
+	private static final long XXH64_PRIME3 = 0x165667B19E3779F9l;
+	private static final long XXH64_PRIME4 = 0x85EBCA77C2B2AE63l;
+	private static final long XXH64_PRIME5 = 0x27D4EB2F165667C5l;
+
+	/**
+	 * Standard xxHash64, processes 32 byte stripes in four independent lanes.
+	 */
+	public static long xxhash64(byte[] data, int offs, int len, long seed) {
+		checkRange(data, offs, len);
+		int p = offs;
+		int l = offs + len;
+		long h;
+		if (len >= 32) {
+			long v1 = seed + XXH64_PRIME1 + XXH64_PRIME2;
+			long v2 = seed + XXH64_PRIME2;
+			long v3 = seed;
+			long v4 = seed - XXH64_PRIME1;
+			while(p + 32 <= l) {
+				v1 = xxh64Round(v1, ByteArrays.getLongLE(data, p));
+				v2 = xxh64Round(v2, ByteArrays.getLongLE(data, p + 8));
+				v3 = xxh64Round(v3, ByteArrays.getLongLE(data, p + 16));
+				v4 = xxh64Round(v4, ByteArrays.getLongLE(data, p + 24));
+				p += 32;
+			}
+			h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+			h = xxh64Merge(h, v1);
+			h = xxh64Merge(h, v2);
+			h = xxh64Merge(h, v3);
+			h = xxh64Merge(h, v4);
+		}
+		else {
+			h = seed + XXH64_PRIME5;
+		}
+		h += len;
+		while(p + 8 <= l) {
+			h ^= xxh64Round(0, ByteArrays.getLongLE(data, p));
+			h = Long.rotateLeft(h, 27) * XXH64_PRIME1 + XXH64_PRIME4;
+			p += 8;
+		}
+		if (p + 4 <= l) {
+			h ^= (0xFFFFFFFFl & ByteArrays.getIntLE(data, p)) * XXH64_PRIME1;
+			h = Long.rotateLeft(h, 23) * XXH64_PRIME2 + XXH64_PRIME3;
+			p += 4;
+		}
+		while(p < l) {
+			h ^= (0xFF & data[p]) * XXH64_PRIME5;
+			h = Long.rotateLeft(h, 11) * XXH64_PRIME1;
+			++p;
+		}
+		return xxh64Avalanche(h);
+	}
+
+	/**
+	 * Same as {@link #xxhash64(byte[], int, int, long)}, words are read directly from sequence.
+	 */
+	public static long xxhash64(ByteSequence data, long seed) {
+		int p = 0;
+		int l = data.length();
+		long h;
+		if (l >= 32) {
+			long v1 = seed + XXH64_PRIME1 + XXH64_PRIME2;
+			long v2 = seed + XXH64_PRIME2;
+			long v3 = seed;
+			long v4 = seed - XXH64_PRIME1;
+			while(p + 32 <= l) {
+				v1 = xxh64Round(v1, data.getLongLE(p));
+				v2 = xxh64Round(v2, data.getLongLE(p + 8));
+				v3 = xxh64Round(v3, data.getLongLE(p + 16));
+				v4 = xxh64Round(v4, data.getLongLE(p + 24));
+				p += 32;
+			}
+			h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+			h = xxh64Merge(h, v1);
+			h = xxh64Merge(h, v2);
+			h = xxh64Merge(h, v3);
+			h = xxh64Merge(h, v4);
+		}
+		else {
+			h = seed + XXH64_PRIME5;
+		}
+		h += l;
+		while(p + 8 <= l) {
+			h ^= xxh64Round(0, data.getLongLE(p));
+			h = Long.rotateLeft(h, 27) * XXH64_PRIME1 + XXH64_PRIME4;
+			p += 8;
+		}
+		if (p + 4 <= l) {
+			h ^= (0xFFFFFFFFl & data.getIntLE(p)) * XXH64_PRIME1;
+			h = Long.rotateLeft(h, 23) * XXH64_PRIME2 + XXH64_PRIME3;
+			p += 4;
+		}
+		while(p < l) {
+			h ^= (0xFF & data.byteAt(p)) * XXH64_PRIME5;
+			h = Long.rotateLeft(h, 11) * XXH64_PRIME1;
+			++p;
+		}
+		return xxh64Avalanche(h);
+	}
+
+	private static long xxh64Avalanche(long h) {
+		h ^= h >>> 33;
+		h *= XXH64_PRIME2;
+		h ^= h >>> 29;
+		h *= XXH64_PRIME3;
+		h ^= h >>> 32;
+		return h;
+	}
+
+	private static long xxh64Round(long acc, long input) {
+		return Long.rotateLeft(acc + input * XXH64_PRIME2, 31) * XXH64_PRIME1;
+	}
+
+	private static long xxh64Merge(long acc, long v) {
+		acc ^= xxh64Round(0, v);
+		return acc * XXH64_PRIME1 + XXH64_PRIME4;
+	}
+
+	private static final int[] CRC32C_TABLE = new int[256];
+	
+	static
+	{
+		for (int i = 0; i < 256; i++)
+		{
+			int r = i;
+			for (int j = 0; j < 8; j++)
+				if ((r & 1) != 0)
+					r = (r >>> 1) ^ 0x82F63B78;
+				else
+					r >>>= 1;
+			CRC32C_TABLE[i] = r;
+		}
+	}
+
+	/**
+	 * Standard CRC32C (Castagnoli), table driven. {@link HashFunction#CRC32C} uses JDK intrinsic if available.
+	 */
+	public static int crc32c(byte[] data, int offs, int len) {
+		checkRange(data, offs, len);
+		int crc = -1;
+		for(int i = 0; i != len; ++i) {
+			crc = CRC32C_TABLE[(crc ^ data[offs + i]) & 0xFF] ^ (crc >>> 8);
+		}
+		return ~crc;
+	}
+
+	public static int crc32c(ByteSequence data) {
+		int len = data.length();
+		int crc = -1;
+		for(int i = 0; i != len; ++i) {
+			crc = CRC32C_TABLE[(crc ^ data.byteAt(i)) & 0xFF] ^ (crc >>> 8);
+		}
+		return ~crc;
+	}
+
+	private static void checkRange(byte[] data, int offs, int len) {
+		if (offs < 0 || len < 0 || offs + len > data.length) {
+			throw new ArrayIndexOutOfBoundsException("Range " + offs + " by " + len + ", array length " + data.length);
+		}
+	}
 }
@@ -0,0 +1,1237 @@
+/**
+ *  Copyright 2011 Alexey Ragozin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.gridkit.offheap.jmemstore;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * B+tree data structure, using explicit memory manager.
+ * <br/>
+ * Each node is a single memory chunk. Nodes refer to each other by node id,
+ * node id to pointer mapping is kept in node table. First int of each node chunk is its node id,
+ * so ids collected for evacuation could be resolved without tree traversal and
+ * relocation of node requires update of single slot in node table.
+ * <br/>
+ * Leafs are slotted: slot array grows from node header, entries are packed from the end of chunk.
+ * Inserts and updates which fit into free space of leaf are done in place, otherwise leaf is rewritten
+ * into new chunk. Leaf capacity grows geometrically up to node size limit, after that leaf is split.
+ * Inner nodes are copy-on-write. Underflown nodes are not merged, only empty nodes are removed from tree.
+ * <br/>
+ * Writers are serialized by writer lock. New node chunks are allocated and filled without tree lock,
+ * then all changes of a mutation are published at once under write lock of tree.
+ * In place modifications are done under write lock of tree as well, they never allocate memory.
+ * Readers and evacuation use tree lock, so writer waiting for free memory does not block evacuation.
+ *
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+class BinaryBTree implements SortedBinaryKeyValueStore, MemoryConsumer {
+
+	// Leaf node structure
+	// | -- -- -- -- | -- -- -- -- | -- -- -- -- | -- -- -- -- | -- ... -- | -- ... -- | -- ... -- |
+	// | node id     | type = 1    | count       | data start  | offsets   | free      | entries   |
+	// Entry structure
+	// | -- -- -- -- | -- -- -- -- | -- -- -- -- -- -- -- -- | -- ... -- | -- ... -- |
+	// | key size    | value size  | version                 | key data  | value     |
+	//
+	// Inner node structure
+	// | -- -- -- -- | -- -- -- -- | -- -- -- -- | -- -- -- -- | -- ... -- | -- ... -- | -- ... -- |
+	// | node id     | type = 0    | count       | unused      | children  | offsets   | keys      |
+	// Key structure
+	// | -- -- -- -- | -- ... -- |
+	// | key size    | key data  |
+	// Inner node with N keys has N + 1 children, key i is lowest key of child i + 1
+
+	private static final int POS_NODE_ID = 0;
+	private static final int POS_TYPE = 4;
+	private static final int POS_COUNT = 8;
+	private static final int POS_DATA_START = 12;
+	private static final int NODE_HEADER = 16;
+
+	private static final int MIN_LEAF_CAPACITY = 128;
+
+	private static final int ENTRY_HEADER = 16;
+	private static final int KEY_HEADER = 4;
+
+	private static final int TYPE_INNER = 0;
+	private static final int TYPE_LEAF = 1;
+
+	// conditions for put/remove operations
+	private static final int IF_ANY = 0;
+	private static final int IF_VALUE = 1;
+	private static final int IF_VERSION = 2;
+
+	private static final int MAX_DEPTH = 64;
+	private static final int SCAN_BATCH = 64;
+
+	private final MemoryStoreBackend pageManager;
+	private final int nodeSizeLimit;
+
+	// guards node table and node chunks referenced from it
+	private final ReentrantReadWriteLock treeLock = new ReentrantReadWriteLock();
+	private final ReentrantLock writerLock = new ReentrantLock();
+
+	// modified under tree write lock
+	private int[] nodeTable = new int[64];
+	private int root = -1;
+
+	// writer lock guarded
+	private int[] freeNodeIds = new int[64];
+	private int freeNodeCount;
+	private int nodeIdLimit;
+	private long versionCounter;
+	private volatile int size;
+
+	// pending changes of current mutation, writer lock guarded
+	private int[] stagedIds = new int[16];
+	private int[] stagedPointers = new int[16];
+	private int stagedCount;
+	private int[] droppedIds = new int[16];
+	private int droppedCount;
+	private int stagedRoot = -1;
+
+	private volatile MutationStream mutationStream;
+
+	public BinaryBTree(MemoryStoreBackend pageManager, int nodeSizeLimit) {
+		this.pageManager = pageManager;
+		this.nodeSizeLimit = nodeSizeLimit;
+		writerLock.lock();
+		try {
+			init();
+			commit();
+		}
+		finally {
+			writerLock.unlock();
+		}
+	}
+
+	// writer lock assumed
+	private void init() {
+		Node leaf = new Node(allocateNodeId(), true);
+		storeNode(leaf);
+		stagedRoot = leaf.id;
+	}
+
+	// Node table
+
+	// writer lock assumed
+	private int allocateNodeId() {
+		if (freeNodeCount > 0) {
+			return freeNodeIds[--freeNodeCount];
+		}
+		return nodeIdLimit++;
+	}
+
+	// writer lock assumed, chunk is released on commit
+	private void releaseNode(int id) {
+		if (droppedCount == droppedIds.length) {
+			droppedIds = Arrays.copyOf(droppedIds, droppedIds.length * 2);
+		}
+		droppedIds[droppedCount++] = id;
+	}
+
+	// read lock assumed
+	private ByteChunk readNode(int id) {
+		return pageManager.get(nodeTable[id]);
+	}
+
+	// writer lock assumed
+	private Node decodeNode(int id) {
+		treeLock.readLock().lock();
+		try {
+			return decode(id, readNode(id));
+		}
+		finally {
+			treeLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Writes node into new chunk, chunk is not visible to readers until commit.
+	 */
+	// writer lock assumed
+	private void storeNode(Node node) {
+		int len = node.leaf ? leafCapacity(node.encodedSize()) : node.encodedSize();
+		// may wait for evacuation, so no tree lock should be held here
+		int npp = pageManager.allocate(len, PagedBinaryStoreManager.ALLOC_NEW_VALUE);
+		ByteChunk chunk = pageManager.get(npp);
+		node.encode(chunk);
+		// not required for in-heap backend
+		pageManager.update(npp, chunk);
+		if (stagedCount == stagedIds.length) {
+			stagedIds = Arrays.copyOf(stagedIds, stagedIds.length * 2);
+			stagedPointers = Arrays.copyOf(stagedPointers, stagedPointers.length * 2);
+		}
+		stagedIds[stagedCount] = node.id;
+		stagedPointers[stagedCount] = npp;
+		++stagedCount;
+	}
+
+	/**
+	 * Leaf capacity doubles as leaf grows, until it reaches node size limit.
+	 */
+	private int leafCapacity(int size) {
+		int capacity = size <= MIN_LEAF_CAPACITY ? MIN_LEAF_CAPACITY : Integer.highestOneBit(size - 1) << 1;
+		if (capacity > nodeSizeLimit) {
+			capacity = size > nodeSizeLimit ? size : nodeSizeLimit;
+		}
+		return capacity;
+	}
+
+	/**
+	 * Publishes staged nodes and releases replaced and dropped chunks.
+	 */
+	// writer lock assumed
+	private void commit() {
+		treeLock.writeLock().lock();
+		try {
+			if (nodeIdLimit > nodeTable.length) {
+				nodeTable = Arrays.copyOf(nodeTable, Math.max(nodeIdLimit, 2 * nodeTable.length));
+			}
+			for(int i = 0; i != stagedCount; ++i) {
+				int id = stagedIds[i];
+				// pointer may have been changed by evacuation since node was read
+				int opp = nodeTable[id];
+				nodeTable[id] = stagedPointers[i];
+				if (opp != PagedBinaryStoreManager.EMPTY) {
+					pageManager.release(opp);
+				}
+			}
+			for(int i = 0; i != droppedCount; ++i) {
+				int id = droppedIds[i];
+				int pp = nodeTable[id];
+				if (pp != PagedBinaryStoreManager.EMPTY) {
+					pageManager.release(pp);
+					nodeTable[id] = PagedBinaryStoreManager.EMPTY;
+				}
+			}
+			if (stagedRoot >= 0) {
+				root = stagedRoot;
+			}
+		}
+		finally {
+			treeLock.writeLock().unlock();
+		}
+		for(int i = 0; i != droppedCount; ++i) {
+			if (freeNodeCount == freeNodeIds.length) {
+				freeNodeIds = Arrays.copyOf(freeNodeIds, freeNodeIds.length * 2);
+			}
+			freeNodeIds[freeNodeCount++] = droppedIds[i];
+		}
+		stagedCount = 0;
+		droppedCount = 0;
+		stagedRoot = -1;
+	}
+
+	// Node access
+
+	private static boolean isLeaf(ByteChunk node) {
+		return node.intAt(POS_TYPE) == TYPE_LEAF;
+	}
+
+	private static int count(ByteChunk node) {
+		return node.intAt(POS_COUNT);
+	}
+
+	private static int leafEntryOffset(ByteChunk node, int i) {
+		return node.intAt(NODE_HEADER + 4 * i);
+	}
+
+	private static ByteChunk leafKey(ByteChunk node, int i) {
+		int offs = leafEntryOffset(node, i);
+		return node.subChunk(offs + ENTRY_HEADER, node.intAt(offs));
+	}
+
+	private static ByteChunk leafValue(ByteChunk node, int i) {
+		int offs = leafEntryOffset(node, i);
+		int keySize = node.intAt(offs);
+		return node.subChunk(offs + ENTRY_HEADER + keySize, node.intAt(offs + 4));
+	}
+
+	private static long leafVersion(ByteChunk node, int i) {
+		return node.longAt(leafEntryOffset(node, i) + 8);
+	}
+
+	private static int compareLeafKey(ByteChunk node, int i, ByteChunk key) {
+		int offs = leafEntryOffset(node, i);
+		return compare(node, offs + ENTRY_HEADER, node.intAt(offs), key);
+	}
+
+	private static int leafFreeSpace(ByteChunk node) {
+		return node.intAt(POS_DATA_START) - NODE_HEADER - 4 * count(node);
+	}
+
+	private static int entrySize(ByteChunk key, ByteChunk value) {
+		return ENTRY_HEADER + key.lenght() + value.lenght();
+	}
+
+	/**
+	 * @param n result of {@link #leafIndex(ByteChunk, ByteChunk)}
+	 */
+	private static boolean fitsInPlace(ByteChunk node, int n, ByteChunk key, ByteChunk value) {
+		if (n >= 0 && node.intAt(leafEntryOffset(node, n) + 4) == value.lenght()) {
+			return true;
+		}
+		return entrySize(key, value) + (n < 0 ? 4 : 0) <= leafFreeSpace(node);
+	}
+
+	/**
+	 * Updates or inserts entry in leaf, {@link #fitsInPlace(ByteChunk, int, ByteChunk, ByteChunk)} should be checked first.
+	 */
+	private static void putInPlace(ByteChunk node, int n, ByteChunk key, ByteChunk value, long version) {
+		if (n >= 0) {
+			int offs = leafEntryOffset(node, n);
+			if (node.intAt(offs + 4) == value.lenght()) {
+				node.putLong(offs + 8, version);
+				writeBytes(node, offs + ENTRY_HEADER + key.lenght(), value);
+				return;
+			}
+		}
+		int offs = node.intAt(POS_DATA_START) - entrySize(key, value);
+		node.putInt(offs, key.lenght());
+		node.putInt(offs + 4, value.lenght());
+		node.putLong(offs + 8, version);
+		writeBytes(node, offs + ENTRY_HEADER, key);
+		writeBytes(node, offs + ENTRY_HEADER + key.lenght(), value);
+		node.putInt(POS_DATA_START, offs);
+		if (n >= 0) {
+			// old entry remains as a hole until leaf is rewritten
+			node.putInt(NODE_HEADER + 4 * n, offs);
+		}
+		else {
+			int count = count(node);
+			int ins = -(n + 1);
+			moveBytes(node, NODE_HEADER + 4 * ins, NODE_HEADER + 4 * (ins + 1), 4 * (count - ins));
+			node.putInt(NODE_HEADER + 4 * ins, offs);
+			node.putInt(POS_COUNT, count + 1);
+		}
+	}
+
+	private static void removeInPlace(ByteChunk node, int n) {
+		int count = count(node);
+		moveBytes(node, NODE_HEADER + 4 * (n + 1), NODE_HEADER + 4 * n, 4 * (count - n - 1));
+		node.putInt(NODE_HEADER + 4 * (count - 1), 0);
+		node.putInt(POS_COUNT, count - 1);
+	}
+
+	// unlike ByteChunk.putBytes(), target is allowed to contain data
+	private static void writeBytes(ByteChunk chunk, int offs, ByteChunk bytes) {
+		if (offs + bytes.lenght() > chunk.lenght()) {
+			throw new IllegalArgumentException("Out of bounds");
+		}
+		System.arraycopy(bytes.array(), bytes.offset(), chunk.array(), chunk.offset() + offs, bytes.lenght());
+	}
+
+	private static void moveBytes(ByteChunk chunk, int from, int to, int len) {
+		System.arraycopy(chunk.array(), chunk.offset() + from, chunk.array(), chunk.offset() + to, len);
+	}
+
+	private static int innerChild(ByteChunk node, int i) {
+		return node.intAt(NODE_HEADER + 4 * i);
+	}
+
+	private static int innerKeyOffset(ByteChunk node, int i) {
+		int count = count(node);
+		return node.intAt(NODE_HEADER + 4 * (count + 1) + 4 * i);
+	}
+
+	private static ByteChunk innerKey(ByteChunk node, int i) {
+		int offs = innerKeyOffset(node, i);
+		return node.subChunk(offs + KEY_HEADER, node.intAt(offs));
+	}
+
+	/**
+	 * @return index of child which range contains given key
+	 */
+	private static int childIndex(ByteChunk node, ByteChunk key) {
+		// first key greater than search key
+		int lo = 0;
+		int hi = count(node);
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			int offs = innerKeyOffset(node, mid);
+			if (compare(node, offs + KEY_HEADER, node.intAt(offs), key) <= 0) {
+				lo = mid + 1;
+			}
+			else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * @return index of key in leaf or <code>-(insertion point) - 1</code>
+	 */
+	private static int leafIndex(ByteChunk node, ByteChunk key) {
+		int lo = 0;
+		int hi = count(node) - 1;
+		while(lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int c = compareLeafKey(node, mid, key);
+			if (c < 0) {
+				lo = mid + 1;
+			}
+			else if (c > 0) {
+				hi = mid - 1;
+			}
+			else {
+				return mid;
+			}
+		}
+		return -(lo + 1);
+	}
+
+	/**
+	 * Unsigned lexicographic comparison of byte range in chunk with key.
+	 */
+	static int compare(ByteChunk chunk, int offs, int len, ByteChunk key) {
+		return ByteArrays.compare(chunk.array(), chunk.offset() + offs, len, key.array(), key.offset(), key.lenght());
+	}
+
+	static int compare(ByteChunk a, ByteChunk b) {
+		return compare(a, 0, a.lenght(), b);
+	}
+
+	// read lock assumed
+	private ByteChunk findLeaf(ByteChunk key) {
+		ByteChunk node = readNode(root);
+		while(!isLeaf(node)) {
+			node = readNode(innerChild(node, childIndex(node, key)));
+		}
+		return node;
+	}
+
+	// Public API
+
+	@Override
+	public ByteChunk get(ByteSequence key) {
+		return getWithVersion(key, null);
+	}
+
+	@Override
+	public ByteChunk getWithVersion(ByteSequence key, long[] version) {
+		// tree nodes are compared against in-heap chunks
+		ByteChunk k = BinaryKey.toChunk(key);
+		treeLock.readLock().lock();
+		try {
+			ByteChunk leaf = findLeaf(k);
+			int n = leafIndex(leaf, k);
+			if (n >= 0) {
+				if (version != null) {
+					version[0] = leafVersion(leaf, n);
+				}
+				// leafs are modified in place, so value should be copied
+				return copyOf(leafValue(leaf, n));
+			}
+			else {
+				if (version != null) {
+					version[0] = NO_VERSION;
+				}
+				return null;
+			}
+		}
+		finally {
+			treeLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public ByteChunk ceilingKey(ByteChunk key) {
+		List<ByteChunk[]> buf = new ArrayList<ByteChunk[]>();
+		scan(key, true, null, false, false, buf, 1);
+		return buf.isEmpty() ? null : buf.get(0)[0];
+	}
+
+	@Override
+	public ByteChunk floorKey(ByteChunk key) {
+		List<ByteChunk[]> buf = new ArrayList<ByteChunk[]>();
+		scan(key, true, null, true, false, buf, 1);
+		return buf.isEmpty() ? null : buf.get(0)[0];
+	}
+
+	@Override
+	public void put(ByteSequence key, ByteSequence value) {
+		long version = internalPut(BinaryKey.toChunk(key), BinaryKey.toChunk(value), IF_ANY, null, NO_VERSION);
+		publish(MutationEvent.PUT, key, value, version);
+	}
+
+	@Override
+	public boolean compareAndPut(ByteSequence key, ByteSequence expected, ByteSequence newValue) {
+		long version = internalPut(BinaryKey.toChunk(key), BinaryKey.toChunk(newValue), IF_VALUE, BinaryKey.toChunk(expected), NO_VERSION);
+		if (version != NO_VERSION) {
+			publish(MutationEvent.PUT, key, newValue, version);
+			return true;
+		}
+		else {
+			return false;
+		}
+	}
+
+	@Override
+	public long putIfVersion(ByteSequence key, ByteSequence value, long expectedVersion) {
+		long version = internalPut(BinaryKey.toChunk(key), BinaryKey.toChunk(value), IF_VERSION, null, expectedVersion);
+		if (version != NO_VERSION) {
+			publish(MutationEvent.PUT, key, value, version);
+		}
+		return version;
+	}
+
+	@Override
+	public void remove(ByteSequence key) {
+		long version = internalRemove(BinaryKey.toChunk(key), IF_ANY, null, NO_VERSION);
+		if (version != NO_VERSION) {
+			publish(MutationEvent.REMOVE, key, null, version);
+		}
+	}
+
+	@Override
+	public boolean compareAndRemove(ByteSequence key, ByteSequence expected) {
+		if (expected != null) {
+			long version = internalRemove(BinaryKey.toChunk(key), IF_VALUE, BinaryKey.toChunk(expected), NO_VERSION);
+			if (version != NO_VERSION) {
+				publish(MutationEvent.REMOVE, key, null, version);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public boolean removeIfVersion(ByteSequence key, long expectedVersion) {
+		if (expectedVersion != NO_VERSION) {
+			if (internalRemove(BinaryKey.toChunk(key), IF_VERSION, null, expectedVersion) != NO_VERSION) {
+				publish(MutationEvent.REMOVE, key, null, expectedVersion);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public Iterator<ByteChunk> keys() {
+		return keys(null, null, false);
+	}
+
+	@Override
+	public Iterator<ByteChunk> keys(ByteChunk lowerBound, ByteChunk upperBound, boolean reverse) {
+		return new KeyIterator(new RangeIterator(lowerBound, upperBound, reverse));
+	}
+
+	@Override
+	public Iterator<ByteChunk[]> entries(ByteChunk lowerBound, ByteChunk upperBound, boolean reverse) {
+		return new RangeIterator(lowerBound, upperBound, reverse);
+	}
+
+	@Override
+	public Iterator<ByteChunk> prefixKeys(ByteChunk prefix, boolean reverse) {
+		return keys(prefix, prefixUpperBound(prefix), reverse);
+	}
+
+	@Override
+	public Iterator<ByteChunk[]> prefixEntries(ByteChunk prefix, boolean reverse) {
+		return entries(prefix, prefixUpperBound(prefix), reverse);
+	}
+
+	/**
+	 * @return lowest key greater than all keys with given prefix, <code>null</code> if there is no such key
+	 */
+	static ByteChunk prefixUpperBound(ByteChunk prefix) {
+		int n = prefix.lenght();
+		while(n > 0 && prefix.at(n - 1) == (byte)0xFF) {
+			--n;
+		}
+		if (n == 0) {
+			return null;
+		}
+		byte[] bound = new byte[n];
+		System.arraycopy(prefix.array(), prefix.offset(), bound, 0, n);
+		bound[n - 1]++;
+		return new ByteChunk(bound);
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public void clear() {
+		writerLock.lock();
+		try {
+			releaseAll();
+			init();
+			commit();
+		}
+		finally {
+			writerLock.unlock();
+		}
+		publish(MutationEvent.CLEAR, null, null, NO_VERSION);
+	}
+
+	@Override
+	public void destroy() {
+		writerLock.lock();
+		try {
+			releaseAll();
+		}
+		finally {
+			writerLock.unlock();
+		}
+	}
+
+	// writer lock assumed
+	private void releaseAll() {
+		treeLock.writeLock().lock();
+		try {
+			for(int i = 0; i != nodeTable.length; ++i) {
+				int pp = nodeTable[i];
+				if (pp != PagedBinaryStoreManager.EMPTY) {
+					pageManager.release(pp);
+					nodeTable[i] = PagedBinaryStoreManager.EMPTY;
+				}
+			}
+			root = -1;
+		}
+		finally {
+			treeLock.writeLock().unlock();
+		}
+		freeNodeCount = 0;
+		nodeIdLimit = 0;
+		size = 0;
+	}
+
+	@Override
+	public void setMutationStream(MutationStream stream) {
+		this.mutationStream = stream;
+	}
+
+	private void publish(int type, ByteSequence key, ByteSequence value, long version) {
+		MutationStream stream = mutationStream;
+		if (stream != null) {
+			stream.publish(type, this, key, value, version);
+		}
+	}
+
+	// Evacuation
+
+	@Override
+	public void recycleHashes(int[] evacuationHashes, int hashCount) {
+		for(int i = 0; i != hashCount; ++i) {
+			// for tree nodes "hash" is a node id
+			int id = evacuationHashes[i];
+			int[] table = nodeTable;
+			if (id < 0 || id >= table.length || !needRecycle(table[id])) {
+				// hash from another table or node which is not subject of evacuation
+				continue;
+			}
+			treeLock.writeLock().lock();
+			try {
+				if (id < nodeTable.length) {
+					int pp = nodeTable[id];
+					if (needRecycle(pp) && pageManager.readInt(pp, POS_NODE_ID) == id) {
+						nodeTable[id] = pageManager.relocate(pp, PagedBinaryStoreManager.ALLOC_RELOCATE_VALUE);
+					}
+				}
+			}
+			finally {
+				treeLock.writeLock().unlock();
+			}
+		}
+	}
+
+	private boolean needRecycle(int pointer) {
+		return pointer != PagedBinaryStoreManager.EMPTY && pageManager.isMarkedForRecycle(pointer);
+	}
+
+	// Mutations
+
+	// null expected value or NO_VERSION expected version mean that key should be absent
+	private static boolean checkCondition(ByteChunk leaf, int n, int condition, ByteChunk expected, long expectedVersion) {
+		switch(condition) {
+		case IF_ANY:
+			return true;
+		case IF_VALUE:
+			return n < 0 ? expected == null : (expected != null && leafValue(leaf, n).sameBytes(expected));
+		case IF_VERSION:
+			return n < 0 ? expectedVersion == NO_VERSION : leafVersion(leaf, n) == expectedVersion;
+		default:
+			throw new IllegalArgumentException("Unknown condition " + condition);
+		}
+	}
+
+	private long internalPut(ByteChunk key, ByteChunk value, int condition, ByteChunk expected, long expectedVersion) {
+		writerLock.lock();
+		try {
+			int[] path = new int[MAX_DEPTH];
+			int[] pathIndex = new int[MAX_DEPTH];
+			int depth;
+			int n;
+			boolean inPlace;
+			treeLock.readLock().lock();
+			try {
+				depth = descend(key, path, pathIndex);
+				ByteChunk leafChunk = readNode(path[depth]);
+				n = leafIndex(leafChunk, key);
+				if (!checkCondition(leafChunk, n, condition, expected, expectedVersion)) {
+					return NO_VERSION;
+				}
+				inPlace = fitsInPlace(leafChunk, n, key, value);
+			}
+			finally {
+				treeLock.readLock().unlock();
+			}
+			long version = ++versionCounter;
+			if (inPlace) {
+				// tree structure cannot change while writer lock is held, only evacuation may move leaf
+				treeLock.writeLock().lock();
+				try {
+					int pp = nodeTable[path[depth]];
+					ByteChunk leafChunk = pageManager.get(pp);
+					putInPlace(leafChunk, n, key, value, version);
+					// not required for in-heap backend
+					pageManager.update(pp, leafChunk);
+				}
+				finally {
+					treeLock.writeLock().unlock();
+				}
+			}
+			else {
+				Node leaf = decodeNode(path[depth]);
+				if (n >= 0) {
+					leaf.values.set(n, copyOf(value));
+					leaf.versions.set(n, version);
+				}
+				else {
+					int ins = -(n + 1);
+					leaf.keys.add(ins, copyOf(key));
+					leaf.values.add(ins, copyOf(value));
+					leaf.versions.add(ins, version);
+				}
+				storeWithSplit(leaf, path, pathIndex, depth);
+				commit();
+			}
+			if (n < 0) {
+				++size;
+			}
+			return version;
+		}
+		finally {
+			writerLock.unlock();
+		}
+	}
+
+	/**
+	 * @return version of removed entry or {@link #NO_VERSION} if nothing was removed
+	 */
+	private long internalRemove(ByteChunk key, int condition, ByteChunk expected, long expectedVersion) {
+		writerLock.lock();
+		try {
+			int[] path = new int[MAX_DEPTH];
+			int[] pathIndex = new int[MAX_DEPTH];
+			int depth;
+			int n;
+			long version;
+			boolean dropLeaf;
+			treeLock.readLock().lock();
+			try {
+				depth = descend(key, path, pathIndex);
+				ByteChunk leafChunk = readNode(path[depth]);
+				n = leafIndex(leafChunk, key);
+				if (n < 0 || !checkCondition(leafChunk, n, condition, expected, expectedVersion)) {
+					return NO_VERSION;
+				}
+				version = leafVersion(leafChunk, n);
+				dropLeaf = depth > 0 && count(leafChunk) == 1;
+			}
+			finally {
+				treeLock.readLock().unlock();
+			}
+			if (dropLeaf) {
+				releaseNode(path[depth]);
+				removeChild(path, pathIndex, depth - 1);
+				commit();
+			}
+			else {
+				treeLock.writeLock().lock();
+				try {
+					int pp = nodeTable[path[depth]];
+					ByteChunk leafChunk = pageManager.get(pp);
+					removeInPlace(leafChunk, n);
+					// not required for in-heap backend
+					pageManager.update(pp, leafChunk);
+				}
+				finally {
+					treeLock.writeLock().unlock();
+				}
+			}
+			--size;
+			return version;
+		}
+		finally {
+			writerLock.unlock();
+		}
+	}
+
+	/**
+	 * Fills path from root to leaf for given key.
+	 * @return depth of leaf
+	 */
+	// read lock assumed
+	private int descend(ByteChunk key, int[] path, int[] pathIndex) {
+		int depth = 0;
+		int id = root;
+		while(true) {
+			path[depth] = id;
+			ByteChunk node = readNode(id);
+			if (isLeaf(node)) {
+				return depth;
+			}
+			int ci = childIndex(node, key);
+			pathIndex[depth] = ci;
+			id = innerChild(node, ci);
+			++depth;
+		}
+	}
+
+	// writer lock assumed
+	private void storeWithSplit(Node node, int[] path, int[] pathIndex, int depth) {
+		while(true) {
+			if (node.size() < 2 || node.encodedSize() <= nodeSizeLimit) {
+				storeNode(node);
+				return;
+			}
+			Node right = new Node(allocateNodeId(), node.leaf);
+			ByteChunk separator = node.split(right);
+			storeNode(node);
+			storeNode(right);
+			if (depth == 0) {
+				// growing tree
+				Node newRoot = new Node(allocateNodeId(), false);
+				newRoot.children.add(node.id);
+				newRoot.children.add(right.id);
+				newRoot.keys.add(separator);
+				storeNode(newRoot);
+				stagedRoot = newRoot.id;
+				return;
+			}
+			--depth;
+			Node parent = decodeNode(path[depth]);
+			int ci = pathIndex[depth];
+			parent.keys.add(ci, separator);
+			parent.children.add(ci + 1, right.id);
+			node = parent;
+		}
+	}
+
+	// writer lock assumed
+	private void removeChild(int[] path, int[] pathIndex, int depth) {
+		while(true) {
+			Node parent = decodeNode(path[depth]);
+			int ci = pathIndex[depth];
+			parent.children.remove(ci);
+			if (!parent.keys.isEmpty()) {
+				parent.keys.remove(ci == 0 ? 0 : ci - 1);
+			}
+			if (parent.children.isEmpty()) {
+				releaseNode(parent.id);
+				if (depth == 0) {
+					init();
+					return;
+				}
+				--depth;
+				continue;
+			}
+			if (depth == 0 && parent.children.size() == 1) {
+				// shrinking tree
+				releaseNode(parent.id);
+				int newRoot = parent.children.get(0);
+				treeLock.readLock().lock();
+				try {
+					ByteChunk node = readNode(newRoot);
+					while(!isLeaf(node) && count(node) == 0) {
+						int child = innerChild(node, 0);
+						releaseNode(newRoot);
+						newRoot = child;
+						node = readNode(newRoot);
+					}
+				}
+				finally {
+					treeLock.readLock().unlock();
+				}
+				stagedRoot = newRoot;
+				return;
+			}
+			storeNode(parent);
+			return;
+		}
+	}
+
+	private static ByteChunk copyOf(ByteChunk chunk) {
+		byte[] data = new byte[chunk.lenght()];
+		System.arraycopy(chunk.array(), chunk.offset(), data, 0, data.length);
+		return new ByteChunk(data);
+	}
+
+	// Scanning
+
+	/**
+	 * Collects entries starting from given key in given direction.
+	 * @param from start key, <code>null</code> - from first (or last for reverse scan) key
+	 * @param to end key, exclusive for forward scan, inclusive for reverse scan. <code>null</code> - unlimited
+	 */
+	private void scan(ByteChunk from, boolean inclusive, ByteChunk to, boolean reverse, boolean withValues, List<ByteChunk[]> buffer, int limit) {
+		treeLock.readLock().lock();
+		try {
+			scan(root, from, inclusive, to, reverse, withValues, buffer, limit);
+		}
+		finally {
+			treeLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return <code>false</code> if scan should be stopped
+	 */
+	// read lock assumed
+	private boolean scan(int id, ByteChunk from, boolean inclusive, ByteChunk to, boolean reverse, boolean withValues, List<ByteChunk[]> buffer, int limit) {
+		ByteChunk node = readNode(id);
+		int count = count(node);
+		if (isLeaf(node)) {
+			if (!reverse) {
+				int i = 0;
+				if (from != null) {
+					int n = leafIndex(node, from);
+					i = n >= 0 ? (inclusive ? n : n + 1) : -(n + 1);
+				}
+				for(; i < count; ++i) {
+					if (to != null && compareLeafKey(node, i, to) >= 0) {
+						return false;
+					}
+					buffer.add(copyEntry(node, i, withValues));
+				}
+			}
+			else {
+				int i = count - 1;
+				if (from != null) {
+					int n = leafIndex(node, from);
+					i = n >= 0 ? (inclusive ? n : n - 1) : -(n + 1) - 1;
+				}
+				for(; i >= 0; --i) {
+					if (to != null && compareLeafKey(node, i, to) < 0) {
+						return false;
+					}
+					buffer.add(copyEntry(node, i, withValues));
+				}
+			}
+			return buffer.size() < limit;
+		}
+		else {
+			if (!reverse) {
+				int ci = from == null ? 0 : childIndex(node, from);
+				for(int i = ci; i <= count; ++i) {
+					// all keys in following children are greater than 'from'
+					if (!scan(innerChild(node, i), i == ci ? from : null, inclusive, to, reverse, withValues, buffer, limit)) {
+						return false;
+					}
+				}
+			}
+			else {
+				int ci = from == null ? count : childIndex(node, from);
+				for(int i = ci; i >= 0; --i) {
+					if (!scan(innerChild(node, i), i == ci ? from : null, inclusive, to, reverse, withValues, buffer, limit)) {
+						return false;
+					}
+				}
+			}
+			return true;
+		}
+	}
+
+	// buffered entries are used outside of lock, so they have to be copied
+	private static ByteChunk[] copyEntry(ByteChunk node, int i, boolean withValue) {
+		if (withValue) {
+			return new ByteChunk[]{copyOf(leafKey(node, i)), copyOf(leafValue(node, i))};
+		}
+		else {
+			return new ByteChunk[]{copyOf(leafKey(node, i))};
+		}
+	}
+
+	private class RangeIterator implements Iterator<ByteChunk[]> {
+
+		private final ByteChunk lowerBound;
+		private final ByteChunk upperBound;
+		private final boolean reverse;
+
+		private final List<ByteChunk[]> buffer = new ArrayList<ByteChunk[]>();
+		private int position;
+		private ByteChunk lastKey;
+		private boolean exhausted;
+
+		public RangeIterator(ByteChunk lowerBound, ByteChunk upperBound, boolean reverse) {
+			this.lowerBound = lowerBound;
+			this.upperBound = upperBound;
+			this.reverse = reverse;
+		}
+
+		private void feed() {
+			buffer.clear();
+			position = 0;
+			if (!reverse) {
+				ByteChunk from = lastKey == null ? lowerBound : lastKey;
+				scan(from, lastKey == null, upperBound, false, true, buffer, SCAN_BATCH);
+			}
+			else {
+				if (lastKey == null) {
+					if (upperBound == null) {
+						scan(null, true, lowerBound, true, true, buffer, SCAN_BATCH);
+					}
+					else {
+						scan(upperBound, false, lowerBound, true, true, buffer, SCAN_BATCH);
+					}
+				}
+				else {
+					scan(lastKey, false, lowerBound, true, true, buffer, SCAN_BATCH);
+				}
+			}
+			if (buffer.isEmpty()) {
+				exhausted = true;
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (position >= buffer.size() && !exhausted) {
+				feed();
+			}
+			return position < buffer.size();
+		}
+
+		@Override
+		public ByteChunk[] next() {
+			if (hasNext()) {
+				ByteChunk[] entry = buffer.get(position++);
+				lastKey = entry[0];
+				return entry;
+			}
+			else {
+				throw new NoSuchElementException();
+			}
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	private static class KeyIterator implements Iterator<ByteChunk> {
+
+		private final Iterator<ByteChunk[]> entries;
+
+		public KeyIterator(Iterator<ByteChunk[]> entries) {
+			this.entries = entries;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return entries.hasNext();
+		}
+
+		@Override
+		public ByteChunk next() {
+			return entries.next()[0];
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	// Node encoding
+
+	// node data is copied, original chunk may be released while node is still in use
+	private static Node decode(int id, ByteChunk chunk) {
+		boolean leaf = isLeaf(chunk);
+		Node node = new Node(id, leaf);
+		int count = count(chunk);
+		if (leaf) {
+			for(int i = 0; i != count; ++i) {
+				node.keys.add(copyOf(leafKey(chunk, i)));
+				node.values.add(copyOf(leafValue(chunk, i)));
+				node.versions.add(leafVersion(chunk, i));
+			}
+		}
+		else {
+			for(int i = 0; i != count; ++i) {
+				node.keys.add(copyOf(innerKey(chunk, i)));
+			}
+			for(int i = 0; i != count + 1; ++i) {
+				node.children.add(innerChild(chunk, i));
+			}
+		}
+		return node;
+	}
+
+	private static class Node {
+
+		final int id;
+		final boolean leaf;
+		final List<ByteChunk> keys = new ArrayList<ByteChunk>();
+		// leaf only
+		final List<ByteChunk> values;
+		final List<Long> versions;
+		// inner node only
+		final List<Integer> children;
+
+		public Node(int id, boolean leaf) {
+			this.id = id;
+			this.leaf = leaf;
+			this.values = leaf ? new ArrayList<ByteChunk>() : null;
+			this.versions = leaf ? new ArrayList<Long>() : null;
+			this.children = leaf ? null : new ArrayList<Integer>();
+		}
+
+		public int size() {
+			return leaf ? keys.size() : children.size();
+		}
+
+		public int find(ByteChunk key) {
+			int lo = 0;
+			int hi = keys.size() - 1;
+			while(lo <= hi) {
+				int mid = (lo + hi) >>> 1;
+				int c = compare(keys.get(mid), key);
+				if (c < 0) {
+					lo = mid + 1;
+				}
+				else if (c > 0) {
+					hi = mid - 1;
+				}
+				else {
+					return mid;
+				}
+			}
+			return -(lo + 1);
+		}
+
+		private int elementSize(int i) {
+			if (leaf) {
+				return 4 + ENTRY_HEADER + keys.get(i).lenght() + values.get(i).lenght();
+			}
+			else {
+				return 4 + 4 + KEY_HEADER + keys.get(i).lenght();
+			}
+		}
+
+		public int encodedSize() {
+			int len = NODE_HEADER + (leaf ? 0 : 4);
+			for(int i = 0; i != keys.size(); ++i) {
+				len += elementSize(i);
+			}
+			return len;
+		}
+
+		/**
+		 * Moves upper half of node to provided empty node.
+		 * @return separator key for parent node
+		 */
+		public ByteChunk split(Node right) {
+			int half = encodedSize() / 2;
+			int len = NODE_HEADER;
+			int m = 0;
+			while(m < keys.size() - 1) {
+				len += elementSize(m);
+				if (len > half) {
+					break;
+				}
+				++m;
+			}
+			if (leaf) {
+				// entries [0, m] stay, at least one entry moves
+				int s = m + 1 < keys.size() ? m + 1 : keys.size() - 1;
+				s = s < 1 ? 1 : s;
+				move(keys, right.keys, s);
+				move(values, right.values, s);
+				move(versions, right.versions, s);
+				return right.keys.get(0);
+			}
+			else {
+				// key m moves up, children [0, m] stay
+				m = m < 1 ? 1 : m;
+				if (m >= keys.size()) {
+					m = keys.size() - 1;
+				}
+				ByteChunk separator = keys.get(m);
+				move(keys, right.keys, m + 1);
+				keys.remove(m);
+				move(children, right.children, m + 1);
+				return separator;
+			}
+		}
+
+		private static <T> void move(List<T> from, List<T> to, int start) {
+			List<T> tail = from.subList(start, from.size());
+			to.addAll(tail);
+			tail.clear();
+		}
+
+		public void encode(ByteChunk chunk) {
+			int count = keys.size();
+			chunk.putInt(POS_NODE_ID, id);
+			chunk.putInt(POS_TYPE, leaf ? TYPE_LEAF : TYPE_INNER);
+			chunk.putInt(POS_COUNT, count);
+			if (leaf) {
+				// entries are packed from the end of chunk
+				int offs = chunk.lenght();
+				for(int i = 0; i != count; ++i) {
+					ByteChunk key = keys.get(i);
+					ByteChunk value = values.get(i);
+					offs -= ENTRY_HEADER + key.lenght() + value.lenght();
+					chunk.putInt(NODE_HEADER + 4 * i, offs);
+					chunk.putInt(offs, key.lenght());
+					chunk.putInt(offs + 4, value.lenght());
+					chunk.putLong(offs + 8, versions.get(i));
+					chunk.putBytes(offs + ENTRY_HEADER, key);
+					chunk.putBytes(offs + ENTRY_HEADER + key.lenght(), value);
+				}
+				chunk.putInt(POS_DATA_START, offs);
+			}
+			else {
+				for(int i = 0; i != count + 1; ++i) {
+					chunk.putInt(NODE_HEADER + 4 * i, children.get(i));
+				}
+				int table = NODE_HEADER + 4 * (count + 1);
+				int offs = table + 4 * count;
+				for(int i = 0; i != count; ++i) {
+					ByteChunk key = keys.get(i);
+					chunk.putInt(table + 4 * i, offs);
+					chunk.putInt(offs, key.lenght());
+					chunk.putBytes(offs + KEY_HEADER, key);
+					offs += KEY_HEADER + key.lenght();
+				}
+			}
+		}
+	}
+}
@@ -21,37 +21,185 @@ import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicIntegerArray;
 
 
 /**
  * Class hashtable data structure, using explicit memory manager 
+ * <br/>
+ * Optionally each segment has a Bloom filter over hashes of its keys, filters are kept in memory manager.
+ * Filter is checked under segment read lock before bucket is read, so most lookups of missing keys
+ * do not touch bucket and entries. Filter of large segment is split into blocks of limited size,
+ * key sets bits only in block chosen by its hash, so filter grows together with segment.
+ * Filters are updated on insert. Deletes are only counted, filter of segment is rebuilt
+ * once number of deletes reaches half of its capacity, so rebuilds get rarer as segment grows.
+ * Segment of key should not depend on table capacity, so filters require power of 2 segment count.
  *
  * @author Alexey Ragozin (alexey.ragozin@gmail.com)
  */
 class BinaryHashTable implements BinaryKeyValueStore, MemoryConsumer {
 
+		// conditions for put/remove operations
+		private static final int IF_ANY = 0;
+		private static final int IF_VALUE = 1;
+		private static final int IF_VERSION = 2;
+	
 		private final MemoryStoreBackend pageManager;
+		private final HashFunction hashFunction;
+		// 64 bit hash mode, high half of hash is kept in entry as fingerprint
+		private final boolean wideHash;
+		private final int dataPos;
 		
 		private final int segmentCount;
 		private int[] masterHashtable;
 		private AtomicIntegerArray locktable;
 		private volatile int capacity;
 		
-		private AtomicInteger size = new AtomicInteger();
+		// striped by segment, cells are updated under segment write lock
+		private final StripedCounter size;
 		private float targetLoadFactor = 0.8f;
 		
+		// last issued version counter per segment, guarded by segment write lock
+		private final long[] segmentVersions;
+		
+		private volatile MutationStream mutationStream;
+
+		// Bloom filter per segment, all arrays are guarded by segment lock
+		private static final int MIN_FILTER_KEYS = 32;
+		// keeps filter block chunk within 2KiB
+		private static final int MAX_BLOCK_WORDS = 511;
+		private static final int MAX_FILTER_BLOCKS = 1 << 16;
+		private static final int FILTER_SEED = 0x9E3779B9;
+		
+		private final int filterBitsPerKey;
+		private final int filterHashes;
+		// block chunks per segment, null if segment has no filter yet
+		private final int[][] filterBlocks;
+		// words per block
+		private final int[] filterWords;
+		private final int[] filterKeys;
+		private final int[] filterRemoved;
+		
+		// owner of dedicated page set, NO_OWNER if pages are shared with other stores
+		private int pageSetOwner = PagedBinaryStoreManager.NO_OWNER;
+		
 		public BinaryHashTable(MemoryStoreBackend pageManager, int segmentCount) {
+			this(pageManager, segmentCount, 0, HashFunction.DEFAULT);
+		}
+
+		/**
+		 * @param filterBitsPerKey size of segment Bloom filters, 0 - no filters
+		 */
+		public BinaryHashTable(MemoryStoreBackend pageManager, int segmentCount, int filterBitsPerKey, HashFunction hashFunction) {
+			this(pageManager, segmentCount, filterBitsPerKey, hashFunction, false);
+		}
+
+		/**
+		 * @param wideHash if <code>true</code> 64 bit hashes are used, extra 32 bits are stored in entry as fingerprint
+		 */
+		public BinaryHashTable(MemoryStoreBackend pageManager, int segmentCount, int filterBitsPerKey, HashFunction hashFunction, boolean wideHash) {
+			if (filterBitsPerKey > 0 && Integer.bitCount(segmentCount) != 1) {
+				throw new IllegalArgumentException("Segment filters require power of 2 segment count, but " + segmentCount + " is requested");
+			}
 			this.pageManager = pageManager;
+			this.hashFunction = hashFunction;
+			this.wideHash = wideHash;
+			this.dataPos = wideHash ? PagedBinaryStoreManager.WIDE_DATA_POS : PagedBinaryStoreManager.DATA_POS;
 			this.segmentCount = segmentCount;
 			this.masterHashtable = new int[segmentCount];
 			this.locktable = createLocktable(segmentCount);
+			this.size = new StripedCounter(segmentCount);
+			this.segmentVersions = new long[segmentCount];
+			this.filterBitsPerKey = filterBitsPerKey;
+			// optimal number of hash functions is bits per key * ln(2)
+			this.filterHashes = Math.max(1, Math.round(filterBitsPerKey * 0.69f));
+			this.filterBlocks = filterBitsPerKey > 0 ? new int[segmentCount][] : null;
+			this.filterWords = filterBitsPerKey > 0 ? new int[segmentCount] : null;
+			this.filterKeys = filterBitsPerKey > 0 ? new int[segmentCount] : null;
+			this.filterRemoved = filterBitsPerKey > 0 ? new int[segmentCount] : null;
 			while(capacity < segmentCount) {
 				increamentCapacity();
 			}
 		}
 		
+		/**
+		 * Table is allocated from dedicated page set of owner, so {@link #clear()} and {@link #destroy()}
+		 * release whole pages instead of visiting entries.
+		 */
+		void usePageSet(int owner) {
+			this.pageSetOwner = owner;
+		}
+
+		// copy of table sharing its pages, hash segments and filters are assigned by fork()
+		private BinaryHashTable(BinaryHashTable parent, MemoryStoreBackend pageManager, int pageSetOwner) {
+			this.pageManager = pageManager;
+			this.hashFunction = parent.hashFunction;
+			this.wideHash = parent.wideHash;
+			this.dataPos = parent.dataPos;
+			this.segmentCount = parent.segmentCount;
+			this.masterHashtable = new int[segmentCount];
+			this.locktable = createLocktable(segmentCount);
+			this.capacity = parent.capacity;
+			this.size = new StripedCounter(parent.size);
+			this.targetLoadFactor = parent.targetLoadFactor;
+			this.segmentVersions = parent.segmentVersions.clone();
+			this.filterBitsPerKey = parent.filterBitsPerKey;
+			this.filterHashes = parent.filterHashes;
+			this.filterBlocks = filterBitsPerKey > 0 ? new int[segmentCount][] : null;
+			this.filterWords = filterBitsPerKey > 0 ? parent.filterWords.clone() : null;
+			this.filterKeys = filterBitsPerKey > 0 ? parent.filterKeys.clone() : null;
+			this.filterRemoved = filterBitsPerKey > 0 ? parent.filterRemoved.clone() : null;
+			this.pageSetOwner = pageSetOwner;
+		}
+
+		/**
+		 * Creates copy-on-write clone of table. Entries are shared by both tables, pages holding them are kept
+		 * until both tables have released them. Only hash segments and filters are copied, so cost of fork is
+		 * proportional to capacity of hashtable, not to amount of data.
+		 * <br/>
+		 * Table should use dedicated page set, see {@link #usePageSet(int)}.
+		 * @param forkManager backend view tagging chunks with <code>forkOwner</code>
+		 */
+		BinaryHashTable fork(MemoryStoreBackend forkManager, int forkOwner) {
+			if (pageSetOwner == PagedBinaryStoreManager.NO_OWNER) {
+				throw new IllegalArgumentException("Only store with segregated pages could be forked");
+			}
+			// lock everything
+			for(int i = 0; i != segmentCount; ++i) {
+				segmentWriteLock(i);
+			}
+			try {
+				pageManager.forkPageSet(pageSetOwner, forkOwner);
+				BinaryHashTable fork = new BinaryHashTable(this, forkManager, forkOwner);
+				// shared pages are immutable, so each table moves mutable parts to its own pages
+				for(int i = 0; i != segmentCount; ++i) {
+					int pp = masterHashtable[i];
+					if (pp != PagedBinaryStoreManager.EMPTY) {
+						fork.masterHashtable[i] = forkManager.relocate(pp, PagedBinaryStoreManager.ALLOC_HASH_SEGMENT);
+						masterHashtable[i] = pageManager.relocate(pp, PagedBinaryStoreManager.ALLOC_HASH_SEGMENT);
+					}
+					if (filterBitsPerKey > 0 && filterBlocks[i] != null) {
+						int[] blocks = filterBlocks[i];
+						int[] forkBlocks = new int[blocks.length];
+						int[] ownBlocks = new int[blocks.length];
+						for(int j = 0; j != blocks.length; ++j) {
+							forkBlocks[j] = forkManager.relocate(blocks[j], PagedBinaryStoreManager.ALLOC_HASH_SEGMENT);
+							ownBlocks[j] = pageManager.relocate(blocks[j], PagedBinaryStoreManager.ALLOC_HASH_SEGMENT);
+						}
+						fork.filterBlocks[i] = forkBlocks;
+						filterBlocks[i] = ownBlocks;
+					}
+				}
+				return fork;
+			}
+			finally {
+				// unlock, unlock order does not matter
+				for(int i = 0; i != segmentCount; ++i) {
+					segmentWriteUnlock(i);
+				}
+			}
+		}
+		
 		private int hashtableGet(int index) {
 			int slot = index % segmentCount;
 			int ix = index / segmentCount;
@@ -162,7 +310,9 @@ class BinaryHashTable implements BinaryKeyValueStore, MemoryConsumer {
 				int npp = pageManager.allocate(4 + 4 * entries.length, PagedBinaryStoreManager.ALLOC_NEW_LIST);
 				ByteChunk list = pageManager.get(npp);
 				try {
-					list.assertEmpty();
+					if (ByteChunk.VERIFY) {
+						list.assertEmpty();
+					}
 				}
 				catch(AssertionError e) {
 					System.out.println("Problem pointer is " + pageManager.page(npp) + ":" + pageManager.offset(npp));
@@ -178,94 +328,272 @@ class BinaryHashTable implements BinaryKeyValueStore, MemoryConsumer {
 			}
 		}
 
-		private void createEntry(int npp, ByteChunk key, ByteChunk value, int hash) {
+		private void createEntry(int npp, ByteSequence key, ByteSequence value, int hash, int fingerprint, long version) {
 			ByteChunk chunk = pageManager.get(npp);
 			try {
-				chunk.assertEmpty();
+				if (ByteChunk.VERIFY) {
+					chunk.assertEmpty();
+				}
 			}
 			catch(AssertionError e) {
 				System.out.println("Problem pointer is " + pageManager.page(npp) + ":" + pageManager.offset(npp));
 				throw e;
 			}
 			chunk.putInt(PagedBinaryStoreManager.HASH_POS, hash);
-			chunk.putInt(PagedBinaryStoreManager.KEY_SIZE_POS, key.lenght());
-			chunk.putInt(PagedBinaryStoreManager.VALUE_SIZE_POS, value.lenght());
-			chunk.putBytes(PagedBinaryStoreManager.DATA_POS, key);
-			chunk.putBytes(PagedBinaryStoreManager.DATA_POS + key.lenght(), value);
+			chunk.putInt(PagedBinaryStoreManager.KEY_SIZE_POS, key.length());
+			chunk.putInt(PagedBinaryStoreManager.VALUE_SIZE_POS, value.length());
+			chunk.putLong(PagedBinaryStoreManager.VERSION_POS, version);
+			if (wideHash) {
+				chunk.putInt(PagedBinaryStoreManager.FINGERPRINT_POS, fingerprint);
+			}
+			chunk.putBytes(dataPos, key);
+			chunk.putBytes(dataPos + key.length(), value);
 		
 			// no need for in-heap storage
 			pageManager.update(npp, chunk);
 		}
 
-		private boolean sameKey(ByteChunk entry, ByteChunk key) {
+		private boolean sameKey(ByteChunk entry, ByteSequence key) {
 			int keySize = entry.intAt(PagedBinaryStoreManager.KEY_SIZE_POS);
-			if (keySize == key.lenght()) {
-				for (int i = 0; i != keySize; ++i) {
-					if (entry.at(PagedBinaryStoreManager.DATA_POS + i) != key.at(i)) {
-						return false;
-					}
-				}
+			return keySize == key.length() && entry.sameBytes(dataPos, key);
+		}
+
+		private boolean sameValue(ByteChunk entry, ByteSequence value) {
+			int keySize = entry.intAt(PagedBinaryStoreManager.KEY_SIZE_POS);
+			int valueSize = entry.intAt(PagedBinaryStoreManager.VALUE_SIZE_POS);
+			return valueSize == value.length() && entry.sameBytes(dataPos + keySize, value);
+		}
+
+		/**
+		 * Checks entry header against key hash, fingerprint and size, without reading entry.
+		 * Only entries passed this check are compared with key.
+		 */
+		private boolean isCandidate(int pp, ByteSequence key, int hash, int fingerprint) {
+			return pageManager.readInt(pp, PagedBinaryStoreManager.HASH_POS) == hash
+				&& (!wideHash || pageManager.readInt(pp, PagedBinaryStoreManager.FINGERPRINT_POS) == fingerprint)
+				&& pageManager.readInt(pp, PagedBinaryStoreManager.KEY_SIZE_POS) == key.length();
+		}
+
+		/**
+		 * @return 32 bit hash in low half, fingerprint in high half (zero unless table uses 64 bit hashes)
+		 */
+		private long hashKey(ByteSequence key) {
+			return wideHash ? hashFunction.hash64(key) : (0xFFFFFFFFl & hashFunction.hash(key));
+		}
+
+		// segment lock assumed
+		private boolean filterMayContain(int segment, int hash) {
+			int[] blocks = filterBlocks[segment];
+			if (blocks == null) {
 				return true;
 			}
+			long bits = 32l * filterWords[segment];
+			int h1 = BinHash.murmur3_fmix(hash);
+			int h2 = BinHash.murmur3_fmix(h1 ^ FILTER_SEED) | 1;
+			int pp = blocks[filterBlock(h2, blocks.length)];
+			for(int i = 0; i != filterHashes; ++i) {
+				int bit = (int) ((0xFFFFFFFFl & (h1 + i * h2)) % bits);
+				int word = pageManager.readInt(pp, 4 + 4 * (bit >> 5));
+				if ((word & (1 << (bit & 31))) == 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		// segment write lock assumed
+		private void filterAdd(int[] blocks, int words, int hash) {
+			long bits = 32l * words;
+			int h1 = BinHash.murmur3_fmix(hash);
+			int h2 = BinHash.murmur3_fmix(h1 ^ FILTER_SEED) | 1;
+			int pp = blocks[filterBlock(h2, blocks.length)];
+			for(int i = 0; i != filterHashes; ++i) {
+				int bit = (int) ((0xFFFFFFFFl & (h1 + i * h2)) % bits);
+				int offs = 4 + 4 * (bit >> 5);
+				int word = pageManager.readInt(pp, offs);
+				int mask = 1 << (bit & 31);
+				if ((word & mask) == 0) {
+					pageManager.writeInt(pp, offs, word | mask);
+				}
+			}
+		}
+
+		// block is chosen by bits independent from bit positions within block
+		private static int filterBlock(int h2, int blocks) {
+			return blocks == 1 ? 0 : (int) ((0xFFFFFFFFl & BinHash.murmur3_fmix(h2)) % blocks);
+		}
+
+		// total words of filter for given number of keys
+		private long filterWordsFor(int keys) {
+			long words = (((long)Math.max(keys, MIN_FILTER_KEYS)) * filterBitsPerKey + 31) / 32;
+			return Math.min(words, (long)MAX_BLOCK_WORDS * MAX_FILTER_BLOCKS);
+		}
+
+		private long filterCapacityWords(int segment) {
+			int[] blocks = filterBlocks[segment];
+			return blocks == null ? 0 : (long)blocks.length * filterWords[segment];
+		}
+
+		// segment write lock assumed
+		private void onFilterInsert(int segment, int hash) {
+			int keys = ++filterKeys[segment];
+			if (filterBlocks[segment] == null || filterWordsFor(keys) > filterCapacityWords(segment)) {
+				// filter is overfilled, new key is already in bucket and will be picked by rebuild
+				rebuildFilter(segment, filterWordsFor(2 * keys));
+			}
 			else {
-				return false;
+				filterAdd(filterBlocks[segment], filterWords[segment], hash);
 			}
 		}
 
-		private boolean sameValue(ByteChunk entry, ByteChunk value) {
-			int keySize = entry.intAt(PagedBinaryStoreManager.KEY_SIZE_POS);
-			int valueSize = entry.intAt(PagedBinaryStoreManager.VALUE_SIZE_POS);
-			if (valueSize == value.lenght()) {
-				// TODO memcpy?
-				for (int i = 0; i != valueSize; ++i) {
-					if (entry.at(PagedBinaryStoreManager.DATA_POS + keySize + i) != value.at(i)) {
-						return false;
+		// segment write lock assumed
+		private void onFilterRemove(int segment) {
+			int keys = --filterKeys[segment];
+			int removed = ++filterRemoved[segment];
+			// threshold is proportional to filter size, so rebuild cost is amortized over deletes
+			if (removed > 32 * filterCapacityWords(segment) / filterBitsPerKey / 2) {
+				// too many stale bits, filter could also shrink
+				rebuildFilter(segment, filterWordsFor(2 * keys));
+			}
+		}
+
+		// segment write lock assumed
+		private void rebuildFilter(int segment, long totalWords) {
+			int blockCount = (int) ((totalWords + MAX_BLOCK_WORDS - 1) / MAX_BLOCK_WORDS);
+			int words = blockCount == 1 ? (int) totalWords : MAX_BLOCK_WORDS;
+			int[] blocks = new int[blockCount];
+			for(int i = 0; i != blockCount; ++i) {
+				blocks[i] = pageManager.allocate(4 + 4 * words, PagedBinaryStoreManager.ALLOC_HASH_SEGMENT);
+				// first int is used as hash by evacuation, filter itself is recycled with hash segments
+				pageManager.writeInt(blocks[i], 0, segment);
+			}
+			int n = 0;
+			for(int index = segment; index < capacity; index += segmentCount) {
+				int[] entries = getEntries(index);
+				if (entries != null) {
+					for(int pp : entries) {
+						filterAdd(blocks, words, pageManager.readInt(pp, PagedBinaryStoreManager.HASH_POS));
+						++n;
 					}
 				}
+			}
+			releaseFilter(segment);
+			filterBlocks[segment] = blocks;
+			filterWords[segment] = words;
+			filterKeys[segment] = n;
+			filterRemoved[segment] = 0;
+		}
+
+		/**
+		 * @return <code>false</code> if key is definitely absent according to segment filter
+		 */
+		// for testing
+		boolean mightContain(ByteSequence key) {
+			if (filterBitsPerKey == 0) {
 				return true;
 			}
-			else {
-				return false;
+			int hash = (int) hashKey(key);
+			int segment = BinHash.splitHash(hash, capacity) % segmentCount;
+			segmentReadLock(segment);
+			try {
+				return filterMayContain(segment, hash);
+			}
+			finally {
+				segmentReadUnlock(segment);
+			}
+		}
+
+		/**
+		 * Segment is stable across table growth only for power of 2 segment count.
+		 * @return segment holding key or <code>-1</code> if segment of key depends on table capacity
+		 */
+		int segmentOf(ByteSequence key) {
+			if (Integer.bitCount(segmentCount) != 1) {
+				return -1;
+			}
+			// same as splitHash(hash, capacity) % segmentCount, capacity is never less than segment count
+			return (int) hashKey(key) & (segmentCount - 1);
+		}
+
+		private long getVersion(ByteChunk entry) {
+			return entry.longAt(PagedBinaryStoreManager.VERSION_POS);
+		}
+
+		// segment write lock assumed
+		private long nextVersion(int segment, long prevVersion) {
+			// versions are unique across table, low part of version is a segment number
+			// counter is never reset, so removed and reinserted key could not get same version again
+			long counter = segmentVersions[segment];
+			long prevCounter = prevVersion / segmentCount;
+			if (counter < prevCounter) {
+				// entry has been moved from another segment by table growth, keep version of entry monotonic
+				counter = prevCounter;
 			}
+			++counter;
+			segmentVersions[segment] = counter;
+			return counter * segmentCount + segment;
 		}
 
 		private ByteChunk getKey(ByteChunk entry) {
 			int keySize = entry.intAt(PagedBinaryStoreManager.KEY_SIZE_POS);
-			return entry.subChunk(PagedBinaryStoreManager.DATA_POS, keySize);
+			return entry.subChunk(dataPos, keySize);
 		}
 
 		private ByteChunk getValue(ByteChunk entry) {
 			int keySize = entry.intAt(PagedBinaryStoreManager.KEY_SIZE_POS);
 			int valueSize = entry.intAt(PagedBinaryStoreManager.VALUE_SIZE_POS);
-			return entry.subChunk(PagedBinaryStoreManager.DATA_POS + keySize, valueSize);
+			return entry.subChunk(dataPos + keySize, valueSize);
+		}
+
+		/**
+		 * @return hash function used for keys of this table, it never changes
+		 */
+		public HashFunction getHashFunction() {
+			return hashFunction;
 		}
 
 		@Override
 		public int size() {
-			return size.get();
+			return size.sum();
+		}
+
+		@Override
+		public ByteChunk get(ByteSequence key) {
+			return getWithVersion(key, null);
 		}
 
 		@Override
-		public ByteChunk get(ByteChunk key) {
+		public ByteChunk getWithVersion(ByteSequence key, long[] version) {
 //			tableLock.readLock().lock();
 			try {
+				long khash = hashKey(key);
+				int hash = (int) khash;
+				int fingerprint = (int) (khash >>> 32);
 				while(true) {
-					int hash = BinHash.hash(key);
 					int index = BinHash.splitHash(hash, capacity);
 					readLock(index);				
 					try {
 						if (index != BinHash.splitHash(hash, capacity)) {
 							continue;
 						}
-						int[] entries = getEntries(index);
+						int[] entries = filterBitsPerKey > 0 && !filterMayContain(index % segmentCount, hash) ? null : getEntries(index);
 						if (entries != null) {
 							for(int pp : entries) {
+								if (!isCandidate(pp, key, hash, fingerprint)) {
+									continue;
+								}
 								ByteChunk entry = pageManager.get(pp);
 								if (sameKey(entry, key)) {
+									if (version != null) {
+										version[0] = getVersion(entry);
+									}
 									return getValue(entry);
 								}
 							}
 						}
+						if (version != null) {
+							version[0] = NO_VERSION;
+						}
 						return null;
 					}
 					finally {
@@ -279,28 +607,60 @@ class BinaryHashTable implements BinaryKeyValueStore, MemoryConsumer {
 		}
 
 		@Override
-		public void put(ByteChunk key, ByteChunk value) {
-			boolean inserted = internalPut(key, value, false, null);
-			if (inserted) {
-				checkTableSize();
+		public void put(ByteSequence key, ByteSequence value) {
+			long khash = hashKey(key);
+			long version = internalPut(key, khash, value, IF_ANY, null, NO_VERSION);
+			publish(MutationEvent.PUT, key, value, version);
+			checkTableSize((int) khash);
+		}
+
+		@Override
+		public boolean compareAndPut(ByteSequence key, ByteSequence expected, ByteSequence newValue) {
+			long khash = hashKey(key);
+			long version = internalPut(key, khash, newValue, IF_VALUE, expected, NO_VERSION);
+			if (version != NO_VERSION) {
+				publish(MutationEvent.PUT, key, newValue, version);
+				checkTableSize((int) khash);
+				return true;
+			}
+			else {
+				return false;
 			}
 		}
-		
-		
 
 		@Override
-		public boolean compareAndPut(ByteChunk key, ByteChunk expected, ByteChunk newValue) {
-			boolean inserted = internalPut(key, newValue, true, expected);
-			if (inserted && expected == null) {
-				checkTableSize();
+		public long putIfVersion(ByteSequence key, ByteSequence value, long expectedVersion) {
+			long khash = hashKey(key);
+			long version = internalPut(key, khash, value, IF_VERSION, null, expectedVersion);
+			if (version != NO_VERSION) {
+				publish(MutationEvent.PUT, key, value, version);
+				checkTableSize((int) khash);
 			}
-			return inserted;
+			return version;
 		}
 
-		private boolean internalPut(ByteChunk key, ByteChunk value, boolean checkOldValue, ByteChunk expected) {
+		// null expected value or NO_VERSION expected version mean that key should be absent
+		private boolean checkCondition(ByteChunk entry, int condition, ByteSequence expected, long expectedVersion) {
+			switch(condition) {
+			case IF_ANY:
+				return true;
+			case IF_VALUE:
+				return entry == null ? expected == null : (expected != null && sameValue(entry, expected));
+			case IF_VERSION:
+				return entry == null ? expectedVersion == NO_VERSION : getVersion(entry) == expectedVersion;
+			default:
+				throw new IllegalArgumentException("Unknown condition " + condition);
+			}
+		}
+		
+		/**
+		 * @return version of written entry or {@link #NO_VERSION} if condition check has failed
+		 */
+		private long internalPut(ByteSequence key, long khash, ByteSequence value, int condition, ByteSequence expected, long expectedVersion) {
+			int hash = (int) khash;
+			int fingerprint = (int) (khash >>> 32);
 		
 			while(true) {
-				int hash = BinHash.hash(key);
 				int index = BinHash.splitHash(hash, capacity);
 				writeLock(index);
 				try {			
@@ -313,36 +673,37 @@ class BinaryHashTable implements BinaryKeyValueStore, MemoryConsumer {
 					if (entries != null) {
 						for(int i = 0; i != entries.length; ++i) {
 							int pp = entries[i];
+							if (!isCandidate(pp, key, hash, fingerprint)) {
+								continue;
+							}
 							ByteChunk entry = pageManager.get(pp);
 							if (sameKey(entry, key)) {
 								
-								if (checkOldValue) {
-									if (expected == null && !sameValue(entry, expected)) {
-										return false;
-									}
+								if (!checkCondition(entry, condition, expected, expectedVersion)) {
+									return NO_VERSION;
 								}
 								
 								// overriding value
+								long version = nextVersion(index % segmentCount, getVersion(entry));
 								pageManager.release(pp);
-								int npp = pageManager.allocate(PagedBinaryStoreManager.DATA_POS + key.lenght() + value.lenght(), PagedBinaryStoreManager.ALLOC_NEW_VALUE);
-								createEntry(npp, key, value, hash);
+								int npp = pageManager.allocate(dataPos + key.length() + value.length(), PagedBinaryStoreManager.ALLOC_NEW_VALUE);
+								createEntry(npp, key, value, hash, fingerprint, version);
 								entries[i] = npp;
 								setEntries(index, entries);
-								return checkOldValue ? true : false;
+								return version;
 							}
 						}
 					}
 						
-					// TODO refactoring, move allocation to createEntry method
-					if (checkOldValue) {
-						if (expected != null) {
-							return false;
-						}
+					if (!checkCondition(null, condition, expected, expectedVersion)) {
+						return NO_VERSION;
 					}
 					
 					// add new entry
-					int npp = pageManager.allocate(PagedBinaryStoreManager.DATA_POS + key.lenght() + value.lenght(), PagedBinaryStoreManager.ALLOC_NEW_VALUE);
-					createEntry(npp, key, value, hash);
+					// TODO refactoring, move allocation to createEntry method
+					long version = nextVersion(index % segmentCount, NO_VERSION);
+					int npp = pageManager.allocate(dataPos + key.length() + value.length(), PagedBinaryStoreManager.ALLOC_NEW_VALUE);
+					createEntry(npp, key, value, hash, fingerprint, version);
 		
 					int[] newEntries;
 					if (entries == null || entries.length == 0) {
@@ -354,8 +715,11 @@ class BinaryHashTable implements BinaryKeyValueStore, MemoryConsumer {
 					}
 					
 					setEntries(index, newEntries);
-					size.incrementAndGet();
-					return true;
+					size.increment(size.stripe(index % segmentCount));
+					if (filterBitsPerKey > 0) {
+						onFilterInsert(index % segmentCount, hash);
+					}
+					return version;
 				}
 				finally {
 					writeUnlock(index);
@@ -364,24 +728,51 @@ class BinaryHashTable implements BinaryKeyValueStore, MemoryConsumer {
 		}
 
 		@Override
-		public void remove(ByteChunk key) {
-			internalRemove(key, null);
+		public void remove(ByteSequence key) {
+			long version = internalRemove(key, IF_ANY, null, NO_VERSION);
+			if (version != NO_VERSION) {
+				publish(MutationEvent.REMOVE, key, null, version);
+			}
 		}
 
 		
 		@Override
-		public boolean compareAndRemove(ByteChunk key, ByteChunk expected) {
+		public boolean compareAndRemove(ByteSequence key, ByteSequence expected) {
 			if (expected != null) {
-				return internalRemove(key, expected);
+				long version = internalRemove(key, IF_VALUE, expected, NO_VERSION);
+				if (version != NO_VERSION) {
+					publish(MutationEvent.REMOVE, key, null, version);
+					return true;
+				}
+				return false;
 			}
 			else {
 				return false;
 			}
 		}
 
-		private boolean internalRemove(ByteChunk key, ByteChunk expected) {
+		@Override
+		public boolean removeIfVersion(ByteSequence key, long expectedVersion) {
+			if (expectedVersion != NO_VERSION) {
+				if (internalRemove(key, IF_VERSION, null, expectedVersion) != NO_VERSION) {
+					publish(MutationEvent.REMOVE, key, null, expectedVersion);
+					return true;
+				}
+				return false;
+			}
+			else {
+				return false;
+			}
+		}
+
+		/**
+		 * @return version of removed entry or {@link #NO_VERSION} if nothing was removed
+		 */
+		private long internalRemove(ByteSequence key, int condition, ByteSequence expected, long expectedVersion) {
+			long khash = hashKey(key);
+			int hash = (int) khash;
+			int fingerprint = (int) (khash >>> 32);
 			while(true) {
-				int hash = BinHash.hash(key);
 				int index = BinHash.splitHash(hash, capacity);
 				writeLock(index);
 				try {
@@ -389,19 +780,21 @@ class BinaryHashTable implements BinaryKeyValueStore, MemoryConsumer {
 						continue;
 					}
 					
-					int[] entries = getEntries(index);
+					int[] entries = filterBitsPerKey > 0 && !filterMayContain(index % segmentCount, hash) ? null : getEntries(index);
 					
 					if (entries != null) {
 						for(int pp : entries) {
+							if (!isCandidate(pp, key, hash, fingerprint)) {
+								continue;
+							}
 							ByteChunk entry = pageManager.get(pp);
 							if (sameKey(entry, key)) {
 								
-								if (expected != null) {
-									if (!sameValue(entry, expected)) {
-										return false;
-									}
+								if (!checkCondition(entry, condition, expected, expectedVersion)) {
+									return NO_VERSION;
 								}
 								
+								long version = getVersion(entry);
 								pageManager.release(pp);
 								if (entries.length == 1) {
 									setEntries(index, null);
@@ -416,13 +809,16 @@ class BinaryHashTable implements BinaryKeyValueStore, MemoryConsumer {
 									}
 									setEntries(index, newEntries);
 								}
-								size.decrementAndGet();
-								return true;
+								size.decrement(size.stripe(index % segmentCount));
+								if (filterBitsPerKey > 0) {
+									onFilterRemove(index % segmentCount);
+								}
+								return version;
 							}
 						}
 					}
 					// not found
-					return false;
+					return NO_VERSION;
 				}
 				finally {
 					writeUnlock(index);
@@ -438,6 +834,19 @@ class BinaryHashTable implements BinaryKeyValueStore, MemoryConsumer {
 		@Override
 		public void clear() {
 			clear(true);			
+			publish(MutationEvent.CLEAR, null, null, NO_VERSION);
+		}
+
+		@Override
+		public void setMutationStream(MutationStream stream) {
+			this.mutationStream = stream;
+		}
+		
+		private void publish(int type, ByteSequence key, ByteSequence value, long version) {
+			MutationStream stream = mutationStream;
+			if (stream != null) {
+				stream.publish(type, this, key, value, version);
+			}
 		}
 
 		@Override
@@ -451,25 +860,41 @@ class BinaryHashTable implements BinaryKeyValueStore, MemoryConsumer {
 			for(int i = 0; i != segmentCount; ++i) {
 				segmentWriteLock(i);
 			}
-			int[] empty = new int[0];
-			for(int i = 0; i != capacity; ++i) {
-				int[] entries = getEntries(i);
-				if (entries != null) {
-					for(int pp : entries) {
-						pageManager.release(pp);
+			// with dedicated page set memory is released page by page, without touching entries
+			boolean released = pageSetOwner != PagedBinaryStoreManager.NO_OWNER && pageManager.releasePageSet(pageSetOwner, reinit);
+			if (!released) {
+				int[] empty = new int[0];
+				for(int i = 0; i != capacity; ++i) {
+					int[] entries = getEntries(i);
+					if (entries != null) {
+						for(int pp : entries) {
+							pageManager.release(pp);
+						}
+						setEntries(i, empty);
 					}
-					setEntries(i, empty);
 				}
 			}
 			capacity = 0;
-			size.set(0);
+			size.reset();
+			
+			if (filterBitsPerKey > 0) {
+				for(int i = 0; i != segmentCount; ++i) {
+					if (!released) {
+						releaseFilter(i);
+					}
+					filterBlocks[i] = null;
+					filterWords[i] = 0;
+					filterKeys[i] = 0;
+					filterRemoved[i] = 0;
+				}
+			}
 			
 			for(int i = 0; i != segmentCount; ++i) {
 				int pp = masterHashtable[i];
-				if (pp != PagedBinaryStoreManager.EMPTY) {
+				if (pp != PagedBinaryStoreManager.EMPTY && !released) {
 					pageManager.release(pp);
-					masterHashtable[i] = 0;
 				}
+				masterHashtable[i] = 0;
 			}
 			
 			if (reinit) {
@@ -525,15 +950,56 @@ class BinaryHashTable implements BinaryKeyValueStore, MemoryConsumer {
 					try {
 						pp = masterHashtable[i];
 						if (needRecycle(pp)) {
-							int segSize = getSegmentSize(i);
 //							System.out.println("Recycling hash segment " + pageManager.page(pp) + ":" + pageManager.offset(pp));
-							resizeSegment(i, segSize);
+							masterHashtable[i] = pageManager.relocate(pp, PagedBinaryStoreManager.ALLOC_HASH_SEGMENT);
 						}
 					}
 					finally {
 						segmentWriteUnlock(i);
 					}
 				}
+				if (filterBitsPerKey > 0 && needRecycle(filterBlocks[i])) {
+					segmentWriteLock(i);
+					try {
+						recycleFilter(i);
+					}
+					finally {
+						segmentWriteUnlock(i);
+					}
+				}
+			}
+		}
+
+		private boolean needRecycle(int[] blocks) {
+			if (blocks != null) {
+				for(int pp : blocks) {
+					if (needRecycle(pp)) {
+						return true;
+					}
+				}
+			}
+			return false;
+		}
+
+		// segment write lock assumed
+		private void recycleFilter(int segment) {
+			int[] blocks = filterBlocks[segment];
+			if (blocks != null) {
+				for(int i = 0; i != blocks.length; ++i) {
+					if (needRecycle(blocks[i])) {
+						blocks[i] = pageManager.relocate(blocks[i], PagedBinaryStoreManager.ALLOC_HASH_SEGMENT);
+					}
+				}
+			}
+		}
+
+		// segment write lock assumed
+		private void releaseFilter(int segment) {
+			int[] blocks = filterBlocks[segment];
+			if (blocks != null) {
+				for(int pp : blocks) {
+					pageManager.release(pp);
+				}
 			}
 		}
 		
@@ -556,14 +1022,7 @@ class BinaryHashTable implements BinaryKeyValueStore, MemoryConsumer {
 						for(int i = 0; i != entries.length; ++i) {
 							int pp = entries[i];
 							if (needRecycle(pp)) {
-								ByteChunk chunk = pageManager.get(pp);
-								int npp = pageManager.allocate(chunk.lenght(), PagedBinaryStoreManager.ALLOC_RELOCATE_VALUE);
-								ByteChunk newChunk = pageManager.get(npp);
-								newChunk.putBytes(chunk);
-								pageManager.release(pp);
-								// not required for in-heap storage
-								pageManager.update(npp, newChunk);
-								entries[i] = npp;
+								entries[i] = pageManager.relocate(pp, PagedBinaryStoreManager.ALLOC_RELOCATE_VALUE);
 								modified = true;
 							}
 						}
@@ -592,8 +1051,14 @@ class BinaryHashTable implements BinaryKeyValueStore, MemoryConsumer {
 			return pointer != PagedBinaryStoreManager.EMPTY && pageManager.isMarkedForRecycle(pointer);
 		}
 
-		private void checkTableSize() {			
-			float loadFactor = ((float)size.get()) / capacity;
+		private void checkTableSize(int hash) {
+			int cap = capacity;
+			int stripe = size.stripe(BinHash.splitHash(hash, cap) % segmentCount);
+			// estimate from own stripe is cheap, summing all stripes is done only if threshold is likely crossed
+			if (size.estimate(stripe) <= targetLoadFactor * cap) {
+				return;
+			}
+			float loadFactor = ((float)size.sum()) / capacity;
 			if (loadFactor > targetLoadFactor) {
 				// grow by 1.5
 				if (capacity % 2 == 0) {
@@ -0,0 +1,61 @@
+/**
+ *  Copyright 2011 Alexey Ragozin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.gridkit.offheap.jmemstore;
+
+/**
+ * Wrapper making {@link ByteChunk} usable as key of on-heap collections.
+ * Wrapped chunk should not be modified while key is in use.
+ *
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+final class BinaryKey {
+
+	final ByteChunk bytes;
+	final int hash;
+
+	public BinaryKey(ByteChunk bytes) {
+		this(bytes, HashFunction.DEFAULT.hash(bytes));
+	}
+
+	public BinaryKey(ByteChunk bytes, int hash) {
+		this.bytes = bytes;
+		this.hash = hash;
+	}
+
+	static ByteChunk copy(ByteSequence bytes) {
+		byte[] data = new byte[bytes.length()];
+		bytes.copyTo(0, data, 0, data.length);
+		return new ByteChunk(data);
+	}
+
+	/**
+	 * @return same instance for {@link ByteChunk}, in-heap copy for other sequences
+	 */
+	static ByteChunk toChunk(ByteSequence bytes) {
+		return bytes == null ? null : bytes instanceof ByteChunk ? (ByteChunk)bytes : copy(bytes);
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		return obj instanceof BinaryKey && hash == ((BinaryKey)obj).hash && bytes.sameBytes(((BinaryKey)obj).bytes);
+	}
+}
@@ -0,0 +1,568 @@
+/**
+ *  Copyright 2011 Alexey Ragozin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.gridkit.offheap.jmemstore;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * {@link BinaryKeyListStore} on top of {@link BinaryBTree}.
+ * <br/>
+ * Each key has single tree entry, its value is a directory of posting block ids.
+ * Posting blocks are separate chunks <code>block id | count | used | (length | value)*</code>,
+ * values are sorted within block and blocks are ordered in directory.
+ * Values are inserted into block in place while it has spare capacity, block is rewritten
+ * into bigger chunk or split in two once it is full. Tree is updated only when key is added or removed
+ * or set of its blocks changes.
+ * <br/>
+ * Mutations of same key are serialized by striped key locks, readers do not block each other.
+ * Block table lock protects block chunks from being released or moved while they are read.
+ *
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+class BinaryKeyListTree implements BinaryKeyListStore, MemoryConsumer {
+
+	private static final int LOCK_STRIPES = 64;
+
+	// tree nodes use non negative ids as evacuation hashes, so tagged block ids are ignored by tree
+	private static final int BLOCK_TAG = 0x80000000;
+
+	private static final int MAX_BLOCK_SIZE = 4 << 10;
+	private static final int MIN_BLOCK_CAPACITY = 64;
+
+	private static final int POS_BLOCK_ID = 0;
+	private static final int POS_COUNT = 4;
+	private static final int POS_USED = 8;
+	private static final int BLOCK_HEADER = 12;
+
+	private final MemoryStoreBackend pageManager;
+	private final BinaryBTree tree;
+	private final int blockSizeLimit;
+	private final ReentrantLock[] keyLocks = new ReentrantLock[LOCK_STRIPES];
+	private final StripedCounter size = new StripedCounter(LOCK_STRIPES);
+
+	private final ReentrantReadWriteLock blockLock = new ReentrantReadWriteLock();
+	private int[] blockTable = new int[16];
+	private int blockIdLimit;
+	private int[] freeBlockIds = new int[16];
+	private int freeBlockCount;
+
+	public BinaryKeyListTree(MemoryStoreBackend pageManager, int nodeSizeLimit) {
+		this.pageManager = pageManager;
+		this.tree = new BinaryBTree(pageManager, nodeSizeLimit);
+		this.blockSizeLimit = Math.min(MAX_BLOCK_SIZE, pageManager.getPageSize() / 4);
+		for(int i = 0; i != keyLocks.length; ++i) {
+			keyLocks[i] = new ReentrantLock();
+		}
+	}
+
+	private static int lockIndex(ByteChunk key) {
+		return HashFunction.DEFAULT.hash(key) & (LOCK_STRIPES - 1);
+	}
+
+	// Directory
+
+	private int[] directory(ByteChunk key) {
+		ByteChunk dir = tree.get(key);
+		if (dir == null) {
+			return null;
+		}
+		int[] ids = new int[dir.lenght() / 4];
+		for(int i = 0; i != ids.length; ++i) {
+			ids[i] = dir.intAt(4 * i);
+		}
+		return ids;
+	}
+
+	private static ByteChunk encodeDirectory(int[] ids) {
+		ByteChunk dir = new ByteChunk(new byte[4 * ids.length]);
+		for(int i = 0; i != ids.length; ++i) {
+			dir.putInt(4 * i, ids[i]);
+		}
+		return dir;
+	}
+
+	// Blocks
+
+	// block lock assumed
+	private ByteChunk readBlock(int id) {
+		return pageManager.get(blockTable[id]);
+	}
+
+	/**
+	 * @return index of last block which starts not after value, or 0
+	 */
+	// block lock assumed
+	private int locate(int[] ids, ByteChunk value) {
+		int lo = 1;
+		int hi = ids.length - 1;
+		while(lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			ByteChunk block = readBlock(ids[mid]);
+			if (BinaryBTree.compare(block, BLOCK_HEADER + 4, block.intAt(BLOCK_HEADER), value) <= 0) {
+				lo = mid + 1;
+			}
+			else {
+				hi = mid - 1;
+			}
+		}
+		return lo - 1;
+	}
+
+	/**
+	 * @return offset of value in block or <code>-(insertion offset) - 1</code>
+	 */
+	private static int find(ByteChunk block, ByteChunk value) {
+		int used = block.intAt(POS_USED);
+		int offs = BLOCK_HEADER;
+		while(offs < used) {
+			int len = block.intAt(offs);
+			int c = BinaryBTree.compare(block, offs + 4, len, value);
+			if (c == 0) {
+				return offs;
+			}
+			else if (c > 0) {
+				break;
+			}
+			offs += 4 + len;
+		}
+		return -offs - 1;
+	}
+
+	private static ByteChunk copy(ByteChunk chunk, int offs, int len) {
+		byte[] data = new byte[len];
+		chunk.copyTo(offs, data, 0, len);
+		return new ByteChunk(data);
+	}
+
+	/**
+	 * Block capacity doubles as block grows, until it reaches block size limit.
+	 */
+	private int blockCapacity(int size) {
+		int capacity = size <= MIN_BLOCK_CAPACITY ? MIN_BLOCK_CAPACITY : Integer.highestOneBit(size - 1) << 1;
+		if (capacity > blockSizeLimit) {
+			capacity = size > blockSizeLimit ? size : blockSizeLimit;
+		}
+		return capacity;
+	}
+
+	/**
+	 * Writes block into new chunk, chunk is not visible to readers until published.
+	 */
+	// no block lock should be held, allocation may wait for evacuation
+	private int writeBlock(int id, ByteChunk entries, int count) {
+		int pp = pageManager.allocate(blockCapacity(BLOCK_HEADER + entries.lenght()), PagedBinaryStoreManager.ALLOC_NEW_LIST);
+		ByteChunk chunk = pageManager.get(pp);
+		chunk.putInt(POS_BLOCK_ID, BLOCK_TAG | id);
+		chunk.putInt(POS_COUNT, count);
+		chunk.putInt(POS_USED, BLOCK_HEADER + entries.lenght());
+		chunk.putBytes(BLOCK_HEADER, entries);
+		// not required for in-heap backend
+		pageManager.update(pp, chunk);
+		return pp;
+	}
+
+	private int newBlockId() {
+		blockLock.writeLock().lock();
+		try {
+			if (freeBlockCount > 0) {
+				return freeBlockIds[--freeBlockCount];
+			}
+			return blockIdLimit++;
+		}
+		finally {
+			blockLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Makes chunk visible as block, chunk previously holding block is released.
+	 */
+	private void publishBlock(int id, int pp) {
+		blockLock.writeLock().lock();
+		try {
+			if (id >= blockTable.length) {
+				blockTable = Arrays.copyOf(blockTable, Math.max(blockIdLimit, 2 * blockTable.length));
+			}
+			// pointer may have been changed by evacuation since block was read
+			int opp = blockTable[id];
+			blockTable[id] = pp;
+			if (opp != PagedBinaryStoreManager.EMPTY) {
+				pageManager.release(opp);
+			}
+		}
+		finally {
+			blockLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Should be called after blocks were removed from directory.
+	 */
+	private void dropBlocks(int[] ids) {
+		blockLock.writeLock().lock();
+		try {
+			for(int id: ids) {
+				pageManager.release(blockTable[id]);
+				blockTable[id] = PagedBinaryStoreManager.EMPTY;
+				if (freeBlockCount == freeBlockIds.length) {
+					freeBlockIds = Arrays.copyOf(freeBlockIds, freeBlockIds.length * 2);
+				}
+				freeBlockIds[freeBlockCount++] = id;
+			}
+		}
+		finally {
+			blockLock.writeLock().unlock();
+		}
+	}
+
+	private void releaseAllBlocks() {
+		blockLock.writeLock().lock();
+		try {
+			for(int i = 0; i != blockTable.length; ++i) {
+				int pp = blockTable[i];
+				if (pp != PagedBinaryStoreManager.EMPTY) {
+					pageManager.release(pp);
+					blockTable[i] = PagedBinaryStoreManager.EMPTY;
+				}
+			}
+			blockIdLimit = 0;
+			freeBlockCount = 0;
+		}
+		finally {
+			blockLock.writeLock().unlock();
+		}
+	}
+
+	// Public API
+
+	@Override
+	public boolean contains(ByteChunk key, ByteChunk value) {
+		blockLock.readLock().lock();
+		try {
+			int[] ids = directory(key);
+			if (ids == null) {
+				return false;
+			}
+			return find(readBlock(ids[locate(ids, value)]), value) >= 0;
+		}
+		finally {
+			blockLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public int fetch(ByteChunk key, ByteChunk lowerBound, ByteChunk upperBound, ByteChunk[] values) {
+		blockLock.readLock().lock();
+		try {
+			int[] ids = directory(key);
+			if (ids == null) {
+				return 0;
+			}
+			int n = 0;
+			for(int b = lowerBound == null ? 0 : locate(ids, lowerBound); b < ids.length; ++b) {
+				ByteChunk block = readBlock(ids[b]);
+				int used = block.intAt(POS_USED);
+				int offs = BLOCK_HEADER;
+				while(offs < used) {
+					int len = block.intAt(offs);
+					// lower bound is exclusive
+					if (lowerBound == null || BinaryBTree.compare(block, offs + 4, len, lowerBound) > 0) {
+						if (n == values.length || (upperBound != null && BinaryBTree.compare(block, offs + 4, len, upperBound) >= 0)) {
+							return n;
+						}
+						values[n++] = copy(block, offs + 4, len);
+					}
+					offs += 4 + len;
+				}
+			}
+			return n;
+		}
+		finally {
+			blockLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public int cordinality(ByteChunk key) {
+		blockLock.readLock().lock();
+		try {
+			int[] ids = directory(key);
+			if (ids == null) {
+				return 0;
+			}
+			int count = 0;
+			for(int id: ids) {
+				count += readBlock(id).intAt(POS_COUNT);
+			}
+			return count;
+		}
+		finally {
+			blockLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void append(ByteChunk key, ByteChunk value) {
+		int li = lockIndex(key);
+		keyLocks[li].lock();
+		try {
+			int[] ids = directory(key);
+			if (ids == null) {
+				ByteChunk entry = new ByteChunk(new byte[4 + value.lenght()]);
+				entry.putInt(0, value.lenght());
+				entry.putBytes(4, value);
+				int id = newBlockId();
+				publishBlock(id, writeBlock(id, entry, 1));
+				tree.put(key, encodeDirectory(new int[]{id}));
+				size.increment(size.stripe(li));
+				return;
+			}
+			int b;
+			int pos;
+			int count;
+			ByteChunk entries;
+			blockLock.readLock().lock();
+			try {
+				b = locate(ids, value);
+				ByteChunk block = readBlock(ids[b]);
+				int n = find(block, value);
+				if (n >= 0) {
+					return;
+				}
+				pos = -n - 1;
+				count = block.intAt(POS_COUNT);
+				int used = block.intAt(POS_USED);
+				// block content is copied only if block has to be rewritten
+				entries = used + 4 + value.lenght() <= block.lenght() ? null : copy(block, BLOCK_HEADER, used - BLOCK_HEADER);
+			}
+			finally {
+				blockLock.readLock().unlock();
+			}
+			if (entries == null) {
+				// only key lock holder modifies block content, evacuation may only move it
+				blockLock.writeLock().lock();
+				try {
+					int pp = blockTable[ids[b]];
+					ByteChunk block = pageManager.get(pp);
+					insertInPlace(block, pos, value);
+					// not required for in-heap backend
+					pageManager.update(pp, block);
+				}
+				finally {
+					blockLock.writeLock().unlock();
+				}
+			}
+			else {
+				rewriteBlock(key, ids, b, insert(entries, pos - BLOCK_HEADER, value), count + 1);
+			}
+		}
+		finally {
+			keyLocks[li].unlock();
+		}
+	}
+
+	private static void insertInPlace(ByteChunk block, int pos, ByteChunk value) {
+		int used = block.intAt(POS_USED);
+		int shift = 4 + value.lenght();
+		System.arraycopy(block.array(), block.offset() + pos, block.array(), block.offset() + pos + shift, used - pos);
+		block.putInt(pos, value.lenght());
+		// slot is not clean after shift, so putBytes() is not used
+		System.arraycopy(value.array(), value.offset(), block.array(), block.offset() + pos + 4, value.lenght());
+		block.putInt(POS_COUNT, block.intAt(POS_COUNT) + 1);
+		block.putInt(POS_USED, used + shift);
+	}
+
+	private static ByteChunk insert(ByteChunk entries, int pos, ByteChunk value) {
+		byte[] data = new byte[entries.lenght() + 4 + value.lenght()];
+		ByteChunk chunk = new ByteChunk(data);
+		entries.copyTo(0, data, 0, pos);
+		chunk.putInt(pos, value.lenght());
+		chunk.putBytes(pos + 4, value);
+		entries.copyTo(pos, data, pos + 4 + value.lenght(), entries.lenght() - pos);
+		return chunk;
+	}
+
+	/**
+	 * Replaces block with bigger chunk, or splits it in two once block size limit is reached.
+	 */
+	// key lock assumed
+	private void rewriteBlock(ByteChunk key, int[] ids, int b, ByteChunk entries, int count) {
+		int len = entries.lenght();
+		if (BLOCK_HEADER + len <= blockSizeLimit || count == 1) {
+			// block id is kept, so directory is unchanged
+			publishBlock(ids[b], writeBlock(ids[b], entries, count));
+			return;
+		}
+		int split = 4 + entries.intAt(0);
+		int leftCount = 1;
+		while(split < len / 2) {
+			int next = split + 4 + entries.intAt(split);
+			if (next >= len) {
+				break;
+			}
+			split = next;
+			++leftCount;
+		}
+		// halves get new ids, so readers of old directory still see complete block
+		int left = newBlockId();
+		int right = newBlockId();
+		publishBlock(left, writeBlock(left, entries.subChunk(0, split), leftCount));
+		publishBlock(right, writeBlock(right, entries.subChunk(split, len - split), count - leftCount));
+		int[] nids = new int[ids.length + 1];
+		System.arraycopy(ids, 0, nids, 0, b);
+		nids[b] = left;
+		nids[b + 1] = right;
+		System.arraycopy(ids, b + 1, nids, b + 2, ids.length - b - 1);
+		tree.put(key, encodeDirectory(nids));
+		dropBlocks(new int[]{ids[b]});
+	}
+
+	@Override
+	public void remove(ByteChunk key) {
+		int li = lockIndex(key);
+		keyLocks[li].lock();
+		try {
+			int[] ids = directory(key);
+			if (ids == null) {
+				return;
+			}
+			tree.remove(key);
+			dropBlocks(ids);
+			size.decrement(size.stripe(li));
+		}
+		finally {
+			keyLocks[li].unlock();
+		}
+	}
+
+	@Override
+	public void remove(ByteChunk key, ByteChunk value) {
+		int li = lockIndex(key);
+		keyLocks[li].lock();
+		try {
+			int[] ids = directory(key);
+			if (ids == null) {
+				return;
+			}
+			int b;
+			// removal never allocates, so it is done in place
+			blockLock.writeLock().lock();
+			try {
+				b = locate(ids, value);
+				int pp = blockTable[ids[b]];
+				ByteChunk block = pageManager.get(pp);
+				int offs = find(block, value);
+				if (offs < 0) {
+					return;
+				}
+				int count = block.intAt(POS_COUNT);
+				if (count > 1) {
+					int used = block.intAt(POS_USED);
+					int shift = 4 + value.lenght();
+					System.arraycopy(block.array(), block.offset() + offs + shift, block.array(), block.offset() + offs, used - offs - shift);
+					block.putInt(POS_COUNT, count - 1);
+					block.putInt(POS_USED, used - shift);
+					// not required for in-heap backend
+					pageManager.update(pp, block);
+					return;
+				}
+			}
+			finally {
+				blockLock.writeLock().unlock();
+			}
+			// last value of block, block is dropped from directory
+			if (ids.length == 1) {
+				tree.remove(key);
+				size.decrement(size.stripe(li));
+			}
+			else {
+				int[] nids = new int[ids.length - 1];
+				System.arraycopy(ids, 0, nids, 0, b);
+				System.arraycopy(ids, b + 1, nids, b, nids.length - b);
+				tree.put(key, encodeDirectory(nids));
+			}
+			dropBlocks(new int[]{ids[b]});
+		}
+		finally {
+			keyLocks[li].unlock();
+		}
+	}
+
+	@Override
+	public Iterator<ByteChunk> keys() {
+		return tree.keys();
+	}
+
+	/**
+	 * @return number of keys
+	 */
+	@Override
+	public int size() {
+		return size.sum();
+	}
+
+	@Override
+	public void clear() {
+		for(ReentrantLock lock: keyLocks) {
+			lock.lock();
+		}
+		try {
+			tree.clear();
+			releaseAllBlocks();
+			size.reset();
+		}
+		finally {
+			for(ReentrantLock lock: keyLocks) {
+				lock.unlock();
+			}
+		}
+	}
+
+	@Override
+	public void recycleHashes(int[] evacuationHashes, int hashCount) {
+		tree.recycleHashes(evacuationHashes, hashCount);
+		for(int i = 0; i != hashCount; ++i) {
+			int hash = evacuationHashes[i];
+			if ((hash & BLOCK_TAG) == 0) {
+				// tree node
+				continue;
+			}
+			int id = hash & ~BLOCK_TAG;
+			blockLock.writeLock().lock();
+			try {
+				if (id < blockTable.length) {
+					int pp = blockTable[id];
+					if (pp != PagedBinaryStoreManager.EMPTY && pageManager.isMarkedForRecycle(pp) && pageManager.readInt(pp, POS_BLOCK_ID) == hash) {
+						blockTable[id] = pageManager.relocate(pp, PagedBinaryStoreManager.ALLOC_RELOCATE_VALUE);
+					}
+				}
+			}
+			finally {
+				blockLock.writeLock().unlock();
+			}
+		}
+	}
+
+	@Override
+	public void destroy() {
+		tree.destroy();
+		releaseAllBlocks();
+	}
+}
@@ -19,24 +19,57 @@ package org.gridkit.offheap.jmemstore;
 import java.util.Iterator;
 
 /**
+ * Keys and values are accepted as any {@link ByteSequence}, store copies them and does not keep references.
+ *
  * @author Alexey Ragozin (alexey.ragozin@gmail.com)
  */
 public interface BinaryKeyValueStore {
 
-	public ByteChunk get(ByteChunk key);
+	/**
+	 * Version of absent entry. Real versions are always positive.
+	 */
+	public static final long NO_VERSION = 0;
 	
-	public void put(ByteChunk key, ByteChunk value);
+	public ByteChunk get(ByteSequence key);
 
-	public boolean compareAndPut(ByteChunk key, ByteChunk expected, ByteChunk newValue);
+	/**
+	 * Same as {@link #get(ByteSequence)}, but also returns version of entry.
+	 * @param version buffer for version being returned, {@link #NO_VERSION} is returned for missing key
+	 */
+	public ByteChunk getWithVersion(ByteSequence key, long[] version);
 	
-	public void remove(ByteChunk key);
+	public void put(ByteSequence key, ByteSequence value);
+
+	public boolean compareAndPut(ByteSequence key, ByteSequence expected, ByteSequence newValue);
+
+	/**
+	 * Updates entry only if its current version matches expected one.
+	 * @param expectedVersion {@link #NO_VERSION} - put only if key is absent
+	 * @return new version of entry or {@link #NO_VERSION} if version check has failed
+	 */
+	public long putIfVersion(ByteSequence key, ByteSequence value, long expectedVersion);
 	
-	public boolean compareAndRemove(ByteChunk key, ByteChunk expected);
+	public void remove(ByteSequence key);
+	
+	public boolean compareAndRemove(ByteSequence key, ByteSequence expected);
+
+	/**
+	 * Removes entry only if its current version matches expected one.
+	 * @return <code>true</code> if entry was removed
+	 */
+	public boolean removeIfVersion(ByteSequence key, long expectedVersion);
 	
 	public Iterator<ByteChunk> keys();
 	
 	public int size();
 	
 	public void clear();
+
+	/**
+	 * Attaches change data capture stream to store, all subsequent mutations will be published to stream.
+	 * @param stream stream to attach, <code>null</code> to detach current one
+	 */
+	public void setMutationStream(MutationStream stream);
+	
 	
 }
@@ -24,9 +24,46 @@ public interface BinaryStoreManager {
 	public BinaryKeyValueStore createKeyValueStore();
 	
 	public BinaryKeyValueStore createKeyValueStore(int segments);
+
+	/**
+	 * Creates hash store with Bloom filter per segment, which lets lookups of missing keys to skip hashtable.
+	 * @param segments number of segments, should be power of 2
+	 * @param filterBitsPerKey filter size, 0 - no filter
+	 */
+	public BinaryKeyValueStore createKeyValueStore(int segments, int filterBitsPerKey);
+
+	/**
+	 * Same as {@link #createKeyValueStore(int, int)}, but with explicit hash function for keys.
+	 */
+	public BinaryKeyValueStore createKeyValueStore(int segments, int filterBitsPerKey, HashFunction hashFunction);
+
+	/**
+	 * @param wideHash if <code>true</code> store uses 64 bit hashes, extra bits are kept in entries as fingerprints,
+	 *        so hash collisions are mostly resolved without comparing keys. Recommended for very large stores.
+	 */
+	public BinaryKeyValueStore createKeyValueStore(int segments, int filterBitsPerKey, HashFunction hashFunction, boolean wideHash);
+
+	/**
+	 * @param segregatedPages if <code>true</code> store allocates memory from its own set of pages,
+	 *        so {@link BinaryKeyValueStore#clear()} and {@link #destroy(MemoryConsumer)} release whole pages without visiting entries
+	 */
+	public BinaryKeyValueStore createKeyValueStore(int segments, int filterBitsPerKey, HashFunction hashFunction, boolean wideHash, boolean segregatedPages);
 	
+	/**
+	 * Creates copy-on-write clone of store. Data is shared by both stores until either side overwrites or removes it,
+	 * only hash index is copied.
+	 * Store should be created with segregated pages, see {@link #createKeyValueStore(int, int, HashFunction, boolean, boolean)}.
+	 */
+	public BinaryKeyValueStore forkKeyValueStore(BinaryKeyValueStore store);
+
 	public IdentityMapping createIdentityMapping();
 
+	public IdentityMapping createIdentityMapping(HashFunction hashFunction);
+
+	public SortedBinaryKeyValueStore createSortedKeyValueStore();
+
+	public BinaryKeyListStore createKeyListStore();
+
 	public void destroy(MemoryConsumer store);
 
 	public void close();
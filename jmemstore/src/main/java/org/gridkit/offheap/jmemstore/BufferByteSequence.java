@@ -0,0 +1,101 @@
+/**
+ *  Copyright 2011 Alexey Ragozin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.gridkit.offheap.jmemstore;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * {@link ByteSequence} view of {@link ByteBuffer} content, heap and direct buffers are supported.
+ * Sequence covers buffer content between position and limit at time of construction,
+ * position and limit of buffer are not used afterwards.
+ *
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+public final class BufferByteSequence implements ByteSequence {
+
+	private final ByteBuffer buffer;
+	private final int offset;
+	private final int len;
+
+	public BufferByteSequence(ByteBuffer buffer) {
+		this(buffer, buffer.position(), buffer.remaining());
+	}
+
+	/**
+	 * @param offset absolute index in buffer
+	 */
+	public BufferByteSequence(ByteBuffer buffer, int offset, int len) {
+		if (offset < 0 || len < 0 || offset + len > buffer.capacity()) {
+			throw new IllegalArgumentException("Buffer capacity: " + buffer.capacity() + ". Required subrange " + offset + " by " + len);
+		}
+		this.buffer = buffer;
+		this.offset = offset;
+		this.len = len;
+	}
+
+	public ByteBuffer buffer() {
+		return buffer;
+	}
+
+	@Override
+	public int length() {
+		return len;
+	}
+
+	@Override
+	public byte byteAt(int i) {
+		return buffer.get(offset + i);
+	}
+
+	@Override
+	public void copyTo(int offs, byte[] dst, int dstOffs, int len) {
+		if (offs + len > this.len) {
+			throw new IllegalArgumentException("Out of bounds");
+		}
+		if (buffer.hasArray()) {
+			System.arraycopy(buffer.array(), buffer.arrayOffset() + offset + offs, dst, dstOffs, len);
+		}
+		else {
+			// duplicate, so concurrent readers of same buffer would not interfere
+			ByteBuffer view = buffer.duplicate();
+			view.limit(offset + offs + len);
+			view.position(offset + offs);
+			view.get(dst, dstOffs, len);
+		}
+	}
+
+	@Override
+	public int getIntLE(int offs) {
+		// absolute reads, so position of buffer is not touched
+		int v = buffer.getInt(offset + offs);
+		return buffer.order() == ByteOrder.LITTLE_ENDIAN ? v : Integer.reverseBytes(v);
+	}
+
+	@Override
+	public long getLongLE(int offs) {
+		long v = buffer.getLong(offset + offs);
+		return buffer.order() == ByteOrder.LITTLE_ENDIAN ? v : Long.reverseBytes(v);
+	}
+
+	@Override
+	public String toString() {
+		byte[] data = new byte[len];
+		copyTo(0, data, 0, len);
+		return new ByteChunk(data).toString();
+	}
+}
@@ -0,0 +1,175 @@
+/**
+ *  Copyright 2011 Alexey Ragozin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.gridkit.offheap.jmemstore;
+
+import java.lang.reflect.Field;
+import java.nio.ByteOrder;
+
+import sun.misc.Unsafe;
+
+/**
+ * Word-at-a-time access to byte arrays.
+ * Eight bytes are read as single long via <code>sun.misc.Unsafe</code>,
+ * plain byte loop is used if unsafe access is not available or platform does not allow unaligned reads.
+ *
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+final class ByteArrays {
+
+	static final Unsafe UNSAFE = lookupUnsafe();
+	
+	private static final boolean WORDS = UNSAFE != null && isUnalignedAccessAllowed();
+	private static final boolean LITTLE_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+	private static final long BASE = UNSAFE == null ? 0 : UNSAFE.arrayBaseOffset(byte[].class);
+	
+	private static Unsafe lookupUnsafe() {
+		try {
+			Field field = Unsafe.class.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			return (Unsafe) field.get(null);
+		}
+		catch(Throwable e) {
+			return null;
+		}
+	}
+
+	private static boolean isUnalignedAccessAllowed() {
+		String arch = System.getProperty("os.arch", "");
+		return "i386".equals(arch) || "x86".equals(arch) || "amd64".equals(arch) || "x86_64".equals(arch)
+			|| "aarch64".equals(arch) || "ppc64le".equals(arch);
+	}
+
+	private ByteArrays() {
+	}
+
+	public static boolean equals(byte[] a, int aOffs, byte[] b, int bOffs, int len) {
+		return mismatch(a, aOffs, b, bOffs, len) < 0;
+	}
+
+	/**
+	 * @return index of first different byte (relative to offsets) or -1 if ranges are equal
+	 */
+	public static int mismatch(byte[] a, int aOffs, byte[] b, int bOffs, int len) {
+		if (aOffs < 0 || bOffs < 0 || len < 0 || aOffs + len > a.length || bOffs + len > b.length) {
+			throw new ArrayIndexOutOfBoundsException("Range " + aOffs + ", " + bOffs + " by " + len);
+		}
+		int i = 0;
+		if (WORDS) {
+			long pa = BASE + aOffs;
+			long pb = BASE + bOffs;
+			for(; i + 8 <= len; i += 8) {
+				long x = UNSAFE.getLong(a, pa + i) ^ UNSAFE.getLong(b, pb + i);
+				if (x != 0) {
+					return i + (LITTLE_ENDIAN ? Long.numberOfTrailingZeros(x) : Long.numberOfLeadingZeros(x)) / 8;
+				}
+			}
+		}
+		for(; i < len; ++i) {
+			if (a[aOffs + i] != b[bOffs + i]) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Compares ranges as unsigned byte strings.
+	 */
+	public static int compare(byte[] a, int aOffs, int aLen, byte[] b, int bOffs, int bLen) {
+		int n = mismatch(a, aOffs, b, bOffs, aLen < bLen ? aLen : bLen);
+		if (n < 0) {
+			return aLen - bLen;
+		}
+		else {
+			return (0xFF & a[aOffs + n]) - (0xFF & b[bOffs + n]);
+		}
+	}
+
+	/**
+	 * Reads little endian int, range should be checked by caller.
+	 */
+	public static int getIntLE(byte[] a, int offs) {
+		if (WORDS) {
+			int v = UNSAFE.getInt(a, BASE + offs);
+			return LITTLE_ENDIAN ? v : Integer.reverseBytes(v);
+		}
+		else {
+			return (0xFF & a[offs]) | (0xFF & a[offs + 1]) << 8 | (0xFF & a[offs + 2]) << 16 | (0xFF & a[offs + 3]) << 24;
+		}
+	}
+
+	/**
+	 * Reads little endian long, range should be checked by caller.
+	 */
+	public static long getLongLE(byte[] a, int offs) {
+		if (WORDS) {
+			long v = UNSAFE.getLong(a, BASE + offs);
+			return LITTLE_ENDIAN ? v : Long.reverseBytes(v);
+		}
+		else {
+			return (0xFFFFFFFFl & getIntLE(a, offs)) | ((long)getIntLE(a, offs + 4) << 32);
+		}
+	}
+
+	/**
+	 * Reads little endian int from raw memory, address should be valid.
+	 */
+	public static int getIntLE(long address) {
+		if (WORDS) {
+			int v = UNSAFE.getInt(address);
+			return LITTLE_ENDIAN ? v : Integer.reverseBytes(v);
+		}
+		else {
+			return (0xFF & UNSAFE.getByte(address)) | (0xFF & UNSAFE.getByte(address + 1)) << 8
+				| (0xFF & UNSAFE.getByte(address + 2)) << 16 | (0xFF & UNSAFE.getByte(address + 3)) << 24;
+		}
+	}
+
+	/**
+	 * Reads little endian long from raw memory, address should be valid.
+	 */
+	public static long getLongLE(long address) {
+		if (WORDS) {
+			long v = UNSAFE.getLong(address);
+			return LITTLE_ENDIAN ? v : Long.reverseBytes(v);
+		}
+		else {
+			return (0xFFFFFFFFl & getIntLE(address)) | ((long)getIntLE(address + 4) << 32);
+		}
+	}
+
+	public static boolean isZero(byte[] a, int offs, int len) {
+		if (offs < 0 || len < 0 || offs + len > a.length) {
+			throw new ArrayIndexOutOfBoundsException("Range " + offs + " by " + len);
+		}
+		int i = 0;
+		if (WORDS) {
+			long p = BASE + offs;
+			for(; i + 8 <= len; i += 8) {
+				if (UNSAFE.getLong(a, p + i) != 0) {
+					return false;
+				}
+			}
+		}
+		for(; i < len; ++i) {
+			if (a[offs + i] != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -23,7 +23,13 @@ import java.nio.ByteBuffer;
  * @author Alexey Ragozin (alexey.ragozin@gmail.com)
  *
  */
-public final class ByteChunk {
+public final class ByteChunk implements ByteSequence {
+
+	/**
+	 * Verification mode, destination of {@link #putBytes(int, ByteChunk)} is checked to be zeroed.
+	 * Enabled by <code>-Djmemstore.verify=true</code> or if assertions are enabled for package.
+	 */
+	static final boolean VERIFY = Boolean.getBoolean("jmemstore.verify") || ByteChunk.class.desiredAssertionStatus();
 
 	private final byte[] bytes;
 	private final int offset;
@@ -53,10 +59,38 @@ public final class ByteChunk {
 		return len;
 	}
 
+	@Override
+	public int length() {
+		return len;
+	}
+
 	public byte at(int i) {
 		return bytes[offset + i];
 	}
 
+	@Override
+	public byte byteAt(int i) {
+		return bytes[offset + i];
+	}
+
+	@Override
+	public void copyTo(int offs, byte[] dst, int dstOffs, int len) {
+		if (offs + len > this.len) {
+			throw new IllegalArgumentException("Out of bounds");
+		}
+		System.arraycopy(bytes, offset + offs, dst, dstOffs, len);
+	}
+
+	@Override
+	public int getIntLE(int offs) {
+		return ByteArrays.getIntLE(bytes, offset + offs);
+	}
+
+	@Override
+	public long getLongLE(int offs) {
+		return ByteArrays.getLongLE(bytes, offset + offs);
+	}
+
 	public void set(int i, byte b) {
 		bytes[offset + i] = b;
 	}
@@ -128,10 +162,8 @@ public final class ByteChunk {
 		if (bytes.len > len) {
 			throw new IllegalArgumentException("Out of bounds");
 		}
-		for(int i = 0; i != bytes.len; ++i) {
-			if (this.bytes[offset + i] != 0) {
-				throw new AssertionError("Chunk " + bytes + " offs: " + offset + " len: " + len + ". Dirty data for putBytes. Params " + 0 + " by " + bytes.len);
-			}
+		if (VERIFY && !ByteArrays.isZero(this.bytes, offset, bytes.len)) {
+			throw new AssertionError("Chunk " + bytes + " offs: " + offset + " len: " + len + ". Dirty data for putBytes. Params " + 0 + " by " + bytes.len);
 		}
 		System.arraycopy(bytes.bytes, bytes.offset, this.bytes, offset, bytes.len);		
 	}
@@ -140,28 +172,71 @@ public final class ByteChunk {
 		if (offs + bytes.len > len) {
 			throw new IllegalArgumentException("Out of bounds");
 		}
-		for(int i = 0; i != bytes.len; ++i) {
-			if (this.bytes[offset + offs + i] != 0) {
-				throw new AssertionError("Chunk " + bytes + " offs: " + offset + " len: " + len + ". Dirty data for putBytes. Params " + offs + " by " + bytes.len);
-			}
+		if (VERIFY && !ByteArrays.isZero(this.bytes, offset + offs, bytes.len)) {
+			throw new AssertionError("Chunk " + bytes + " offs: " + offset + " len: " + len + ". Dirty data for putBytes. Params " + offs + " by " + bytes.len);
 		}
 		System.arraycopy(bytes.bytes, bytes.offset, this.bytes, offset + offs, bytes.len);		
 	}
 
+	public void putBytes(int offs, ByteSequence bytes) {
+		if (bytes instanceof ByteChunk) {
+			putBytes(offs, (ByteChunk)bytes);
+			return;
+		}
+		int blen = bytes.length();
+		if (offs + blen > len) {
+			throw new IllegalArgumentException("Out of bounds");
+		}
+		if (VERIFY && !ByteArrays.isZero(this.bytes, offset + offs, blen)) {
+			throw new AssertionError("Chunk " + bytes + " offs: " + offset + " len: " + len + ". Dirty data for putBytes. Params " + offs + " by " + blen);
+		}
+		bytes.copyTo(0, this.bytes, offset + offs, blen);
+	}
+
+	public boolean sameBytes(ByteSequence that) {
+		return len == that.length() && sameBytes(0, that);
+	}
+
 	public boolean sameBytes(ByteChunk that) {
-		if (len != that.len) {
+		return len == that.len && ByteArrays.equals(bytes, offset, that.bytes, that.offset, len);
+	}
+
+	/**
+	 * Compares range of this chunk starting at <code>offs</code> with whole sequence.
+	 */
+	public boolean sameBytes(int offs, ByteSequence that) {
+		int tlen = that.length();
+		if (offs + tlen > len) {
 			return false;
 		}
-		else {
-			for(int i = 0;  i != len; ++i) {
-				if (at(i) != that.at(i)) {
-					return false;
-				}
+		if (that instanceof ByteChunk) {
+			ByteChunk chunk = (ByteChunk) that;
+			return ByteArrays.equals(bytes, offset + offs, chunk.bytes, chunk.offset, tlen);
+		}
+		int base = offset + offs;
+		int i = 0;
+		for(; i + 8 <= tlen; i += 8) {
+			if (ByteArrays.getLongLE(bytes, base + i) != that.getLongLE(i)) {
+				return false;
+			}
+		}
+		for(; i != tlen; ++i) {
+			if (bytes[base + i] != that.byteAt(i)) {
+				return false;
 			}
 		}
 		return true;
 	}
 
+	/**
+	 * @return index of first different byte, or -1 if chunks are equal (including length)
+	 */
+	public int mismatch(ByteChunk that) {
+		int n = len < that.len ? len : that.len;
+		int i = ByteArrays.mismatch(bytes, offset, that.bytes, that.offset, n);
+		return i >= 0 ? i : len == that.len ? -1 : n;
+	}
+
 	@Override
 	public String toString() {
 		StringBuilder buf = new StringBuilder();
@@ -182,10 +257,8 @@ public final class ByteChunk {
 	}
 
 	public void assertEmpty() {
-		for(int i = 0; i != len; ++i) {
-			if (bytes[offset + i] != 0) {
-				throw new AssertionError("Not empty " + this.toString());
-			}
+		if (!ByteArrays.isZero(bytes, offset, len)) {
+			throw new AssertionError("Not empty " + this.toString());
 		}
 	}
 }
@@ -0,0 +1,49 @@
+/**
+ *  Copyright 2011 Alexey Ragozin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.gridkit.offheap.jmemstore;
+
+/**
+ * Read-only sequence of bytes, used to pass keys and values to stores without copying them into heap first.
+ * <br/>
+ * {@link ByteChunk} is an in-heap implementation, {@link BufferByteSequence} and {@link AddressByteSequence}
+ * expose bytes of {@link java.nio.ByteBuffer} and raw memory region.
+ * Sequence should not change while store operation is in progress.
+ *
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+public interface ByteSequence {
+
+	public int length();
+
+	public byte byteAt(int i);
+
+	/**
+	 * Copies <code>len</code> bytes starting from <code>offs</code> into array.
+	 */
+	public void copyTo(int offs, byte[] dst, int dstOffs, int len);
+
+	/**
+	 * Reads 4 bytes starting from <code>offs</code> as little endian int, range should be checked by caller.
+	 */
+	public int getIntLE(int offs);
+
+	/**
+	 * Reads 8 bytes starting from <code>offs</code> as little endian long, range should be checked by caller.
+	 */
+	public long getLongLE(int offs);
+
+}
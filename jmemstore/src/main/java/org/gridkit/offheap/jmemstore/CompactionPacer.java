@@ -0,0 +1,214 @@
+/**
+ *  Copyright 2011 Alexey Ragozin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.gridkit.offheap.jmemstore;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Controls pace of compaction for {@link PagedBinaryStoreManager}.
+ * <br/>
+ * Pacer periodically measures allocation and release rates and page headroom and derives
+ * single <i>pressure</i> value in range 0..1. Pressure is growing if free pages would be exhausted
+ * soon at current allocation rate or if most pages are in use.
+ * <br/>
+ * Pressure defines
+ * <ul>
+ * <li>evacuation thresholds - under low pressure only sparse pages are evacuated, they are cheapest to reclaim</li>
+ * <li>copy rate limit - rate of relocation required to reclaim pages as fast as allocators consume them,
+ * scaled down by pressure, unlimited under full pressure</li>
+ * <li>idle park time of compaction workers</li>
+ * </ul>
+ * All decisions are exposed via getters, values are updated by maintenance thread.
+ *
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+public class CompactionPacer {
+
+	static long PACING_PERIOD = TimeUnit.MILLISECONDS.toNanos(100);
+
+	// free pages should last at least this time at current allocation rate
+	private static double TARGET_RUNWAY_SECONDS = 10;
+	// pages usage below this fraction does not create pressure
+	private static float LOW_WATERMARK = 0.5f;
+	private static float MIN_SCAVENGE_THRESHOLD = 0.5f;
+	private static float MAX_SCAVENGE_THRESHOLD = 0.9f;
+	private static float MIN_GC_THRESHOLD = 0.1f;
+	private static float MAX_GC_THRESHOLD = 0.5f;
+	private static long MIN_IDLE_PARK = TimeUnit.MILLISECONDS.toNanos(1);
+	private static long MAX_IDLE_PARK = TimeUnit.MILLISECONDS.toNanos(300);
+	// weight of last sample in moving averages
+	private static double SMOOTHING = 0.3;
+
+	private final MemoryStoreBackend backend;
+
+	// accessed by maintenance thread only
+	private long lastTimestamp;
+	private long lastPageAllocations;
+	private long lastRelocated;
+	private long lastMemUsed;
+
+	private volatile double allocationRate;
+	private volatile double releaseRate;
+	private volatile int freePages;
+	private volatile float pressure;
+	private volatile float scavengeThreshold;
+	private volatile float gcThreshold;
+	private volatile double copyRateLimit;
+	private volatile long idleParkNanos;
+
+	// start of current copy rate accounting period
+	private volatile long periodTimestamp;
+	private volatile long periodRelocated;
+
+	CompactionPacer(MemoryStoreBackend backend) {
+		this.backend = backend;
+		this.lastTimestamp = System.nanoTime();
+		this.lastPageAllocations = backend.getPageAllocationCount();
+		this.lastRelocated = backend.getRelocatedBytes();
+		this.lastMemUsed = backend.getMemUsage();
+		this.periodTimestamp = lastTimestamp;
+		this.periodRelocated = lastRelocated;
+		apply(0f, 0d);
+	}
+
+	/**
+	 * Takes new sample of backend counters and adjusts decisions. Called by maintenance thread.
+	 */
+	void update() {
+		long now = System.nanoTime();
+		if (now - lastTimestamp < PACING_PERIOD || now == lastTimestamp) {
+			return;
+		}
+		double dt = (now - lastTimestamp) / 1e9d;
+		long pageAllocations = backend.getPageAllocationCount();
+		long relocated = backend.getRelocatedBytes();
+		long memUsed = backend.getMemUsage();
+		int pageSize = backend.getPageSize();
+		int pageLimit = backend.getPageLimit();
+		int pagesInUse = backend.getPagesInUse();
+
+		// pages are consumed by mutators and by relocation, only former is allocation rate
+		double consumed = (double)(pageAllocations - lastPageAllocations) * pageSize;
+		double allocated = Math.max(0, consumed - (relocated - lastRelocated));
+		double released = Math.max(0, allocated - (memUsed - lastMemUsed));
+		allocationRate = SMOOTHING * (allocated / dt) + (1 - SMOOTHING) * allocationRate;
+		releaseRate = SMOOTHING * (released / dt) + (1 - SMOOTHING) * releaseRate;
+
+		lastTimestamp = now;
+		lastPageAllocations = pageAllocations;
+		lastRelocated = relocated;
+		lastMemUsed = memUsed;
+
+		freePages = pageLimit - pagesInUse;
+		double runway = allocationRate > 0 ? (double)freePages * pageSize / allocationRate : Double.POSITIVE_INFINITY;
+		float runwayPressure = clamp((float)(1 - runway / TARGET_RUNWAY_SECONDS));
+		float usagePressure = clamp((1f * pagesInUse / pageLimit - LOW_WATERMARK) / (1 - LOW_WATERMARK));
+
+		apply(Math.max(runwayPressure, usagePressure), allocationRate);
+
+		periodTimestamp = now;
+		periodRelocated = relocated;
+	}
+
+	private void apply(float pressure, double allocationRate) {
+		this.pressure = pressure;
+		scavengeThreshold = MIN_SCAVENGE_THRESHOLD + pressure * (MAX_SCAVENGE_THRESHOLD - MIN_SCAVENGE_THRESHOLD);
+		gcThreshold = MIN_GC_THRESHOLD + pressure * (MAX_GC_THRESHOLD - MIN_GC_THRESHOLD);
+		backend.setEvacuationThresholds(scavengeThreshold, gcThreshold);
+		if (pressure >= 1f) {
+			copyRateLimit = Double.POSITIVE_INFINITY;
+		}
+		else {
+			// evacuation of page with utilization u copies u bytes per each (1 - u) bytes reclaimed
+			double required = allocationRate * scavengeThreshold / (1 - scavengeThreshold);
+			// at least one page per second, so sparse pages are reclaimed eventually
+			copyRateLimit = Math.max(backend.getPageSize(), pressure * required);
+		}
+		idleParkNanos = MAX_IDLE_PARK - (long)(pressure * (MAX_IDLE_PARK - MIN_IDLE_PARK));
+	}
+
+	private static float clamp(float x) {
+		return x < 0 ? 0 : x > 1 ? 1 : x;
+	}
+
+	/**
+	 * @return time compaction worker should wait to keep relocation within copy rate limit
+	 */
+	long getCopyDelayNanos() {
+		double limit = copyRateLimit;
+		if (limit == Double.POSITIVE_INFINITY) {
+			return 0;
+		}
+		long copied = backend.getRelocatedBytes() - periodRelocated;
+		double allowed = limit * (System.nanoTime() - periodTimestamp) / 1e9d;
+		if (copied <= allowed) {
+			return 0;
+		}
+		long delay = (long)((copied - allowed) * 1e9d / limit);
+		return Math.min(delay, MAX_IDLE_PARK);
+	}
+
+	/**
+	 * @return smoothed rate of allocation by mutators, bytes per second
+	 */
+	public double getAllocationRate() {
+		return allocationRate;
+	}
+
+	/**
+	 * @return smoothed rate of release by mutators, bytes per second
+	 */
+	public double getReleaseRate() {
+		return releaseRate;
+	}
+
+	public int getFreePages() {
+		return freePages;
+	}
+
+	/**
+	 * @return 0 - plenty of free pages, 1 - pages are about to be exhausted
+	 */
+	public float getPressure() {
+		return pressure;
+	}
+
+	public float getScavengeThreshold() {
+		return scavengeThreshold;
+	}
+
+	public float getGcThreshold() {
+		return gcThreshold;
+	}
+
+	/**
+	 * @return limit for relocation rate, bytes per second, {@link Double#POSITIVE_INFINITY} if unlimited
+	 */
+	public double getCopyRateLimit() {
+		return copyRateLimit;
+	}
+
+	public long getIdleParkNanos() {
+		return idleParkNanos;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Compaction pressure: %.2f | Free pages: %d | Alloc rate: %.0f b/s | Release rate: %.0f b/s | Thresholds: %.2f/%.2f | Copy limit: %.0f b/s",
+				pressure, freePages, allocationRate, releaseRate, scavengeThreshold, gcThreshold, copyRateLimit);
+	}
+}
@@ -0,0 +1,186 @@
+/**
+ *  Copyright 2011 Alexey Ragozin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.gridkit.offheap.jmemstore;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.zip.Checksum;
+
+/**
+ * Hash function used by hash based store for keys.
+ * <br/>
+ * Function is chosen when store is created and kept by store for its whole life,
+ * hashes are stored in entries and reused on table growth and evacuation, so they are never mixed.
+ *
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+public enum HashFunction {
+
+	/** Legacy byte-at-a-time CRC variant, see {@link BinHash#hash(ByteSequence)} */
+	CRC32 {
+		@Override
+		public int hash(byte[] data, int offs, int len) {
+			return BinHash.hash(new ByteChunk(data, offs, len));
+		}
+
+		@Override
+		int hashSequence(ByteSequence bytes) {
+			return BinHash.hash(bytes);
+		}
+	},
+
+	/** MurmurHash3 x86_32, 4 bytes per step */
+	MURMUR3 {
+		@Override
+		public int hash(byte[] data, int offs, int len) {
+			return BinHash.murmur3_32(data, offs, len, SEED);
+		}
+
+		@Override
+		int hashSequence(ByteSequence bytes) {
+			return BinHash.murmur3_32(bytes, SEED);
+		}
+	},
+
+	/** xxHash32, 16 bytes per step in 4 independent lanes */
+	XXHASH32 {
+		@Override
+		public int hash(byte[] data, int offs, int len) {
+			return BinHash.xxhash32(data, offs, len, SEED);
+		}
+
+		@Override
+		int hashSequence(ByteSequence bytes) {
+			return BinHash.xxhash32(bytes, SEED);
+		}
+
+		@Override
+		public long hash64(byte[] data, int offs, int len) {
+			return BinHash.xxhash64(data, offs, len, SEED);
+		}
+
+		@Override
+		long hash64Sequence(ByteSequence bytes) {
+			return BinHash.xxhash64(bytes, SEED);
+		}
+	},
+
+	/** CRC32C, uses hardware accelerated <code>java.util.zip.CRC32C</code> on Java 9+, table driven implementation otherwise */
+	CRC32C {
+		@Override
+		public int hash(byte[] data, int offs, int len) {
+			Checksum crc = INTRINSIC_CRC32C == null ? null : INTRINSIC_CRC32C.get();
+			if (crc == null) {
+				return BinHash.crc32c(data, offs, len);
+			}
+			else {
+				crc.reset();
+				crc.update(data, offs, len);
+				return (int) crc.getValue();
+			}
+		}
+
+		@Override
+		int hashSequence(ByteSequence bytes) {
+			// intrinsic accepts only arrays, table driven variant gives same result
+			return BinHash.crc32c(bytes);
+		}
+	};
+
+	/**
+	 * Hash function used if none is specified.
+	 */
+	public static final HashFunction DEFAULT = XXHASH32;
+
+	private static final int SEED = 0;
+	private static final int FINGERPRINT_SEED = 0x5F3759DF;
+	private static final ThreadLocal<Checksum> INTRINSIC_CRC32C = lookupCrc32c();
+
+	private static ThreadLocal<Checksum> lookupCrc32c() {
+		try {
+			final Class<?> c = Class.forName("java.util.zip.CRC32C");
+			if (newChecksum(c) == null) {
+				return null;
+			}
+			return new ThreadLocal<Checksum>() {
+				@Override
+				protected Checksum initialValue() {
+					return newChecksum(c);
+				}
+			};
+		}
+		catch(Throwable e) {
+			return null;
+		}
+	}
+
+	private static Checksum newChecksum(Class<?> c) {
+		try {
+			return (Checksum) c.getDeclaredConstructor().newInstance();
+		}
+		catch(NoSuchMethodException e) {
+			return null;
+		}
+		catch(InstantiationException e) {
+			return null;
+		}
+		catch(IllegalAccessException e) {
+			return null;
+		}
+		catch(InvocationTargetException e) {
+			return null;
+		}
+	}
+
+	public abstract int hash(byte[] data, int offs, int len);
+
+	/**
+	 * 64 bit hash, low half is used to locate bucket, high half as fingerprint of key.
+	 * Unless function has native 64 bit variant, high half is produced by seeded MurmurHash3.
+	 */
+	public long hash64(byte[] data, int offs, int len) {
+		return (0xFFFFFFFFl & hash(data, offs, len)) | ((long)BinHash.murmur3_32(data, offs, len, FINGERPRINT_SEED) << 32);
+	}
+
+	public int hash(ByteSequence bytes) {
+		if (bytes instanceof ByteChunk) {
+			ByteChunk chunk = (ByteChunk) bytes;
+			return hash(chunk.array(), chunk.offset(), chunk.lenght());
+		}
+		else {
+			return hashSequence(bytes);
+		}
+	}
+
+	public long hash64(ByteSequence bytes) {
+		if (bytes instanceof ByteChunk) {
+			ByteChunk chunk = (ByteChunk) bytes;
+			return hash64(chunk.array(), chunk.offset(), chunk.lenght());
+		}
+		else {
+			return hash64Sequence(bytes);
+		}
+	}
+
+	/**
+	 * Hashes sequences without backing array (buffers, raw memory) in place, result should match array variant.
+	 */
+	abstract int hashSequence(ByteSequence bytes);
+
+	long hash64Sequence(ByteSequence bytes) {
+		return (0xFFFFFFFFl & hashSequence(bytes)) | ((long)BinHash.murmur3_32(bytes, FINGERPRINT_SEED) << 32);
+	}
+}
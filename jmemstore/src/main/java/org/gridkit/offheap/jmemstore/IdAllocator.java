@@ -0,0 +1,252 @@
+/**
+ *  Copyright 2011 Alexey Ragozin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.gridkit.offheap.jmemstore;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free allocator of dense non negative ids.
+ * <br/>
+ * Ids are tracked by bitmap, one bit per id. Bitmap is split into pages of 4096 ids,
+ * each page keeps additional mask of its full words, so search for free id
+ * checks one mask per page and one word inside page.
+ * Lowest page which may have free ids is tracked by hint, released id moves hint back,
+ * so lowest free ids are reused first and table of ids stays dense.
+ * <br/>
+ * Threads colliding on same word continue with next word instead of retrying,
+ * which spreads concurrent allocations over neighbor words.
+ *
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+class IdAllocator {
+
+	private static final int WORD_BITS = 64;
+	private static final int PAGE_WORDS = 64;
+	private static final int PAGE_IDS = WORD_BITS * PAGE_WORDS;
+	private static final int MAX_PAGES = (int) ((1l + Integer.MAX_VALUE) / PAGE_IDS);
+
+	private volatile Page[] pages = new Page[0];
+	private final AtomicInteger pageHint = new AtomicInteger();
+	private final AtomicInteger allocated = new AtomicInteger();
+
+	public int allocate() {
+		while(true) {
+			int hint = pageHint.get();
+			Page[] pages = this.pages;
+			for(int p = hint; p < pages.length; ++p) {
+				int id = pages[p].allocate();
+				if (id >= 0) {
+					allocated.incrementAndGet();
+					return p * PAGE_IDS + id;
+				}
+				else if (pageHint.compareAndSet(p, p + 1) && !pages[p].isFull()) {
+					// page is full, hint is moved forward unless it has been changed
+					// but concurrent release may have happened before hint was updated
+					lowerHint(p);
+				}
+			}
+			grow(pages.length);
+		}
+	}
+
+	/**
+	 * Marks specific id as used, used to restore state of allocator.
+	 * @return <code>false</code> if id is already in use
+	 */
+	public boolean reserve(int id) {
+		if (id < 0) {
+			throw new IllegalArgumentException("Negative id " + id);
+		}
+		int p = id / PAGE_IDS;
+		while(pages.length <= p) {
+			grow(pages.length);
+		}
+		if (pages[p].set(id % PAGE_IDS)) {
+			allocated.incrementAndGet();
+			return true;
+		}
+		else {
+			return false;
+		}
+	}
+
+	public void release(int id) {
+		Page[] pages = this.pages;
+		int p = id / PAGE_IDS;
+		if (id < 0 || p >= pages.length || !pages[p].clear(id % PAGE_IDS)) {
+			throw new IllegalArgumentException("Id " + id + " is not allocated");
+		}
+		allocated.decrementAndGet();
+		lowerHint(p);
+	}
+
+	public boolean isAllocated(int id) {
+		Page[] pages = this.pages;
+		int p = id / PAGE_IDS;
+		return id >= 0 && p < pages.length && pages[p].isSet(id % PAGE_IDS);
+	}
+
+	/**
+	 * @return number of allocated ids
+	 */
+	public int size() {
+		return allocated.get();
+	}
+
+	/**
+	 * Releases all ids, should not be called concurrently with other methods.
+	 */
+	public synchronized void clear() {
+		pages = new Page[0];
+		pageHint.set(0);
+		allocated.set(0);
+	}
+
+	private void lowerHint(int p) {
+		while(true) {
+			int hint = pageHint.get();
+			if (hint <= p || pageHint.compareAndSet(hint, p)) {
+				return;
+			}
+		}
+	}
+
+	private synchronized void grow(int knownLength) {
+		if (pages.length != knownLength) {
+			// already grown by another thread
+			return;
+		}
+		if (knownLength >= MAX_PAGES) {
+			throw new IllegalStateException("Id space is exhausted");
+		}
+		Page[] npages = new Page[knownLength + 1];
+		System.arraycopy(pages, 0, npages, 0, knownLength);
+		npages[knownLength] = new Page();
+		pages = npages;
+	}
+
+	private static class Page {
+
+		final AtomicLongArray words = new AtomicLongArray(PAGE_WORDS);
+		// bit per full word
+		final AtomicLong fullMask = new AtomicLong();
+
+		/**
+		 * @return id within page or -1 if page is full
+		 */
+		int allocate() {
+			while(true) {
+				long mask = fullMask.get();
+				if (mask == -1l) {
+					return -1;
+				}
+				int w = Long.numberOfTrailingZeros(~mask);
+				long word = words.get(w);
+				if (word == -1l) {
+					markFull(w);
+					continue;
+				}
+				int bit = Long.numberOfTrailingZeros(~word);
+				long nword = word | (1l << bit);
+				if (words.compareAndSet(w, word, nword)) {
+					if (nword == -1l) {
+						markFull(w);
+					}
+					return w * WORD_BITS + bit;
+				}
+				// contention, try next word with free bits
+				for(int i = w + 1; i < PAGE_WORDS; ++i) {
+					word = words.get(i);
+					if (word != -1l) {
+						bit = Long.numberOfTrailingZeros(~word);
+						nword = word | (1l << bit);
+						if (words.compareAndSet(i, word, nword)) {
+							if (nword == -1l) {
+								markFull(i);
+							}
+							return i * WORD_BITS + bit;
+						}
+					}
+				}
+			}
+		}
+
+		boolean set(int n) {
+			int w = n / WORD_BITS;
+			long bit = 1l << (n % WORD_BITS);
+			while(true) {
+				long word = words.get(w);
+				if ((word & bit) != 0) {
+					return false;
+				}
+				if (words.compareAndSet(w, word, word | bit)) {
+					if ((word | bit) == -1l) {
+						markFull(w);
+					}
+					return true;
+				}
+			}
+		}
+
+		boolean clear(int n) {
+			int w = n / WORD_BITS;
+			long bit = 1l << (n % WORD_BITS);
+			while(true) {
+				long word = words.get(w);
+				if ((word & bit) == 0) {
+					return false;
+				}
+				if (words.compareAndSet(w, word, word & ~bit)) {
+					clearFull(w);
+					return true;
+				}
+			}
+		}
+
+		boolean isFull() {
+			return fullMask.get() == -1l;
+		}
+
+		boolean isSet(int n) {
+			return (words.get(n / WORD_BITS) & (1l << (n % WORD_BITS))) != 0;
+		}
+
+		private void markFull(int w) {
+			while(true) {
+				long mask = fullMask.get();
+				if ((mask & (1l << w)) != 0 || fullMask.compareAndSet(mask, mask | (1l << w))) {
+					break;
+				}
+			}
+			// concurrent release may have happened before mask was updated
+			if (words.get(w) != -1l) {
+				clearFull(w);
+			}
+		}
+
+		private void clearFull(int w) {
+			while(true) {
+				long mask = fullMask.get();
+				if ((mask & (1l << w)) == 0 || fullMask.compareAndSet(mask, mask & ~(1l << w))) {
+					return;
+				}
+			}
+		}
+	}
+}
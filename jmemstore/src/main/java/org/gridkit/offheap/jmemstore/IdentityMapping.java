@@ -16,6 +16,10 @@
  */
 package org.gridkit.offheap.jmemstore;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
 /**
  * @author Alexey Ragozin (alexey.ragozin@gmail.com)
  */
@@ -23,17 +27,56 @@ public interface IdentityMapping {
 
 	public static final int UNMAPPED = -1;
 	
-	public int map(ByteChunk chunk);
+	public int map(ByteSequence chunk);
 	
-	public int getIdByChunk(ByteChunk chunk);
+	public int getIdByChunk(ByteSequence chunk);
 	
 	public ByteChunk getChunkById(int id);
+
+	/**
+	 * Bulk version of {@link #map(ByteSequence)}, keys are processed grouped by hashtable segment.
+	 * @param out receives id for each key
+	 */
+	public void mapAll(ByteSequence[] in, int[] out);
+
+	/**
+	 * Bulk version of {@link #getIdByChunk(ByteSequence)}.
+	 * @param out receives id for each key, {@link #UNMAPPED} for unknown keys
+	 */
+	public void getIdsByChunks(ByteSequence[] in, int[] out);
+
+	/**
+	 * Bulk version of {@link #getChunkById(int)}. Keys are copied into single buffer.
+	 * @param offsets receives offset of each key in returned chunk
+	 * @param lengths receives length of each key, -1 for unmapped ids
+	 */
+	public ByteChunk getChunksByIds(int[] ids, int[] offsets, int[] lengths);
+
+	/**
+	 * Applies ref count deltas, positive delta is same as calling {@link #map(ByteSequence)} delta times,
+	 * negative - same as calling {@link #unmap(ByteSequence)}. Keys are processed grouped by hashtable segment.
+	 * @throws IllegalArgumentException if ref count of some key would become negative, other keys are still updated
+	 */
+	public void adjustRefCounts(ByteSequence[] keys, int[] deltas);
 	
-	public void unmap(ByteChunk chunk);
+	public void unmap(ByteSequence chunk);
 	
 	public void unmap(int id);
 	
 	public int size();
+
+	/**
+	 * Writes all mappings (key, id and ref count) to stream in compact sequential format.
+	 * Mappings modified while snapshot is being written may or may not be included,
+	 * but snapshot never contains same key or id twice, so it can always be restored.
+	 */
+	public void snapshot(OutputStream out) throws IOException;
+
+	/**
+	 * Loads mappings written by {@link #snapshot(OutputStream)}, ids and ref counts are preserved.
+	 * Mapping should be empty, it is left unchanged if restore fails.
+	 */
+	public void restore(InputStream in) throws IOException;
 	
 	public void clear();
 	
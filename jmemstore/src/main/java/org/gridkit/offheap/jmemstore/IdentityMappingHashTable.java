@@ -16,13 +16,23 @@
  */
 package org.gridkit.offheap.jmemstore;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Arrays;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 
 /**
  * Class hashtable data structure, using explicit memory manager 
+ * <br/>
+ * Entries are indexed by key hash. Reverse lookup uses dense id index,
+ * array of entry pointers split into blocks allocated in memory manager.
  *
  * @author Alexey Ragozin (alexey.ragozin@gmail.com)
  */
@@ -40,148 +50,76 @@ class IdentityMappingHashTable implements IdentityMapping, MemoryConsumer {
 		private final int POS_REF_COUNT = 16;
 		private final int POS_KEY_DATA = 20;
 		
+		// Snapshot format
+		// | magic | version | expected entry count | entries ... | -1 | entry count |
+		// entry: | key size | id | ref count | key data |
+		private static final int SNAPSHOT_MAGIC = 0x494D4150;
+		private static final int SNAPSHOT_VERSION = 1;
+		
 		static int ALLOC_NEW_ENTRY = 0;
 		static int ALLOC_NEW_LIST = 0;
 		static int ALLOC_RELOCATE_VALUE = 0;
 		static int ALLOC_HASH_SEGMENT = 1;
 	
 		private final MemoryStoreBackend pageManager;
+		private final HashFunction hashFunction;
 		
 		private final int segmentCount;
 		private int[] masterHashtable;
 		private AtomicIntegerArray locktable;
 		private volatile int capacity;
 		
-		private AtomicInteger size = new AtomicInteger();
+		// striped by segment, cells are updated under segment write lock
+		// replaced only by restore, under all segment locks
+		private volatile StripedCounter size;
 		private float targetLoadFactor = 0.8f;
+
+		private static final int ID_BLOCK = 128;
+		// per segment lists of id blocks, block N belongs to segment N % segmentCount
+		// guarded by segment lock
+		private final int[][] idDirectory;
 		
-		private Object idLock = new String("idLock");
-		private int upperBound;
-		private int[] freeList = new int[1024];
-		private int freeListL = 0;
-		private int freeListR = 0;
-		private int sweepPos;
+		private final IdAllocator ids = new IdAllocator();
+
+		// snapshot holds read lock, table is neither split nor cleared while snapshot is written
+		private final ReentrantReadWriteLock resizeLock = new ReentrantReadWriteLock();
+		// ids released while snapshot is written are not reused until it completes,
+		// otherwise same id could be written for two different keys
+		private final Object idReleaseLock = new Object();
+		private int snapshotCount;
+		private int[] deferredIds = new int[16];
+		private int deferredCount;
 		
 		public IdentityMappingHashTable(MemoryStoreBackend pageManager, int segmentCount) {
+			this(pageManager, segmentCount, HashFunction.DEFAULT);
+		}
+
+		public IdentityMappingHashTable(MemoryStoreBackend pageManager, int segmentCount, HashFunction hashFunction) {
 			this.pageManager = pageManager;
+			this.hashFunction = hashFunction;
 			this.segmentCount = segmentCount;
 			this.masterHashtable = new int[segmentCount];
 			this.locktable = createLocktable(segmentCount);
+			this.size = new StripedCounter(segmentCount);
+			this.idDirectory = new int[segmentCount][];
+			Arrays.fill(idDirectory, NO_ENTRIES);
 			while(capacity < segmentCount) {
 				increamentCapacity();
 			}
 		}
 
-		private int allocateId() {
-			synchronized(idLock) {
-				while(true) {
-					if (freeListL != freeListR) {
-						int id =  freeList[freeListL];
-						freeList[freeListL] = UNMAPPED;
-						freeListL = (freeListL + 1) % freeList.length;
-						if (id == UNMAPPED) {
-							throw new AssertionError();
-						}
-						return id;
-					}
-					else {
-						if (upperBound > (Integer.MAX_VALUE >> 1)) {
-							scanForGaps(256);
-							continue;
-						}
-						if ((size.get() / 2) < upperBound) {
-							scanForGaps(8);
-							if (freeListSize() > 0) {
-								continue;
-							}
-							else {
-								int id = upperBound;
-								++upperBound;
-								return id;
-							}
-						}
-						else {
-							int id = upperBound;
-							++upperBound;
-							return id;							
-						}
-					}
-				}
-			}
-		}
-		
-		private void scanForGaps(int n) {
-			scan_loop:
-			while(true) {
-				if (sweepPos >= upperBound || freeListSize() == (freeList.length - 1)) {
-					sweepPos = 0;
-					return;
-				}
-				int id = sweepPos;
-				int nhash = BinHash.hash(id);
-				sweepPos++;
-				n++;
-				int nindex = BinHash.splitHash(nhash, capacity);
-				readLock(nindex);
-				try {
-					if (nindex != BinHash.splitHash(nhash, capacity)) {
-						continue; // this will skip id check, but it should be ok
-					}
-					
-					int[] entries = getEntries(nindex);
-					if (entries != null) {
-						for (int pp : entries) {
-							if (getId(pp) == id) {
-								continue scan_loop;
-							}
-						}
-					}
-					
-					// no such id in table
-					addToFreeList(id);
-				}
-				finally {
-					readUnlock(nindex);
-				}
-			}
-		}
-
-		private void addToFreeList(int id) {
-			freeList[freeListR] = id;
-			freeListR = (freeListR + 1) % freeList.length;
-			if (freeListL == freeListR) {
-				throw new AssertionError();
-			}
-		}
-		
-		private int freeListSize() {
-			int sz = freeListR - freeListL;
-			if (sz < 0) {
-				sz += freeList.length;
-			}
-			return sz;
-		}
-
 		@Override
-		public int getIdByChunk(ByteChunk key) {
+		public int getIdByChunk(ByteSequence key) {
 			while(true) {
-				int hash = BinHash.hash(key);
+				int hash = hashFunction.hash(key);
 				int index = BinHash.splitHash(hash, capacity);
 				readLock(index);				
 				try {
 					if (index != BinHash.splitHash(hash, capacity)) {
 						continue;
 					}
-					int[] entries = getEntries(index);
-					if (entries != null) {
-						for(int pp : entries) {
-							ByteChunk entry = pageManager.get(pp);
-							if (sameKey(entry, key)) {
-								return getId(entry);
-							}
-						}
-					}
-					return UNMAPPED;
+					int pp = findEntry(index, key, hash);
+					return pp == PagedBinaryStoreManager.EMPTY ? UNMAPPED : getId(pp);
 				}
 				finally {
 					readUnlock(index);
@@ -191,36 +129,26 @@ class IdentityMappingHashTable implements IdentityMapping, MemoryConsumer {
 
 		@Override
 		public ByteChunk getChunkById(int id) {
-			while(true) {
-				int hash = BinHash.hash(id);
-				int index = BinHash.splitHash(hash, capacity);
-				readLock(index);				
-				try {
-					if (index != BinHash.splitHash(hash, capacity)) {
-						continue;
-					}
-					int[] entries = getEntries(index);
-					if (entries != null) {
-						for(int pp : entries) {
-							ByteChunk entry = pageManager.get(pp);
-							int entryId = getId(entry);
-							if (entryId == id) {
-								return getKeyData(entry);
-							}
-						}
-					}
+			if (id < 0) {
+				return null;
+			}
+			readLock(idIndex(id));
+			try {
+				int pp = idTableGet(id);
+				if (pp == PagedBinaryStoreManager.EMPTY) {
 					return null;
 				}
-				finally {
-					readUnlock(index);
-				}
+				return getKeyData(pageManager.get(pp));
+			}
+			finally {
+				readUnlock(idIndex(id));
 			}
 		}
 
 		@Override
-		public int map(ByteChunk key) {
+		public int map(ByteSequence key) {
 			// Step I. Try increment ref counter on existing entry
-			int hash = BinHash.hash(key);
+			int hash = hashFunction.hash(key);
 			while(true) {
 				int index = BinHash.splitHash(hash, capacity);
 				writeLock(index);				
@@ -229,7 +157,7 @@ class IdentityMappingHashTable implements IdentityMapping, MemoryConsumer {
 						// table has been resized, try again
 						continue;
 					}
-					int id = incRefCount(index, key);
+					int id = incRefCount(index, key, hash);
 					if (id != UNMAPPED) {
 						return id;
 					}
@@ -243,31 +171,29 @@ class IdentityMappingHashTable implements IdentityMapping, MemoryConsumer {
 			}
 			// Step II. Create new entry and assign new ID.
 			try {
+				int newId = ids.allocate();
 				while(true) {
-					int newId = allocateId();
-					int idHash = BinHash.hash(newId);
 					int hIndex = BinHash.splitHash(hash, capacity);
-					int nIndex = BinHash.splitHash(idHash, capacity);
+					int nIndex = idIndex(newId);
 					writeDoubleLock(hIndex, nIndex);
 					try {
-						if (hIndex != BinHash.splitHash(hash, capacity) || nIndex != BinHash.splitHash(idHash, capacity)) {
+						if (hIndex != BinHash.splitHash(hash, capacity)) {
 							// table has been resized, try again
 							continue;
 						}
 						
-						int oldId = incRefCount(hIndex, key);
+						int oldId = incRefCount(hIndex, key, hash);
 						if (oldId != UNMAPPED) {
 							// somebody else have already created a mapping
+							ids.release(newId);
 							return oldId;
 						}
 						else {
 							// adding new entry
 							int npp = createEntry(key, newId, hash);
 							addEntry(hIndex, npp);
-							if (hIndex != nIndex) {
-								addEntry(nIndex, npp);
-							}
-							size.addAndGet(2); // counting hash entries
+							idTableSet(newId, npp);
+							size.increment(size.stripe(hIndex % segmentCount));
 							return newId;
 						}
 					}
@@ -277,35 +203,516 @@ class IdentityMappingHashTable implements IdentityMapping, MemoryConsumer {
 				}
 			}
 			finally {
-				checkTableSize();
+				checkTableSize(hash);
 			}
 		}
 
-		// writeLock on index is assumed
-		private int incRefCount(int index, ByteChunk key) {
-			int[] entries = getEntries(index);
-			if (entries != null) {
-				for(int pp : entries) {
-					ByteChunk entry = pageManager.get(pp);
-					if (sameKey(entry, key)) {
-						int refCount = getRefCount(entry);
-						setRefCount(entry, refCount + 1);
-						pageManager.update(pp, entry);
-						// XXX
-						if (key.toString().equals("[8ea5456f.c07d6f79.8bbbade2.30]")) {
-							System.out.println(">>" + key + " refCount=" + pageManager.readInt(pp, POS_REF_COUNT));
+		@Override
+		public void mapAll(ByteSequence[] in, int[] out) {
+			int n = in.length;
+			int[] hashes = new int[n];
+			int[] segments = new int[n];
+			int cap = capacity;
+			for(int i = 0; i != n; ++i) {
+				hashes[i] = hashFunction.hash(in[i]);
+				segments[i] = BinHash.splitHash(hashes[i], cap) % segmentCount;
+			}
+			int[] order = sortBySegment(segments);
+			// Step I. Increment ref counters of existing entries, one lock per segment
+			int i = 0;
+			while(i != n) {
+				int seg = segments[order[i]];
+				segmentWriteLock(seg);
+				try {
+					for(; i != n && segments[order[i]] == seg; ++i) {
+						int k = order[i];
+						int index = BinHash.splitHash(hashes[k], capacity);
+						// table could be resized meanwhile, such keys are left for slow path
+						out[k] = index % segmentCount != seg ? UNMAPPED : incRefCount(index, in[k], hashes[k]);
+					}
+				}
+				finally {
+					segmentWriteUnlock(seg);
+				}
+			}
+			// Step II. Create new entries
+			for(int k = 0; k != n; ++k) {
+				if (out[k] == UNMAPPED) {
+					out[k] = map(in[k]);
+				}
+			}
+		}
+
+		@Override
+		public void getIdsByChunks(ByteSequence[] in, int[] out) {
+			int n = in.length;
+			int[] hashes = new int[n];
+			int[] segments = new int[n];
+			int cap = capacity;
+			for(int i = 0; i != n; ++i) {
+				hashes[i] = hashFunction.hash(in[i]);
+				segments[i] = BinHash.splitHash(hashes[i], cap) % segmentCount;
+			}
+			int[] order = sortBySegment(segments);
+			boolean resized = false;
+			int i = 0;
+			while(i != n) {
+				int seg = segments[order[i]];
+				segmentReadLock(seg);
+				try {
+					for(; i != n && segments[order[i]] == seg; ++i) {
+						int k = order[i];
+						int index = BinHash.splitHash(hashes[k], capacity);
+						if (index % segmentCount != seg) {
+							segments[k] = -1;
+							resized = true;
+						}
+						else {
+							int pp = findEntry(index, in[k], hashes[k]);
+							out[k] = pp == PagedBinaryStoreManager.EMPTY ? UNMAPPED : getId(pp);
 						}
-						return getId(entry);
+					}
+				}
+				finally {
+					segmentReadUnlock(seg);
+				}
+			}
+			if (resized) {
+				for(int k = 0; k != n; ++k) {
+					if (segments[k] == -1) {
+						out[k] = getIdByChunk(in[k]);
 					}
 				}
 			}
+		}
+
+		@Override
+		public ByteChunk getChunksByIds(int[] ids, int[] offsets, int[] lengths) {
+			int n = ids.length;
+			int[] segments = new int[n];
+			for(int i = 0; i != n; ++i) {
+				segments[i] = ids[i] < 0 ? 0 : idIndex(ids[i]) % segmentCount;
+			}
+			int[] order = sortBySegment(segments);
+			byte[] buffer = new byte[16 * n + 16];
+			int size = 0;
+			int i = 0;
+			while(i != n) {
+				int seg = segments[order[i]];
+				segmentReadLock(seg);
+				try {
+					for(; i != n && segments[order[i]] == seg; ++i) {
+						int k = order[i];
+						int pp = ids[k] < 0 ? PagedBinaryStoreManager.EMPTY : idTableGet(ids[k]);
+						if (pp == PagedBinaryStoreManager.EMPTY) {
+							offsets[k] = size;
+							lengths[k] = -1;
+							continue;
+						}
+						ByteChunk key = getKeyData(pageManager.get(pp));
+						if (size + key.lenght() > buffer.length) {
+							buffer = Arrays.copyOf(buffer, Math.max(2 * buffer.length, size + key.lenght()));
+						}
+						System.arraycopy(key.array(), key.offset(), buffer, size, key.lenght());
+						offsets[k] = size;
+						lengths[k] = key.lenght();
+						size += key.lenght();
+					}
+				}
+				finally {
+					segmentReadUnlock(seg);
+				}
+			}
+			return new ByteChunk(buffer, 0, size);
+		}
+
+		@Override
+		public void adjustRefCounts(ByteSequence[] keys, int[] deltas) {
+			int n = keys.length;
+			int[] hashes = new int[n];
+			int[] segments = new int[n];
+			int cap = capacity;
+			for(int i = 0; i != n; ++i) {
+				hashes[i] = hashFunction.hash(keys[i]);
+				segments[i] = BinHash.splitHash(hashes[i], cap) % segmentCount;
+			}
+			int[] order = sortBySegment(segments);
+			// Step I. Update ref counters in place, one lock per segment
+			boolean pending = false;
+			int i = 0;
+			while(i != n) {
+				int seg = segments[order[i]];
+				segmentWriteLock(seg);
+				try {
+					for(; i != n && segments[order[i]] == seg; ++i) {
+						int k = order[i];
+						if (deltas[k] == 0) {
+							continue;
+						}
+						int index = BinHash.splitHash(hashes[k], capacity);
+						if (index % segmentCount == seg) {
+							int pp = findEntry(index, keys[k], hashes[k]);
+							if (pp != PagedBinaryStoreManager.EMPTY) {
+								int refCount = pageManager.readInt(pp, POS_REF_COUNT) + deltas[k];
+								if (refCount > 0) {
+									pageManager.writeInt(pp, POS_REF_COUNT, refCount);
+									continue;
+								}
+							}
+						}
+						// entry should be created or removed, or table has been resized
+						segments[k] = -1;
+						pending = true;
+					}
+				}
+				finally {
+					segmentWriteUnlock(seg);
+				}
+			}
+			// Step II. Create and remove entries
+			if (pending) {
+				IllegalArgumentException error = null;
+				for(int k = 0; k != n; ++k) {
+					if (segments[k] == -1) {
+						try {
+							adjustRefCount(keys[k], hashes[k], deltas[k]);
+						}
+						catch(IllegalArgumentException e) {
+							// other keys are still processed
+							if (error == null) {
+								error = e;
+							}
+						}
+					}
+				}
+				if (error != null) {
+					throw error;
+				}
+			}
+		}
+
+		private void adjustRefCount(ByteSequence key, int hash, int delta) {
+			try {
+				while(true) {
+					int id;
+					int index = BinHash.splitHash(hash, capacity);
+					writeLock(index);
+					try {
+						if (index != BinHash.splitHash(hash, capacity)) {
+							// table has been resized, try again
+							continue;
+						}
+						int pp = findEntry(index, key, hash);
+						if (pp == PagedBinaryStoreManager.EMPTY) {
+							if (delta < 0) {
+								throw new IllegalArgumentException("No mapping found for key " + key);
+							}
+							id = UNMAPPED;
+						}
+						else {
+							int refCount = pageManager.readInt(pp, POS_REF_COUNT) + delta;
+							if (refCount > 0) {
+								pageManager.writeInt(pp, POS_REF_COUNT, refCount);
+								return;
+							}
+							id = getId(pp);
+						}
+					}
+					finally {
+						writeUnlock(index);
+					}
+					// entry should be created or removed, which requires lock for id
+					int newId = UNMAPPED;
+					if (id == UNMAPPED) {
+						id = newId = ids.allocate();
+					}
+					int hIndex = BinHash.splitHash(hash, capacity);
+					int nIndex = idIndex(id);
+					writeDoubleLock(hIndex, nIndex);
+					try {
+						if (hIndex == BinHash.splitHash(hash, capacity)) {
+							int pp = findEntry(hIndex, key, hash);
+							if (pp == PagedBinaryStoreManager.EMPTY && newId != UNMAPPED) {
+								int npp = createEntry(key, newId, hash);
+								pageManager.writeInt(npp, POS_REF_COUNT, delta);
+								addEntry(hIndex, npp);
+								idTableSet(newId, npp);
+								size.increment(size.stripe(hIndex % segmentCount));
+								newId = UNMAPPED;
+								return;
+							}
+							else if (pp != PagedBinaryStoreManager.EMPTY && newId == UNMAPPED && getId(pp) == id) {
+								adjustOrRemove(hIndex, pp, delta);
+								return;
+							}
+						}
+						// entry has been changed concurrently, try again
+					}
+					finally {
+						writeDoubleUnlock(hIndex, nIndex);
+						if (newId != UNMAPPED) {
+							ids.release(newId);
+						}
+					}
+				}
+			}
+			finally {
+				checkTableSize(hash);
+			}
+		}
+
+		@Override
+		public void snapshot(OutputStream os) throws IOException {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os, 64 << 10));
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeInt(SNAPSHOT_VERSION);
+			// expected number of entries, used to pre-size table on restore
+			out.writeInt(size());
+			int count = 0;
+			resizeLock.readLock().lock();
+			synchronized(idReleaseLock) {
+				++snapshotCount;
+			}
+			try {
+				for(int i = 0; i < capacity; ++i) {
+					readLock(i);
+					try {
+						int[] entries = getEntries(i);
+						for(int pp : entries) {
+							ByteChunk entry = pageManager.get(pp);
+							ByteChunk key = getKeyData(entry);
+							out.writeInt(key.lenght());
+							out.writeInt(getId(entry));
+							out.writeInt(getRefCount(entry));
+							out.write(key.array(), key.offset(), key.lenght());
+							++count;
+						}
+					}
+					finally {
+						readUnlock(i);
+					}
+				}
+			}
+			finally {
+				synchronized(idReleaseLock) {
+					if (--snapshotCount == 0) {
+						for(int i = 0; i != deferredCount; ++i) {
+							ids.release(deferredIds[i]);
+						}
+						deferredCount = 0;
+					}
+				}
+				resizeLock.readLock().unlock();
+			}
+			out.writeInt(-1);
+			out.writeInt(count);
+			out.flush();
+		}
+
+		@Override
+		public void restore(InputStream is) throws IOException {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(is, 64 << 10));
+			if (in.readInt() != SNAPSHOT_MAGIC) {
+				throw new IOException("Not an identity mapping snapshot");
+			}
+			int version = in.readInt();
+			if (version != SNAPSHOT_VERSION) {
+				throw new IOException("Unsupported snapshot version " + version);
+			}
+			int expected = in.readInt();
+			if (size() != 0) {
+				throw new IllegalStateException("Snapshot could be restored only to empty mapping");
+			}
+			// snapshot is loaded into separate table, which replaces content of this one only on success
+			IdentityMappingHashTable fresh = new IdentityMappingHashTable(pageManager, segmentCount, hashFunction);
+			fresh.targetLoadFactor = targetLoadFactor;
+			boolean adopted = false;
+			try {
+				// pre-size table, so it would not be split during loading
+				while(fresh.capacity < expected / targetLoadFactor) {
+					fresh.growTable(1);
+				}
+				int[] restoredIds = new int[16];
+				byte[] buffer = new byte[256];
+				int count = 0;
+				while(true) {
+					int keySize = in.readInt();
+					if (keySize < 0) {
+						break;
+					}
+					int id = in.readInt();
+					int refCount = in.readInt();
+					if (buffer.length < keySize) {
+						buffer = new byte[Math.max(keySize, 2 * buffer.length)];
+					}
+					in.readFully(buffer, 0, keySize);
+					ByteChunk key = new ByteChunk(buffer, 0, keySize);
+					if (id < 0 || refCount < 1) {
+						throw new IOException("Broken snapshot entry " + key + " id=" + id + " refCount=" + refCount);
+					}
+					fresh.restoreEntry(key, id, refCount);
+					if (count == restoredIds.length) {
+						restoredIds = Arrays.copyOf(restoredIds, 2 * count);
+					}
+					restoredIds[count++] = id;
+				}
+				int written = in.readInt();
+				if (written != count) {
+					throw new IOException("Snapshot is truncated, " + count + " entries read, " + written + " expected");
+				}
+				adopt(fresh, restoredIds, count);
+				adopted = true;
+			}
+			finally {
+				if (!adopted) {
+					fresh.destroy();
+				}
+			}
+		}
+
+		/**
+		 * Takes over hashtable and id index of restored table, restored table should not be used afterwards.
+		 */
+		private void adopt(IdentityMappingHashTable fresh, int[] restoredIds, int count) {
+			resizeLock.writeLock().lock();
+			for(int i = 0; i != segmentCount; ++i) {
+				segmentWriteLock(i);
+			}
+			try {
+				if (size() != 0) {
+					throw new IllegalStateException("Mapping has been modified during restore");
+				}
+				// ids allocated by concurrent mappers are not visible in size
+				for(int i = 0; i != count; ++i) {
+					if (!ids.reserve(restoredIds[i])) {
+						for(int j = 0; j != i; ++j) {
+							ids.release(restoredIds[j]);
+						}
+						throw new IllegalStateException("Mapping has been modified during restore");
+					}
+				}
+				for(int i = 0; i != segmentCount; ++i) {
+					for(int pp : idDirectory[i]) {
+						if (pp != PagedBinaryStoreManager.EMPTY) {
+							pageManager.release(pp);
+						}
+					}
+					idDirectory[i] = fresh.idDirectory[i];
+					// table is empty, so segment holds no collision lists
+					if (masterHashtable[i] != PagedBinaryStoreManager.EMPTY) {
+						pageManager.release(masterHashtable[i]);
+					}
+					masterHashtable[i] = fresh.masterHashtable[i];
+				}
+				capacity = fresh.capacity;
+				size = fresh.size;
+			}
+			finally {
+				for(int i = 0; i != segmentCount; ++i) {
+					segmentWriteUnlock(i);
+				}
+				resizeLock.writeLock().unlock();
+			}
+		}
+
+		private void restoreEntry(ByteChunk key, int id, int refCount) throws IOException {
+			int hash = hashFunction.hash(key);
+			try {
+				while(true) {
+					int hIndex = BinHash.splitHash(hash, capacity);
+					int nIndex = idIndex(id);
+					writeDoubleLock(hIndex, nIndex);
+					try {
+						if (hIndex != BinHash.splitHash(hash, capacity)) {
+							// table has been resized, try again
+							continue;
+						}
+						if (findEntry(hIndex, key, hash) != PagedBinaryStoreManager.EMPTY) {
+							throw new IOException("Duplicated key " + key + " in snapshot");
+						}
+						if (!ids.reserve(id)) {
+							throw new IOException("Duplicated id " + id + " in snapshot");
+						}
+						int npp = createEntry(key, id, hash);
+						pageManager.writeInt(npp, POS_REF_COUNT, refCount);
+						addEntry(hIndex, npp);
+						idTableSet(id, npp);
+						size.increment(size.stripe(hIndex % segmentCount));
+						return;
+					}
+					finally {
+						writeDoubleUnlock(hIndex, nIndex);
+					}
+				}
+			}
+			finally {
+				checkTableSize(hash);
+			}
+		}
+
+		/**
+		 * Counting sort of positions by segment number.
+		 * @return positions ordered by segment
+		 */
+		private int[] sortBySegment(int[] segments) {
+			int[] starts = new int[segmentCount + 1];
+			for(int s: segments) {
+				++starts[s + 1];
+			}
+			for(int i = 0; i != segmentCount; ++i) {
+				starts[i + 1] += starts[i];
+			}
+			int[] order = new int[segments.length];
+			for(int i = 0; i != segments.length; ++i) {
+				order[starts[segments[i]]++] = i;
+			}
+			return order;
+		}
+
+		// writeLock on index is assumed
+		private int incRefCount(int index, ByteSequence key, int hash) {
+			int pp = findEntry(index, key, hash);
+			if (pp != PagedBinaryStoreManager.EMPTY) {
+				// ref count is updated in place
+				pageManager.writeInt(pp, POS_REF_COUNT, pageManager.readInt(pp, POS_REF_COUNT) + 1);
+				return getId(pp);
+			}
 			return UNMAPPED;
 		}
 
+		/**
+		 * Entry hashes are compared before keys, so most of non matching entries are not read.
+		 * @return pointer to entry or EMPTY
+		 */
+		// lock on index is assumed
+		private int findEntry(int index, ByteSequence key, int hash) {
+			int pointer = hashtableGet(index);
+			if (pointer == PagedBinaryStoreManager.EMPTY) {
+				return PagedBinaryStoreManager.EMPTY;
+			}
+			else if (pointer > 0) {
+				return isEntryFor(pointer, key, hash) ? pointer : PagedBinaryStoreManager.EMPTY;
+			}
+			else {
+				for(int pp : getEntries(index)) {
+					if (isEntryFor(pp, key, hash)) {
+						return pp;
+					}
+				}
+				return PagedBinaryStoreManager.EMPTY;
+			}
+		}
+
+		private boolean isEntryFor(int pp, ByteSequence key, int hash) {
+			return pageManager.readInt(pp, POS_HASH) == hash 
+				&& pageManager.readInt(pp, POS_KEY_SIZE) == key.length()
+				&& sameKey(pageManager.get(pp), key);
+		}
+
 		@Override
-		public void unmap(ByteChunk key) {
+		public void unmap(ByteSequence key) {
 			// Step I. Try decrement ref counter on existing entry
-			int hash = BinHash.hash(key);
+			int hash = hashFunction.hash(key);
 			int id;
 			while(true) {
 				int index = BinHash.splitHash(hash, capacity);
@@ -315,7 +722,7 @@ class IdentityMappingHashTable implements IdentityMapping, MemoryConsumer {
 						// table has been resized, try again
 						continue;
 					}
-					id = decRefCount(index, key);
+					id = decRefCount(index, key, hash);
 					if (id == UNMAPPED) {
 						return;
 					}
@@ -329,40 +736,19 @@ class IdentityMappingHashTable implements IdentityMapping, MemoryConsumer {
 			}
 			// Step II. Remove entry from hashtable
 			while(true) {
-				int idHash = BinHash.hash(id);
 				int hIndex = BinHash.splitHash(hash, capacity);
-				int nIndex = BinHash.splitHash(idHash, capacity);
+				int nIndex = idIndex(id);
 				writeDoubleLock(hIndex, nIndex);
 				try {
-					if (hIndex != BinHash.splitHash(hash, capacity) || nIndex != BinHash.splitHash(idHash, capacity)) {
+					if (hIndex != BinHash.splitHash(hash, capacity)) {
 						// table has been resized, try again
 						continue;
 					}
 					
-					int[] entries = getEntries(nIndex);
-					if (entries != null) {
-						for(int pp : entries) {
-							ByteChunk entry = pageManager.get(pp);
-							if (sameKey(entry, key)) {
-								int refCount = getRefCount(entry);
-								if (refCount == 1) {
-									pageManager.release(pp);
-									removeEntry(nIndex, pp);
-									removeEntry(hIndex, pp);
-									size.addAndGet(-2); // size of hashtable
-									return;
-								}
-								else {
-									setRefCount(entry, refCount - 1);
-									pageManager.update(pp, entry);
-									//XXX
-									if (key.toString().equals("[8ea5456f.c07d6f79.8bbbade2.30]")) {
-										System.out.println("<<" + key + " refCount=" + pageManager.readInt(pp, POS_REF_COUNT));
-									}
-									return;
-								}
-							}
-						}
+					int pp = findEntry(hIndex, key, hash);
+					if (pp != PagedBinaryStoreManager.EMPTY) {
+						adjustOrRemove(hIndex, pp, -1);
+						return;
 					}
 					throw new IllegalArgumentException("No mapping found for key " + key);
 				}
@@ -374,84 +760,41 @@ class IdentityMappingHashTable implements IdentityMapping, MemoryConsumer {
 		
 		@Override
 		public void unmap(int id) {
-			// Step I. Try decrement ref counter on existing entry
-			int hash = 0;
-			int ihash = BinHash.hash(id);
-			step1:
+			if (id < 0) {
+				throw new IllegalArgumentException("No mapping found for id " + id);
+			}
+			int nIndex = idIndex(id);
 			while(true) {
-				int index = BinHash.splitHash(ihash, capacity);
-				writeLock(index);				
+				// key hash is required to lock entry's bucket
+				int hash;
+				readLock(nIndex);
 				try {
-					if (index != BinHash.splitHash(ihash, capacity)) {
-						// table has been resized, try again
-						continue;
-					}
-
-					int[] entries = getEntries(index);
-					if (entries != null) {
-						for(int pp : entries) {
-							if (id == getId(pp)) {
-								ByteChunk entry = pageManager.get(pp);
-								int refCount = getRefCount(entry);
-								if (refCount == 1) {
-									hash = entry.intAt(POS_HASH);
-									break step1;
-								}
-								setRefCount(entry, refCount - 1);
-								pageManager.update(pp, entry);
-								// XXX
-								ByteChunk key = getKeyData(entry);
-								if (key.toString().equals("[8ea5456f.c07d6f79.8bbbade2.30]")) {
-									System.out.println("<<" + key + " refCount=" + pageManager.readInt(pp, POS_REF_COUNT));
-								}
-								return;
-							}
-						}
+					int pp = idTableGet(id);
+					if (pp == PagedBinaryStoreManager.EMPTY) {
+						throw new IllegalArgumentException("No mapping found for id " + id);
 					}
-					throw new IllegalArgumentException("No mapping found for id  " + id);
+					hash = pageManager.readInt(pp, POS_HASH);
 				}
 				finally {
-					writeUnlock(index);
+					readUnlock(nIndex);
 				}
-			}
-			// Step II. Remove entry from hashtable
-			while(true) {
-				int nIndex = BinHash.splitHash(ihash, capacity);
 				int hIndex = BinHash.splitHash(hash, capacity);
 				writeDoubleLock(hIndex, nIndex);
 				try {
-					if (hIndex != BinHash.splitHash(hash, capacity) || nIndex != BinHash.splitHash(ihash, capacity)) {
+					if (hIndex != BinHash.splitHash(hash, capacity)) {
 						// table has been resized, try again
 						continue;
 					}
-					
-					int[] entries = getEntries(nIndex);
-					if (entries != null) {
-						for(int pp : entries) {
-							if (id == getId(pp)) {
-								ByteChunk entry = pageManager.get(pp);
-								int refCount = getRefCount(entry);
-								if (refCount == 1) {
-									pageManager.release(pp);
-									removeEntry(nIndex, pp);
-									removeEntry(hIndex, pp);
-									size.addAndGet(-2); // size of hashtable
-									return;
-								}
-								else {
-									setRefCount(entry, refCount - 1);
-									pageManager.update(pp, entry);
-									// XXX
-									ByteChunk key = getKeyData(entry);
-									if (key.toString().equals("[8ea5456f.c07d6f79.8bbbade2.30]")) {
-										System.out.println("<<" + key + " refCount=" + pageManager.readInt(pp, POS_REF_COUNT));
-									}
-									return;
-								}
-							}
-						}
+					int pp = idTableGet(id);
+					if (pp == PagedBinaryStoreManager.EMPTY) {
+						throw new IllegalArgumentException("No mapping found for id " + id);
 					}
-					throw new IllegalArgumentException("No mapping found for id " + id);
+					if (pageManager.readInt(pp, POS_HASH) != hash) {
+						// id has been reassigned to another key meanwhile, try again
+						continue;
+					}
+					adjustOrRemove(hIndex, pp, -1);
+					return;
 				}
 				finally {
 					writeDoubleUnlock(hIndex, nIndex);
@@ -459,31 +802,97 @@ class IdentityMappingHashTable implements IdentityMapping, MemoryConsumer {
 			}
 		}
 
+		// write lock for both key and id indexes is assumed
+		private void adjustOrRemove(int hIndex, int pp, int delta) {
+			int refCount = pageManager.readInt(pp, POS_REF_COUNT) + delta;
+			if (refCount < 0) {
+				throw new IllegalArgumentException("Ref count of id " + getId(pp) + " would become negative");
+			}
+			else if (refCount == 0) {
+				int id = getId(pp);
+				pageManager.release(pp);
+				removeEntry(hIndex, pp);
+				idTableSet(id, PagedBinaryStoreManager.EMPTY);
+				releaseId(id);
+				size.decrement(size.stripe(hIndex % segmentCount));
+			}
+			else {
+				pageManager.writeInt(pp, POS_REF_COUNT, refCount);
+			}
+		}
+
+		private void releaseId(int id) {
+			synchronized(idReleaseLock) {
+				if (snapshotCount == 0) {
+					ids.release(id);
+				}
+				else {
+					if (deferredCount == deferredIds.length) {
+						deferredIds = Arrays.copyOf(deferredIds, 2 * deferredCount);
+					}
+					deferredIds[deferredCount++] = id;
+				}
+			}
+		}
+
 		/**
 		 * @return UNMAPPED if ref counter > 0, pointer to chunk otherwise
 		 */
 		// writeLock on index is assumed
-		private int decRefCount(int index, ByteChunk key) {
-			int[] entries = getEntries(index);
-			if (entries != null) {
-				for(int pp : entries) {
-					ByteChunk entry = pageManager.get(pp);
-					if (sameKey(entry, key)) {
-						int refCount = getRefCount(entry);
-						if (refCount == 1) {
-							return getId(entry);
-						}
-						setRefCount(entry, refCount - 1);
-						pageManager.update(pp, entry);
-						if (key.toString().equals("[8ea5456f.c07d6f79.8bbbade2.30]")) {
-							System.out.println("<<" + key + " refCount=" + pageManager.readInt(pp, POS_REF_COUNT));
-						}
-						return UNMAPPED;
-					}
+		private int decRefCount(int index, ByteSequence key, int hash) {
+			int pp = findEntry(index, key, hash);
+			if (pp != PagedBinaryStoreManager.EMPTY) {
+				int refCount = pageManager.readInt(pp, POS_REF_COUNT);
+				if (refCount == 1) {
+					return getId(pp);
 				}
+				pageManager.writeInt(pp, POS_REF_COUNT, refCount - 1);
+				return UNMAPPED;
 			}
 			throw new IllegalArgumentException("No mapping found for key " + key);
 		}
+
+		/**
+		 * Ids are indexed in blocks of {@link #ID_BLOCK} consecutive ids,
+		 * block is guarded by lock of this index.
+		 */
+		private int idIndex(int id) {
+			return id / ID_BLOCK;
+		}
+
+		// lock on idIndex(id) assumed
+		private int idTableGet(int id) {
+			int block = id / ID_BLOCK;
+			int[] directory = idDirectory[block % segmentCount];
+			int n = block / segmentCount;
+			if (n >= directory.length || directory[n] == PagedBinaryStoreManager.EMPTY) {
+				return PagedBinaryStoreManager.EMPTY;
+			}
+			return pageManager.readInt(directory[n], 4 * (id % ID_BLOCK));
+		}
+
+		// write lock on idIndex(id) assumed
+		private void idTableSet(int id, int pp) {
+			int block = id / ID_BLOCK;
+			int slot = block % segmentCount;
+			int n = block / segmentCount;
+			int[] directory = idDirectory[slot];
+			if (n >= directory.length) {
+				if (pp == PagedBinaryStoreManager.EMPTY) {
+					return;
+				}
+				directory = Arrays.copyOf(directory, Math.max(n + 1, 2 * directory.length));
+				idDirectory[slot] = directory;
+			}
+			if (directory[n] == PagedBinaryStoreManager.EMPTY) {
+				if (pp == PagedBinaryStoreManager.EMPTY) {
+					return;
+				}
+				// new chunks are zeroed
+				directory[n] = pageManager.allocate(4 * ID_BLOCK, PagedBinaryStoreManager.ALLOC_HASH_SEGMENT);
+			}
+			pageManager.writeInt(directory[n], 4 * (id % ID_BLOCK), pp);
+		}
 		
 		private int hashtableGet(int index) {
 			int slot = index % segmentCount;
@@ -595,7 +1004,9 @@ class IdentityMappingHashTable implements IdentityMapping, MemoryConsumer {
 				int npp = pageManager.allocate(4 + 4 * entries.length, PagedBinaryStoreManager.ALLOC_NEW_LIST);
 				ByteChunk list = pageManager.get(npp);
 				try {
-					list.assertEmpty();
+					if (ByteChunk.VERIFY) {
+						list.assertEmpty();
+					}
 				}
 				catch(AssertionError e) {
 					System.out.println("Problem pointer is " + pageManager.page(npp) + ":" + pageManager.offset(npp));
@@ -657,12 +1068,14 @@ class IdentityMappingHashTable implements IdentityMapping, MemoryConsumer {
 			}
 		}
 
-		private int createEntry(ByteChunk key, int id, int hash) {
-			int size  = POS_KEY_DATA + key.lenght();
+		private int createEntry(ByteSequence key, int id, int hash) {
+			int size  = POS_KEY_DATA + key.length();
 			int npp = pageManager.allocate(size, ALLOC_NEW_ENTRY);
 			ByteChunk chunk = pageManager.get(npp);
 			try {
-				chunk.assertEmpty();
+				if (ByteChunk.VERIFY) {
+					chunk.assertEmpty();
+				}
 			}
 			catch(AssertionError e) {
 				System.out.println("Problem pointer is " + pageManager.page(npp) + ":" + pageManager.offset(npp));
@@ -670,7 +1083,7 @@ class IdentityMappingHashTable implements IdentityMapping, MemoryConsumer {
 			}
 		
 			chunk.putInt(POS_HASH, hash);
-			chunk.putInt(POS_KEY_SIZE, key.lenght());
+			chunk.putInt(POS_KEY_SIZE, key.length());
 			chunk.putInt(POS_ID, id);
 			chunk.putInt(POS_REF_COUNT, 1);
 			chunk.putBytes(POS_KEY_DATA, key);
@@ -686,19 +1099,9 @@ class IdentityMappingHashTable implements IdentityMapping, MemoryConsumer {
 			return entry.subChunk(POS_KEY_DATA, size);
 		}
 		
-		private boolean sameKey(ByteChunk entry, ByteChunk key) {
+		private boolean sameKey(ByteChunk entry, ByteSequence key) {
 			int keySize = entry.intAt(POS_KEY_SIZE);
-			if (keySize == key.lenght()) {
-				for (int i = 0; i != keySize; ++i) {
-					if (entry.at(POS_KEY_DATA + i) != key.at(i)) {
-						return false;
-					}
-				}
-				return true;
-			}
-			else {
-				return false;
-			}
+			return keySize == key.length() && entry.sameBytes(POS_KEY_DATA, key);
 		}
 
 		private int getId(ByteChunk entry) {
@@ -713,13 +1116,17 @@ class IdentityMappingHashTable implements IdentityMapping, MemoryConsumer {
 			return entry.intAt(POS_REF_COUNT);
 		}
 
-		private void setRefCount(ByteChunk entry, int refCount) {
-			entry.putInt(POS_REF_COUNT, refCount);
-		}
 		
+		/**
+		 * @return hash function used for keys of this table, it never changes
+		 */
+		public HashFunction getHashFunction() {
+			return hashFunction;
+		}
+
 		@Override
 		public int size() {
-			return size.get() / 2;
+			return size.sum();
 		}
 
 		@Override
@@ -734,7 +1141,8 @@ class IdentityMappingHashTable implements IdentityMapping, MemoryConsumer {
 
 		// TODO check clear method
 		void clear(boolean reinit) {
-			// lock everything
+			// lock everything, clear waits for running snapshots
+			resizeLock.writeLock().lock();
 			for(int i = 0; i != segmentCount; ++i) {
 				segmentWriteLock(i);
 			}
@@ -743,27 +1151,23 @@ class IdentityMappingHashTable implements IdentityMapping, MemoryConsumer {
 				int[] entries = getEntries(i);
 				if (entries != null) {
 					for(int pp : entries) {
-						if (pp != PagedBinaryStoreManager.EMPTY) {
-							ByteChunk entry = pageManager.get(pp);
-							int id = getId(entry);
-							int nIndex = BinHash.splitHash(BinHash.hash(id), capacity);
-							if (i == nIndex) {
-								pageManager.release(pp);
-								// there may be two pp in same entries array, so we have 
-								// to zero them for avoiding double deallocating of memory chunk
-								for(int x = 0; x != entries.length; ++x) {
-									if (entries[x] == pp) {
-										entries[x] = PagedBinaryStoreManager.EMPTY;
-									}									
-								}
-							}
-						}
+						pageManager.release(pp);
 					}
 					setEntries(i, empty);
 				}
 			}
 			capacity = 0;
-			size.set(0);
+			size.reset();
+			ids.clear();
+			
+			for(int i = 0; i != segmentCount; ++i) {
+				for(int pp : idDirectory[i]) {
+					if (pp != PagedBinaryStoreManager.EMPTY) {
+						pageManager.release(pp);
+					}
+				}
+				idDirectory[i] = NO_ENTRIES;
+			}
 			
 			for(int i = 0; i != segmentCount; ++i) {
 				int pp = masterHashtable[i];
@@ -783,6 +1187,7 @@ class IdentityMappingHashTable implements IdentityMapping, MemoryConsumer {
 			for(int i = 0; i != segmentCount; ++i) {
 				segmentWriteUnlock(i);
 			}				
+			resizeLock.writeLock().unlock();
 		}
 		
 		public int getTableCapacity() {
@@ -828,15 +1233,31 @@ class IdentityMappingHashTable implements IdentityMapping, MemoryConsumer {
 					try {
 						pp = masterHashtable[i];
 						if (needRecycle(pp)) {
-							int segSize = getSegmentSize(i);
 //							System.out.println("Recycling hash segment " + pageManager.page(pp) + ":" + pageManager.offset(pp));
-							resizeSegment(i, segSize);
+							masterHashtable[i] = pageManager.relocate(pp, PagedBinaryStoreManager.ALLOC_HASH_SEGMENT);
 						}
 					}
 					finally {
 						segmentWriteUnlock(i);
 					}
 				}
+				for(int n = 0; n < idDirectory[i].length; ++n) {
+					int[] directory = idDirectory[i];
+					if (n < directory.length && needRecycle(directory[n])) {
+						segmentWriteLock(i);
+						try {
+							// directory could have been replaced by clear()
+							directory = idDirectory[i];
+							int opp = n < directory.length ? directory[n] : PagedBinaryStoreManager.EMPTY;
+							if (needRecycle(opp)) {
+								directory[n] = pageManager.relocate(opp, PagedBinaryStoreManager.ALLOC_HASH_SEGMENT);
+							}
+						}
+						finally {
+							segmentWriteUnlock(i);
+						}
+					}
+				}
 			}
 		}
 		
@@ -851,7 +1272,7 @@ class IdentityMappingHashTable implements IdentityMapping, MemoryConsumer {
 					return evacuated;
 				}
 				int index = BinHash.splitHash(hash, cap); 
-				readLock(index);
+				writeLock(index);
 				try {
 					if (BinHash.splitHash(hash, capacity) != index) {
 						// capacity has been updated
@@ -867,8 +1288,6 @@ class IdentityMappingHashTable implements IdentityMapping, MemoryConsumer {
 					else {
 						for(int i = 0; i != entries.length; ++i) {
 							int pp = entries[i];
-							int hIndex = BinHash.splitHash(pageManager.readInt(pp, POS_HASH), capacity);
-							int nIndex = BinHash.splitHash(BinHash.hash(pageManager.readInt(pp, POS_ID)), capacity);
 							if (needRecycle(pp) && pageManager.readInt(pp, POS_HASH) == hash) {
 								if (recycleSet == null) {
 									recycleSet = new int[entries.length - i];
@@ -890,7 +1309,7 @@ class IdentityMappingHashTable implements IdentityMapping, MemoryConsumer {
 					}
 				}
 				finally {
-					readUnlock(index);
+					writeUnlock(index);
 				}
 				break;
 			}
@@ -905,64 +1324,36 @@ class IdentityMappingHashTable implements IdentityMapping, MemoryConsumer {
 						// table is blank
 						return evacuated;
 					}
-					int idHash = BinHash.hash(id);
 					int hIndex = BinHash.splitHash(hash, cap);
-					int nIndex = BinHash.splitHash(idHash, cap);
+					int nIndex = idIndex(id);
 					writeDoubleLock(hIndex, nIndex);
 					try {
-						if (hIndex != BinHash.splitHash(hash, capacity) || nIndex != BinHash.splitHash(idHash, capacity)) {
+						if (hIndex != BinHash.splitHash(hash, capacity)) {
 							// table has been resized, try again
 							continue;
 						}
 						
 						int[] hentries = getEntries(hIndex);
-						int[] nentries = getEntries(nIndex);
-						
-						int pp = PagedBinaryStoreManager.EMPTY;
-						for(int j = 0; j != nentries.length; ++j) {
-							if (getId(nentries[j]) == id) {
-								pp = nentries[j];
-								break;
-							}
-						}
+						int pp = idTableGet(id);
 						
 						if (needRecycle(pp)) {
-							ByteChunk chunk = pageManager.get(pp);
-							int cid = chunk.intAt(POS_ID);
-							int chash = chunk.intAt(POS_HASH);
-							if (id != cid || chash != hash) {
-								// ignoring
-								continue  recycle_loop;
+							int chash = pageManager.readInt(pp, POS_HASH);
+							if (chash != hash) {
+								// id has been reassigned meanwhile, ignoring
+								continue recycle_loop;
 							}
-							// XXX
-							if (getKeyData(chunk).toString().equals("[8ea5456f.c07d6f79.8bbbade2.30]")) {
-								new String();
-							}
-							if (chunk.intAt(POS_HASH) != hash) {
-								// actually it is possible due to race condition
-								// such case should be ignored
-								throw new AssertionError();
-							}
-							int np = pageManager.allocate(chunk.lenght(), ALLOC_RELOCATE_VALUE);
-							ByteChunk newchunk = pageManager.get(np);
-							newchunk.putBytes(chunk);
-							pageManager.update(np, newchunk);
-							pageManager.release(pp);
+							int size = POS_KEY_DATA + pageManager.readInt(pp, POS_KEY_SIZE);
+							int np = pageManager.relocate(pp, ALLOC_RELOCATE_VALUE);
 							
 							for(int j = 0; j != hentries.length; ++j) {
 								if (hentries[j] == pp) {
 									hentries[j] = np;
 								}
 							}
-							for(int j = 0; j != nentries.length; ++j) {
-								if (nentries[j] == pp) {
-									nentries[j] = np;
-								}
-							}
+							idTableSet(id, np);
 							
-							evacuated += chunk.lenght();
+							evacuated += size;
 							setEntries(hIndex, hentries);
-							setEntries(nIndex, nentries);
 						}
 
 						// should check if collision list requires recycling
@@ -974,14 +1365,6 @@ class IdentityMappingHashTable implements IdentityMapping, MemoryConsumer {
 								evacuated += 4 + 4 * hentries.length;
 							}
 						}
-						int nx = hashtableGet(nIndex);
-						if (nx < 0) {
-							nx = -nx;
-							if (needRecycle(nx)) {
-								setEntries(nIndex, nentries);
-								evacuated += 4 + 4 * nentries.length;
-							}
-						}
 						break;
 					}
 					finally {
@@ -996,15 +1379,27 @@ class IdentityMappingHashTable implements IdentityMapping, MemoryConsumer {
 			return pointer != PagedBinaryStoreManager.EMPTY && pageManager.isMarkedForRecycle(pointer);
 		}
 
-		private void checkTableSize() {			
-			float loadFactor = ((float)size.get()) / capacity;
-			if (loadFactor > targetLoadFactor) {
-				// grow by 1.5
-				if (capacity % 2 == 0) {
-					growTable(2);
+		private void checkTableSize(int hash) {
+			int cap = capacity;
+			int stripe = size.stripe(BinHash.splitHash(hash, cap) % segmentCount);
+			// estimate from own stripe is cheap, summing all stripes is done only if threshold is likely crossed
+			if (size.estimate(stripe) <= targetLoadFactor * cap) {
+				return;
+			}
+			float loadFactor = ((float)size.sum()) / capacity;
+			// table is not split while snapshot is written, it will grow on later mutation
+			if (loadFactor > targetLoadFactor && resizeLock.writeLock().tryLock()) {
+				try {
+					// grow by 1.5
+					if (capacity % 2 == 0) {
+						growTable(2);
+					}
+					else {
+						growTable(1);
+					}
 				}
-				else {
-					growTable(1);
+				finally {
+					resizeLock.writeLock().unlock();
 				}
 			}
 		}
@@ -1023,59 +1418,22 @@ class IdentityMappingHashTable implements IdentityMapping, MemoryConsumer {
 	            		
 		                int[] entries = getEntries(nSplit);
 		                if (entries != null) {
-		                	Arrays.sort(entries);
-		                	int ppp = PagedBinaryStoreManager.EMPTY;
-		                	
 		                	int n1 = 0;
 		                	int[] el1 = new int[entries.length];
 		                	int n2 = 0;
 		                	int[] el2 = new int[entries.length];
 		                	
 		                	for(int pp: entries) {
-		                		// avoid processing of duplicated pointers
-		                		if (ppp == pp) {
-		                			continue;
-		                		}
-		                		ppp = pp;
-		                		
-		                		ByteChunk chunk = pageManager.get(pp);
-		                		int hash = chunk.intAt(POS_HASH);
-		                		int id = chunk.intAt(POS_ID);
-		                		int ihash = BinHash.hash(id);
-		                		
-		                		boolean copied = false;
-		                		int hIndex = BinHash.splitHash(hash, nLast); // old index
+		                		int hash = pageManager.readInt(pp, POS_HASH);
 		                		int hhIndex = BinHash.splitHash(hash, nLast + 1);
-		                		if (hIndex == nSplit) {
-			                		if (hhIndex == nSplit) {
-			                			el1[n1++] = pp;
-			                		}
-			                		else if (hhIndex == nLast) {
-			                			el2[n2++] = pp;
-			                		}
-			                		else {
-			                			throw new AssertionError("New index of hash " + Integer.toHexString(hash) + " is " + hhIndex + ", expected values eigther " + nSplit + " or " + nLast);
-			                		}
-			                		copied = true;
+		                		if (hhIndex == nSplit) {
+		                			el1[n1++] = pp;
 		                		}
-		                		
-		                		int nIndex = BinHash.splitHash(ihash, nLast);
-		                		int nnIndex = BinHash.splitHash(ihash, nLast + 1);
-		                		if (nIndex == nSplit) {
-			                		if (nnIndex == nSplit && hhIndex != nSplit) {			                			
-			                			el1[n1++] = pp;
-			                		}
-			                		else if (nnIndex == nLast && hhIndex != nLast) {
-			                			el2[n2++] = pp;
-			                		}
-			                		else if (nnIndex != nSplit && nnIndex != nLast){
-			                			throw new AssertionError("New index of hash " + Integer.toHexString(hash) + " is " + nnIndex + ", expected values eigther " + nSplit + " or " + nLast);
-			                		}
-			                		copied = true;
+		                		else if (hhIndex == nLast) {
+		                			el2[n2++] = pp;
 		                		}
-		                		
-		                		if (!copied) {
-		                			throw new AssertionError("Entry does not belong to hash index");
+		                		else {
+		                			throw new AssertionError("New index of hash " + Integer.toHexString(hash) + " is " + hhIndex + ", expected values eigther " + nSplit + " or " + nLast);
 		                		}
 		                	}
 		                	el1 = Arrays.copyOf(el1, n1);
@@ -1101,8 +1459,10 @@ class IdentityMappingHashTable implements IdentityMapping, MemoryConsumer {
 	            	for(int pp : entries) {
 	            		ByteChunk entry = pageManager.get(pp);
 	            		int hash = entry.intAt(POS_HASH);
-	            		int ihash = BinHash.hash(entry.intAt(POS_ID));
-	            		if (BinHash.splitHash(hash, capacity) != i && BinHash.splitHash(ihash, capacity) != i) {
+	            		if (BinHash.splitHash(hash, capacity) != i) {
+	            			throw new AssertionError();
+	            		}
+	            		if (idTableGet(entry.intAt(POS_ID)) != pp) {
 	            			throw new AssertionError();
 	            		}
 	            	}
@@ -16,6 +16,13 @@
  */
 package org.gridkit.offheap.jmemstore;
 
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicIntegerArray;
@@ -31,6 +38,8 @@ class InHeapMemoryStoreBackend implements MemoryStoreBackend {
 
 	private final static int PAGE_HEADER = 32; // leaves 0 and 1 pointers as special values
 	private final static int ALIGNMENT = 4; // 16 bytes
+	private final static int CHUNK_HEADER = 8; // chunk length and owner id
+	private final static int OWNER_POS = 4;
 	
 	private final int pageSize;
 	private final int pageUsageLimit;
@@ -43,24 +52,40 @@ class InHeapMemoryStoreBackend implements MemoryStoreBackend {
 	private ReentrantLock[] allocationLock;
 	private AtomicInteger pagesInUse = new AtomicInteger();
 	private AtomicInteger[] top;
+	// dedicated allocation streams by chunk owner, see createPageSet()
+	private Map<Integer, PageSet> pageSets = new ConcurrentHashMap<Integer, PageSet>();
 	private AtomicReferenceArray<ByteChunk> pages;
+	// owner of page set for each page, updated under monitor of array
+	private AtomicIntegerArray pageOwners;
+	// not null for pages shared by forked page sets, updated under monitor of pageOwners
+	private AtomicReferenceArray<PageShare> pageShares;
 	private AtomicIntegerArray pageUtilizations;
 	private AtomicInteger evacuationQueueLength = new AtomicInteger(); 
 	private int evacuationQueueLimit; 
 	private long[] pageTimestamps;
 	private volatile boolean[] pagesForCleanUp;
+	// pages released with all their chunks, waiting for retirement, guarded by monitor of pageOwners
+	private boolean[] pagesDiscarded;
 	
 	private ReentrantLock evacuationLock = new ReentrantLock();
-	private int evacuationPage;
-	private int evacuationPointer;	
+	// one cursor per compaction worker, guarded by evacuationLock
+	private int[] evacuationPages = new int[PagedBinaryStoreManager.MAX_COMPACTION_WORKERS];
+	private int[] evacuationPointers = new int[PagedBinaryStoreManager.MAX_COMPACTION_WORKERS];
+	private volatile int evacuationCursors;
 	private AtomicInteger pageReleaseCounter = new AtomicInteger();
+	// emptied pages, evacuation cursors are reset and page slots are freed by maintenance thread
+	private Queue<Integer> retiredPages = new ConcurrentLinkedQueue<Integer>();
+	private AtomicLong pageAllocationCounter = new AtomicLong();
+	private AtomicLong relocatedBytes = new AtomicLong();
 	
-	private float scavengeGcThreshold = 0.8f;
-	private float minGcThreshold = 0.4f;
-	private float gcThreshold = minGcThreshold;
+	// defaults, normally overridden by compaction pacer
+	private volatile float scavengeGcThreshold = 0.8f;
+	private volatile float gcThreshold = 0.4f;
 	
 	private volatile int fence;
 	
+	private volatile Thread maintenanceThread;
+	
 	public InHeapMemoryStoreBackend(int pageSize, int pageUsageLimit, int allocNumber) {		
 		this.pageSize = pageSize;
 		if (pageSize != Integer.highestOneBit(pageSize) || pageSize > 1 << 30) {			
@@ -80,8 +105,12 @@ class InHeapMemoryStoreBackend implements MemoryStoreBackend {
 		
 		this.pages = new AtomicReferenceArray<ByteChunk>(pageUsageLimit);
 		this.pageUtilizations = new AtomicIntegerArray(pageUsageLimit);
+		this.pageOwners = new AtomicIntegerArray(pageUsageLimit);
+		this.pageShares = new AtomicReferenceArray<PageShare>(pageUsageLimit);
 		this.pageTimestamps = new long[pageUsageLimit];
 		this.pagesForCleanUp = new boolean[pageUsageLimit];
+		this.pagesDiscarded = new boolean[pageUsageLimit];
+		Arrays.fill(evacuationPages, -1);
 		
 //		evacuationQueueLimit = pageUsageLimit / 16;
 //		evacuationQueueLimit = evacuationQueueLimit < 2 ? 2 : evacuationQueueLimit;
@@ -93,7 +122,7 @@ class InHeapMemoryStoreBackend implements MemoryStoreBackend {
 		for(int i = 0; i!= allocNumber; ++i) {
 			allocationLock[i] = new ReentrantLock(); 
 			top[i] = new AtomicInteger();
-			top[i].set(pointer(newPage(i), PAGE_HEADER));
+			top[i].set(pointer(newPage(i, null), PAGE_HEADER));
 		}
 		
 //		dumpStatistics();
@@ -152,10 +181,10 @@ class InHeapMemoryStoreBackend implements MemoryStoreBackend {
 			throw new IllegalArgumentException("Broken pointer " + Long.toHexString(pointer) + " page " + Integer.toHexString(page) + " is not allocated");
 		}
 		int len = size(chunk.intAt(offs));
-		if (offs + 4 + len > pageSize) {
+		if (offs + CHUNK_HEADER + len > pageSize) {
 			new String();
 		}
-		return chunk.subChunk(offs + 4, len - 4);
+		return chunk.subChunk(offs + CHUNK_HEADER, len - CHUNK_HEADER);
 	}	
 	
 	@Override
@@ -177,14 +206,14 @@ class InHeapMemoryStoreBackend implements MemoryStoreBackend {
 			throw new IllegalArgumentException("Broken pointer " + Long.toHexString(pointer) + " page " + Integer.toHexString(page) + " is not allocated");
 		}
 		int len = size(chunk.intAt(offs));
-		if (offs + 4 + len > pageSize) {
+		if (offs + CHUNK_HEADER + len > pageSize) {
 			new String();
 		}
-		if (offset + 4 > len) {
-			throw new IndexOutOfBoundsException("Requested offset " + offset + ", chunk lenght " + len);
+		if (offset + 4 > len - CHUNK_HEADER) {
+			throw new IndexOutOfBoundsException("Requested offset " + offset + ", chunk lenght " + (len - CHUNK_HEADER));
 		}
 		
-		return chunk.intAt(offs + 4 + offset);
+		return chunk.intAt(offs + CHUNK_HEADER + offset);
 	}
 
 	public void writeInt(int pointer, int offset, int value) {
@@ -200,27 +229,44 @@ class InHeapMemoryStoreBackend implements MemoryStoreBackend {
 			throw new IllegalArgumentException("Broken pointer " + Long.toHexString(pointer) + " page " + Integer.toHexString(page) + " is not allocated");
 		}
 		int len = size(chunk.intAt(offs));
-		if (offs + 4 + len > pageSize) {
+		if (offs + CHUNK_HEADER + len > pageSize) {
 			new String();
 		}
-		if (offset + 4 > len) {
-			throw new IndexOutOfBoundsException("Requested offset " + offset + ", chunk lenght " + len);
+		if (offset + 4 > len - CHUNK_HEADER) {
+			throw new IndexOutOfBoundsException("Requested offset " + offset + ", chunk lenght " + (len - CHUNK_HEADER));
 		}
 		
-		chunk.putInt(offs + 4 + offset, value);
+		chunk.putInt(offs + CHUNK_HEADER + offset, value);
 	}
 
 	/* (non-Javadoc)
 	 * @see org.gridkit.coherence.offheap.storage.memlog.MemoryStoreBackend#allocate(int, int)
 	 */
 	public int allocate(int size, int allocNo) {
+		return allocate(size, allocNo, PagedBinaryStoreManager.NO_OWNER);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.gridkit.offheap.jmemstore.MemoryStoreBackend#allocate(int, int, int)
+	 */
+	public int allocate(int size, int allocNo, int owner) {
 		if (size > pageSize >> 2) {
 			// TODO allocate large objects in heap
 			throw new IllegalArgumentException("Size is too large");
 		}
+		AtomicInteger[] top = this.top;
+		ReentrantLock[] allocationLock = this.allocationLock;
+		PageSet pageSet = null;
+		if (owner != PagedBinaryStoreManager.NO_OWNER && !pageSets.isEmpty()) {
+			pageSet = pageSets.get(owner);
+			if (pageSet != null) {
+				top = pageSet.top;
+				allocationLock = pageSet.allocationLock;
+			}
+		}
 		while(true) {
 			int len = size;
-			len += 4;
+			len += CHUNK_HEADER;
 			int alen = align(len);
 			
 			int pp;
@@ -236,15 +282,11 @@ class InHeapMemoryStoreBackend implements MemoryStoreBackend {
 						offs = offset(pp);
 						if (offs + alen + 1> pageSize) {
 							int page = page(pp);
-							int newPage = newPage(page + 1);
+							int newPage = newPage(page + 1, pageSet);
 							System.out.println("Page allocated " + newPage);
 							top[allocNo].set(pointer(newPage,PAGE_HEADER));
 							if (pageUtilizations.get(page) == 0) {
-								ByteChunk oldPage = pages.getAndSet(page, null);
-								if (oldPage != null) {
-									pagesInUse.decrementAndGet();
-									pageReleaseCounter.incrementAndGet();
-								}
+								retiredPages.add(page);
 							}
 						}
 						else {
@@ -277,6 +319,7 @@ class InHeapMemoryStoreBackend implements MemoryStoreBackend {
 				dumpPage(page, pageBuf);
 				throw new AssertionError("Allocation have failed (" + size + " requested). Dirty memory: " + page + ":" + offs);
 			}
+			pageBuf.putInt(offs + OWNER_POS, owner);
 			pageBuf.putInt(offs, len);
 			pageUtilizations.addAndGet(page, len);
 			memUsed.addAndGet(len);			
@@ -308,27 +351,47 @@ class InHeapMemoryStoreBackend implements MemoryStoreBackend {
 		return (len + 0xF) & (0xFFFFFFF0);
 	}
 	
-	private int newPage(int start) {
+	/**
+	 * @param set page set new page belongs to, <code>null</code> for common pages
+	 */
+	private int newPage(int start, PageSet set) {
+		int owner = set == null ? PagedBinaryStoreManager.NO_OWNER : set.owner;
 		ByteChunk chunk = new ByteChunk(new byte[pageSize]);
 		pagesInUse.incrementAndGet();
+		pageAllocationCounter.incrementAndGet();
+		boolean retired = false;
 		while(true) {
 			for(int i = 0; i != pageUsageLimit; ++i) {
 				int page = (start + i) % pageUsageLimit; 
 				if (pages.get(page) == null) {
 					pagesForCleanUp[page] = false;
-					if (pages.compareAndSet(page, null, chunk)) {
-						pageTimestamps[page] = System.nanoTime();
-						return page;
-					}
-					else {
-						continue;
+					synchronized(pageOwners) {
+						if (pages.compareAndSet(page, null, chunk)) {
+							pageOwners.set(page, owner);
+							pageShares.set(page, null);
+							pagesDiscarded[page] = false;
+							pageTimestamps[page] = System.nanoTime();
+							if (set != null) {
+								set.pages.add(page);
+							}
+							return page;
+						}
 					}
 				}
 			}
+			if (!retired) {
+				// maintenance thread may lag behind, it is woken up to retire empty pages
+				if (requestRetirement()) {
+					LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+				}
+				retired = true;
+				continue;
+			}
 			// hit memory limit, should give scavenger some time to
 			// recover pages
 			System.out.println("Out of pages");
 			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+			retired = false;
 		}
 	}
 
@@ -336,6 +399,13 @@ class InHeapMemoryStoreBackend implements MemoryStoreBackend {
 	 * @see org.gridkit.coherence.offheap.storage.memlog.MemoryStoreBackend#release(int)
 	 */
 	public void release(int pointer) {
+		release(pointer, PagedBinaryStoreManager.NO_OWNER);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.gridkit.offheap.jmemstore.MemoryStoreBackend#release(int, int)
+	 */
+	public void release(int pointer, int owner) {
 		int page = page(pointer);
 		int offs = offset(pointer);
 		if (offs < PAGE_HEADER) {
@@ -348,6 +418,17 @@ class InHeapMemoryStoreBackend implements MemoryStoreBackend {
 
 		
 		ByteChunk pageBuf = pages.get(page);
+		PageShare share = pageShares.get(page);
+		if (share != null) {
+			// shared page is immutable, chunk is only taken off owner's side
+			int left = share.release(owner, size(pageBuf.intAt(offs)));
+			if (left == 0) {
+				leaveSharedPage(page, pageBuf, share, owner);
+			}
+			if (left != PageShare.DETACHED) {
+				return;
+			}
+		}
 		int len = pageBuf.intAt(offs);
 		int newSize = pageUtilizations.addAndGet(page, -len);
 		memUsed.addAndGet(-len);
@@ -356,18 +437,202 @@ class InHeapMemoryStoreBackend implements MemoryStoreBackend {
 			checkPageUsage(page);
 		}
 		if (newSize == 0) {
-			System.out.println("Page " + page + " has no more data");
+			// slot is kept until evacuation cursors are reset, see retireEmptyPages()
+			retiredPages.add(page);
+		}
+		
+		// mark chunk as deleted
+		pageBuf.putInt(offs, 0x80000000 | len);
+	}
 
-			int allocNo = -1;
-			for(int j = 0; j != top.length; ++j) {
-				if (page(top[j].get()) == page) {
-					allocNo = j;
-					break;
+	/* (non-Javadoc)
+	 * @see org.gridkit.offheap.jmemstore.MemoryStoreBackend#createPageSet(int)
+	 */
+	public void createPageSet(int owner) {
+		if (owner == PagedBinaryStoreManager.NO_OWNER || pageSets.containsKey(owner)) {
+			throw new IllegalArgumentException("Page set already exists for owner " + owner);
+		}
+		pageSets.put(owner, new PageSet(owner, top.length));
+	}
+
+	/* (non-Javadoc)
+	 * @see org.gridkit.offheap.jmemstore.MemoryStoreBackend#releasePageSet(int, boolean)
+	 */
+	public boolean releasePageSet(int owner, boolean keep) {
+		PageSet set = keep ? pageSets.get(owner) : pageSets.remove(owner);
+		if (set == null) {
+			return false;
+		}
+		for(ReentrantLock lock: set.allocationLock) {
+			lock.lock();
+		}
+		try {
+			synchronized(pageOwners) {
+				// only pages of set are visited
+				for(int page: set.pages.toArray(new Integer[set.pages.size()])) {
+					ByteChunk pageBuf = pages.get(page);
+					PageShare share = pageShares.get(page);
+					if (share != null) {
+						if (share.drop(owner)) {
+							settleSharedPage(page, pageBuf, share);
+						}
+					}
+					else {
+						discardPage(page, pageBuf);
+					}
+				}
+				set.pages.clear();
+			}
+			if (keep) {
+				for(int j = 0; j != set.top.length; ++j) {
+					set.top[j].set(pointer(newPage(j, set), PAGE_HEADER));
+				}
+			}
+		}
+		finally {
+			for(ReentrantLock lock: set.allocationLock) {
+				lock.unlock();
+			}
+		}
+		return true;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.gridkit.offheap.jmemstore.MemoryStoreBackend#forkPageSet(int, int)
+	 */
+	public void forkPageSet(int owner, int forkOwner) {
+		PageSet set = pageSets.get(owner);
+		if (set == null) {
+			throw new IllegalArgumentException("No page set for owner " + owner);
+		}
+		if (forkOwner == PagedBinaryStoreManager.NO_OWNER || pageSets.containsKey(forkOwner)) {
+			throw new IllegalArgumentException("Page set already exists for owner " + forkOwner);
+		}
+		PageSet fork = new PageSet(forkOwner, top.length);
+		for(ReentrantLock lock: set.allocationLock) {
+			lock.lock();
+		}
+		try {
+			// current pages are taken before any page of set is discarded
+			int[] olds = new int[set.top.length];
+			for(int j = 0; j != olds.length; ++j) {
+				olds[j] = page(set.top[j].get());
+			}
+			synchronized(pageOwners) {
+				// only pages of set are visited
+				for(int page: set.pages.toArray(new Integer[set.pages.size()])) {
+					PageShare share = pageShares.get(page);
+					if (share != null) {
+						share.fork(owner, forkOwner);
+						fork.pages.add(page);
+					}
+					else {
+						int usage = pageUtilizations.get(page);
+						if (usage == 0) {
+							// empty current pages are retired once allocators are switched
+							if (!isAllocationPage(page)) {
+								discardPage(page, pages.get(page));
+							}
+						}
+						else {
+							pageShares.set(page, new PageShare(owner, forkOwner, usage));
+							fork.pages.add(page);
+						}
+					}
 				}
 			}
-			// TODO is race condition possible ?
-			if (pageUtilizations.get(page) == 0 && allocNo == -1) {
+			// shared pages are immutable, allocation continues on new pages
+			for(int j = 0; j != olds.length; ++j) {
+				set.top[j].set(pointer(newPage(j, set), PAGE_HEADER));
+				if (pageUtilizations.get(olds[j]) == 0) {
+					retiredPages.add(olds[j]);
+				}
+			}
+		}
+		finally {
+			for(ReentrantLock lock: set.allocationLock) {
+				lock.unlock();
+			}
+		}
+		pageSets.put(forkOwner, fork);
+	}
+
+	private void leaveSharedPage(int page, ByteChunk pageBuf, PageShare share, int owner) {
+		synchronized(pageOwners) {
+			if (pageShares.get(page) != share) {
+				return;
+			}
+			unlinkPage(page, owner);
+			settleSharedPage(page, pageBuf, share);
+		}
+	}
+
+	// monitor of pageOwners assumed, page is released or returned to last side holding it
+	private void settleSharedPage(int page, ByteChunk pageBuf, PageShare share) {
+		// page usage stays frozen while page is shared
+		int frozen = pageUtilizations.get(page);
+		int usage = share.detach();
+		if (usage < 0) {
+			return;
+		}
+		else if (usage == 0) {
+			discardPage(page, pageBuf);
+		}
+		else {
+			pageOwners.set(page, share.lastOwner());
+			pageShares.set(page, null);
+			memUsed.addAndGet(usage - frozen);
+			if (pageUtilizations.addAndGet(page, usage - frozen) == 0) {
+				retiredPages.add(page);
+			}
+			else if (!pagesForCleanUp[page]) {
+				checkPageUsage(page);
+			}
+		}
+	}
+
+	// monitor of pageOwners assumed
+	private void unlinkPage(int page, int owner) {
+		if (owner != PagedBinaryStoreManager.NO_OWNER) {
+			PageSet set = pageSets.get(owner);
+			if (set != null) {
+				set.pages.remove(page);
+			}
+		}
+	}
+
+	// page is released with all its chunks, slot is freed by retireEmptyPages()
+	private void discardPage(int page, ByteChunk pageBuf) {
+		synchronized(pageOwners) {
+			if (pages.get(page) == pageBuf && !pagesDiscarded[page]) {
+				pagesDiscarded[page] = true;
+				unlinkPage(page, pageOwners.get(page));
+				pageOwners.set(page, PagedBinaryStoreManager.NO_OWNER);
+				pageShares.set(page, null);
+				memUsed.addAndGet(-pageUtilizations.getAndSet(page, 0));
+				retiredPages.add(page);
+			}
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see org.gridkit.offheap.jmemstore.MemoryStoreBackend#retireEmptyPages()
+	 */
+	public void retireEmptyPages() {
+		Integer page;
+		while((page = retiredPages.poll()) != null) {
+			ByteChunk pageBuf = pages.get(page);
+			// page could be queued twice, refilled or already reused as allocation page
+			if (pageBuf == null || !isRetired(page)) {
+				continue;
+			}
+			// cursors should not point to page once slot could be reused
+			resetEvacuationCursors(page);
+			synchronized(pageOwners) {
 				if (pages.compareAndSet(page, pageBuf, null)) {
+					pagesDiscarded[page] = false;
+					unlinkPage(page, pageOwners.get(page));
+					pageOwners.set(page, PagedBinaryStoreManager.NO_OWNER);
 					pagesInUse.decrementAndGet();
 					pageReleaseCounter.incrementAndGet();
 					if (pagesForCleanUp[page]) {
@@ -375,32 +640,104 @@ class InHeapMemoryStoreBackend implements MemoryStoreBackend {
 					}
 				}
 			}
+		}
+	}
 
-			evacuationLock.lock();
-			try {
-				if (evacuationPage == page) {
-					evacuationPage = -1;
-					evacuationPointer = 0;
-				}
-			}
-			finally {
-				evacuationLock.unlock();
+	/* (non-Javadoc)
+	 * @see org.gridkit.offheap.jmemstore.MemoryStoreBackend#setMaintenanceThread(java.lang.Thread)
+	 */
+	public void setMaintenanceThread(Thread thread) {
+		this.maintenanceThread = thread;
+	}
+
+	/**
+	 * Allocator thread only wakes up maintenance thread, unless it is maintenance thread itself.
+	 * @return <code>true</code> if pages are being retired by maintenance thread
+	 */
+	private boolean requestRetirement() {
+		Thread thread = maintenanceThread;
+		if (thread == null || thread == Thread.currentThread()) {
+			retireEmptyPages();
+			return false;
+		}
+		else {
+			LockSupport.unpark(thread);
+			return true;
+		}
+	}
+
+	// page stays retired once this returns true, only new page could take its slot
+	private boolean isRetired(int page) {
+		synchronized(pageOwners) {
+			if (pagesDiscarded[page]) {
+				return true;
 			}
+			return pageUtilizations.get(page) == 0 && pageShares.get(page) == null && !isAllocationPage(page);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see org.gridkit.offheap.jmemstore.MemoryStoreBackend#close()
+	 */
+	public void close() {
+		retireEmptyPages();
+		// pages are in heap, they will be collected together with backend
+	}
+
+	/* (non-Javadoc)
+	 * @see org.gridkit.offheap.jmemstore.MemoryStoreBackend#relocate(int, int)
+	 */
+	public int relocate(int pointer, int allocNo) {
+		ByteChunk pageBuf = pages.get(page(pointer));
+		if (pageBuf == null) {
+			throw new IllegalArgumentException("Broken pointer " + Long.toHexString(pointer) + " page " + Integer.toHexString(page(pointer)) + " is not allocated");
+		}
+		return relocate(pointer, allocNo, pageBuf.intAt(offset(pointer) + OWNER_POS));
+	}
+
+	/* (non-Javadoc)
+	 * @see org.gridkit.offheap.jmemstore.MemoryStoreBackend#relocate(int, int, int)
+	 */
+	public int relocate(int pointer, int allocNo, int owner) {
+		validate(pointer);
+		int page = page(pointer);
+		int offs = offset(pointer);
+		if (offs < PAGE_HEADER) {
+			throw new IllegalArgumentException("Invalid pointer " + Long.toHexString(pointer));
 		}
 		
-		// mark chunk as deleted
-		pageBuf.putInt(offs, 0x80000000 | len);
+		ByteChunk pageBuf = pages.get(page);
+		if (pageBuf == null) {
+			throw new IllegalArgumentException("Broken pointer " + Long.toHexString(pointer) + " page " + Integer.toHexString(page) + " is not allocated");
+		}
+		int len = size(pageBuf.intAt(offs));
+		int npp = allocate(len - CHUNK_HEADER, allocNo, owner);
+		ByteChunk newPageBuf = pages.get(page(npp));
+		System.arraycopy(pageBuf.array(), pageBuf.offset() + offs + CHUNK_HEADER, newPageBuf.array(), newPageBuf.offset() + offset(npp) + CHUNK_HEADER, len - CHUNK_HEADER);
+		relocatedBytes.addAndGet(len);
+		release(pointer, owner);
+		return npp;
 	}
 
-	private void checkPageUsage(int page) {
-		int allocNo = -1;
+	private boolean isAllocationPage(int page) {
+		AtomicInteger[] top = this.top;
+		int owner = pageOwners.get(page);
+		if (owner != PagedBinaryStoreManager.NO_OWNER) {
+			PageSet set = pageSets.get(owner);
+			if (set != null) {
+				top = set.top;
+			}
+		}
 		for(int j = 0; j != top.length; ++j) {
 			if (page(top[j].get()) == page) {
-				allocNo = j;
-				break;
+				return true;
 			}
 		}
-		if (allocNo == -1) {
+		return false;
+	}
+
+	private void checkPageUsage(int page) {
+		if (!isAllocationPage(page)) {
 			int usage = pageUtilizations.get(page);
 			if (usage < (gcThreshold * pageSize)) {
 				int ql = evacuationQueueLength.get(); 
@@ -419,15 +756,16 @@ class InHeapMemoryStoreBackend implements MemoryStoreBackend {
 	public boolean shouldEvacuate() {
 		evacuationLock.lock();
 		try {
-			if (evacuationPage >= 0) {
+			if (evacuationPages[0] >= 0) {
 				return true;
 			}
 			else {
-				evacuationPage = choosePageToEvacuate();
+				int evacuationPage = choosePageToEvacuate();
+				evacuationPages[0] = evacuationPage;
 				if (evacuationPage != -1) {
 					ByteChunk pageBuf = pages.get(evacuationPage);
 					if (pageBuf != null) {
-						evacuationPointer = nextChunk(pageBuf, pointer(evacuationPage, PAGE_HEADER), true);
+						evacuationPointers[0] = nextChunk(pageBuf, pointer(evacuationPage, PAGE_HEADER), true);
 					}
 				}
 				return evacuationPage >= 0;
@@ -442,36 +780,51 @@ class InHeapMemoryStoreBackend implements MemoryStoreBackend {
 	 * @see org.gridkit.coherence.offheap.storage.memlog.MemoryStoreBackend#collectHashesForEvacuation(int[], int)
 	 */
 	public int collectHashesForEvacuation(int[] hashes, int len) {
+		return collectHashesForEvacuation(hashes, null, len, 0);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.gridkit.offheap.jmemstore.MemoryStoreBackend#collectHashesForEvacuation(int[], int[], int, int)
+	 */
+	public int collectHashesForEvacuation(int[] hashes, int[] owners, int len, int cursor) {
 		len = len == 0 ? hashes.length : len;
 		evacuationLock.lock();
 		try {
+			if (evacuationCursors <= cursor) {
+				evacuationCursors = cursor + 1;
+			}
 
 			int i;
 			for (i = 0; i != len; ++i) {
 				
-				if (evacuationPointer == 0) {
-					evacuationPage = choosePageToEvacuate();
+				if (evacuationPointers[cursor] == 0) {
+					int evacuationPage = choosePageToEvacuate();
+					evacuationPages[cursor] = evacuationPage;
 					if (evacuationPage != -1) {
 						ByteChunk pageBuf = pages.get(evacuationPage);
 						if (pageBuf != null) {
-							evacuationPointer = nextChunk(pageBuf, pointer(evacuationPage, PAGE_HEADER), true);
+							evacuationPointers[cursor] = nextChunk(pageBuf, pointer(evacuationPage, PAGE_HEADER), true);
 						}
 					}
 				}
 	
-				if (evacuationPointer == 0) {
+				if (evacuationPointers[cursor] == 0) {
 					break;
 				}
 				else {
+					int evacuationPointer = evacuationPointers[cursor];
 					int page = page(evacuationPointer);
 					int offset = offset(evacuationPointer);
 					ByteChunk pageBuf = pages.get(page);
 					if (pageBuf == null) {
-						evacuationPointer = 0;
+						evacuationPointers[cursor] = 0;
 						break;
 					}
-					int hash = pageBuf.intAt(offset + 4);
-					evacuationPointer = nextChunk(pageBuf, evacuationPointer, false);
+					int hash = pageBuf.intAt(offset + CHUNK_HEADER);
+					if (owners != null) {
+						owners[i] = chunkOwner(page, pageBuf, offset);
+					}
+					evacuationPointers[cursor] = nextChunk(pageBuf, evacuationPointer, false);
 					hashes[i] = hash;
 //					if (evacuationPointer == 0) {
 //						break;
@@ -492,18 +845,16 @@ class InHeapMemoryStoreBackend implements MemoryStoreBackend {
 			if (pageUtilizations.get(i) == 0) {
 				continue;
 			}
-			if (evacuationPage == i) {
+			if (isEvacuationPage(i)) {
 				continue;
 			}
-			boolean tp = false;
-			for (int j = 0; j != top.length; ++j) {
-				if (page(top[j].get()) == i) {
-					tp = true;
-					break;
-				}
-			}
-			if (!tp) {
+			if (!isAllocationPage(i)) {
 				int usage = pageUtilizations.get(i);
+				PageShare share = pageShares.get(i);
+				if (share != null) {
+					// shared page is freed once each side has moved its chunks off it
+					usage = share.maxUsage();
+				}
 				if (minUsed > usage) {
 					minUsed = usage;
 					page = i;
@@ -513,13 +864,47 @@ class InHeapMemoryStoreBackend implements MemoryStoreBackend {
 		
 		if (minUsed < scavengeGcThreshold * pageSize) {
 			System.out.println("Next evacuation page is " + page + " utilization " + ((float)minUsed) / pageSize);
-			evacuationPage = page;
 			return page;
 		}
 		
 		return -1;
 	}
 
+	// chunks of shared page are offered to every side, chunks on page of set to its current owner
+	private int chunkOwner(int page, ByteChunk pageBuf, int offset) {
+		if (pageShares.get(page) != null) {
+			return PagedBinaryStoreManager.NO_OWNER;
+		}
+		int owner = pageOwners.get(page);
+		return owner != PagedBinaryStoreManager.NO_OWNER ? owner : pageBuf.intAt(offset + OWNER_POS);
+	}
+
+	// pages already taken by other cursors are skipped
+	private boolean isEvacuationPage(int page) {
+		int n = evacuationCursors;
+		for(int i = 0; i != n; ++i) {
+			if (evacuationPages[i] == page) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void resetEvacuationCursors(int page) {
+		evacuationLock.lock();
+		try {
+			for(int i = 0; i != evacuationCursors; ++i) {
+				if (evacuationPages[i] == page) {
+					evacuationPages[i] = -1;
+					evacuationPointers[i] = 0;
+				}
+			}
+		}
+		finally {
+			evacuationLock.unlock();
+		}
+	}
+
 	private int nextChunk(ByteChunk pageBuf, int pointer, boolean inclusive) {
 		validate(pointer);
 		
@@ -562,7 +947,7 @@ class InHeapMemoryStoreBackend implements MemoryStoreBackend {
 //			// for debug
 //			new String();
 //		}
-		return page == evacuationPage || pagesForCleanUp[page];
+		return pagesForCleanUp[page] || isEvacuationPage(page);
 	}
 	
 	/* (non-Javadoc)
@@ -571,6 +956,31 @@ class InHeapMemoryStoreBackend implements MemoryStoreBackend {
 	public long getMemUsage() {
 		return memUsed.get();
 	}
+
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	public int getPageLimit() {
+		return pageUsageLimit;
+	}
+
+	public int getPagesInUse() {
+		return pagesInUse.get();
+	}
+
+	public long getPageAllocationCount() {
+		return pageAllocationCounter.get();
+	}
+
+	public long getRelocatedBytes() {
+		return relocatedBytes.get();
+	}
+
+	public void setEvacuationThresholds(float scavengeThreshold, float gcThreshold) {
+		this.scavengeGcThreshold = scavengeThreshold;
+		this.gcThreshold = gcThreshold;
+	}
 	
 	// for debug only
 	void validate(int pp) {
@@ -668,7 +1078,7 @@ class InHeapMemoryStoreBackend implements MemoryStoreBackend {
 				if (us < pageSize) {
 					buf.append('*');
 				}
-				if (i == evacuationPage) {
+				if (isEvacuationPage(i)) {
 					buf.append('!');
 				}
 				buf.append('\n');
@@ -679,4 +1089,24 @@ class InHeapMemoryStoreBackend implements MemoryStoreBackend {
 		pageReleaseCounter.set(0);
 		System.out.println(buf.toString());
 	}
+
+	// allocation streams of dedicated page set
+	class PageSet {
+
+		final int owner;
+		final ReentrantLock[] allocationLock;
+		final AtomicInteger[] top;
+		// pages owned or shared by set, guarded by monitor of pageOwners
+		final Set<Integer> pages = new HashSet<Integer>();
+
+		public PageSet(int owner, int allocNumber) {
+			this.owner = owner;
+			allocationLock = new ReentrantLock[allocNumber];
+			top = new AtomicInteger[allocNumber];
+			for(int i = 0; i != allocNumber; ++i) {
+				allocationLock[i] = new ReentrantLock();
+				top[i] = new AtomicInteger(pointer(newPage(i, this), PAGE_HEADER));
+			}
+		}
+	}
 }
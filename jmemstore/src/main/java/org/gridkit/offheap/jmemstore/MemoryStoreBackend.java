@@ -28,16 +28,109 @@ interface MemoryStoreBackend {
 
 	public abstract int allocate(int size, int allocNo);
 
+	/**
+	 * Allocates chunk tagged with owner id, evacuation reports owner of each chunk.
+	 * @param owner owner id, {@link PagedBinaryStoreManager#NO_OWNER} if chunk is not tagged
+	 */
+	public abstract int allocate(int size, int allocNo, int owner);
+
 	public abstract void release(int pointer);
 
+	/**
+	 * Same as {@link #release(int)}, but on behalf of given owner.
+	 * If page is shared by forked page sets (see {@link #forkPageSet(int, int)}), chunk remains intact,
+	 * only usage of owner's side is reduced.
+	 */
+	public abstract void release(int pointer, int owner);
+
+	/**
+	 * Moves chunk to new location, data is copied directly from page to page.
+	 * Owner of chunk is preserved, old location is released.
+	 * @return pointer to new location
+	 */
+	public abstract int relocate(int pointer, int allocNo);
+
+	/**
+	 * Same as {@link #relocate(int, int)}, but new chunk is allocated and old chunk is released on behalf of given owner.
+	 */
+	public abstract int relocate(int pointer, int allocNo, int owner);
+
+	/**
+	 * Chunks of owner will be allocated from dedicated set of pages, not shared with other owners.
+	 */
+	public abstract void createPageSet(int owner);
+
+	/**
+	 * Releases all pages of owner's page set at once, chunks are not visited.
+	 * Caller should guarantee that chunks of owner are not accessed during and after this call.
+	 * @param keep if <code>true</code> page set remains available for new chunks of owner
+	 * @return <code>false</code> if owner has no page set
+	 */
+	public abstract boolean releasePageSet(int owner, boolean keep);
+
+	/**
+	 * Creates page set for <code>forkOwner</code> which shares all current pages of <code>owner</code>.
+	 * Shared pages are immutable, both owners continue allocation on new pages.
+	 * Caller should guarantee that chunks of owner are not accessed during this call.
+	 */
+	public abstract void forkPageSet(int owner, int forkOwner);
+
 	public abstract int collectHashesForEvacuation(int[] hashes, int len);
 
+	/**
+	 * {@link #release(int)} only queues emptied pages, actual release of pages
+	 * (which involves locking) is done by this method. Called by maintenance thread.
+	 */
+	public abstract void retireEmptyPages();
+
+	/**
+	 * Thread calling {@link #retireEmptyPages()}, allocator running out of pages wakes it up
+	 * instead of retiring pages itself. Without maintenance thread pages are retired by allocator.
+	 */
+	public abstract void setMaintenanceThread(Thread thread);
+
+	/**
+	 * Releases all memory of backend, called by store manager on close.
+	 * Backend should not be used afterwards.
+	 */
+	public abstract void close();
+
+	/**
+	 * Same as {@link #collectHashesForEvacuation(int[], int)}, but uses independent evacuation cursor.
+	 * Different cursors never evacuate same page, so they could be used by concurrent compaction workers.
+	 * @param owners if not <code>null</code>, receives owner id of each chunk
+	 * @param cursor cursor number, less than {@link PagedBinaryStoreManager#MAX_COMPACTION_WORKERS}
+	 */
+	public abstract int collectHashesForEvacuation(int[] hashes, int[] owners, int len, int cursor);
+
 	public abstract boolean isMarkedForRecycle(int pp);
 
 	public abstract long getMemUsage();
 
 	public abstract void dumpStatistics();
 
+	public int getPageSize();
+
+	public int getPageLimit();
+
+	public int getPagesInUse();
+
+	/**
+	 * @return total number of pages taken by allocators since creation
+	 */
+	public long getPageAllocationCount();
+
+	/**
+	 * @return total number of bytes moved by {@link #relocate(int, int)} since creation
+	 */
+	public long getRelocatedBytes();
+
+	/**
+	 * @param scavengeThreshold pages with utilization below this threshold could be chosen for evacuation
+	 * @param gcThreshold pages with utilization below this threshold are marked for evacuation on release of chunk
+	 */
+	public void setEvacuationThresholds(float scavengeThreshold, float gcThreshold);
+
 	// for diagnostic reasons
 	public abstract int page(int npp);
 
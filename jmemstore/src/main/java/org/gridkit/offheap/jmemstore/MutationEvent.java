@@ -0,0 +1,128 @@
+/**
+ *  Copyright 2011 Alexey Ragozin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.gridkit.offheap.jmemstore;
+
+/**
+ * Single mutation of key value store, as seen by {@link MutationListener}.
+ * Event instances and their key/value buffers are reused by {@link MutationStream}, they should not be retained
+ * after {@link MutationListener#onMutations(MutationEvent[], int)} returns.
+ *
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+public final class MutationEvent {
+
+	public static final int PUT = 1;
+	public static final int REMOVE = 2;
+	/** Reserved for stores with entry expiry */
+	public static final int EXPIRE = 3;
+	/** Reserved for stores with entry eviction */
+	public static final int EVICT = 4;
+	/** Whole store has been cleared, key is <code>null</code> */
+	public static final int CLEAR = 5;
+
+	private static final byte[] NO_BYTES = new byte[0];
+	// larger buffers are dropped once event is delivered
+	private static final int MAX_RETAINED_BUFFER = 64 << 10;
+
+	private int type;
+	private BinaryKeyValueStore store;
+	private ByteChunk key;
+	private ByteChunk value;
+	private long version;
+	// holds key and value, reused for events published into same ring slot
+	private byte[] buffer = NO_BYTES;
+
+	MutationEvent() {
+	}
+
+	void set(int type, BinaryKeyValueStore store, ByteSequence key, ByteSequence value, long version) {
+		this.type = type;
+		this.store = store;
+		this.version = version;
+		int klen = key == null ? 0 : key.length();
+		int vlen = value == null ? 0 : value.length();
+		if (buffer.length < klen + vlen) {
+			buffer = new byte[Math.max(klen + vlen, 2 * buffer.length)];
+		}
+		// caller's buffers could be reused after store call, so data has to be copied
+		byte[] data = buffer;
+		if (key != null) {
+			key.copyTo(0, data, 0, klen);
+			this.key = new ByteChunk(data, 0, klen);
+		}
+		else {
+			this.key = null;
+		}
+		if (value != null) {
+			value.copyTo(0, data, klen, vlen);
+			this.value = new ByteChunk(data, klen, vlen);
+		}
+		else {
+			this.value = null;
+		}
+	}
+
+	void reset() {
+		store = null;
+		key = null;
+		value = null;
+		if (buffer.length > MAX_RETAINED_BUFFER) {
+			buffer = NO_BYTES;
+		}
+	}
+
+	public int getType() {
+		return type;
+	}
+
+	public BinaryKeyValueStore getStore() {
+		return store;
+	}
+
+	public ByteChunk getKey() {
+		return key;
+	}
+
+	/**
+	 * @return new value for {@link #PUT}, <code>null</code> for other event types
+	 */
+	public ByteChunk getValue() {
+		return value;
+	}
+
+	/**
+	 * Entry versions could be used to order events for same key, published by different threads.
+	 * @return version of written entry for {@link #PUT}, version of removed entry for {@link #REMOVE}
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	@Override
+	public String toString() {
+		String t;
+		switch(type) {
+			case PUT: t = "PUT"; break;
+			case REMOVE: t = "REMOVE"; break;
+			case EXPIRE: t = "EXPIRE"; break;
+			case EVICT: t = "EVICT"; break;
+			case CLEAR: t = "CLEAR"; break;
+			default: t = "#" + type;
+		}
+		return t + " " + key + (value == null ? "" : " -> " + value) + " v" + version;
+	}
+}
@@ -0,0 +1,41 @@
+/**
+ *  Copyright 2011 Alexey Ragozin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.gridkit.offheap.jmemstore;
+
+/**
+ * Receiver of store changes, see {@link MutationStream}.
+ * Methods are called from consumer threads of stream, never from mutating threads.
+ *
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+public interface MutationListener {
+
+	/**
+	 * Events published by same thread are delivered in order.
+	 * Events from different threads may interleave, use {@link MutationEvent#getVersion()} to order them per key.
+	 * @param events batch of events, events are valid only until method returns
+	 * @param count number of events in batch
+	 */
+	public void onMutations(MutationEvent[] events, int count);
+
+	/**
+	 * Called if some events were dropped due to overflow of publishing buffer.
+	 * Listener cannot rely on stream continuity afterwards and should resynchronize with store.
+	 */
+	public void onOverflow(long lostEvents);
+
+}
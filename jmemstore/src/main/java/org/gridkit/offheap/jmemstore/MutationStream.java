@@ -0,0 +1,259 @@
+/**
+ *  Copyright 2011 Alexey Ragozin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.gridkit.offheap.jmemstore;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Change data capture stream for {@link BinaryKeyValueStore}.
+ * <br/>
+ * Each mutating thread publishes events into its own single producer/single consumer ring buffer,
+ * so mutators never contend with each other and never wait for listener.
+ * Ring buffers are drained in batches by consumer threads of stream.
+ * <br/>
+ * If ring buffer is full, behavior is defined by overflow policy:
+ * <ul>
+ * <li>{@link #OVERFLOW_BLOCK} - mutator waits for consumer, lag is bounded by ring size</li>
+ * <li>{@link #OVERFLOW_DROP} - event is dropped, listener is notified via {@link MutationListener#onOverflow(long)}</li>
+ * </ul>
+ * Single stream may be attached to several stores.
+ *
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+public class MutationStream {
+
+	public static final int OVERFLOW_BLOCK = 0;
+	public static final int OVERFLOW_DROP = 1;
+
+	private static final int MAX_BATCH = 256;
+	private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+	private static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+	private final String name;
+	private final MutationListener listener;
+	private final int ringSize;
+	private final int overflowPolicy;
+
+	private final List<Ring> rings = new CopyOnWriteArrayList<Ring>();
+	private final ThreadLocal<Ring> localRing = new ThreadLocal<Ring>();
+	private final Thread[] consumers;
+	private volatile boolean closed;
+
+	/**
+	 * @param ringSize number of events per publishing thread, rounded up to power of 2
+	 * @param overflowPolicy {@link #OVERFLOW_BLOCK} or {@link #OVERFLOW_DROP}
+	 * @param consumerThreads number of threads draining ring buffers
+	 */
+	public MutationStream(String name, MutationListener listener, int ringSize, int overflowPolicy, int consumerThreads) {
+		if (overflowPolicy != OVERFLOW_BLOCK && overflowPolicy != OVERFLOW_DROP) {
+			throw new IllegalArgumentException("Unknown overflow policy " + overflowPolicy);
+		}
+		if (ringSize < 2 || consumerThreads < 1) {
+			throw new IllegalArgumentException("Invalid ring size " + ringSize + " or number of consumers " + consumerThreads);
+		}
+		this.name = name;
+		this.listener = listener;
+		this.ringSize = Integer.highestOneBit(ringSize - 1) << 1;
+		this.overflowPolicy = overflowPolicy;
+		this.consumers = new Thread[consumerThreads];
+		for(int i = 0; i != consumerThreads; ++i) {
+			final int consumerNo = i;
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					consumeCycle(consumerNo);
+				}
+			});
+			thread.setName("MutationStream-" + name + "-Consumer-" + i);
+			thread.setDaemon(true);
+			consumers[i] = thread;
+			thread.start();
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return total number of published, but not yet delivered events
+	 */
+	public long getLag() {
+		long lag = 0;
+		for(Ring ring: rings) {
+			lag += ring.tail.get() - ring.head.get();
+		}
+		return lag;
+	}
+
+	/**
+	 * @return total number of events dropped due to overflow
+	 */
+	public long getLostEvents() {
+		long lost = 0;
+		for(Ring ring: rings) {
+			lost += ring.lost.get();
+		}
+		return lost;
+	}
+
+	/**
+	 * Stops consumer threads. Events already published are delivered before consumers exit.
+	 */
+	public void close() {
+		closed = true;
+		for(Thread thread: consumers) {
+			LockSupport.unpark(thread);
+		}
+		for(Thread thread: consumers) {
+			if (thread != Thread.currentThread()) {
+				try {
+					thread.join();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	void publish(int type, BinaryKeyValueStore store, ByteSequence key, ByteSequence value, long version) {
+		if (closed) {
+			return;
+		}
+		Ring ring = localRing.get();
+		if (ring == null) {
+			ring = new Ring(Thread.currentThread(), ringSize, rings.size() % consumers.length);
+			localRing.set(ring);
+			rings.add(ring);
+		}
+		long t = ring.tail.get();
+		while(t - ring.head.get() >= ring.events.length) {
+			if (overflowPolicy == OVERFLOW_DROP || closed) {
+				ring.lost.incrementAndGet();
+				return;
+			}
+			else {
+				LockSupport.unpark(consumers[ring.consumer]);
+				LockSupport.parkNanos(FULL_PARK_NANOS);
+			}
+		}
+		ring.events[(int)(t & ring.mask)].set(type, store, key, value, version);
+		// single writer, ordered store is enough to publish event
+		ring.tail.lazySet(t + 1);
+	}
+
+	private void consumeCycle(int consumerNo) {
+		MutationEvent[] batch = new MutationEvent[MAX_BATCH];
+		while(true) {
+			boolean finishing = closed;
+			int drained = 0;
+			for(Ring ring: rings) {
+				if (ring.consumer != consumerNo) {
+					continue;
+				}
+				drained += drain(ring, batch);
+				if (ring.isAbandoned()) {
+					rings.remove(ring);
+				}
+			}
+			if (drained == 0) {
+				if (finishing) {
+					return;
+				}
+				LockSupport.parkNanos(IDLE_PARK_NANOS);
+			}
+		}
+	}
+
+	private int drain(Ring ring, MutationEvent[] batch) {
+		int total = 0;
+		long lost = ring.lost.get();
+		if (lost != ring.reportedLost) {
+			long delta = lost - ring.reportedLost;
+			ring.reportedLost = lost;
+			notifyOverflow(delta);
+		}
+		while(true) {
+			long h = ring.head.get();
+			long t = ring.tail.get();
+			if (h == t) {
+				return total;
+			}
+			int n = (int) Math.min(t - h, batch.length);
+			for(int i = 0; i != n; ++i) {
+				batch[i] = ring.events[(int)((h + i) & ring.mask)];
+			}
+			try {
+				listener.onMutations(batch, n);
+			}
+			catch(Throwable e) {
+				System.err.println("MutationStream " + name + ": listener failure " + e);
+				e.printStackTrace();
+			}
+			for(int i = 0; i != n; ++i) {
+				batch[i].reset();
+				batch[i] = null;
+			}
+			ring.head.lazySet(h + n);
+			total += n;
+		}
+	}
+
+	private void notifyOverflow(long delta) {
+		try {
+			listener.onOverflow(delta);
+		}
+		catch(Throwable e) {
+			System.err.println("MutationStream " + name + ": listener failure " + e);
+			e.printStackTrace();
+		}
+	}
+
+	private static class Ring {
+
+		final Thread owner;
+		final int consumer;
+		final MutationEvent[] events;
+		final int mask;
+		// written by consumer only
+		final AtomicLong head = new AtomicLong();
+		// written by owner thread only
+		final AtomicLong tail = new AtomicLong();
+		final AtomicLong lost = new AtomicLong();
+		// accessed by consumer only
+		long reportedLost;
+
+		public Ring(Thread owner, int size, int consumer) {
+			this.owner = owner;
+			this.consumer = consumer;
+			this.events = new MutationEvent[size];
+			this.mask = size - 1;
+			for(int i = 0; i != size; ++i) {
+				events[i] = new MutationEvent();
+			}
+		}
+
+		public boolean isAbandoned() {
+			return !owner.isAlive() && head.get() == tail.get() && lost.get() == reportedLost;
+		}
+	}
+}
@@ -0,0 +1,386 @@
+/**
+ *  Copyright 2011 Alexey Ragozin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.gridkit.offheap.jmemstore;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded on-heap cache in front of {@link BinaryKeyValueStore}.
+ * <br/>
+ * Cache hit is served from {@link ConcurrentHashMap} without any store locks or page access.
+ * Entries are evicted using CLOCK, new entry replaces a victim only if it is accessed more frequently
+ * (TinyLFU admission), frequencies are estimated by count-min sketch which is periodically halved.
+ * <br/>
+ * Cache is invalidated by mutations done through this instance, mutations done directly to backing store
+ * are not visible to cache. Returned values are shared with cache and should not be modified.
+ *
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+public class NearCacheKeyValueStore implements BinaryKeyValueStore {
+
+	private static final int SEGMENTS = 16;
+	// rough on-heap footprint of cache entry excluding key and value bytes
+	private static final int ENTRY_OVERHEAD = 96;
+
+	private final BinaryKeyValueStore store;
+	private final ConcurrentHashMap<BinaryKey, Entry> cache = new ConcurrentHashMap<BinaryKey, Entry>();
+	private final Segment[] segments = new Segment[SEGMENTS];
+	private final FrequencySketch sketch;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @param maxEntries limit for number of cached entries
+	 * @param maxBytes limit for key and value bytes kept in cache (approximate)
+	 */
+	public NearCacheKeyValueStore(BinaryKeyValueStore store, int maxEntries, long maxBytes) {
+		if (maxEntries < 1 || maxBytes < 1) {
+			throw new IllegalArgumentException("Cache limits should be positive: " + maxEntries + " entries, " + maxBytes + " bytes");
+		}
+		this.store = store;
+		this.sketch = new FrequencySketch(maxEntries);
+		for(int i = 0; i != SEGMENTS; ++i) {
+			segments[i] = new Segment((maxEntries + SEGMENTS - 1) / SEGMENTS, Math.max(1, maxBytes / SEGMENTS));
+		}
+	}
+
+	public NearCacheKeyValueStore(BinaryKeyValueStore store, int maxEntries) {
+		this(store, maxEntries, Long.MAX_VALUE);
+	}
+
+	public BinaryKeyValueStore getBackingStore() {
+		return store;
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	public int getCachedEntryCount() {
+		return cache.size();
+	}
+
+	@Override
+	public ByteChunk get(ByteSequence key) {
+		return getWithVersion(key, null);
+	}
+
+	@Override
+	public ByteChunk getWithVersion(ByteSequence key, long[] version) {
+		BinaryKey lookup = new BinaryKey(BinaryKey.toChunk(key));
+		sketch.increment(lookup.hash);
+		Entry entry = cache.get(lookup);
+		if (entry != null) {
+			entry.referenced = true;
+			hits.incrementAndGet();
+			if (version != null) {
+				version[0] = entry.version;
+			}
+			return entry.value;
+		}
+		misses.incrementAndGet();
+
+		Segment segment = segmentFor(lookup.hash);
+		long stamp = segment.stamp;
+		long[] v = new long[1];
+		ByteChunk value = store.getWithVersion(key, v);
+		if (version != null) {
+			version[0] = v[0];
+		}
+		if (value != null) {
+			// value may be a view of store page, it should be copied before caching
+			value = BinaryKey.copy(value);
+			segment.admit(new Entry(new BinaryKey(BinaryKey.copy(key), lookup.hash), value, v[0]), stamp);
+		}
+		return value;
+	}
+
+	@Override
+	public void put(ByteSequence key, ByteSequence value) {
+		try {
+			store.put(key, value);
+		}
+		finally {
+			invalidate(key);
+		}
+	}
+
+	@Override
+	public boolean compareAndPut(ByteSequence key, ByteSequence expected, ByteSequence newValue) {
+		try {
+			return store.compareAndPut(key, expected, newValue);
+		}
+		finally {
+			invalidate(key);
+		}
+	}
+
+	@Override
+	public long putIfVersion(ByteSequence key, ByteSequence value, long expectedVersion) {
+		try {
+			return store.putIfVersion(key, value, expectedVersion);
+		}
+		finally {
+			invalidate(key);
+		}
+	}
+
+	@Override
+	public void remove(ByteSequence key) {
+		try {
+			store.remove(key);
+		}
+		finally {
+			invalidate(key);
+		}
+	}
+
+	@Override
+	public boolean compareAndRemove(ByteSequence key, ByteSequence expected) {
+		try {
+			return store.compareAndRemove(key, expected);
+		}
+		finally {
+			invalidate(key);
+		}
+	}
+
+	@Override
+	public boolean removeIfVersion(ByteSequence key, long expectedVersion) {
+		try {
+			return store.removeIfVersion(key, expectedVersion);
+		}
+		finally {
+			invalidate(key);
+		}
+	}
+
+	@Override
+	public Iterator<ByteChunk> keys() {
+		return store.keys();
+	}
+
+	@Override
+	public int size() {
+		return store.size();
+	}
+
+	@Override
+	public void clear() {
+		try {
+			store.clear();
+		}
+		finally {
+			for(Segment segment: segments) {
+				segment.clear();
+			}
+		}
+	}
+
+	@Override
+	public void setMutationStream(MutationStream stream) {
+		store.setMutationStream(stream);
+	}
+
+	private void invalidate(ByteSequence key) {
+		BinaryKey k = new BinaryKey(BinaryKey.toChunk(key));
+		segmentFor(k.hash).invalidate(k);
+	}
+
+	private Segment segmentFor(int hash) {
+		return segments[BinHash.murmur3_fmix(hash) & (SEGMENTS - 1)];
+	}
+
+	private class Segment {
+
+		private final Entry[] clock;
+		private final long maxBytes;
+		private int hand;
+		private int count;
+		private long bytes;
+		// incremented on each invalidation, value read before going to store is validated on admission
+		private volatile long stamp;
+
+		public Segment(int maxEntries, long maxBytes) {
+			this.clock = new Entry[maxEntries];
+			this.maxBytes = maxBytes;
+		}
+
+		public synchronized void admit(Entry entry, long readStamp) {
+			if (stamp != readStamp) {
+				// key could have been updated while value was read from store
+				return;
+			}
+			if (cache.containsKey(entry.key)) {
+				return;
+			}
+			if (entry.size > maxBytes) {
+				return;
+			}
+			int candidateFreq = sketch.frequency(entry.key.hash);
+			while(count == clock.length || bytes + entry.size > maxBytes) {
+				int slot = nextVictim();
+				Entry victim = clock[slot];
+				if (sketch.frequency(victim.key.hash) >= candidateFreq) {
+					// victim is more valuable
+					return;
+				}
+				evict(slot);
+			}
+			for(int i = 0; i != clock.length; ++i) {
+				int slot = (hand + i) % clock.length;
+				if (clock[slot] == null) {
+					entry.slot = slot;
+					clock[slot] = entry;
+					++count;
+					bytes += entry.size;
+					cache.put(entry.key, entry);
+					return;
+				}
+			}
+		}
+
+		public synchronized void invalidate(BinaryKey key) {
+			++stamp;
+			Entry entry = cache.get(key);
+			if (entry != null && clock[entry.slot] == entry) {
+				evict(entry.slot);
+			}
+		}
+
+		public synchronized void clear() {
+			++stamp;
+			for(int i = 0; i != clock.length; ++i) {
+				if (clock[i] != null) {
+					evict(i);
+				}
+			}
+		}
+
+		private int nextVictim() {
+			while(true) {
+				Entry entry = clock[hand];
+				int slot = hand;
+				hand = (hand + 1) % clock.length;
+				if (entry != null) {
+					if (entry.referenced) {
+						entry.referenced = false;
+					}
+					else {
+						return slot;
+					}
+				}
+			}
+		}
+
+		private void evict(int slot) {
+			Entry entry = clock[slot];
+			clock[slot] = null;
+			--count;
+			bytes -= entry.size;
+			cache.remove(entry.key, entry);
+		}
+	}
+
+	private static class Entry {
+
+		final BinaryKey key;
+		final ByteChunk value;
+		final long version;
+		final long size;
+		// guarded by segment
+		int slot;
+		// set by readers without locking, cleared by clock hand
+		volatile boolean referenced;
+
+		public Entry(BinaryKey key, ByteChunk value, long version) {
+			this.key = key;
+			this.value = value;
+			this.version = version;
+			this.size = ENTRY_OVERHEAD + key.bytes.lenght() + value.lenght();
+		}
+	}
+
+	/**
+	 * Count-min sketch with 4 bit counters. Counters are halved after number of increments
+	 * reaches 10 times cache size, so frequencies reflect recent history.
+	 * Updates are not atomic, lost increments are tolerated.
+	 */
+	private static class FrequencySketch {
+
+		private static final int MAX_COUNT = 15;
+		private static final int[] SEEDS = {0x97CB3127, 0xB8A5C4D1, 0x5B6A1C8F, 0xC13FA9A9};
+
+		private final long[] table;
+		private final int mask;
+		private final int resetThreshold;
+		private volatile int additions;
+
+		public FrequencySketch(int maxEntries) {
+			// 16 counters per long, at least one long per cached entry
+			int size = Integer.highestOneBit(Math.max(maxEntries, 16) - 1) << 1;
+			this.table = new long[size];
+			this.mask = size - 1;
+			this.resetThreshold = 10 * Math.max(maxEntries, 16);
+		}
+
+		public int frequency(int hash) {
+			int freq = MAX_COUNT;
+			for(int i = 0; i != SEEDS.length; ++i) {
+				int h = BinHash.murmur3_fmix(hash ^ SEEDS[i]);
+				int shift = (h >>> 28) << 2;
+				int count = (int) ((table[h & mask] >>> shift) & 0xF);
+				freq = Math.min(freq, count);
+			}
+			return freq;
+		}
+
+		public void increment(int hash) {
+			boolean added = false;
+			for(int i = 0; i != SEEDS.length; ++i) {
+				int h = BinHash.murmur3_fmix(hash ^ SEEDS[i]);
+				int index = h & mask;
+				int shift = (h >>> 28) << 2;
+				long word = table[index];
+				if (((word >>> shift) & 0xF) < MAX_COUNT) {
+					table[index] = word + (1l << shift);
+					added = true;
+				}
+			}
+			if (added && ++additions >= resetThreshold) {
+				reset();
+			}
+		}
+
+		private synchronized void reset() {
+			if (additions < resetThreshold) {
+				return;
+			}
+			for(int i = 0; i != table.length; ++i) {
+				// halve each 4 bit counter
+				table[i] = (table[i] >>> 1) & 0x7777777777777777l;
+			}
+			additions = additions / 2;
+		}
+	}
+}
@@ -24,4 +24,13 @@ public class OffHeapBinaryStoreManager2 extends PagedBinaryStoreManager {
 	public OffHeapBinaryStoreManager2(String name, int pageSize, long totalSizeLimit) {
 		super(name, new OffHeapMemoryStoreBackend(pageSize, (int) (totalSizeLimit / pageSize), 2));
 	}
+
+	/**
+	 * Manager sharing pages of pool with other managers.
+	 * @param reservedSize memory guaranteed to this manager
+	 * @param sizeLimit maximum memory this manager could take from pool
+	 */
+	public OffHeapBinaryStoreManager2(String name, PagePool pool, long reservedSize, long sizeLimit) {
+		super(name, new OffHeapMemoryStoreBackend(pool, (int) (reservedSize / pool.getPageSize()), (int) (sizeLimit / pool.getPageSize()), 2));
+	}
 }
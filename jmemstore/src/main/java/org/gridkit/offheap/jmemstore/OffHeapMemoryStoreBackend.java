@@ -17,8 +17,13 @@
 package org.gridkit.offheap.jmemstore;
 
 import java.nio.ByteBuffer;
-import java.util.BitSet;
-import java.util.concurrent.Semaphore;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
@@ -34,9 +39,8 @@ class OffHeapMemoryStoreBackend implements MemoryStoreBackend {
 
 	final static int PAGE_HEADER = 32; // leaves 0 and 1 pointers as special values
 	private final static int ALIGNMENT = 4; // 16 bytes, IMPORTANT if allignment constant is changing align() method should be updated
-	
-	private final static int DIRECT_BUFFER_SIZE = 64 << 20; // 64MiB
-//	private final static int DIRECT_BUFFER_SIZE = 64 << 10; // 64KiB, for testing only
+	private final static int CHUNK_HEADER = 8; // chunk length and owner id
+	private final static int OWNER_POS = 4;
 	
 	final int pageSize;
 	private final int pageUsageLimit;
@@ -48,26 +52,45 @@ class OffHeapMemoryStoreBackend implements MemoryStoreBackend {
 	
 	private AtomicInteger pagesInUse = new AtomicInteger();
 	private Allocator[] allocators;
+	// dedicated allocators by chunk owner, see createPageSet()
+	private Map<Integer, PageSet> pageSets = new ConcurrentHashMap<Integer, PageSet>();
+	// guards page lists of page sets
+	private final Object pageSetLock = new Object();
 	AtomicReferenceArray<Page> pages;
 	
 	private ReentrantLock evacuationLock = new ReentrantLock();
-	private int evacuationPage;
-	private int evacuationPointer;	
+	// one cursor per compaction worker, guarded by evacuationLock
+	private int[] evacuationPages = new int[PagedBinaryStoreManager.MAX_COMPACTION_WORKERS];
+	private int[] evacuationPointers = new int[PagedBinaryStoreManager.MAX_COMPACTION_WORKERS];
+	private volatile int evacuationCursors;
 	private AtomicInteger pageReleaseCounter = new AtomicInteger();
+	// empty pages waiting to be returned to page allocator
+	private Queue<Page> retiredPages = new ConcurrentLinkedQueue<Page>();
+	private AtomicLong pageAllocationCounter = new AtomicLong();
+	private AtomicLong relocatedBytes = new AtomicLong();
 	
-	private float scavengeGcThreshold = 0.8f;
-	private float minGcThreshold = 0.2f;
-	private float gcThreshold = minGcThreshold;
+	// defaults, normally overridden by compaction pacer
+	private volatile float scavengeGcThreshold = 0.8f;
+	private volatile float gcThreshold = 0.2f;
 	
 	private volatile int fence;
 	
-	private OffHeapPageAllocator pageAllocator;
+	private final PagePool.Quota pageQuota;
+	private volatile Thread maintenanceThread;
 	
 	public OffHeapMemoryStoreBackend(int pageSize, int pageUsageLimit, int allocNumber) {		
+		this(new PagePool(pageSize, pageUsageLimit), pageUsageLimit, pageUsageLimit, allocNumber);
+	}
+
+	/**
+	 * Backend taking its pages from shared pool.
+	 * @param reservedPages pages guaranteed to this backend
+	 * @param maxPages maximum number of pages this backend could hold, pages above reservation are borrowed from idle part of pool
+	 */
+	public OffHeapMemoryStoreBackend(PagePool pool, int reservedPages, int maxPages, int allocNumber) {
+		int pageSize = pool.getPageSize();
+		int pageUsageLimit = maxPages;
 		this.pageSize = pageSize;
-		if (pageSize != Integer.highestOneBit(pageSize) || pageSize > 1 << 30) {			
-			throw new IllegalArgumentException("Invalid page size " + pageSize + ", valid page size should be power of 2 and no more than 1Gb");
-		}
 		this.offsetMask = (pageSize - 1) >> ALIGNMENT;
 		this.pageShift = Integer.bitCount(offsetMask);
 		if (1l * pageSize * pageUsageLimit > 32l << 30) {
@@ -77,17 +100,18 @@ class OffHeapMemoryStoreBackend implements MemoryStoreBackend {
 		this.pageUsageLimit = pageUsageLimit;
 		this.memUsageLimit = ((long)pageSize) * pageUsageLimit;
 		
-		this.pageAllocator = new OffHeapPageAllocator(pageSize, pageUsageLimit);
+		this.pageQuota = pool.createQuota(reservedPages, maxPages);
 		
 		this.memUsed.set(0);
 		this.pagesInUse.set(0);
 		
 		this.pages = new AtomicReferenceArray<Page>(pageUsageLimit);
+		Arrays.fill(evacuationPages, -1);
 		
 		// allocate first page
 		allocators = new Allocator[allocNumber];
 		for(int i = 0; i!= allocNumber; ++i) {
-			allocators[i] = new Allocator("#" + i);
+			allocators[i] = new Allocator("#" + i, null);
 		}
 		
 //		dumpStatistics();
@@ -146,10 +170,10 @@ class OffHeapMemoryStoreBackend implements MemoryStoreBackend {
 			throw new IllegalArgumentException("Broken pointer " + Long.toHexString(pointer) + " page " + Integer.toHexString(page) + " is not allocated");
 		}
 		int len = size(chunk.intAt(offs));
-		if (offs + 4 + len > pageSize) {
+		if (offs + CHUNK_HEADER + len > pageSize) {
 			new String();
 		}
-		return chunk.subChunk(offs + 4, len - 4);
+		return chunk.subChunk(offs + CHUNK_HEADER, len - CHUNK_HEADER);
 	}
 	
 	public int readInt(int pointer, int offset) {
@@ -165,15 +189,15 @@ class OffHeapMemoryStoreBackend implements MemoryStoreBackend {
 			throw new IllegalArgumentException("Broken pointer " + Long.toHexString(pointer) + " page " + page + " is not allocated");
 		}
 		int len = size(chunk.intAt(offs));
-		if (offs + 4 + len > pageSize) {
+		if (offs + CHUNK_HEADER + len > pageSize) {
 			new String();
 		}
-		// 4 bytes of len is reserved for chunk size
-		if (offset + 4 > len - 4) {
-			throw new IndexOutOfBoundsException("Requested offset " + offset + ", chunk lenght " + (len - 4));
+		// chunk header is reserved for chunk size and owner
+		if (offset + 4 > len - CHUNK_HEADER) {
+			throw new IndexOutOfBoundsException("Requested offset " + offset + ", chunk lenght " + (len - CHUNK_HEADER));
 		}
 		
-		return chunk.intAt(offs + 4 + offset);
+		return chunk.intAt(offs + CHUNK_HEADER + offset);
 	}
 
 	public void writeInt(int pointer, int offset, int value) {
@@ -189,15 +213,15 @@ class OffHeapMemoryStoreBackend implements MemoryStoreBackend {
 			throw new IllegalArgumentException("Broken pointer " + Long.toHexString(pointer) + " page " + Integer.toHexString(page) + " is not allocated");
 		}
 		int len = size(chunk.intAt(offs));
-		if (offs + 4 + len > pageSize) {
+		if (offs + CHUNK_HEADER + len > pageSize) {
 			new String();
 		}
-		// 4 bytes of len is reserved for chunk size
-		if (offset + 4 > len - 4) {
-			throw new IndexOutOfBoundsException("Requested offset " + offset + ", chunk lenght " + len);
+		// chunk header is reserved for chunk size and owner
+		if (offset + 4 > len - CHUNK_HEADER) {
+			throw new IndexOutOfBoundsException("Requested offset " + offset + ", chunk lenght " + (len - CHUNK_HEADER));
 		}
 		
-		chunk.putInt(offs + 4 + offset, value);
+		chunk.putInt(offs + CHUNK_HEADER + offset, value);
 	}
 
 	@Override
@@ -214,15 +238,15 @@ class OffHeapMemoryStoreBackend implements MemoryStoreBackend {
 			throw new IllegalArgumentException("Broken pointer " + Long.toHexString(pointer) + " page " + Integer.toHexString(page) + " is not allocated");
 		}
 		int len = size(pageBuf.intAt(offs));
-		if (offs + 4 + len > pageSize) {
+		if (offs + CHUNK_HEADER + len > pageSize) {
 			new String();
 		}
 		
-		if (bytes.lenght() != (len - 4)) {
-			throw new IllegalArgumentException("Slot size does match buffer size. Slot:" + (len - 4) + ", buffer:" + bytes.lenght());
+		if (bytes.lenght() != (len - CHUNK_HEADER)) {
+			throw new IllegalArgumentException("Slot size does match buffer size. Slot:" + (len - CHUNK_HEADER) + ", buffer:" + bytes.lenght());
 		}
 		
-		pageBuf.putBytes(offs + 4, bytes);
+		pageBuf.putBytes(offs + CHUNK_HEADER, bytes);
 		
 		// TODO debug
 //		System.err.println("Memory updated " + page + ":" + offs);
@@ -234,8 +258,72 @@ class OffHeapMemoryStoreBackend implements MemoryStoreBackend {
 	 * @see org.gridkit.coherence.offheap.storage.memlog.MemoryStoreBackend#allocate(int, int)
 	 */
 	public int allocate(int size, int allocNo) {
+		return allocate(size, allocNo, PagedBinaryStoreManager.NO_OWNER);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.gridkit.offheap.jmemstore.MemoryStoreBackend#allocate(int, int, int)
+	 */
+	public int allocate(int size, int allocNo, int owner) {
 		Allocator allocator = allocators[allocNo];
-		return allocator.allocate(size);
+		if (owner != PagedBinaryStoreManager.NO_OWNER && !pageSets.isEmpty()) {
+			PageSet set = pageSets.get(owner);
+			if (set != null) {
+				allocator = set.allocators[allocNo];
+			}
+		}
+		return allocator.allocate(size, owner);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.gridkit.offheap.jmemstore.MemoryStoreBackend#createPageSet(int)
+	 */
+	public void createPageSet(int owner) {
+		if (owner == PagedBinaryStoreManager.NO_OWNER || pageSets.containsKey(owner)) {
+			throw new IllegalArgumentException("Page set already exists for owner " + owner);
+		}
+		pageSets.put(owner, new PageSet(owner, allocators.length));
+	}
+
+	/* (non-Javadoc)
+	 * @see org.gridkit.offheap.jmemstore.MemoryStoreBackend#releasePageSet(int, boolean)
+	 */
+	public boolean releasePageSet(int owner, boolean keep) {
+		PageSet set = keep ? pageSets.get(owner) : pageSets.remove(owner);
+		if (set == null) {
+			return false;
+		}
+		for(Allocator allocator: set.allocators) {
+			allocator.lock.lock();
+		}
+		try {
+			synchronized(pageSetLock) {
+				// only pages of set are visited
+				for(Page page: set.pages.toArray(new Page[set.pages.size()])) {
+					PageShare share = page.getShare();
+					if (share != null) {
+						if (share.drop(owner)) {
+							settleSharedPage(page, share);
+						}
+					}
+					else {
+						discardPage(page);
+					}
+				}
+				set.pages.clear();
+			}
+			if (keep) {
+				for(Allocator allocator: set.allocators) {
+					allocator.bumpPointer = pointer(allocator.newPage(0), PAGE_HEADER);
+				}
+			}
+		}
+		finally {
+			for(Allocator allocator: set.allocators) {
+				allocator.lock.unlock();
+			}
+		}
+		return true;
 	}
 	
 	private static int align(int len) {
@@ -247,6 +335,13 @@ class OffHeapMemoryStoreBackend implements MemoryStoreBackend {
 	 * @see org.gridkit.coherence.offheap.storage.memlog.MemoryStoreBackend#release(int)
 	 */
 	public void release(int pointer) {
+		release(pointer, PagedBinaryStoreManager.NO_OWNER);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.gridkit.offheap.jmemstore.MemoryStoreBackend#release(int, int)
+	 */
+	public void release(int pointer, int owner) {
 		int page = page(pointer);
 		int offs = offset(pointer);
 		if (offs < PAGE_HEADER) {
@@ -259,7 +354,20 @@ class OffHeapMemoryStoreBackend implements MemoryStoreBackend {
 
 		
 		Page pageBuf = pages.get(page);
+		PageShare share = pageBuf.getShare();
+		if (share != null) {
+			// shared page is immutable, chunk is only taken off owner's side
+			int left = share.release(owner, size(pageBuf.intAt(offs)));
+			if (left == 0) {
+				leaveSharedPage(pageBuf, share, owner);
+			}
+			if (left != PageShare.DETACHED) {
+				return;
+			}
+		}
 		int len = pageBuf.intAt(offs);
+		// mark chunk as deleted, page should not be touched once usage reaches zero
+		pageBuf.putInt(offs, 0x80000000 | len);
 		pageBuf.updateMemUsage(-len);
 		memUsed.addAndGet(-len);
 		
@@ -268,15 +376,43 @@ class OffHeapMemoryStoreBackend implements MemoryStoreBackend {
 		}
 		
 		if (pageBuf.getMemUsage() == 0 && !pageBuf.isForAllocation()) {
-			System.out.println("Page " + page + " has no more data");
-
 			releasePage(pageBuf);
 		}
+	}
+
+	/* (non-Javadoc)
+	 * @see org.gridkit.offheap.jmemstore.MemoryStoreBackend#relocate(int, int)
+	 */
+	public int relocate(int pointer, int allocNo) {
+		Page pageBuf = pages.get(page(pointer));
+		if (pageBuf == null) {
+			throw new IllegalArgumentException("Broken pointer " + Long.toHexString(pointer) + " page " + Integer.toHexString(page(pointer)) + " is not allocated");
+		}
+		return relocate(pointer, allocNo, pageBuf.intAt(offset(pointer) + OWNER_POS));
+	}
+
+	/* (non-Javadoc)
+	 * @see org.gridkit.offheap.jmemstore.MemoryStoreBackend#relocate(int, int, int)
+	 */
+	public int relocate(int pointer, int allocNo, int owner) {
+		validate(pointer);
+		int page = page(pointer);
+		int offs = offset(pointer);
+		if (offs < PAGE_HEADER) {
+			throw new IllegalArgumentException("Invalid pointer " + Long.toHexString(pointer));
+		}
 		
-		if (pageBuf != null) {
-			// mark chunk as deleted
-			pageBuf.putInt(offs, 0x80000000 | len);
+		Page pageBuf = pages.get(page);
+		if (pageBuf == null) {
+			throw new IllegalArgumentException("Broken pointer " + Long.toHexString(pointer) + " page " + Integer.toHexString(page) + " is not allocated");
 		}
+		int len = size(pageBuf.intAt(offs));
+		int npp = allocate(len - CHUNK_HEADER, allocNo, owner);
+		Page newPageBuf = pages.get(page(npp));
+		newPageBuf.copyFrom(offset(npp) + CHUNK_HEADER, pageBuf, offs + CHUNK_HEADER, len - CHUNK_HEADER);
+		relocatedBytes.addAndGet(len);
+		release(pointer, owner);
+		return npp;
 	}
 
 	private void checkPageUsage(int page) {
@@ -292,36 +428,51 @@ class OffHeapMemoryStoreBackend implements MemoryStoreBackend {
 	 * @see org.gridkit.coherence.offheap.storage.memlog.MemoryStoreBackend#collectHashesForEvacuation(int[], int)
 	 */
 	public int collectHashesForEvacuation(int[] hashes, int len) {
+		return collectHashesForEvacuation(hashes, null, len, 0);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.gridkit.offheap.jmemstore.MemoryStoreBackend#collectHashesForEvacuation(int[], int[], int, int)
+	 */
+	public int collectHashesForEvacuation(int[] hashes, int[] owners, int len, int cursor) {
 		len = len == 0 ? hashes.length : len;
 		evacuationLock.lock();
 		try {
+			if (evacuationCursors <= cursor) {
+				evacuationCursors = cursor + 1;
+			}
 
 			int i;
 			for (i = 0; i != len; ++i) {
 				
-				if (evacuationPointer == 0) {
-					evacuationPage = choosePageToEvacuate();
+				if (evacuationPointers[cursor] == 0) {
+					int evacuationPage = choosePageToEvacuate();
+					evacuationPages[cursor] = evacuationPage;
 					if (evacuationPage != -1) {
 						Page pageBuf = pages.get(evacuationPage);
 						if (pageBuf != null) {
-							evacuationPointer = nextChunk(pageBuf, pointer(evacuationPage, PAGE_HEADER), true);
+							evacuationPointers[cursor] = nextChunk(pageBuf, pointer(evacuationPage, PAGE_HEADER), true);
 						}
 					}
 				}
 	
-				if (evacuationPointer == 0) {
+				if (evacuationPointers[cursor] == 0) {
 					break;
 				}
 				else {
+					int evacuationPointer = evacuationPointers[cursor];
 					int page = page(evacuationPointer);
 					int offset = offset(evacuationPointer);
 					Page pageBuf = pages.get(page);
 					if (pageBuf == null) {
-						evacuationPointer = 0;
+						evacuationPointers[cursor] = 0;
 						break;
 					}
-					int hash = pageBuf.intAt(offset + 4);
-					evacuationPointer = nextChunk(pageBuf, evacuationPointer, false);
+					int hash = pageBuf.intAt(offset + CHUNK_HEADER);
+					if (owners != null) {
+						owners[i] = chunkOwner(pageBuf, offset);
+					}
+					evacuationPointers[cursor] = nextChunk(pageBuf, evacuationPointer, false);
 					hashes[i] = hash;
 //					if (evacuationPointer == 0) {
 //						break;
@@ -343,10 +494,15 @@ class OffHeapMemoryStoreBackend implements MemoryStoreBackend {
 			if (pageBuf == null || pageBuf.getMemUsage() == 0 || pageBuf.isForAllocation()) {
 				continue;
 			}
-			if (evacuationPage == i) {
+			if (isEvacuationPage(i)) {
 				continue;
 			}
 			int usage = pageBuf.getMemUsage();
+			PageShare share = pageBuf.getShare();
+			if (share != null) {
+				// shared page is freed once each side has moved its chunks off it
+				usage = share.maxUsage();
+			}
 			if (minUsed > usage) {
 				minUsed = usage;
 				page = i;
@@ -355,7 +511,6 @@ class OffHeapMemoryStoreBackend implements MemoryStoreBackend {
 		
 		if (minUsed < scavengeGcThreshold * pageSize) {
 			System.out.println("Next evacuation page is " + page + " utilization " + ((float)minUsed) / pageSize);
-			evacuationPage = page;
 			Page pageBuf = pages.get(page);
 			if (pageBuf != null) {
 				pageBuf.markForEvacuation();
@@ -366,6 +521,41 @@ class OffHeapMemoryStoreBackend implements MemoryStoreBackend {
 		return -1;
 	}
 
+	// chunks of shared page are offered to every side, chunks on page of set to its current owner
+	private int chunkOwner(Page pageBuf, int offset) {
+		if (pageBuf.getShare() != null) {
+			return PagedBinaryStoreManager.NO_OWNER;
+		}
+		int owner = pageBuf.getOwner();
+		return owner != PagedBinaryStoreManager.NO_OWNER ? owner : pageBuf.intAt(offset + OWNER_POS);
+	}
+
+	// pages already taken by other cursors are skipped
+	private boolean isEvacuationPage(int page) {
+		int n = evacuationCursors;
+		for(int i = 0; i != n; ++i) {
+			if (evacuationPages[i] == page) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void resetEvacuationCursors(int page) {
+		evacuationLock.lock();
+		try {
+			for(int i = 0; i != evacuationCursors; ++i) {
+				if (evacuationPages[i] == page) {
+					evacuationPages[i] = -1;
+					evacuationPointers[i] = 0;
+				}
+			}
+		}
+		finally {
+			evacuationLock.unlock();
+		}
+	}
+
 	private int nextChunk(Page pageBuf, int pointer, boolean inclusive) {
 		validate(pointer);
 		
@@ -419,6 +609,31 @@ class OffHeapMemoryStoreBackend implements MemoryStoreBackend {
 	public long getMemUsage() {
 		return memUsed.get();
 	}
+
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	public int getPageLimit() {
+		return pageQuota.getPageLimit();
+	}
+
+	public int getPagesInUse() {
+		return pagesInUse.get();
+	}
+
+	public long getPageAllocationCount() {
+		return pageAllocationCounter.get();
+	}
+
+	public long getRelocatedBytes() {
+		return relocatedBytes.get();
+	}
+
+	public void setEvacuationThresholds(float scavengeThreshold, float gcThreshold) {
+		this.scavengeGcThreshold = scavengeThreshold;
+		this.gcThreshold = gcThreshold;
+	}
 	
 	// for debug only
 	void validate(int pp) {
@@ -524,7 +739,7 @@ class OffHeapMemoryStoreBackend implements MemoryStoreBackend {
 				if (us < pageSize) {
 					buf.append('*');
 				}
-				if (i == evacuationPage) {
+				if (isEvacuationPage(i)) {
 					buf.append('!');
 				}
 				buf.append('\n');
@@ -537,133 +752,218 @@ class OffHeapMemoryStoreBackend implements MemoryStoreBackend {
 	}
 	
 	
-	class OffHeapPageAllocator {
-	
-		final ByteBuffer[] buffers;
-		final int pageSize;
-		final int pageCount;
-		final int pagesPerBuffer;
-		final BitSet pages;
-		final Semaphore allocPermits;
-		final int directPageSize;
-		
-		public OffHeapPageAllocator(int pageSize, int pageCount) {
-			this.directPageSize = DIRECT_BUFFER_SIZE > pageSize ? DIRECT_BUFFER_SIZE : pageSize;
-			this.pageSize = pageSize;
-			this.pageCount = pageCount;
-			pagesPerBuffer = directPageSize / pageSize;
-			if (directPageSize % pageSize != 0) {
-				throw new AssertionError("Page size should be power of 2! (pageSize: " + pageSize + ")");
-			}
-			
-			buffers = new ByteBuffer[(pageCount + pagesPerBuffer - 1) / pagesPerBuffer];
-			pages = new BitSet(pageCount);
-			allocPermits = new Semaphore(pageCount, true);
+	/* (non-Javadoc)
+	 * @see org.gridkit.offheap.jmemstore.MemoryStoreBackend#forkPageSet(int, int)
+	 */
+	public void forkPageSet(int owner, int forkOwner) {
+		PageSet set = pageSets.get(owner);
+		if (set == null) {
+			throw new IllegalArgumentException("No page set for owner " + owner);
 		}
-		
-		public Page allocate() {
-			allocPermits.acquireUninterruptibly();
-			return allocBuffer();
+		if (forkOwner == PagedBinaryStoreManager.NO_OWNER || pageSets.containsKey(forkOwner)) {
+			throw new IllegalArgumentException("Page set already exists for owner " + forkOwner);
 		}
-		
-		public Page tryAllocate() {
-			if (allocPermits.tryAcquire()) {
-				return allocBuffer();
+		PageSet fork = new PageSet(forkOwner, allocators.length);
+		for(Allocator allocator: set.allocators) {
+			allocator.lock.lock();
+		}
+		try {
+			// current pages are taken before any page of set is discarded
+			Page[] olds = new Page[set.allocators.length];
+			for(int i = 0; i != olds.length; ++i) {
+				olds[i] = pages.get(page(set.allocators[i].bumpPointer));
 			}
-			else {
-				return null;
+			synchronized(pageSetLock) {
+				// only pages of set are visited
+				for(Page page: set.pages.toArray(new Page[set.pages.size()])) {
+					PageShare share = page.getShare();
+					if (share != null) {
+						share.fork(owner, forkOwner);
+						fork.pages.add(page);
+					}
+					else if (!page.isReleased()) {
+						if (page.getMemUsage() == 0) {
+							// empty current pages are released once allocators are switched
+							if (!page.isForAllocation()) {
+								discardPage(page);
+							}
+						}
+						else {
+							page.setShare(new PageShare(owner, forkOwner, page.getMemUsage()));
+							fork.pages.add(page);
+						}
+					}
+				}
+			}
+			// shared pages are immutable, allocation continues on new pages
+			for(int i = 0; i != olds.length; ++i) {
+				Allocator allocator = set.allocators[i];
+				allocator.bumpPointer = pointer(allocator.newPage(0), PAGE_HEADER);
+				olds[i].markForStorage();
+				if (olds[i].getShare() == null && olds[i].getMemUsage() == 0) {
+					releasePage(olds[i]);
+				}
 			}
 		}
-		
-		private synchronized Page allocBuffer() {
-			int bufferId = pages.nextClearBit(0);
-			if (bufferId >= pageCount) {
-				throw new IllegalArgumentException("No more buffers");
+		finally {
+			for(Allocator allocator: set.allocators) {
+				allocator.lock.unlock();
 			}
-		
-			pages.set(bufferId);
-			
-			ByteBuffer master = buffers[bufferId / pagesPerBuffer];
-			if (master == null) {
-				master = buffers[bufferId / pagesPerBuffer] = ByteBuffer.allocateDirect(directPageSize); 
+		}
+		pageSets.put(forkOwner, fork);
+	}
+
+	private void leaveSharedPage(Page page, PageShare share, int owner) {
+		synchronized(pageSetLock) {
+			if (page.getShare() != share) {
+				return;
 			}
-			
-			int offset = pageSize * (bufferId % pagesPerBuffer);
-			// working under critical section, not need to make a defensive copy of master buffer
-			ByteBuffer bb = master;
-			try {
-				bb.position(0);
-				bb.limit(bb.capacity());
-				bb.position(offset);
-				bb.limit(offset + pageSize);
-				bb = bb.slice();
-			}
-			catch(IllegalArgumentException e) {
-				e.printStackTrace();
-				throw e;
+			unlinkPage(page, owner);
+			settleSharedPage(page, share);
+		}
+	}
+
+	// pageSetLock assumed, page is released or returned to last side holding it
+	private void settleSharedPage(Page page, PageShare share) {
+		// page usage stays frozen while page is shared
+		int frozen = page.getMemUsage();
+		int usage = share.detach();
+		if (usage < 0) {
+			return;
+		}
+		else if (usage == 0) {
+			discardPage(page);
+		}
+		else {
+			page.setOwner(share.lastOwner());
+			page.setShare(null);
+			memUsed.addAndGet(usage - frozen);
+			page.updateMemUsage(usage - frozen);
+			if (page.isForAllocation()) {
+				return;
 			}
-			
-			// zeroing buffer
-			for (int i = 0; i != pageSize; i += 8) {
-				bb.putLong(i, 0);
+			if (page.getMemUsage() == 0) {
+				releasePage(page);
 			}
-			
-			return new Page(this, bb, bufferId);
-		}
-		
-		public synchronized void release(int bufferId) {
-			if (!pages.get(bufferId)) {
-				// for Debug
-				new String();
+			else if (!page.isMarkedForEvacuation()) {
+				checkPageUsage(page.getPageNo());
 			}
-			pages.clear(bufferId);
-			allocPermits.release();
 		}
 	}
-	
-	private void releasePage(Page page) {
-		if (!page.markForEvacuation()) {
-			evacuationLock.lock();
-			try {
-				if (evacuationPage == page.getPageNo()) {
-					evacuationPage = -1;
-					evacuationPointer = 0;
+
+	private void unlinkPage(Page page, int owner) {
+		if (owner != PagedBinaryStoreManager.NO_OWNER) {
+			PageSet set = pageSets.get(owner);
+			if (set != null) {
+				synchronized(pageSetLock) {
+					set.pages.remove(page);
 				}
 			}
-			finally {
-				evacuationLock.unlock();
-			}
 		}
+	}
+
+	// page is released with all its chunks
+	private void discardPage(Page page) {
+		if (page.markForDiscard()) {
+			unlinkPage(page, page.getOwner());
+			memUsed.addAndGet(-page.getMemUsage());
+			retiredPages.add(page);
+		}
+	}
+
+	// called on mutator threads, page is only queued here, no locks are taken
+	private void releasePage(Page page) {
 		if (page.markForRelease()) {
+			retiredPages.add(page);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see org.gridkit.offheap.jmemstore.MemoryStoreBackend#retireEmptyPages()
+	 */
+	public void retireEmptyPages() {
+		Page page;
+		while((page = retiredPages.poll()) != null) {
+			resetEvacuationCursors(page.getPageNo());
+			unlinkPage(page, page.getOwner());
 			pages.compareAndSet(page.getPageNo(), page, null);
 			pagesInUse.decrementAndGet();
 			pageReleaseCounter.incrementAndGet();
 			page.release();
 		}
 	}
+
+	/* (non-Javadoc)
+	 * @see org.gridkit.offheap.jmemstore.MemoryStoreBackend#setMaintenanceThread(java.lang.Thread)
+	 */
+	public void setMaintenanceThread(Thread thread) {
+		this.maintenanceThread = thread;
+	}
+
+	// allocator thread only wakes up maintenance thread, unless it is maintenance thread itself
+	private void requestRetirement() {
+		Thread thread = maintenanceThread;
+		if (thread == null || thread == Thread.currentThread()) {
+			retireEmptyPages();
+		}
+		else {
+			LockSupport.unpark(thread);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see org.gridkit.offheap.jmemstore.MemoryStoreBackend#close()
+	 */
+	public void close() {
+		retireEmptyPages();
+		// returns remaining pages and reservation to pool
+		pageQuota.close();
+	}
 	
 	private static AtomicIntegerFieldUpdater<Allocator> ALLOC_BUMP_POINTER = AtomicIntegerFieldUpdater.newUpdater(Allocator.class, "bumpPointer");
 
+	// allocators and pages of dedicated page set
+	class PageSet {
+
+		final int owner;
+		final Allocator[] allocators;
+		// pages owned or shared by set, guarded by pageSetLock
+		final Set<Page> pages = new HashSet<Page>();
+
+		public PageSet(int owner, int allocNumber) {
+			this.owner = owner;
+			allocators = new Allocator[allocNumber];
+			for(int i = 0; i != allocNumber; ++i) {
+				allocators[i] = new Allocator("#" + i + "@" + owner, this);
+			}
+		}
+	}
+
 	class Allocator {
 
 		String name;
+		int owner;
+		// null for common allocators
+		PageSet set;
 		ReentrantLock lock;
 		volatile int bumpPointer;
 		
-		public Allocator(String name) {
+		public Allocator(String name, PageSet set) {
 			this.name = name;
+			this.set = set;
+			this.owner = set == null ? PagedBinaryStoreManager.NO_OWNER : set.owner;
 			lock = new ReentrantLock();
 			bumpPointer = pointer(newPage(0), PAGE_HEADER); 
 		}
 		
-		public int allocate(int size) {
+		public int allocate(int size, int owner) {
 			if (size > pageSize >> 2) {
 				// TODO allocate large objects in heap
 				throw new IllegalArgumentException("Size is too large");
 			}
 			while(true) {
 				int len = size;
-				len += 4;
+				len += CHUNK_HEADER;
 				int alen = align(len);
 				
 				int pp;
@@ -731,6 +1031,7 @@ class OffHeapMemoryStoreBackend implements MemoryStoreBackend {
 					dumpPage(pageBuf);
 					throw new AssertionError("Allocation have failed (" + size + " requested). Dirty memory: " + page + ":" + offs);
 				}
+				pageBuf.putInt(offs + OWNER_POS, owner);
 				pageBuf.putInt(offs, len);
 				memUsed.addAndGet(len);			
 				fence += 2;
@@ -743,8 +1044,15 @@ class OffHeapMemoryStoreBackend implements MemoryStoreBackend {
 		private int newPage(int start) {
 			// code looks little awkward with off-heap allocator
 			// refactoring required
-			Page pageBuf = pageAllocator.allocate();
+			int bufferId = pageQuota.tryAllocate();
+			if (bufferId < 0) {
+				// maintenance thread may lag behind, page is awaited until it retires empty pages
+				requestRetirement();
+				bufferId = pageQuota.allocate();
+			}
+			Page pageBuf = new Page(pageQuota, pageQuota.buffer(bufferId), bufferId);
 			pagesInUse.incrementAndGet();
+			pageAllocationCounter.incrementAndGet();
 			while(true) {
 				int nextSlot = page(bumpPointer);
 				for(int i = 0; i != pageUsageLimit; ++i) {
@@ -752,7 +1060,13 @@ class OffHeapMemoryStoreBackend implements MemoryStoreBackend {
 					if (pages.get(page) == null) {
 						if (pages.compareAndSet(page, null, pageBuf)) {
 							pageBuf.setPageNo(page);
+							pageBuf.setOwner(owner);
 							pageBuf.markForAllocation();							
+							if (set != null) {
+								synchronized(pageSetLock) {
+									set.pages.add(pageBuf);
+								}
+							}
 							return page;
 						}
 						else {
@@ -785,17 +1099,21 @@ class OffHeapMemoryStoreBackend implements MemoryStoreBackend {
 		private static AtomicIntegerFieldUpdater<Page> MEM_USED = AtomicIntegerFieldUpdater.newUpdater(Page.class, "memUsed");
 		private static AtomicIntegerFieldUpdater<Page> STATUS = AtomicIntegerFieldUpdater.newUpdater(Page.class, "status");
 
-		private final OffHeapPageAllocator allocator;
+		private final PagePool.Quota quota;
 		private final ByteBuffer bytes;
 		private final int bufferId;
 		
 		private int pageNo = -1;
+		// owner of page set, NO_OWNER for pages of common allocators
+		private volatile int owner;
+		// not null if page is shared by forked page sets
+		private volatile PageShare share;
 		// if true page is being used for allocating new chunks and should not be scavenged
 		private volatile int status;
 		private volatile int memUsed; 
 
-		public Page(OffHeapPageAllocator allocator, ByteBuffer buffer, int bufferId) {
-			this.allocator = allocator;
+		public Page(PagePool.Quota quota, ByteBuffer buffer, int bufferId) {
+			this.quota = quota;
 			this.bytes = buffer;
 			this.bufferId = bufferId;
 		}
@@ -807,6 +1125,22 @@ class OffHeapMemoryStoreBackend implements MemoryStoreBackend {
 		public void setPageNo(int pageNo) {
 			this.pageNo = pageNo;
 		}
+
+		public int getOwner() {
+			return owner;
+		}
+		
+		public void setOwner(int owner) {
+			this.owner = owner;
+		}
+
+		public PageShare getShare() {
+			return share;
+		}
+		
+		public void setShare(PageShare share) {
+			this.share = share;
+		}
 		
 		public boolean isForAllocation() {
 			return status == STATUS_ALLOCATING;
@@ -829,7 +1163,24 @@ class OffHeapMemoryStoreBackend implements MemoryStoreBackend {
 		}
 		
 		public boolean markForRelease() {
-			return STATUS.compareAndSet(this, STATUS_FOR_EVACUATION, STATUS_RELEASED);
+			return STATUS.compareAndSet(this, STATUS_STORAGE, STATUS_RELEASED) || STATUS.compareAndSet(this, STATUS_FOR_EVACUATION, STATUS_RELEASED);
+		}
+
+		public boolean isReleased() {
+			return status == STATUS_RELEASED;
+		}
+
+		// releases page regardless of its content
+		public boolean markForDiscard() {
+			while(true) {
+				int s = status;
+				if (s == STATUS_RELEASED) {
+					return false;
+				}
+				if (STATUS.compareAndSet(this, s, STATUS_RELEASED)) {
+					return true;
+				}
+			}
 		}
 		
 		public int getMemUsage() {
@@ -862,8 +1213,17 @@ class OffHeapMemoryStoreBackend implements MemoryStoreBackend {
 			bb.put(chunk.array(), chunk.offset(), chunk.lenght());			
 		}
 		
+		public void copyFrom(int offs, Page src, int srcOffs, int len) {
+			ByteBuffer from = src.bytes.duplicate();
+			from.position(from.position() + srcOffs);
+			from.limit(from.position() + len);
+			ByteBuffer to = bytes.duplicate();
+			to.position(to.position() + offs);
+			to.put(from);
+		}
+		
 		public void release() {
-			allocator.release(bufferId);
+			quota.release(bufferId);
 		}
 	}
 	
@@ -0,0 +1,287 @@
+/**
+ *  Copyright 2011 Alexey Ragozin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.gridkit.offheap.jmemstore;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+/**
+ * Pool of off-heap pages, could be shared by several store managers.
+ * <br/>
+ * Each manager allocates pages under its own {@link Quota}.
+ * <ul>
+ * <li>Reserved pages are guaranteed to quota, sum of reservations cannot exceed size of pool.</li>
+ * <li>Above reservation quota may take free pages of pool which are not reserved by other quotas,
+ * up to its maximum. Idle reserved pages are never lent, so quota could always take its reserved pages.</li>
+ * <li>Reservation created while pool is filled by others is available once they release pages,
+ * meanwhile they see reduced page limit (see {@link Quota#getPageLimit()}) which makes their compaction
+ * work harder to give pages back.</li>
+ * <li>Closed quota returns all its pages and its reservation to the pool.</li>
+ * </ul>
+ *
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+public class PagePool {
+
+	private final static int DIRECT_BUFFER_SIZE = 64 << 20; // 64MiB
+
+	private final int pageSize;
+	private final int pageCount;
+	private final int directPageSize;
+	private final int pagesPerBuffer;
+
+	// all fields below are guarded by this
+	private final ByteBuffer[] buffers;
+	private final BitSet pages;
+	private int pagesInUse;
+	private int reservedPages;
+	// reserved, but not used pages of all quotas
+	private int idlePages;
+
+	public PagePool(int pageSize, int pageCount) {
+		if (pageSize != Integer.highestOneBit(pageSize) || pageSize > 1 << 30) {
+			throw new IllegalArgumentException("Invalid page size " + pageSize + ", valid page size should be power of 2 and no more than 1Gb");
+		}
+		if (pageCount <= 0) {
+			throw new IllegalArgumentException("Invalid page count " + pageCount);
+		}
+		this.pageSize = pageSize;
+		this.pageCount = pageCount;
+		this.directPageSize = DIRECT_BUFFER_SIZE > pageSize ? DIRECT_BUFFER_SIZE : pageSize;
+		this.pagesPerBuffer = directPageSize / pageSize;
+		this.buffers = new ByteBuffer[(pageCount + pagesPerBuffer - 1) / pagesPerBuffer];
+		this.pages = new BitSet(pageCount);
+	}
+
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	public int getPageCount() {
+		return pageCount;
+	}
+
+	public synchronized int getPagesInUse() {
+		return pagesInUse;
+	}
+
+	public synchronized int getReservedPages() {
+		return reservedPages;
+	}
+
+	/**
+	 * @param reservedPages number of pages guaranteed to quota
+	 * @param maxPages maximum number of pages quota could hold
+	 */
+	synchronized Quota createQuota(int reservedPages, int maxPages) {
+		if (reservedPages < 0 || maxPages <= 0 || reservedPages > maxPages || maxPages > pageCount) {
+			throw new IllegalArgumentException("Invalid quota, reserved: " + reservedPages + ", max: " + maxPages + ", pool size: " + pageCount);
+		}
+		if (this.reservedPages + reservedPages > pageCount) {
+			throw new IllegalArgumentException("Cannot reserve " + reservedPages + " pages, only " + (pageCount - this.reservedPages) + " pages are left unreserved");
+		}
+		Quota quota = new Quota(reservedPages, maxPages);
+		this.reservedPages += reservedPages;
+		this.idlePages += reservedPages;
+		return quota;
+	}
+
+	// guarded by this
+	private boolean canAllocate(Quota quota) {
+		if (quota.closed) {
+			throw new IllegalStateException("Quota is closed");
+		}
+		if (quota.used >= quota.maxPages || pagesInUse >= pageCount) {
+			return false;
+		}
+		if (quota.used < quota.reservedPages) {
+			return true;
+		}
+		// above reservation only unreserved pages could be taken
+		return pageCount - pagesInUse > idlePages;
+	}
+
+	private int allocate(Quota quota) {
+		boolean interrupted = false;
+		int bufferId;
+		synchronized(this) {
+			// reserved page could be awaited only if reservation was made while pool was full
+			while(!canAllocate(quota)) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			bufferId = takeBuffer(quota);
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		return bufferId;
+	}
+
+	private int tryAllocate(Quota quota) {
+		synchronized(this) {
+			if (!canAllocate(quota)) {
+				return -1;
+			}
+			return takeBuffer(quota);
+		}
+	}
+
+	// guarded by this
+	private int takeBuffer(Quota quota) {
+		int bufferId = pages.nextClearBit(0);
+		if (bufferId >= pageCount) {
+			throw new IllegalArgumentException("No more buffers");
+		}
+		pages.set(bufferId);
+		if (buffers[bufferId / pagesPerBuffer] == null) {
+			buffers[bufferId / pagesPerBuffer] = ByteBuffer.allocateDirect(directPageSize);
+		}
+		++pagesInUse;
+		if (quota.used < quota.reservedPages) {
+			--idlePages;
+		}
+		++quota.used;
+		quota.buffers.set(bufferId);
+		return bufferId;
+	}
+
+	private ByteBuffer slice(int bufferId) {
+		ByteBuffer master;
+		synchronized(this) {
+			master = buffers[bufferId / pagesPerBuffer];
+		}
+		int offset = pageSize * (bufferId % pagesPerBuffer);
+		ByteBuffer bb = master.duplicate();
+		bb.position(offset);
+		bb.limit(offset + pageSize);
+		bb = bb.slice();
+		// zeroing buffer, outside of pool lock
+		for (int i = 0; i != pageSize; i += 8) {
+			bb.putLong(i, 0);
+		}
+		return bb;
+	}
+
+	private synchronized void release(Quota quota, int bufferId) {
+		if (!quota.buffers.get(bufferId)) {
+			throw new IllegalArgumentException("Buffer " + bufferId + " is not allocated by quota");
+		}
+		quota.buffers.clear(bufferId);
+		pages.clear(bufferId);
+		--pagesInUse;
+		--quota.used;
+		if (quota.used < quota.reservedPages) {
+			++idlePages;
+		}
+		notifyAll();
+	}
+
+	private synchronized void close(Quota quota) {
+		if (quota.closed) {
+			return;
+		}
+		BitSet owned = quota.buffers;
+		for(int bufferId = owned.nextSetBit(0); bufferId >= 0; bufferId = owned.nextSetBit(bufferId + 1)) {
+			pages.clear(bufferId);
+			--pagesInUse;
+		}
+		owned.clear();
+		idlePages -= Math.max(0, quota.reservedPages - quota.used);
+		reservedPages -= quota.reservedPages;
+		quota.used = 0;
+		quota.closed = true;
+		notifyAll();
+	}
+
+	// guarded by this
+	private int getPageLimit(Quota quota) {
+		int otherIdlePages = idlePages - Math.max(0, quota.reservedPages - quota.used);
+		// reserved pages of other quotas are not counted, they could be claimed back any time
+		int available = Math.min(quota.maxPages - quota.used, pageCount - pagesInUse - otherIdlePages);
+		return quota.used + Math.max(0, available);
+	}
+
+	/**
+	 * Share of pool used by single backend.
+	 */
+	class Quota {
+
+		final int reservedPages;
+		final int maxPages;
+		// guarded by pool
+		int used;
+		final BitSet buffers = new BitSet();
+		boolean closed;
+
+		Quota(int reservedPages, int maxPages) {
+			this.reservedPages = reservedPages;
+			this.maxPages = maxPages;
+		}
+
+		/**
+		 * Blocks until page is available.
+		 * @return buffer id
+		 */
+		public int allocate() {
+			return PagePool.this.allocate(this);
+		}
+
+		/**
+		 * @return buffer id or -1 if no page could be taken at the moment
+		 */
+		public int tryAllocate() {
+			return PagePool.this.tryAllocate(this);
+		}
+
+		/**
+		 * @return zeroed page buffer
+		 */
+		public ByteBuffer buffer(int bufferId) {
+			return slice(bufferId);
+		}
+
+		public void release(int bufferId) {
+			PagePool.this.release(this, bufferId);
+		}
+
+		/**
+		 * Returns all pages and reservation of quota to pool, pages should not be accessed afterwards.
+		 */
+		public void close() {
+			PagePool.this.close(this);
+		}
+
+		/**
+		 * @return number of pages quota could hold without taking reserved pages of other quotas
+		 */
+		public int getPageLimit() {
+			synchronized(PagePool.this) {
+				return PagePool.this.getPageLimit(this);
+			}
+		}
+
+		public int getPagesInUse() {
+			synchronized(PagePool.this) {
+				return used;
+			}
+		}
+	}
+}
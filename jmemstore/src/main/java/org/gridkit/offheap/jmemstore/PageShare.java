@@ -0,0 +1,149 @@
+/**
+ *  Copyright 2011 Alexey Ragozin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.gridkit.offheap.jmemstore;
+
+import java.util.Arrays;
+
+/**
+ * Reference counts of page shared by forked stores.
+ * <br/>
+ * Each side (owner of page set) holding the page counts its own live bytes on page.
+ * Shared page is immutable, chunk released by one side is still visible to others,
+ * so release only decrements counter of side. Page could be freed once last side has left it.
+ * Once only one side is left, share is detached and page becomes normal page of that side.
+ *
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+class PageShare {
+
+	/** Returned by {@link #release(int, int)} once share is detached from page */
+	public static final int DETACHED = -1;
+
+	private int[] owners;
+	private int[] usage;
+	private boolean detached;
+
+	public PageShare(int owner, int forkOwner, int memUsed) {
+		owners = new int[]{owner, forkOwner};
+		usage = new int[]{memUsed, memUsed};
+	}
+
+	public synchronized boolean contains(int owner) {
+		return indexOf(owner) >= 0;
+	}
+
+	/**
+	 * New side inherits all bytes of forked side.
+	 */
+	public synchronized void fork(int owner, int forkOwner) {
+		int n = indexOf(owner);
+		if (n < 0) {
+			throw new IllegalArgumentException("Owner " + owner + " does not share page");
+		}
+		owners = Arrays.copyOf(owners, owners.length + 1);
+		usage = Arrays.copyOf(usage, usage.length + 1);
+		owners[owners.length - 1] = forkOwner;
+		usage[usage.length - 1] = usage[n];
+	}
+
+	/**
+	 * @return remaining bytes of side, <code>0</code> if side has left page or {@link #DETACHED} if chunk should be released by page itself
+	 */
+	public synchronized int release(int owner, int len) {
+		if (detached) {
+			return DETACHED;
+		}
+		int n = indexOf(owner);
+		if (n < 0) {
+			throw new IllegalArgumentException("Owner " + owner + " does not share page");
+		}
+		usage[n] -= len;
+		if (usage[n] <= 0) {
+			remove(n);
+			return 0;
+		}
+		return usage[n];
+	}
+
+	/**
+	 * Side leaves page regardless of its remaining bytes.
+	 * @return <code>true</code> if side has been holding page
+	 */
+	public synchronized boolean drop(int owner) {
+		int n = indexOf(owner);
+		if (n >= 0) {
+			remove(n);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Detaches share if no more than one side is left.
+	 * @return bytes of remaining side, <code>0</code> if no side is left or <code>-1</code> if page is still shared
+	 */
+	public synchronized int detach() {
+		if (owners.length > 1) {
+			return -1;
+		}
+		detached = true;
+		return owners.length == 0 ? 0 : usage[0];
+	}
+
+	/**
+	 * @return only side holding page or {@link PagedBinaryStoreManager#NO_OWNER}
+	 */
+	public synchronized int lastOwner() {
+		return owners.length == 1 ? owners[0] : PagedBinaryStoreManager.NO_OWNER;
+	}
+
+	/**
+	 * @return bytes of side using page most, page could be evacuated once it is low
+	 */
+	public synchronized int maxUsage() {
+		int max = 0;
+		for(int u: usage) {
+			max = Math.max(max, u);
+		}
+		return max;
+	}
+
+	private int indexOf(int owner) {
+		for(int i = 0; i != owners.length; ++i) {
+			if (owners[i] == owner) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private void remove(int n) {
+		int[] no = new int[owners.length - 1];
+		int[] nu = new int[owners.length - 1];
+		System.arraycopy(owners, 0, no, 0, n);
+		System.arraycopy(owners, n + 1, no, n, no.length - n);
+		System.arraycopy(usage, 0, nu, 0, n);
+		System.arraycopy(usage, n + 1, nu, n, nu.length - n);
+		owners = no;
+		usage = nu;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "PageShare" + Arrays.toString(owners) + Arrays.toString(usage);
+	}
+}
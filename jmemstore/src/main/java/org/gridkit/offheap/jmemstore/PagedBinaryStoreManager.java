@@ -18,7 +18,9 @@ package org.gridkit.offheap.jmemstore;
 
 import java.lang.Thread.State;
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.LockSupport;
 
@@ -32,24 +34,67 @@ public class PagedBinaryStoreManager implements BinaryStoreManager {
 	static int HASH_POS = 0;
 	static int KEY_SIZE_POS = 4;
 	static int VALUE_SIZE_POS = 8;
-	static int DATA_POS = 12;
+	static int VERSION_POS = 12;
+	static int DATA_POS = 20;
+	// tables with 64 bit hashes keep fingerprint before data
+	static int FINGERPRINT_POS = 20;
+	static int WIDE_DATA_POS = 24;
 	
 	static int ALLOC_NEW_VALUE = 0;
 	static int ALLOC_NEW_LIST = 0;
 	static int ALLOC_RELOCATE_VALUE = 0;
 	static int ALLOC_HASH_SEGMENT = 1;
 	
+	/** Owner id of chunks allocated without owner, such chunks are offered to every store for evacuation */
+	static int NO_OWNER = 0;
+
+	/** Nodes of sorted store are split after reaching this size */
+	static int SORTED_NODE_SIZE = 1024;
+	
+	/** Upper limit for number of concurrent compaction workers */
+	static int MAX_COMPACTION_WORKERS = 16;
+	
 	private static long MEM_DIAG_REPORT_PERIOD = TimeUnit.SECONDS.toNanos(10);
 	
 	private final String name;
 	private List<MemoryConsumer> tables = new ArrayList<MemoryConsumer>();
+	private Map<MemoryConsumer, Integer> owners = new IdentityHashMap<MemoryConsumer, Integer>();
+	private int lastOwner = NO_OWNER;
+	private volatile ConsumerSet consumerSet = new ConsumerSet(new MemoryConsumer[0], new int[0]);
 	private MemoryStoreBackend pageManager;
 	private Thread maintenanceDaemon;
+	private Thread[] compactionWorkers;
+	private final float compactionCpuBudget;
+	private final CompactionPacer pacer;
+	private volatile boolean closed;
 	
 	public PagedBinaryStoreManager(String name, MemoryStoreBackend pageManager) {
+		this(name, pageManager, 1, 1f);
+	}
+
+	/**
+	 * @param compactionWorkers number of threads evacuating pages concurrently, each worker evacuates its own victim page
+	 * @param compactionCpuBudget total CPU available for compaction (in cores), split evenly between workers
+	 */
+	public PagedBinaryStoreManager(String name, MemoryStoreBackend pageManager, int compactionWorkers, float compactionCpuBudget) {
+		if (compactionWorkers < 1 || compactionWorkers > MAX_COMPACTION_WORKERS) {
+			throw new IllegalArgumentException("Number of compaction workers should be in range 1.." + MAX_COMPACTION_WORKERS + ", but was " + compactionWorkers);
+		}
+		if (!(compactionCpuBudget > 0)) {
+			throw new IllegalArgumentException("Invalid compaction CPU budget " + compactionCpuBudget);
+		}
 		this.name = name;
 		this.pageManager = pageManager;
+		this.compactionCpuBudget = compactionCpuBudget;
+		this.pacer = new CompactionPacer(pageManager);
 		this.maintenanceDaemon = createMaintenanceThread();
+		// allocators wake up maintenance thread when they run out of pages
+		pageManager.setMaintenanceThread(maintenanceDaemon);
+		// maintenance thread acts as worker #0
+		this.compactionWorkers = new Thread[compactionWorkers - 1];
+		for(int i = 0; i != this.compactionWorkers.length; ++i) {
+			this.compactionWorkers[i] = createCompactionThread(i + 1);
+		}
 	}
 	
 	private Thread createMaintenanceThread() {
@@ -64,79 +109,201 @@ public class PagedBinaryStoreManager implements BinaryStoreManager {
 		return thread;
 	}
 
-	@Override
-	public synchronized BinaryKeyValueStore createKeyValueStore() {
-		BinaryHashTable hash = new BinaryHashTable(pageManager, 512);
-		tables.add(hash);
+	private Thread createCompactionThread(final int worker) {
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				compactionCycle(worker);
+			}
+		});
+		thread.setName("PagedMemoryBinaryStore-" + name + "-Compactor-" + worker);
+		thread.setDaemon(true);
+		return thread;
+	}
+
+	/**
+	 * @return controller of compaction pace, exposes its current decisions
+	 */
+	public CompactionPacer getCompactionPacer() {
+		return pacer;
+	}
+
+	// guarded by this
+	private TaggedMemoryStoreBackend newOwnerBackend() {
+		return new TaggedMemoryStoreBackend(pageManager, ++lastOwner);
+	}
+
+	// guarded by this
+	private void register(MemoryConsumer consumer, int owner) {
+		tables.add(consumer);
+		owners.put(consumer, owner);
+		updateConsumerSet();
 		if (maintenanceDaemon.getState() == State.NEW) {
 			maintenanceDaemon.start();
 		}
+	}
+
+	// guarded by this
+	private void updateConsumerSet() {
+		MemoryConsumer[] consumers = tables.toArray(new MemoryConsumer[tables.size()]);
+		int[] ids = new int[consumers.length];
+		for(int i = 0; i != consumers.length; ++i) {
+			ids[i] = owners.get(consumers[i]);
+		}
+		consumerSet = new ConsumerSet(consumers, ids);
+	}
+
+	@Override
+	public synchronized BinaryKeyValueStore createKeyValueStore() {
+		TaggedMemoryStoreBackend backend = newOwnerBackend();
+		BinaryHashTable hash = new BinaryHashTable(backend, 512);
+		register(hash, backend.getOwner());
 		return hash;
 	}
 	
 	@Override
 	public synchronized BinaryKeyValueStore createKeyValueStore(int segments) {
-		BinaryHashTable hash = new BinaryHashTable(pageManager, segments);
-		tables.add(hash);
-		if (maintenanceDaemon.getState() == State.NEW) {
-			maintenanceDaemon.start();
+		TaggedMemoryStoreBackend backend = newOwnerBackend();
+		BinaryHashTable hash = new BinaryHashTable(backend, segments);
+		register(hash, backend.getOwner());
+		return hash;
+	}
+
+	@Override
+	public synchronized BinaryKeyValueStore createKeyValueStore(int segments, int filterBitsPerKey) {
+		return createKeyValueStore(segments, filterBitsPerKey, HashFunction.DEFAULT);
+	}
+
+	@Override
+	public synchronized BinaryKeyValueStore createKeyValueStore(int segments, int filterBitsPerKey, HashFunction hashFunction) {
+		return createKeyValueStore(segments, filterBitsPerKey, hashFunction, false);
+	}
+
+	@Override
+	public synchronized BinaryKeyValueStore createKeyValueStore(int segments, int filterBitsPerKey, HashFunction hashFunction, boolean wideHash) {
+		return createKeyValueStore(segments, filterBitsPerKey, hashFunction, wideHash, false);
+	}
+
+	@Override
+	public synchronized BinaryKeyValueStore createKeyValueStore(int segments, int filterBitsPerKey, HashFunction hashFunction, boolean wideHash, boolean segregatedPages) {
+		TaggedMemoryStoreBackend backend = newOwnerBackend();
+		if (segregatedPages) {
+			pageManager.createPageSet(backend.getOwner());
 		}
+		BinaryHashTable hash = new BinaryHashTable(backend, segments, filterBitsPerKey, hashFunction, wideHash);
+		if (segregatedPages) {
+			hash.usePageSet(backend.getOwner());
+		}
+		register(hash, backend.getOwner());
 		return hash;
 	}
 
 	@Override
-	public synchronized IdentityMapping createIdentityMapping() {
-		IdentityMappingHashTable hash = new IdentityMappingHashTable(pageManager, 512);
-		tables.add(hash);
-		if (maintenanceDaemon.getState() == State.NEW) {
-			maintenanceDaemon.start();
+	public synchronized BinaryKeyValueStore forkKeyValueStore(BinaryKeyValueStore store) {
+		if (!(store instanceof BinaryHashTable) || !owners.containsKey(store)) {
+			throw new IllegalArgumentException("Store is not managed by " + name);
 		}
+		TaggedMemoryStoreBackend backend = newOwnerBackend();
+		BinaryHashTable fork = ((BinaryHashTable)store).fork(backend, backend.getOwner());
+		register(fork, backend.getOwner());
+		return fork;
+	}
+
+	@Override
+	public synchronized IdentityMapping createIdentityMapping() {
+		return createIdentityMapping(HashFunction.DEFAULT);
+	}
+
+	@Override
+	public synchronized IdentityMapping createIdentityMapping(HashFunction hashFunction) {
+		TaggedMemoryStoreBackend backend = newOwnerBackend();
+		IdentityMappingHashTable hash = new IdentityMappingHashTable(backend, 512, hashFunction);
+		register(hash, backend.getOwner());
 		return hash;
 	}
 	
+	@Override
+	public synchronized SortedBinaryKeyValueStore createSortedKeyValueStore() {
+		TaggedMemoryStoreBackend backend = newOwnerBackend();
+		BinaryBTree tree = new BinaryBTree(backend, SORTED_NODE_SIZE);
+		register(tree, backend.getOwner());
+		return tree;
+	}
+
+	@Override
+	public synchronized BinaryKeyListStore createKeyListStore() {
+		TaggedMemoryStoreBackend backend = newOwnerBackend();
+		BinaryKeyListTree list = new BinaryKeyListTree(backend, SORTED_NODE_SIZE);
+		register(list, backend.getOwner());
+		return list;
+	}
+
 	@Override
 	public synchronized void destroy(MemoryConsumer store) {
 		// TODO check owner
 		int n = tables.indexOf(store);
 		tables.remove(n);
+		owners.remove(store);
+		updateConsumerSet();
 		store.destroy();
 	}
 	
-	@SuppressWarnings("deprecation")
-	public synchronized void close() {
-		List<MemoryConsumer> tables = new ArrayList<MemoryConsumer>(this.tables);
-		for(MemoryConsumer table: tables) {
-			destroy(table);
+	public void close() {
+		synchronized(this) {
+			List<MemoryConsumer> tables = new ArrayList<MemoryConsumer>(this.tables);
+			for(MemoryConsumer table: tables) {
+				destroy(table);
+			}
+			closed = true;
 		}
+		// threads are joined outside of monitor, maintenance thread takes it for diagnostic report
 		if (maintenanceDaemon.getState() != State.NEW) {
-			// TODO graceful death
-			maintenanceDaemon.stop();
-//			try {
-//				maintenanceDaemon.join();
-//			} catch (InterruptedException e) {
-//				// ignore
-//			}
+			// pages of destroyed tables are returned, so threads would not wait for a page forever
+			pageManager.retireEmptyPages();
+			// threads exit on closed flag, they should not touch pages once backend is closed
+			LockSupport.unpark(maintenanceDaemon);
+			joinUninterruptibly(maintenanceDaemon);
+			for(Thread worker: compactionWorkers) {
+				LockSupport.unpark(worker);
+				joinUninterruptibly(worker);
+			}
+		}
+		pageManager.retireEmptyPages();
+		pageManager.close();
+	}
+
+	private static void joinUninterruptibly(Thread thread) {
+		boolean interrupted = false;
+		while(thread.isAlive()) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
 		}
 	}
 
 	private void maintenanceCycle() {
-		int n = 0;
+		for(Thread worker: compactionWorkers) {
+			worker.start();
+		}
+		
 		int idle = 0;
 		long diagTimestamp = System.nanoTime();
 		
-		int[] evacuationHashes = new int[1024];
+		CompactionBuffer buffer = new CompactionBuffer(1024);
 		
-		MemoryConsumer[] tableSet = new MemoryConsumer[0];
-		while(true) {
+		while(!closed) {
 			
-			if (n % 500 == 0) {
-				synchronized(this) {
-					tableSet = tables.toArray(tableSet);
-				}
-			}
+			pageManager.retireEmptyPages();
+			pacer.update();
 			
 			if (diagTimestamp + MEM_DIAG_REPORT_PERIOD < System.nanoTime()) {
 				pageManager.dumpStatistics();
+				System.out.println(pacer);
 				synchronized (this) {
 					int x = 0;
 					for(MemoryConsumer consumer : tables) {
@@ -166,40 +333,106 @@ public class PagedBinaryStoreManager implements BinaryStoreManager {
 				diagTimestamp = System.nanoTime();
 			}
 		
-			if (tableSet.length == 0) {
+			if (!compactionStep(0, buffer)) {
 				++idle;
 			}
-			else {
-				int len = pageManager.collectHashesForEvacuation(evacuationHashes, 0);
-				if (len == 0) {
-					++idle;
-				}
-				else {
-					evacuateEntries(tableSet, evacuationHashes, len);
-					Thread.yield();
-				}
-			}
 			
-			++n;
+			if (idle > 10) {
+				LockSupport.parkNanos(pacer.getIdleParkNanos());
+				idle = 0;
+			}
+		}
+	}
+
+	private void compactionCycle(int worker) {
+		int idle = 0;
+		CompactionBuffer buffer = new CompactionBuffer(1024);
+		while(!closed) {
+			if (!compactionStep(worker, buffer)) {
+				++idle;
+			}
 			
 			if (idle > 10) {
-				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(300));
+				LockSupport.parkNanos(pacer.getIdleParkNanos());
 				idle = 0;
 			}
 		}
 	}
 
-	private void evacuateEntries(MemoryConsumer[] tableSet, int[] evacuationHashes, int hashCount) {
-		for(MemoryConsumer table: tableSet) {
-//			table.tableLock.readLock().lock();
-			try {
-				table.recycleHashes(evacuationHashes, hashCount);
+	/**
+	 * Evacuates one batch of entries using worker's own cursor.
+	 * @return <code>false</code> if there was nothing to evacuate
+	 */
+	private boolean compactionStep(int worker, CompactionBuffer buffer) {
+		ConsumerSet tableSet = consumerSet;
+		if (tableSet.consumers.length == 0) {
+			return false;
+		}
+		long start = System.nanoTime();
+		int len = pageManager.collectHashesForEvacuation(buffer.hashes, buffer.owners, 0, worker);
+		if (len == 0) {
+			return false;
+		}
+		evacuateEntries(tableSet, buffer, len);
+		throttle(System.nanoTime() - start);
+		return true;
+	}
+
+	// time spent on batch is accounted as CPU time, worker rests long enough to stay within its share of budget
+	// and to keep relocation within copy rate chosen by pacer
+	private void throttle(long busyNanos) {
+		float share = compactionCpuBudget / (compactionWorkers.length + 1);
+		long delay = share >= 1f ? 0 : (long)(busyNanos * (1f - share) / share);
+		delay = Math.max(delay, pacer.getCopyDelayNanos());
+		if (delay == 0) {
+			Thread.yield();
+		}
+		else {
+			LockSupport.parkNanos(delay);
+		}
+	}
+
+	// each chunk is offered only to its owner, untagged chunks are offered to everyone
+	private void evacuateEntries(ConsumerSet tableSet, CompactionBuffer buffer, int hashCount) {
+		int[] hashes = buffer.hashes;
+		int[] owners = buffer.owners;
+		int[] selection = buffer.selection;
+		for(int t = 0; t != tableSet.consumers.length; ++t) {
+			int owner = tableSet.owners[t];
+			int n = 0;
+			for(int i = 0; i != hashCount; ++i) {
+				if (owners[i] == owner || owners[i] == NO_OWNER) {
+					selection[n++] = hashes[i];
+				}
 			}
-			finally {
-//				table.tableLock.readLock().unlock();
+			if (n > 0) {
+				tableSet.consumers[t].recycleHashes(selection, n);
 			}
 		}
-		
 	}
 	
+	private static class ConsumerSet {
+		
+		final MemoryConsumer[] consumers;
+		final int[] owners;
+
+		public ConsumerSet(MemoryConsumer[] consumers, int[] owners) {
+			this.consumers = consumers;
+			this.owners = owners;
+		}
+	}
+
+	private static class CompactionBuffer {
+		
+		final int[] hashes;
+		final int[] owners;
+		final int[] selection;
+		
+		public CompactionBuffer(int size) {
+			this.hashes = new int[size];
+			this.owners = new int[size];
+			this.selection = new int[size];
+		}
+	}
+
 }
@@ -0,0 +1,61 @@
+/**
+ *  Copyright 2011 Alexey Ragozin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.gridkit.offheap.jmemstore;
+
+import java.util.Iterator;
+
+/**
+ * Key/value store keeping keys in order. Keys are compared as unsigned byte strings.
+ * Iterators are weakly consistent, they do not block writers and may or may not reflect concurrent updates.
+ *
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+public interface SortedBinaryKeyValueStore extends BinaryKeyValueStore {
+
+	/**
+	 * @return least key greater than or equal to given key, <code>null</code> if there is no such key
+	 */
+	public ByteChunk ceilingKey(ByteChunk key);
+
+	/**
+	 * @return greatest key less than or equal to given key, <code>null</code> if there is no such key
+	 */
+	public ByteChunk floorKey(ByteChunk key);
+
+	/**
+	 * @param lowerBound lower bound of range (inclusive), <code>null</code> - unlimited
+	 * @param upperBound upper bound of range (exclusive), <code>null</code> - unlimited
+	 * @param reverse if <code>true</code> keys are iterated in descending order
+	 */
+	public Iterator<ByteChunk> keys(ByteChunk lowerBound, ByteChunk upperBound, boolean reverse);
+
+	/**
+	 * Same as {@link #keys(ByteChunk, ByteChunk, boolean)}, but each element is a pair of key and value.
+	 */
+	public Iterator<ByteChunk[]> entries(ByteChunk lowerBound, ByteChunk upperBound, boolean reverse);
+
+	/**
+	 * Iterates all keys starting with given prefix.
+	 */
+	public Iterator<ByteChunk> prefixKeys(ByteChunk prefix, boolean reverse);
+
+	/**
+	 * Iterates all entries which keys start with given prefix. Each element is a pair of key and value.
+	 */
+	public Iterator<ByteChunk[]> prefixEntries(ByteChunk prefix, boolean reverse);
+
+}
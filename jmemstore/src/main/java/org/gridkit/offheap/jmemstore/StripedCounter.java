@@ -0,0 +1,106 @@
+/**
+ *  Copyright 2011 Alexey Ragozin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.gridkit.offheap.jmemstore;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Counter split into several cache line padded cells.
+ * Writers update only their own cell, so concurrent updates from different
+ * hashtable segments do not fight for single cache line.
+ *
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+class StripedCounter {
+
+	// 16 ints = 64 bytes, one cell per cache line
+	private static final int CELL_STRIDE = 16;
+
+	private final int stripeCount;
+	private final AtomicIntegerArray cells;
+
+	public StripedCounter(int maxStripes) {
+		int n = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 4 - 1) << 1;
+		if (n > maxStripes) {
+			n = Integer.highestOneBit(maxStripes);
+		}
+		this.stripeCount = n < 1 ? 1 : n;
+		// extra cell in front to avoid sharing line with array header
+		this.cells = new AtomicIntegerArray((stripeCount + 1) * CELL_STRIDE);
+	}
+
+	/**
+	 * Creates copy of counter, cell by cell.
+	 */
+	public StripedCounter(StripedCounter that) {
+		this.stripeCount = that.stripeCount;
+		this.cells = new AtomicIntegerArray(that.cells.length());
+		for(int i = 0; i != stripeCount; ++i) {
+			cells.set((i + 1) * CELL_STRIDE, that.cells.get((i + 1) * CELL_STRIDE));
+		}
+	}
+
+	public int getStripeCount() {
+		return stripeCount;
+	}
+
+	/**
+	 * @param hint stripe selector, e.g. hashtable segment number
+	 */
+	public int stripe(int hint) {
+		return hint & (stripeCount - 1);
+	}
+
+	public void add(int stripe, int delta) {
+		cells.getAndAdd((stripe + 1) * CELL_STRIDE, delta);
+	}
+
+	public void increment(int stripe) {
+		add(stripe, 1);
+	}
+
+	public void decrement(int stripe) {
+		add(stripe, -1);
+	}
+
+	/**
+	 * Estimates total using single cell.
+	 * Cells are filled evenly by hash, so cell value multiplied by number of stripes is a fair estimate of total.
+	 * At least one cell always reports estimate not less than total, so threshold checks based on
+	 * estimate will eventually fire.
+	 */
+	public int estimate(int stripe) {
+		return cells.get((stripe + 1) * CELL_STRIDE) * stripeCount;
+	}
+
+	/**
+	 * @return sum of all cells, exact if there is no concurrent updates
+	 */
+	public int sum() {
+		int sum = 0;
+		for(int i = 0; i != stripeCount; ++i) {
+			sum += cells.get((i + 1) * CELL_STRIDE);
+		}
+		return sum;
+	}
+
+	public void reset() {
+		for(int i = 0; i != stripeCount; ++i) {
+			cells.set((i + 1) * CELL_STRIDE, 0);
+		}
+	}
+}
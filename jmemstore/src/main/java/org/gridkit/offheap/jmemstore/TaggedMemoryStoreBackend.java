@@ -0,0 +1,184 @@
+/**
+ *  Copyright 2011 Alexey Ragozin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.gridkit.offheap.jmemstore;
+
+/**
+ * View of shared {@link MemoryStoreBackend} which tags all chunks allocated through it with owner id.
+ * Compaction uses owner id to route evacuated chunks to their store only.
+ * Chunks are released and relocated on behalf of owner, which matters for pages shared by forked stores.
+ *
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+class TaggedMemoryStoreBackend implements MemoryStoreBackend {
+
+	private final MemoryStoreBackend backend;
+	private final int owner;
+
+	public TaggedMemoryStoreBackend(MemoryStoreBackend backend, int owner) {
+		this.backend = backend;
+		this.owner = owner;
+	}
+
+	public int getOwner() {
+		return owner;
+	}
+
+	@Override
+	public ByteChunk get(int pointer) {
+		return backend.get(pointer);
+	}
+
+	@Override
+	public void update(int pointer, ByteChunk bytes) {
+		backend.update(pointer, bytes);
+	}
+
+	@Override
+	public int allocate(int size, int allocNo) {
+		return backend.allocate(size, allocNo, owner);
+	}
+
+	@Override
+	public int allocate(int size, int allocNo, int owner) {
+		return backend.allocate(size, allocNo, owner);
+	}
+
+	@Override
+	public void release(int pointer) {
+		backend.release(pointer, owner);
+	}
+
+	@Override
+	public void release(int pointer, int owner) {
+		backend.release(pointer, owner);
+	}
+
+	@Override
+	public int relocate(int pointer, int allocNo) {
+		return backend.relocate(pointer, allocNo, owner);
+	}
+
+	@Override
+	public int relocate(int pointer, int allocNo, int owner) {
+		return backend.relocate(pointer, allocNo, owner);
+	}
+
+	@Override
+	public void createPageSet(int owner) {
+		backend.createPageSet(owner);
+	}
+
+	@Override
+	public boolean releasePageSet(int owner, boolean keep) {
+		return backend.releasePageSet(owner, keep);
+	}
+
+	@Override
+	public void forkPageSet(int owner, int forkOwner) {
+		backend.forkPageSet(owner, forkOwner);
+	}
+
+	@Override
+	public void retireEmptyPages() {
+		backend.retireEmptyPages();
+	}
+
+	@Override
+	public void setMaintenanceThread(Thread thread) {
+		backend.setMaintenanceThread(thread);
+	}
+
+	@Override
+	public void close() {
+		backend.close();
+	}
+
+	@Override
+	public int collectHashesForEvacuation(int[] hashes, int len) {
+		return backend.collectHashesForEvacuation(hashes, len);
+	}
+
+	@Override
+	public int collectHashesForEvacuation(int[] hashes, int[] owners, int len, int cursor) {
+		return backend.collectHashesForEvacuation(hashes, owners, len, cursor);
+	}
+
+	@Override
+	public boolean isMarkedForRecycle(int pp) {
+		return backend.isMarkedForRecycle(pp);
+	}
+
+	@Override
+	public long getMemUsage() {
+		return backend.getMemUsage();
+	}
+
+	@Override
+	public void dumpStatistics() {
+		backend.dumpStatistics();
+	}
+
+	@Override
+	public int getPageSize() {
+		return backend.getPageSize();
+	}
+
+	@Override
+	public int getPageLimit() {
+		return backend.getPageLimit();
+	}
+
+	@Override
+	public int getPagesInUse() {
+		return backend.getPagesInUse();
+	}
+
+	@Override
+	public long getPageAllocationCount() {
+		return backend.getPageAllocationCount();
+	}
+
+	@Override
+	public long getRelocatedBytes() {
+		return backend.getRelocatedBytes();
+	}
+
+	@Override
+	public void setEvacuationThresholds(float scavengeThreshold, float gcThreshold) {
+		backend.setEvacuationThresholds(scavengeThreshold, gcThreshold);
+	}
+
+	@Override
+	public int page(int npp) {
+		return backend.page(npp);
+	}
+
+	@Override
+	public int offset(int npp) {
+		return backend.offset(npp);
+	}
+
+	@Override
+	public int readInt(int pointer, int offset) {
+		return backend.readInt(pointer, offset);
+	}
+
+	@Override
+	public void writeInt(int pointer, int offset, int value) {
+		backend.writeInt(pointer, offset, value);
+	}
+}
@@ -0,0 +1,152 @@
+/**
+ *  Copyright 2011 Alexey Ragozin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.gridkit.offheap.jmemstore;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+public class AsyncKeyValueStoreTest {
+
+	@Test
+	public void basic_operations() throws Exception {
+		MemoryStoreBackend pageManager = new InHeapMemoryStoreBackend(64 << 10, 256, 2);
+		PagedBinaryStoreManager storeMan = new PagedBinaryStoreManager("AsyncKeyValueStoreTest", pageManager);
+		AsyncKeyValueStore store = new AsyncKeyValueStore("test", storeMan.createKeyValueStore(), 8, 2);
+
+		List<AsyncKeyValueStore.Result<Void>> puts = new ArrayList<AsyncKeyValueStore.Result<Void>>();
+		ByteChunk key = new ByteChunk(new byte[4]);
+		ByteChunk value = new ByteChunk(new byte[4]);
+		for(int i = 0; i != 10000; ++i) {
+			// buffers are reused, store should copy them
+			key.putInt(0, i % 1000);
+			value.putInt(0, i);
+			puts.add(store.put(key, value));
+		}
+		for(AsyncKeyValueStore.Result<Void> put: puts) {
+			put.get(10, TimeUnit.SECONDS);
+		}
+		for(int i = 0; i != 1000; ++i) {
+			key.putInt(0, i);
+			// operations on same key are executed in order
+			Assert.assertEquals(9000 + i, store.get(key).get(10, TimeUnit.SECONDS).intAt(0));
+		}
+		Assert.assertEquals(1000, store.getStore().size());
+
+		key.putInt(0, 1);
+		long version = store.putIfVersion(key, value, BinaryKeyValueStore.NO_VERSION).get();
+		Assert.assertEquals(BinaryKeyValueStore.NO_VERSION, version);
+		key.putInt(0, -1);
+		version = store.putIfVersion(key, value, BinaryKeyValueStore.NO_VERSION).get();
+		Assert.assertTrue(version != BinaryKeyValueStore.NO_VERSION);
+		Assert.assertTrue(store.removeIfVersion(key, version).get());
+		Assert.assertNull(store.get(key).get());
+
+		final CountDownLatch notified = new CountDownLatch(1);
+		store.remove(key).addListener(new Runnable() {
+			@Override
+			public void run() {
+				notified.countDown();
+			}
+		});
+		Assert.assertTrue(notified.await(10, TimeUnit.SECONDS));
+		Assert.assertEquals(0, store.getQueueDepth());
+
+		store.close();
+		storeMan.close();
+	}
+
+	@Test
+	public void segment_of_key_is_stable() {
+		MemoryStoreBackend pageManager = new InHeapMemoryStoreBackend(64 << 10, 256, 2);
+		PagedBinaryStoreManager storeMan = new PagedBinaryStoreManager("AsyncKeyValueStoreTest", pageManager);
+		BinaryHashTable table = (BinaryHashTable) storeMan.createKeyValueStore(16);
+		
+		ByteChunk key = new ByteChunk(new byte[4]);
+		int[] segments = new int[1000];
+		for(int i = 0; i != segments.length; ++i) {
+			key.putInt(0, i);
+			segments[i] = table.segmentOf(key);
+			Assert.assertTrue(segments[i] >= 0 && segments[i] < 16);
+		}
+		// queues are chosen by segment, so segment of key should survive table growth
+		for(int i = 0; i != 20000; ++i) {
+			key.putInt(0, i);
+			table.put(key, key);
+		}
+		for(int i = 0; i != segments.length; ++i) {
+			key.putInt(0, i);
+			Assert.assertEquals(segments[i], table.segmentOf(key));
+		}
+		
+		BinaryHashTable odd = (BinaryHashTable) storeMan.createKeyValueStore(12);
+		Assert.assertEquals(-1, odd.segmentOf(key));
+		storeMan.close();
+	}
+
+	@Test
+	public void read_coalescing() throws Exception {
+		MemoryStoreBackend pageManager = new InHeapMemoryStoreBackend(64 << 10, 256, 2);
+		PagedBinaryStoreManager storeMan = new PagedBinaryStoreManager("AsyncKeyValueStoreTest", pageManager);
+		final BinaryKeyValueStore backend = storeMan.createKeyValueStore();
+		final CountDownLatch gate = new CountDownLatch(1);
+		final CountDownLatch entered = new CountDownLatch(1);
+		// first put blocks single worker, so following operations stay in queue
+		BinaryKeyValueStore gated = (BinaryKeyValueStore) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{BinaryKeyValueStore.class}, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if (method.getName().equals("put") && entered.getCount() > 0) {
+					entered.countDown();
+					gate.await();
+				}
+				return method.invoke(backend, args);
+			}
+		});
+		AsyncKeyValueStore store = new AsyncKeyValueStore("test", gated, 1, 1);
+
+		ByteChunk key = new ByteChunk("key".getBytes());
+		store.put(key, new ByteChunk("A".getBytes()));
+		Assert.assertTrue(entered.await(10, TimeUnit.SECONDS));
+
+		AsyncKeyValueStore.Result<ByteChunk> r1 = store.get(key);
+		AsyncKeyValueStore.Result<ByteChunk> r2 = store.get(key);
+		Assert.assertSame(r1, r2);
+		store.put(key, new ByteChunk("B".getBytes()));
+		AsyncKeyValueStore.Result<ByteChunk> r3 = store.get(key);
+		Assert.assertNotSame(r1, r3);
+		Assert.assertEquals(3, store.getQueueDepth());
+		Assert.assertFalse(r1.isDone());
+
+		gate.countDown();
+		Assert.assertTrue(r1.get(10, TimeUnit.SECONDS).sameBytes(new ByteChunk("A".getBytes())));
+		Assert.assertTrue(r3.get(10, TimeUnit.SECONDS).sameBytes(new ByteChunk("B".getBytes())));
+
+		store.close();
+		storeMan.close();
+	}
+}
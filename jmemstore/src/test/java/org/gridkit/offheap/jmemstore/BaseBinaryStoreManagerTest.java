@@ -16,17 +16,24 @@
  */
 package org.gridkit.offheap.jmemstore;
 
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Random;
 
 import junit.framework.Assert;
 
+import org.gridkit.offheap.jmemstore.AddressByteSequence;
 import org.gridkit.offheap.jmemstore.BinaryKeyValueStore;
 import org.gridkit.offheap.jmemstore.BinaryStoreManager;
+import org.gridkit.offheap.jmemstore.BufferByteSequence;
 import org.gridkit.offheap.jmemstore.ByteChunk;
+import org.gridkit.offheap.jmemstore.ByteSequence;
 import org.junit.Test;
 
+import sun.misc.Unsafe;
+
 /**
  * @author Alexey Ragozin (alexey.ragozin@gmail.com)
  */
@@ -102,6 +109,56 @@ public abstract class BaseBinaryStoreManagerTest {
 		storeMan.close();
 	}
 
+	@Test
+	public void test_versions() {
+
+		BinaryStoreManager storeMan = createSmallPageManager();
+
+		BinaryKeyValueStore store = storeMan.createKeyValueStore();
+
+		ByteChunk key = new ByteChunk("AAAA".getBytes());
+		ByteChunk value1 = new ByteChunk("BBBB".getBytes());
+		ByteChunk value2 = new ByteChunk("CCCC".getBytes());
+		long[] version = new long[1];
+
+		Assert.assertNull(store.getWithVersion(key, version));
+		Assert.assertEquals(BinaryKeyValueStore.NO_VERSION, version[0]);
+
+		long v1 = store.putIfVersion(key, value1, BinaryKeyValueStore.NO_VERSION);
+		Assert.assertTrue(v1 != BinaryKeyValueStore.NO_VERSION);
+		Assert.assertTrue(value1.sameBytes(store.getWithVersion(key, version)));
+		Assert.assertEquals(v1, version[0]);
+
+		// key is already present
+		Assert.assertEquals(BinaryKeyValueStore.NO_VERSION, store.putIfVersion(key, value2, BinaryKeyValueStore.NO_VERSION));
+
+		long v2 = store.putIfVersion(key, value2, v1);
+		Assert.assertTrue(v2 > v1);
+		Assert.assertTrue(value2.sameBytes(store.get(key)));
+
+		// stale version
+		Assert.assertEquals(BinaryKeyValueStore.NO_VERSION, store.putIfVersion(key, value1, v1));
+		Assert.assertFalse(store.removeIfVersion(key, v1));
+
+		// plain put bumps version too
+		store.put(key, value1);
+		store.getWithVersion(key, version);
+		Assert.assertTrue(version[0] > v2);
+
+		Assert.assertTrue(store.removeIfVersion(key, version[0]));
+		Assert.assertEquals(0, store.size());
+
+		// reinserted key gets fresh version
+		long v3 = store.putIfVersion(key, value1, BinaryKeyValueStore.NO_VERSION);
+		Assert.assertTrue(v3 > version[0]);
+
+		Assert.assertFalse(store.compareAndPut(key, value2, value2));
+		Assert.assertTrue(store.compareAndPut(key, value1, value2));
+		Assert.assertTrue(value2.sameBytes(store.get(key)));
+
+		storeMan.close();
+	}
+
 //	protected BinaryStoreManager createSmallPageManager() {
 //		PageLogManager pageManager = new PageLogManager(8 << 10, 16, 2);
 //		
@@ -109,6 +166,53 @@ public abstract class BaseBinaryStoreManagerTest {
 //		return storeMan;
 //	}
 
+	@Test
+	public void test_byte_sequence_keys() throws Exception {
+
+		BinaryStoreManager storeMan = createSmallPageManager();
+
+		BinaryKeyValueStore store = storeMan.createKeyValueStore();
+
+		ByteBuffer direct = ByteBuffer.allocateDirect(64);
+		direct.put("xxAAAA".getBytes());
+		direct.flip();
+		direct.position(2);
+		ByteSequence key = new BufferByteSequence(direct);
+		ByteSequence value = new BufferByteSequence(ByteBuffer.wrap("BBBB".getBytes()));
+
+		store.put(key, value);
+		Assert.assertEquals(1, store.size());
+		Assert.assertTrue(new ByteChunk("BBBB".getBytes()).sameBytes(store.get(new ByteChunk("AAAA".getBytes()))));
+		Assert.assertTrue(new ByteChunk("BBBB".getBytes()).sameBytes(store.get(key)));
+		Assert.assertTrue(store.compareAndPut(key, new ByteChunk("BBBB".getBytes()), new ByteChunk("CCCC".getBytes())));
+		Assert.assertFalse(store.compareAndRemove(key, value));
+
+		if (AddressByteSequence.isSupported()) {
+			Field field = Unsafe.class.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			Unsafe unsafe = (Unsafe) field.get(null);
+			long address = unsafe.allocateMemory(4);
+			try {
+				for(int i = 0; i != 4; ++i) {
+					unsafe.putByte(address + i, (byte)'A');
+				}
+				ByteSequence rawKey = new AddressByteSequence(address, 4);
+				Assert.assertTrue(new ByteChunk("CCCC".getBytes()).sameBytes(store.get(rawKey)));
+				store.remove(rawKey);
+			}
+			finally {
+				unsafe.freeMemory(address);
+			}
+		}
+		else {
+			store.remove(key);
+		}
+		Assert.assertEquals(0, store.size());
+		Assert.assertNull(store.get(new ByteChunk("AAAA".getBytes())));
+
+		storeMan.close();
+	}
+
 	protected abstract BinaryStoreManager createSmallPageManager();
 	
 	@Test
@@ -117,6 +221,249 @@ public abstract class BaseBinaryStoreManagerTest {
 		BinaryStoreManager storeMan = createLargeStoreManager();
 		
 		BinaryKeyValueStore store = storeMan.createKeyValueStore();
+
+		consistencyTest(store);
+		
+		storeMan.close();
+	}
+
+	@Test
+	public void large_consistency_test_with_filter() {
+		
+		BinaryStoreManager storeMan = createLargeStoreManager();
+		
+		BinaryKeyValueStore store = storeMan.createKeyValueStore(64, 10);
+		
+		consistencyTest(store);
+		
+		storeMan.close();
+	}
+
+	@Test
+	public void consistency_test_all_hash_functions() {
+		
+		BinaryStoreManager storeMan = createLargeStoreManager();
+		
+		for(HashFunction f: HashFunction.values()) {
+			BinaryHashTable store = (BinaryHashTable) storeMan.createKeyValueStore(16, 0, f);
+			Assert.assertEquals(f, store.getHashFunction());
+			consistencyTest(store);
+			storeMan.destroy(store);
+		}
+		
+		storeMan.close();
+	}
+
+	@Test
+	public void large_consistency_test_wide_hash() {
+		
+		BinaryStoreManager storeMan = createLargeStoreManager();
+		
+		// native 64 bit hash and composite one
+		BinaryKeyValueStore store = storeMan.createKeyValueStore(64, 10, HashFunction.XXHASH32, true);
+		consistencyTest(store);
+		storeMan.destroy((MemoryConsumer) store);
+
+		store = storeMan.createKeyValueStore(16, 0, HashFunction.CRC32C, true);
+		consistencyTest(store);
+		storeMan.destroy((MemoryConsumer) store);
+		
+		storeMan.close();
+	}
+
+	@Test
+	public void large_consistency_test_parallel_compaction() {
+		
+		BinaryStoreManager storeMan = createCompactingStoreManager(4, 2f);
+		
+		BinaryKeyValueStore store1 = storeMan.createKeyValueStore(64, 10);
+		BinaryKeyValueStore store2 = storeMan.createKeyValueStore(16);
+		consistencyTest(store1);
+		consistencyTest(store2);
+		
+		storeMan.close();
+	}
+
+	@Test
+	public void consistency_test_evacuation_of_idle_stores() {
+		
+		BinaryStoreManager storeMan = createLargeStoreManager();
+		
+		// idle stores share pages with active one, so they are subject to evacuation too
+		BinaryKeyValueStore active = storeMan.createKeyValueStore(16);
+		BinaryKeyValueStore[] idle = new BinaryKeyValueStore[20];
+		for(int i = 0; i != idle.length; ++i) {
+			idle[i] = storeMan.createKeyValueStore(16);
+		}
+		for(int n = 0; n != 1000; ++n) {
+			for(int i = 0; i != idle.length; ++i) {
+				idle[i].put(toByteChunk("k" + n), toByteChunk("v" + i + ":" + n));
+				active.put(toByteChunk("k" + i + ":" + n), toByteChunk("x"));
+			}
+		}
+		active.clear();
+		
+		consistencyTest(active);
+		
+		for(int i = 0; i != idle.length; ++i) {
+			Assert.assertEquals(1000, idle[i].size());
+			for(int n = 0; n != 1000; ++n) {
+				Assert.assertTrue(idle[i].get(toByteChunk("k" + n)).sameBytes(toByteChunk("v" + i + ":" + n)));
+			}
+		}
+		
+		storeMan.close();
+	}
+
+	@Test
+	public void consistency_test_segregated_store() {
+		
+		BinaryStoreManager storeMan = createLargeStoreManager();
+		
+		BinaryKeyValueStore shared = storeMan.createKeyValueStore(16);
+		BinaryKeyValueStore segregated = storeMan.createKeyValueStore(16, 8, HashFunction.DEFAULT, false, true);
+		for(int n = 0; n != 10000; ++n) {
+			shared.put(toByteChunk("k" + n), toByteChunk("v" + n));
+			segregated.put(toByteChunk("k" + n), toByteChunk("x" + n));
+		}
+		// pages of segregated store are released without visiting entries
+		segregated.clear();
+		Assert.assertEquals(0, segregated.size());
+		Assert.assertNull(segregated.get(toByteChunk("k1")));
+		
+		consistencyTest(segregated);
+		
+		storeMan.destroy((MemoryConsumer) segregated);
+		
+		Assert.assertEquals(10000, shared.size());
+		for(int n = 0; n != 10000; ++n) {
+			Assert.assertTrue(shared.get(toByteChunk("k" + n)).sameBytes(toByteChunk("v" + n)));
+		}
+		
+		storeMan.close();
+	}
+
+	@Test
+	public void consistency_test_fork() {
+		
+		BinaryStoreManager storeMan = createLargeStoreManager();
+		
+		BinaryKeyValueStore parent = storeMan.createKeyValueStore(16, 8, HashFunction.DEFAULT, false, true);
+		for(int n = 0; n != 10000; ++n) {
+			parent.put(toByteChunk("k" + n), toByteChunk("v" + n));
+		}
+		
+		BinaryKeyValueStore fork = storeMan.forkKeyValueStore(parent);
+		Assert.assertEquals(10000, fork.size());
+		
+		// stores diverge after fork
+		for(int n = 0; n < 10000; n += 2) {
+			parent.put(toByteChunk("k" + n), toByteChunk("p" + n));
+		}
+		for(int n = 0; n < 10000; n += 3) {
+			fork.remove(toByteChunk("k" + n));
+		}
+		for(int n = 0; n != 10000; ++n) {
+			String pv = (n % 2 == 0 ? "p" : "v") + n;
+			Assert.assertTrue(parent.get(toByteChunk("k" + n)).sameBytes(toByteChunk(pv)));
+			if (n % 3 == 0) {
+				Assert.assertNull(fork.get(toByteChunk("k" + n)));
+			}
+			else {
+				Assert.assertTrue(fork.get(toByteChunk("k" + n)).sameBytes(toByteChunk("v" + n)));
+			}
+		}
+		
+		// fork leaves shared pages, parent pages are kept while fork is being rewritten and compacted
+		fork.clear();
+		consistencyTest(fork);
+		
+		Assert.assertEquals(10000, parent.size());
+		for(int n = 0; n != 10000; ++n) {
+			String pv = (n % 2 == 0 ? "p" : "v") + n;
+			Assert.assertTrue(parent.get(toByteChunk("k" + n)).sameBytes(toByteChunk(pv)));
+		}
+		
+		storeMan.destroy((MemoryConsumer) parent);
+		storeMan.destroy((MemoryConsumer) fork);
+		storeMan.close();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void test_fork_of_shared_pages_store() {
+		BinaryStoreManager storeMan = createLargeStoreManager();
+		try {
+			storeMan.forkKeyValueStore(storeMan.createKeyValueStore(16));
+		}
+		finally {
+			storeMan.close();
+		}
+	}
+
+	@Test
+	public void test_filter_false_positives() {
+		
+		BinaryStoreManager storeMan = createLargeStoreManager();
+		
+		BinaryHashTable store = (BinaryHashTable) storeMan.createKeyValueStore(64, 10);
+
+		for(int i = 0; i != 20000; ++i) {
+			store.put(toByteChunk("k" + i), toByteChunk("v" + i));
+		}
+		for(int i = 0; i < 20000; i += 2) {
+			store.remove(toByteChunk("k" + i));
+		}
+		
+		int positives = 0;
+		for(int i = 1; i < 20000; i += 2) {
+			Assert.assertTrue(store.mightContain(toByteChunk("k" + i)));
+			Assert.assertNotNull(store.get(toByteChunk("k" + i)));
+		}
+		for(int i = 0; i != 20000; ++i) {
+			ByteChunk key = toByteChunk("m" + i);
+			if (store.mightContain(key)) {
+				++positives;
+			}
+			Assert.assertNull(store.get(key));
+		}
+		// 10 bits per key should give ~1% of false positives
+		Assert.assertTrue("False positives: " + positives, positives < 600);
+		
+		storeMan.close();
+	}
+
+	@Test
+	public void test_filter_of_large_segment() {
+		
+		BinaryStoreManager storeMan = createLargeStoreManager();
+		
+		// 2000 keys per segment, 20 bits per key would need 5 times more than one filter block
+		BinaryHashTable store = (BinaryHashTable) storeMan.createKeyValueStore(32, 20);
+		
+		for(int i = 0; i != 64000; ++i) {
+			store.put(toByteChunk("k" + i), toByteChunk("v" + i));
+		}
+		
+		int positives = 0;
+		for(int i = 0; i != 64000; ++i) {
+			if (store.mightContain(toByteChunk("m" + i))) {
+				++positives;
+			}
+		}
+		// saturated filter gives ~7% of false positives
+		Assert.assertTrue("False positives: " + positives, positives < 640);
+
+		for(int i = 0; i < 64000; i += 2) {
+			store.remove(toByteChunk("k" + i));
+		}
+		for(int i = 1; i < 64000; i += 2) {
+			Assert.assertTrue(store.mightContain(toByteChunk("k" + i)));
+		}
+		
+		storeMan.close();
+	}
+	
+	private void consistencyTest(BinaryKeyValueStore store) {
 		
 		Random rnd = new Random(1);
 		Map<String, String> refMap = new HashMap<String, String>();
@@ -204,8 +551,6 @@ public abstract class BaseBinaryStoreManagerTest {
 		}
 		
 		compare(refMap, store, objNum, holeNum);
-		
-		storeMan.close();
 	}
 
 //	protected BinaryStoreManager createLargeStoreManager() {
@@ -217,6 +562,8 @@ public abstract class BaseBinaryStoreManagerTest {
 
 	abstract protected BinaryStoreManager createLargeStoreManager();
 
+	abstract protected BinaryStoreManager createCompactingStoreManager(int compactionWorkers, float compactionCpuBudget);
+
 	private static void compare(Map<String, String> ref, BinaryKeyValueStore store, int objNum, int holeNum) {
 		for(int i = 0; i != objNum + holeNum; ++i) {
 			String key = String.valueOf(100000l + i);
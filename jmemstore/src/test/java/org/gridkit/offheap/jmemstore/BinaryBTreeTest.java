@@ -0,0 +1,171 @@
+/**
+ *  Copyright 2011 Alexey Ragozin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.gridkit.offheap.jmemstore;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TreeMap;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+public class BinaryBTreeTest {
+
+	@Test
+	public void in_heap_consistency() {
+		MemoryStoreBackend pageManager = new InHeapMemoryStoreBackend(64 << 10, 256, 2);
+		check_consistency(new PagedBinaryStoreManager("BinaryBTreeTest", pageManager));
+	}
+
+	@Test
+	public void off_heap_consistency() {
+		MemoryStoreBackend pageManager = new OffHeapMemoryStoreBackend(64 << 10, 256, 2);
+		check_consistency(new PagedBinaryStoreManager("BinaryBTreeTest", pageManager));
+	}
+
+	@Test
+	public void range_and_prefix() {
+		MemoryStoreBackend pageManager = new InHeapMemoryStoreBackend(64 << 10, 16, 2);
+		PagedBinaryStoreManager storeMan = new PagedBinaryStoreManager("BinaryBTreeTest", pageManager);
+		SortedBinaryKeyValueStore store = storeMan.createSortedKeyValueStore();
+
+		for(int i = 0; i != 300; ++i) {
+			store.put(chunk("k" + (1000 + i)), chunk("v" + i));
+		}
+		store.put(chunk("k"), chunk("empty"));
+
+		Assert.assertEquals(301, store.size());
+		Assert.assertEquals("k1100", text(store.ceilingKey(chunk("k11"))));
+		Assert.assertEquals("k1099", text(store.floorKey(chunk("k11"))));
+		Assert.assertEquals("k1100", text(store.floorKey(chunk("k1100"))));
+		Assert.assertNull(store.ceilingKey(chunk("l")));
+		Assert.assertNull(store.floorKey(chunk("a")));
+
+		Assert.assertEquals("[k1010, k1011, k1012]", keys(store.keys(chunk("k1010"), chunk("k1013"), false)));
+		Assert.assertEquals("[k1012, k1011, k1010]", keys(store.keys(chunk("k1010"), chunk("k1013"), true)));
+		Assert.assertEquals(10, count(store.prefixKeys(chunk("k102"), false)));
+		Assert.assertEquals("[k1129, k1128]", keys(limit(store.prefixKeys(chunk("k112"), true), 2)));
+		Assert.assertEquals(301, count(store.prefixKeys(chunk("k"), true)));
+		Assert.assertEquals(0, count(store.prefixKeys(chunk("x"), false)));
+
+		Iterator<ByteChunk[]> it = store.prefixEntries(chunk("k1299"), false);
+		ByteChunk[] e = it.next();
+		Assert.assertEquals("k1299", text(e[0]));
+		Assert.assertEquals("v299", text(e[1]));
+		Assert.assertFalse(it.hasNext());
+
+		store.clear();
+		Assert.assertEquals(0, store.size());
+		Assert.assertFalse(store.keys().hasNext());
+
+		storeMan.close();
+	}
+
+	private void check_consistency(PagedBinaryStoreManager storeMan) {
+		SortedBinaryKeyValueStore store = storeMan.createSortedKeyValueStore();
+		NavigableMap<String, String> ref = new TreeMap<String, String>();
+		Random rnd = new Random(1);
+
+		for(int n = 0; n != 200000; ++n) {
+			String key = "key" + rnd.nextInt(20000);
+			if (rnd.nextInt(4) == 0) {
+				store.remove(chunk(key));
+				ref.remove(key);
+			}
+			else {
+				String value = "value" + n + "-" + rnd.nextInt(1000000);
+				store.put(chunk(key), chunk(value));
+				ref.put(key, value);
+			}
+			if (n % 20000 == 0) {
+				verify(ref, store);
+			}
+		}
+		verify(ref, store);
+
+		String from = "key1";
+		String to = "key2";
+		Assert.assertEquals(new ArrayList<String>(ref.subMap(from, to).keySet()).toString(), keys(store.keys(chunk(from), chunk(to), false)));
+		Assert.assertEquals(new ArrayList<String>(ref.subMap(from, true, to, false).descendingMap().keySet()).toString(), keys(store.keys(chunk(from), chunk(to), true)));
+
+		for(String key: new ArrayList<String>(ref.keySet())) {
+			store.remove(chunk(key));
+		}
+		Assert.assertEquals(0, store.size());
+		Assert.assertFalse(store.keys().hasNext());
+
+		storeMan.close();
+	}
+
+	private static void verify(NavigableMap<String, String> ref, SortedBinaryKeyValueStore store) {
+		Assert.assertEquals(ref.size(), store.size());
+		Iterator<ByteChunk[]> it = store.entries(null, null, false);
+		for(Map.Entry<String, String> e: ref.entrySet()) {
+			ByteChunk[] entry = it.next();
+			Assert.assertEquals(e.getKey(), text(entry[0]));
+			Assert.assertEquals(e.getValue(), text(entry[1]));
+			Assert.assertEquals(e.getValue(), text(store.get(chunk(e.getKey()))));
+		}
+		Assert.assertFalse(it.hasNext());
+		it = store.entries(null, null, true);
+		for(String key: ref.descendingKeySet()) {
+			Assert.assertEquals(key, text(it.next()[0]));
+		}
+		Assert.assertFalse(it.hasNext());
+	}
+
+	private static ByteChunk chunk(String text) {
+		return new ByteChunk(text.getBytes());
+	}
+
+	private static String text(ByteChunk chunk) {
+		return new String(chunk.array(), chunk.offset(), chunk.lenght());
+	}
+
+	private static Iterator<ByteChunk> limit(Iterator<ByteChunk> it, int n) {
+		List<ByteChunk> list = new ArrayList<ByteChunk>();
+		while(it.hasNext() && list.size() < n) {
+			list.add(it.next());
+		}
+		return list.iterator();
+	}
+
+	private static String keys(Iterator<ByteChunk> it) {
+		List<String> list = new ArrayList<String>();
+		while(it.hasNext()) {
+			list.add(text(it.next()));
+		}
+		return list.toString();
+	}
+
+	private static int count(Iterator<ByteChunk> it) {
+		int n = 0;
+		while(it.hasNext()) {
+			it.next();
+			++n;
+		}
+		return n;
+	}
+}
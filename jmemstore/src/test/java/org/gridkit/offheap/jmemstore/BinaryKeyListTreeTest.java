@@ -0,0 +1,181 @@
+/**
+ *  Copyright 2011 Alexey Ragozin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.gridkit.offheap.jmemstore;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+public class BinaryKeyListTreeTest {
+
+	@Test
+	public void in_heap_consistency() {
+		MemoryStoreBackend pageManager = new InHeapMemoryStoreBackend(64 << 10, 256, 2);
+		check_consistency(new PagedBinaryStoreManager("BinaryKeyListTreeTest", pageManager));
+	}
+
+	@Test
+	public void off_heap_consistency() {
+		MemoryStoreBackend pageManager = new OffHeapMemoryStoreBackend(64 << 10, 256, 2);
+		check_consistency(new PagedBinaryStoreManager("BinaryKeyListTreeTest", pageManager));
+	}
+
+	@Test
+	public void long_posting_list() {
+		MemoryStoreBackend pageManager = new InHeapMemoryStoreBackend(64 << 10, 256, 2);
+		PagedBinaryStoreManager storeMan = new PagedBinaryStoreManager("BinaryKeyListTreeTest", pageManager);
+		BinaryKeyListStore store = storeMan.createKeyListStore();
+
+		ByteChunk key = chunk("term");
+		// append in reverse order, list should be sorted anyway
+		for(int i = 100000; i != 0; --i) {
+			store.append(key, intChunk(i));
+		}
+		store.append(chunk("other"), intChunk(1));
+
+		Assert.assertEquals(100000, store.cordinality(key));
+		Assert.assertEquals(2, store.size());
+
+		ByteChunk[] page = new ByteChunk[10];
+		Assert.assertEquals(10, store.fetch(key, null, null, page));
+		Assert.assertEquals(1, page[0].intAt(0));
+		Assert.assertEquals(10, page[9].intAt(0));
+
+		Assert.assertEquals(10, store.fetch(key, intChunk(50000), null, page));
+		Assert.assertEquals(50001, page[0].intAt(0));
+
+		Assert.assertEquals(3, store.fetch(key, intChunk(50000), intChunk(50004), page));
+		Assert.assertEquals(50003, page[2].intAt(0));
+
+		Assert.assertEquals(1, store.fetch(key, intChunk(99999), null, page));
+		Assert.assertEquals(100000, page[0].intAt(0));
+
+		store.remove(key);
+		Assert.assertEquals(0, store.cordinality(key));
+		Assert.assertEquals(0, store.fetch(key, null, null, page));
+		Assert.assertEquals(1, store.size());
+		Assert.assertTrue(store.contains(chunk("other"), intChunk(1)));
+
+		storeMan.close();
+	}
+
+	private void check_consistency(PagedBinaryStoreManager storeMan) {
+		BinaryKeyListStore store = storeMan.createKeyListStore();
+		TreeMap<String, NavigableSet<String>> ref = new TreeMap<String, NavigableSet<String>>();
+		Random rnd = new Random(1);
+
+		for(int n = 0; n != 100000; ++n) {
+			String key = "key" + rnd.nextInt(200);
+			String value = "v" + rnd.nextInt(1000);
+			int op = rnd.nextInt(10);
+			if (op == 0) {
+				store.remove(chunk(key), chunk(value));
+				if (ref.containsKey(key)) {
+					ref.get(key).remove(value);
+					if (ref.get(key).isEmpty()) {
+						ref.remove(key);
+					}
+				}
+			}
+			else if (op == 1 && rnd.nextInt(20) == 0) {
+				store.remove(chunk(key));
+				ref.remove(key);
+			}
+			else {
+				store.append(chunk(key), chunk(value));
+				if (!ref.containsKey(key)) {
+					ref.put(key, new TreeSet<String>());
+				}
+				ref.get(key).add(value);
+			}
+			if (n % 10000 == 0) {
+				verify(ref, store);
+			}
+		}
+		verify(ref, store);
+
+		store.clear();
+		Assert.assertEquals(0, store.size());
+		Assert.assertFalse(store.keys().hasNext());
+
+		storeMan.close();
+	}
+
+	private static void verify(TreeMap<String, NavigableSet<String>> ref, BinaryKeyListStore store) {
+		Assert.assertEquals(ref.size(), store.size());
+		List<String> keys = new ArrayList<String>();
+		Iterator<ByteChunk> it = store.keys();
+		while(it.hasNext()) {
+			keys.add(text(it.next()));
+		}
+		// keys are ordered by length first
+		Assert.assertEquals(ref.size(), keys.size());
+		Assert.assertEquals(ref.keySet(), new TreeSet<String>(keys));
+
+		for(Map.Entry<String, NavigableSet<String>> e: ref.entrySet()) {
+			ByteChunk key = chunk(e.getKey());
+			NavigableSet<String> values = e.getValue();
+			Assert.assertEquals(values.size(), store.cordinality(key));
+			Assert.assertTrue(store.contains(key, chunk(values.first())));
+			Assert.assertFalse(store.contains(key, chunk("x")));
+
+			ByteChunk[] buf = new ByteChunk[values.size() + 1];
+			Assert.assertEquals(values.size(), store.fetch(key, null, null, buf));
+			Assert.assertEquals(new ArrayList<String>(values).toString(), texts(buf, values.size()));
+
+			String lower = "v3";
+			String upper = "v6";
+			NavigableSet<String> range = values.subSet(lower, false, upper, false);
+			int n = store.fetch(key, chunk(lower), chunk(upper), buf);
+			Assert.assertEquals(new ArrayList<String>(range).toString(), texts(buf, n));
+		}
+	}
+
+	private static ByteChunk chunk(String text) {
+		return new ByteChunk(text.getBytes());
+	}
+
+	private static ByteChunk intChunk(int n) {
+		ByteChunk chunk = new ByteChunk(new byte[4]);
+		chunk.putInt(0, n);
+		return chunk;
+	}
+
+	private static String text(ByteChunk chunk) {
+		return new String(chunk.array(), chunk.offset(), chunk.lenght());
+	}
+
+	private static String texts(ByteChunk[] chunks, int n) {
+		List<String> list = new ArrayList<String>();
+		for(int i = 0; i != n; ++i) {
+			list.add(text(chunks[i]));
+		}
+		return list.toString();
+	}
+}
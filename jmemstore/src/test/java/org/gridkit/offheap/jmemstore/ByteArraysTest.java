@@ -0,0 +1,109 @@
+/**
+ *  Copyright 2011 Alexey Ragozin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.gridkit.offheap.jmemstore;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+public class ByteArraysTest {
+
+	@Test
+	public void mismatch_at_every_position() {
+		Random rnd = new Random(1);
+		for(int len = 0; len != 40; ++len) {
+			for(int offs = 0; offs != 9; ++offs) {
+				byte[] a = new byte[offs + len];
+				rnd.nextBytes(a);
+				byte[] b = new byte[len + 3];
+				System.arraycopy(a, offs, b, 3, len);
+				Assert.assertEquals(-1, ByteArrays.mismatch(a, offs, b, 3, len));
+				Assert.assertTrue(ByteArrays.equals(a, offs, b, 3, len));
+				for(int i = 0; i != len; ++i) {
+					byte old = b[3 + i];
+					b[3 + i] = (byte) (old ^ (1 << rnd.nextInt(8)));
+					Assert.assertEquals(i, ByteArrays.mismatch(a, offs, b, 3, len));
+					Assert.assertEquals(Integer.signum((0xFF & a[offs + i]) - (0xFF & b[3 + i])), Integer.signum(ByteArrays.compare(a, offs, len, b, 3, len)));
+					b[3 + i] = old;
+				}
+			}
+		}
+	}
+
+	@Test
+	public void unsigned_compare() {
+		byte[] a = {1, 2, 3, 4, 5, 6, 7, 8, (byte)0x80, 0};
+		byte[] b = {1, 2, 3, 4, 5, 6, 7, 8, 0x7F, 0};
+		Assert.assertTrue(ByteArrays.compare(a, 0, a.length, b, 0, b.length) > 0);
+		Assert.assertTrue(ByteArrays.compare(b, 0, b.length, a, 0, a.length) < 0);
+		Assert.assertTrue(ByteArrays.compare(a, 0, 8, a, 0, 10) < 0);
+		Assert.assertEquals(0, ByteArrays.compare(a, 0, 8, b, 0, 8));
+	}
+
+	@Test
+	public void chunk_compare() {
+		ByteChunk a = new ByteChunk("0123456789ABCDEFxyz".getBytes());
+		ByteChunk b = new ByteChunk("__0123456789ABCDEFxyw".getBytes(), 2, 19);
+		Assert.assertEquals(18, a.mismatch(b));
+		Assert.assertFalse(a.sameBytes(b));
+		Assert.assertTrue(a.subChunk(0, 18).sameBytes(b.subChunk(0, 18)));
+		Assert.assertEquals(18, a.mismatch(b.subChunk(0, 18)));
+		Assert.assertTrue(b.sameBytes(4, a.subChunk(4, 12)));
+		Assert.assertFalse(b.sameBytes(10, a.subChunk(10, 9)));
+	}
+
+	@Test
+	public void buffer_sequence_compare() {
+		Random rnd = new Random(1);
+		for(int len = 0; len != 40; ++len) {
+			byte[] a = new byte[len + 5];
+			rnd.nextBytes(a);
+			ByteChunk chunk = new ByteChunk(a, 2, len + 3);
+			ByteBuffer direct = ByteBuffer.allocateDirect(len + 1);
+			direct.position(1);
+			direct.put(a, 3, len);
+			// sequence starts at odd position of buffer, so word reads are unaligned
+			BufferByteSequence seq = new BufferByteSequence(direct, 1, len);
+			Assert.assertTrue(chunk.sameBytes(1, seq));
+			Assert.assertEquals(len == 0, chunk.sameBytes(len + 3, seq));
+			for(int i = 0; i != len; ++i) {
+				byte old = direct.get(1 + i);
+				direct.put(1 + i, (byte) (old ^ (1 << rnd.nextInt(8))));
+				Assert.assertFalse(chunk.sameBytes(1, seq));
+				direct.put(1 + i, old);
+			}
+		}
+	}
+
+	@Test
+	public void zero_check() {
+		byte[] a = new byte[37];
+		Assert.assertTrue(ByteArrays.isZero(a, 0, a.length));
+		for(int i = 0; i != a.length; ++i) {
+			a[i] = 1;
+			Assert.assertFalse(ByteArrays.isZero(a, 0, a.length));
+			Assert.assertTrue(ByteArrays.isZero(a, i + 1, a.length - i - 1));
+			a[i] = 0;
+		}
+	}
+}
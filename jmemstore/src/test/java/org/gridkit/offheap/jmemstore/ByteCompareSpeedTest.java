@@ -0,0 +1,73 @@
+/**
+ *  Copyright 2011 Alexey Ragozin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.gridkit.offheap.jmemstore;
+
+import java.util.Random;
+
+import org.junit.Ignore;
+
+/**
+ * Compares byte loop against word-at-a-time comparison for keys of different length.
+ *
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+@Ignore
+public class ByteCompareSpeedTest {
+
+	private static final int TOTAL_BYTES = 1 << 30;
+
+	public static void main(String[] args) {
+		int[] lengths = {8, 16, 32, 64, 256, 1024};
+		for(int pass = 0; pass != 3; ++pass) {
+			for(int len: lengths) {
+				byte[] a = new byte[len + 1];
+				new Random(len).nextBytes(a);
+				byte[] b = a.clone();
+				int n = TOTAL_BYTES / len;
+
+				long start = System.nanoTime();
+				int matched = 0;
+				for(int i = 0; i != n; ++i) {
+					if (byteLoop(a, i & 1, b, i & 1, len)) {
+						++matched;
+					}
+				}
+				long loopTime = System.nanoTime() - start;
+
+				start = System.nanoTime();
+				for(int i = 0; i != n; ++i) {
+					if (ByteArrays.equals(a, i & 1, b, i & 1, len)) {
+						++matched;
+					}
+				}
+				long wordTime = System.nanoTime() - start;
+
+				System.out.println(String.format("len %5d  byte loop %6.2f ns  words %6.2f ns  speedup %4.1fx  (%d)",
+						len, (double)loopTime / n, (double)wordTime / n, (double)loopTime / wordTime, matched));
+			}
+		}
+	}
+
+	private static boolean byteLoop(byte[] a, int aOffs, byte[] b, int bOffs, int len) {
+		for(int i = 0; i != len; ++i) {
+			if (a[aOffs + i] != b[bOffs + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,97 @@
+/**
+ *  Copyright 2011 Alexey Ragozin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.gridkit.offheap.jmemstore;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+public class CompactionPacerTest {
+
+	private long pacingPeriod;
+
+	@Before
+	public void fastPacing() {
+		pacingPeriod = CompactionPacer.PACING_PERIOD;
+		CompactionPacer.PACING_PERIOD = 0;
+	}
+
+	@After
+	public void restorePacing() {
+		CompactionPacer.PACING_PERIOD = pacingPeriod;
+	}
+
+	@Test
+	public void test_idle_backend() throws InterruptedException {
+		InHeapMemoryStoreBackend backend = new InHeapMemoryStoreBackend(8 << 10, 16, 2);
+		CompactionPacer pacer = new CompactionPacer(backend);
+
+		Thread.sleep(1);
+		pacer.update();
+
+		Assert.assertEquals(0f, pacer.getPressure(), 0f);
+		Assert.assertEquals(0d, pacer.getAllocationRate(), 0d);
+		Assert.assertEquals(14, pacer.getFreePages());
+		Assert.assertEquals(0.5f, pacer.getScavengeThreshold(), 0.001f);
+		Assert.assertEquals(0.1f, pacer.getGcThreshold(), 0.001f);
+		// trickle of one page per second
+		Assert.assertEquals(8 << 10, pacer.getCopyRateLimit(), 0d);
+	}
+
+	@Test
+	public void test_pressure_follows_allocation() throws InterruptedException {
+		InHeapMemoryStoreBackend backend = new InHeapMemoryStoreBackend(8 << 10, 16, 2);
+		CompactionPacer pacer = new CompactionPacer(backend);
+
+		List<Integer> chunks = new ArrayList<Integer>();
+		while(backend.getPagesInUse() < 14) {
+			chunks.add(backend.allocate(1000, 0));
+		}
+		Thread.sleep(1);
+		pacer.update();
+
+		Assert.assertTrue(pacer.getAllocationRate() > 0);
+		// free pages would last only few milliseconds
+		Assert.assertTrue(pacer.getPressure() > 0.9f);
+		Assert.assertTrue(pacer.getScavengeThreshold() > 0.85f);
+		// compaction is allowed to copy faster than allocation
+		Assert.assertTrue(pacer.getCopyRateLimit() > pacer.getAllocationRate());
+
+		for(int pp: chunks) {
+			backend.release(pp);
+		}
+		// empty pages are returned by maintenance thread
+		backend.retireEmptyPages();
+		// allocation rate decays while there is no allocation
+		for(int i = 0; i != 50; ++i) {
+			Thread.sleep(1);
+			pacer.update();
+		}
+
+		Assert.assertTrue(pacer.getReleaseRate() > 0);
+		Assert.assertTrue(pacer.getPressure() < 0.5f);
+		Assert.assertTrue(pacer.getScavengeThreshold() < 0.9f);
+		Assert.assertTrue(pacer.getCopyRateLimit() < Double.POSITIVE_INFINITY);
+	}
+}
@@ -0,0 +1,81 @@
+/**
+ *  Copyright 2011 Alexey Ragozin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.gridkit.offheap.jmemstore;
+
+import java.util.Random;
+
+import org.junit.Ignore;
+
+/**
+ * Throughput of {@link HashFunction}s for different key sizes.
+ * Ad-hoc comparison run from <code>main</code>, each function is warmed up, then measured for several fixed time iterations.
+ * Numbers are indicative only, this is not a JMH harness.
+ *
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+@Ignore
+public class HashFunctionSpeedTest {
+
+	private static final int[] KEY_SIZES = {16, 100, 1000, 64 << 10};
+	private static final int WARMUP_ITERATIONS = 5;
+	private static final int ITERATIONS = 5;
+	private static final long ITERATION_NANOS = 200 * 1000 * 1000;
+
+	private static int blackhole;
+
+	public static void main(String[] args) {
+		System.out.println(String.format("%-10s %8s %12s %10s", "function", "key size", "ns/key", "MiB/s"));
+		for(int size: KEY_SIZES) {
+			byte[][] keys = new byte[64][];
+			Random rnd = new Random(size);
+			for(int i = 0; i != keys.length; ++i) {
+				keys[i] = new byte[size];
+				rnd.nextBytes(keys[i]);
+			}
+			for(HashFunction f: HashFunction.values()) {
+				for(int i = 0; i != WARMUP_ITERATIONS; ++i) {
+					iteration(f, keys);
+				}
+				long ops = 0;
+				long time = 0;
+				for(int i = 0; i != ITERATIONS; ++i) {
+					long start = System.nanoTime();
+					ops += iteration(f, keys);
+					time += System.nanoTime() - start;
+				}
+				double nsPerKey = (double)time / ops;
+				double mbs = (double)ops * size / (1 << 20) / (time / 1e9);
+				System.out.println(String.format("%-10s %8d %12.1f %10.0f", f, size, nsPerKey, mbs));
+			}
+		}
+		System.out.println("(" + blackhole + ")");
+	}
+
+	private static long iteration(HashFunction f, byte[][] keys) {
+		long deadline = System.nanoTime() + ITERATION_NANOS;
+		long ops = 0;
+		int sum = 0;
+		while(System.nanoTime() < deadline) {
+			for(int i = 0; i != keys.length; ++i) {
+				sum += f.hash(keys[i], 0, keys[i].length);
+			}
+			ops += keys.length;
+		}
+		blackhole += sum;
+		return ops;
+	}
+}
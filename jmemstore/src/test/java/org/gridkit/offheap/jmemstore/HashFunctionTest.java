@@ -0,0 +1,121 @@
+/**
+ *  Copyright 2011 Alexey Ragozin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.gridkit.offheap.jmemstore;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+public class HashFunctionTest {
+
+	@Test
+	public void murmur3_reference_values() {
+		Assert.assertEquals(0, HashFunction.MURMUR3.hash(bytes("")));
+		Assert.assertEquals(0x248bfa47, HashFunction.MURMUR3.hash(bytes("hello")));
+		Assert.assertEquals(0x2e4ff723, HashFunction.MURMUR3.hash(bytes("The quick brown fox jumps over the lazy dog")));
+	}
+
+	@Test
+	public void xxhash32_reference_values() {
+		Assert.assertEquals(0x02cc5d05, HashFunction.XXHASH32.hash(bytes("")));
+		Assert.assertEquals(0xe2293b2f, HashFunction.XXHASH32.hash(bytes("Nobody inspects the spammish repetition")));
+	}
+
+	@Test
+	public void xxhash64_reference_values() {
+		Assert.assertEquals(0xef46db3751d8e999l, HashFunction.XXHASH32.hash64(bytes("")));
+		Assert.assertEquals(0xfbcea83c8a378bf1l, HashFunction.XXHASH32.hash64(bytes("Nobody inspects the spammish repetition")));
+	}
+
+	@Test
+	public void crc32c_reference_values() {
+		Assert.assertEquals(0xe3069283, HashFunction.CRC32C.hash(bytes("123456789")));
+		Assert.assertEquals(0xe3069283, BinHash.crc32c("123456789".getBytes(), 0, 9));
+	}
+
+	@Test
+	public void crc32_is_compatible_with_legacy_hash() {
+		ByteChunk key = bytes("legacy key");
+		Assert.assertEquals(BinHash.hash(key), HashFunction.CRC32.hash(key));
+	}
+
+	@Test
+	public void hash_does_not_depend_on_offset_or_sequence_type() {
+		Random rnd = new Random(0);
+		for(HashFunction f: HashFunction.values()) {
+			for(int len = 0; len != 100; ++len) {
+				byte[] data = new byte[len + 7];
+				rnd.nextBytes(data);
+				int h = f.hash(data, 0, len);
+				long h64 = f.hash64(data, 0, len);
+				for(int offs = 1; offs != 8; ++offs) {
+					System.arraycopy(data, 0, data, offs, len);
+					Assert.assertEquals(f + " len " + len, h, f.hash(new ByteChunk(data, offs, len)));
+					Assert.assertEquals(f + " len " + len, h64, f.hash64(new ByteChunk(data, offs, len)));
+					System.arraycopy(data, offs, data, 0, len);
+				}
+				ByteBuffer direct = ByteBuffer.allocateDirect(len);
+				direct.put(data, 0, len);
+				direct.flip();
+				Assert.assertEquals(f + " len " + len, h, f.hash(new BufferByteSequence(direct)));
+				Assert.assertEquals(f + " len " + len, h64, f.hash64(new BufferByteSequence(direct)));
+				ByteBuffer heap = ByteBuffer.allocate(len + 3).order(ByteOrder.BIG_ENDIAN);
+				heap.position(3);
+				heap.put(data, 0, len);
+				Assert.assertEquals(f + " len " + len, h, f.hash(new BufferByteSequence(heap, 3, len)));
+				Assert.assertEquals(f + " len " + len, h64, f.hash64(new BufferByteSequence(heap, 3, len)));
+			}
+		}
+	}
+
+	@Test
+	public void address_sequence_is_hashed_in_place() {
+		Assume.assumeTrue(AddressByteSequence.isSupported());
+		Random rnd = new Random(1);
+		long address = ByteArrays.UNSAFE.allocateMemory(200);
+		try {
+			for(HashFunction f: HashFunction.values()) {
+				for(int len = 1; len != 100; ++len) {
+					byte[] data = new byte[len];
+					rnd.nextBytes(data);
+					// odd address, so unaligned reads are checked too
+					for(int i = 0; i != len; ++i) {
+						ByteArrays.UNSAFE.putByte(address + 1 + i, data[i]);
+					}
+					AddressByteSequence seq = new AddressByteSequence(address + 1, len);
+					Assert.assertEquals(f + " len " + len, f.hash(data, 0, len), f.hash(seq));
+					Assert.assertEquals(f + " len " + len, f.hash64(data, 0, len), f.hash64(seq));
+				}
+			}
+		}
+		finally {
+			ByteArrays.UNSAFE.freeMemory(address);
+		}
+	}
+
+	private static ByteChunk bytes(String text) {
+		return new ByteChunk(text.getBytes());
+	}
+}
@@ -0,0 +1,117 @@
+/**
+ *  Copyright 2011 Alexey Ragozin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.gridkit.offheap.jmemstore;
+
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+public class IdAllocatorTest {
+
+	@Test
+	public void dense_allocation() {
+		IdAllocator ids = new IdAllocator();
+		for(int i = 0; i != 10000; ++i) {
+			Assert.assertEquals(i, ids.allocate());
+		}
+		ids.release(5000);
+		ids.release(17);
+		ids.release(9999);
+		// lowest gaps are reused first
+		Assert.assertEquals(17, ids.allocate());
+		Assert.assertEquals(5000, ids.allocate());
+		Assert.assertEquals(9999, ids.allocate());
+		Assert.assertEquals(10000, ids.allocate());
+		Assert.assertEquals(10001, ids.size());
+
+		Assert.assertFalse(ids.reserve(100));
+		Assert.assertTrue(ids.reserve(20000));
+		Assert.assertTrue(ids.isAllocated(20000));
+		Assert.assertFalse(ids.isAllocated(19999));
+		Assert.assertEquals(10001, ids.allocate());
+
+		try {
+			ids.release(19999);
+			Assert.fail("Exception expected");
+		}
+		catch(IllegalArgumentException e) {
+			// expected
+		}
+
+		ids.clear();
+		Assert.assertEquals(0, ids.size());
+		Assert.assertEquals(0, ids.allocate());
+	}
+
+	@Test
+	public void concurrent_allocation() throws InterruptedException {
+		final IdAllocator ids = new IdAllocator();
+		final int threadCount = 4;
+		final int perThread = 50000;
+		final int[][] allocated = new int[threadCount][perThread];
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		Thread[] threads = new Thread[threadCount];
+		for(int t = 0; t != threadCount; ++t) {
+			final int[] own = allocated[t];
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for(int i = 0; i != perThread; ++i) {
+							own[i] = ids.allocate();
+							// release some ids to exercise reuse
+							if (i % 3 == 2) {
+								ids.release(own[i - 1]);
+								own[i - 1] = -1;
+							}
+						}
+					}
+					catch(Throwable e) {
+						error.set(e);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for(Thread thread: threads) {
+			thread.join();
+		}
+		Assert.assertNull(error.get());
+
+		BitSet seen = new BitSet();
+		int count = 0;
+		for(int[] own: allocated) {
+			for(int id: own) {
+				if (id >= 0) {
+					Assert.assertFalse("Duplicate id " + id, seen.get(id));
+					Assert.assertTrue(ids.isAllocated(id));
+					seen.set(id);
+					++count;
+				}
+			}
+		}
+		Assert.assertEquals(count, ids.size());
+		// released ids are reused, so id range stays close to number of live ids
+		Assert.assertTrue("Highest id " + seen.length() + " for " + count + " ids", seen.length() < count + count / 10);
+	}
+}
@@ -20,6 +20,17 @@ import org.gridkit.offheap.jmemstore.IdentityMapping;
 import org.gridkit.offheap.jmemstore.InHeapMemoryStoreBackend;
 import org.gridkit.offheap.jmemstore.MemoryConsumer;
 import org.gridkit.offheap.jmemstore.PagedBinaryStoreManager;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.Assert;
+
 import org.junit.Test;
 
 /**
@@ -57,4 +68,226 @@ public class IdentityMappingHashTableTest {
 		storeMan.destroy((MemoryConsumer) mapping);
 		
 	}
+
+	@Test
+	public void bulkTest() {
+		
+		IdentityMapping mapping = storeMan.createIdentityMapping();
+		
+		Random rnd = new Random(0);
+		ByteChunk[] column = new ByteChunk[100000];
+		for(int i = 0; i != column.length; ++i) {
+			column[i] = new ByteChunk(("value-" + rnd.nextInt(5000)).getBytes());
+		}
+		int[] ids = new int[column.length];
+		mapping.mapAll(column, ids);
+		
+		Map<String, Integer> refIds = new HashMap<String, Integer>();
+		Map<String, Integer> refCounts = new HashMap<String, Integer>();
+		for(int i = 0; i != column.length; ++i) {
+			String key = column[i].toString();
+			Integer id = refIds.get(key);
+			if (id == null) {
+				refIds.put(key, ids[i]);
+				refCounts.put(key, 1);
+			}
+			else {
+				Assert.assertEquals(id.intValue(), ids[i]);
+				refCounts.put(key, refCounts.get(key) + 1);
+			}
+		}
+		Assert.assertEquals(refIds.size(), mapping.size());
+
+		ByteChunk[] lookup = new ByteChunk[] {column[10], new ByteChunk("missing".getBytes()), column[20]};
+		int[] found = new int[lookup.length];
+		mapping.getIdsByChunks(lookup, found);
+		Assert.assertEquals(ids[10], found[0]);
+		Assert.assertEquals(IdentityMapping.UNMAPPED, found[1]);
+		Assert.assertEquals(ids[20], found[2]);
+
+		int[] decode = new int[] {ids[5], -1, ids[7], Integer.MAX_VALUE, ids[5]};
+		int[] offsets = new int[decode.length];
+		int[] lengths = new int[decode.length];
+		ByteChunk buffer = mapping.getChunksByIds(decode, offsets, lengths);
+		Assert.assertTrue(column[5].sameBytes(buffer.subChunk(offsets[0], lengths[0])));
+		Assert.assertEquals(-1, lengths[1]);
+		Assert.assertTrue(column[7].sameBytes(buffer.subChunk(offsets[2], lengths[2])));
+		Assert.assertEquals(-1, lengths[3]);
+		Assert.assertTrue(column[5].sameBytes(buffer.subChunk(offsets[4], lengths[4])));
+
+		// ref counts should match number of occurrences
+		for(Map.Entry<String, Integer> e: refCounts.entrySet()) {
+			int id = refIds.get(e.getKey());
+			for(int i = 0; i != e.getValue(); ++i) {
+				Assert.assertNotNull(mapping.getChunkById(id));
+				mapping.unmap(id);
+			}
+			Assert.assertNull(mapping.getChunkById(id));
+		}
+		Assert.assertEquals(0, mapping.size());
+		
+		storeMan.destroy((MemoryConsumer) mapping);
+	}
+
+	@Test
+	public void snapshotTest() throws IOException {
+		
+		IdentityMapping mapping = storeMan.createIdentityMapping();
+		for(int i = 0; i != 20000; ++i) {
+			mapping.map(key(i));
+			if (i % 7 == 0) {
+				mapping.map(key(i));
+			}
+		}
+		// make some gaps in id space
+		int gapId = mapping.getIdByChunk(key(100));
+		for(int i = 0; i < 20000; i += 10) {
+			mapping.unmap(key(i));
+		}
+		
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		mapping.snapshot(bos);
+		
+		IdentityMapping restored = storeMan.createIdentityMapping();
+		restored.restore(new ByteArrayInputStream(bos.toByteArray()));
+		
+		Assert.assertEquals(mapping.size(), restored.size());
+		for(int i = 0; i != 20000; ++i) {
+			Assert.assertEquals(mapping.getIdByChunk(key(i)), restored.getIdByChunk(key(i)));
+		}
+		// ref counts are preserved
+		restored.unmap(key(7));
+		Assert.assertEquals(mapping.getIdByChunk(key(7)), restored.getIdByChunk(key(7)));
+		restored.unmap(key(7));
+		Assert.assertEquals(IdentityMapping.UNMAPPED, restored.getIdByChunk(key(7)));
+		restored.unmap(key(1));
+		Assert.assertEquals(IdentityMapping.UNMAPPED, restored.getIdByChunk(key(1)));
+		
+		// free ids are reused after restore
+		Assert.assertTrue(restored.map(key(-1)) <= gapId);
+		
+		try {
+			restored.restore(new ByteArrayInputStream(bos.toByteArray()));
+			Assert.fail("Exception expected");
+		}
+		catch(IllegalStateException e) {
+			// expected
+		}
+		
+		storeMan.destroy((MemoryConsumer) mapping);
+		storeMan.destroy((MemoryConsumer) restored);
+	}
+
+	@Test
+	public void failedRestoreTest() throws IOException {
+		IdentityMapping mapping = storeMan.createIdentityMapping();
+		for(int i = 0; i != 1000; ++i) {
+			mapping.map(key(i));
+		}
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		mapping.snapshot(bos);
+		byte[] truncated = Arrays.copyOf(bos.toByteArray(), bos.size() / 2);
+
+		IdentityMapping restored = storeMan.createIdentityMapping();
+		try {
+			restored.restore(new ByteArrayInputStream(truncated));
+			Assert.fail("Exception expected");
+		}
+		catch(IOException e) {
+			// expected
+		}
+		// partially loaded entries are discarded
+		Assert.assertEquals(0, restored.size());
+		Assert.assertEquals(IdentityMapping.UNMAPPED, restored.getIdByChunk(key(1)));
+
+		restored.restore(new ByteArrayInputStream(bos.toByteArray()));
+		Assert.assertEquals(1000, restored.size());
+		Assert.assertEquals(mapping.getIdByChunk(key(1)), restored.getIdByChunk(key(1)));
+
+		storeMan.destroy((MemoryConsumer) mapping);
+		storeMan.destroy((MemoryConsumer) restored);
+	}
+
+	@Test
+	public void concurrentSnapshotTest() throws Exception {
+		final IdentityMapping mapping = storeMan.createIdentityMapping();
+		for(int i = 0; i != 1000; ++i) {
+			mapping.map(key(i));
+		}
+		final AtomicBoolean stop = new AtomicBoolean();
+		Thread mutator = new Thread() {
+			@Override
+			public void run() {
+				Random rnd = new Random(1);
+				// table grows and freed ids are reused while snapshots are written
+				for(int i = 1000; !stop.get() && i != 100000; ++i) {
+					mapping.map(key(i));
+					mapping.unmap(key(rnd.nextInt(i)));
+				}
+			}
+		};
+		mutator.start();
+		try {
+			for(int n = 0; n != 20; ++n) {
+				ByteArrayOutputStream bos = new ByteArrayOutputStream();
+				mapping.snapshot(bos);
+				IdentityMapping restored = storeMan.createIdentityMapping();
+				// duplicated keys or ids would fail restore
+				restored.restore(new ByteArrayInputStream(bos.toByteArray()));
+				storeMan.destroy((MemoryConsumer) restored);
+			}
+		}
+		finally {
+			stop.set(true);
+			mutator.join();
+		}
+		storeMan.destroy((MemoryConsumer) mapping);
+	}
+
+	@Test
+	public void refCountDeltaTest() {
+		
+		IdentityMapping mapping = storeMan.createIdentityMapping();
+		
+		int n = 10000;
+		ByteChunk[] keys = new ByteChunk[n];
+		int[] deltas = new int[n];
+		for(int i = 0; i != n; ++i) {
+			keys[i] = key(i);
+			deltas[i] = 1 + i % 5;
+		}
+		mapping.map(key(0));
+		mapping.adjustRefCounts(keys, deltas);
+		Assert.assertEquals(n, mapping.size());
+		
+		// key 0 was mapped once before
+		deltas[0] = -2;
+		for(int i = 1; i != n; ++i) {
+			deltas[i] = i % 2 == 0 ? -(1 + i % 5) : -(i % 5);
+		}
+		mapping.adjustRefCounts(keys, deltas);
+		Assert.assertEquals(n / 2, mapping.size());
+		for(int i = 0; i != n; ++i) {
+			Assert.assertEquals(i % 2 == 0, mapping.getIdByChunk(key(i)) == IdentityMapping.UNMAPPED);
+		}
+		
+		// odd keys have ref count 1
+		try {
+			mapping.adjustRefCounts(new ByteChunk[]{key(1), key(3), key(2)}, new int[]{-2, -1, -1});
+			Assert.fail("Exception expected");
+		}
+		catch(IllegalArgumentException e) {
+			// expected
+		}
+		Assert.assertTrue(mapping.getIdByChunk(key(1)) != IdentityMapping.UNMAPPED);
+		Assert.assertEquals(IdentityMapping.UNMAPPED, mapping.getIdByChunk(key(3)));
+		mapping.unmap(key(1));
+		Assert.assertEquals(IdentityMapping.UNMAPPED, mapping.getIdByChunk(key(1)));
+		
+		storeMan.destroy((MemoryConsumer) mapping);
+	}
+
+	private static ByteChunk key(int n) {
+		return new ByteChunk(("key-" + n).getBytes());
+	}
 }
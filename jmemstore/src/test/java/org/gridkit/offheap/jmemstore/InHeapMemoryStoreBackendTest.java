@@ -0,0 +1,119 @@
+/**
+ *  Copyright 2011 Alexey Ragozin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.gridkit.offheap.jmemstore;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+public class InHeapMemoryStoreBackendTest {
+
+	@Test
+	public void test_release_of_empty_page_is_deferred() {
+		InHeapMemoryStoreBackend backend = new InHeapMemoryStoreBackend(8 << 10, 16, 1);
+		
+		List<Integer> firstPage = new ArrayList<Integer>();
+		int page = -1;
+		while(true) {
+			int pp = backend.allocate(1000, 0);
+			if (page == -1) {
+				page = backend.page(pp);
+			}
+			if (backend.page(pp) != page) {
+				// allocator has switched to next page
+				break;
+			}
+			firstPage.add(pp);
+		}
+		int pages = backend.getPagesInUse();
+		Assert.assertEquals(2, pages);
+		for(int pp: firstPage) {
+			backend.release(pp);
+		}
+		Assert.assertEquals(pages, backend.getPagesInUse());
+		
+		backend.retireEmptyPages();
+		Assert.assertEquals(pages - 1, backend.getPagesInUse());
+	}
+
+	@Test(timeout = 10000)
+	public void test_allocation_without_maintenance() {
+		InHeapMemoryStoreBackend backend = new InHeapMemoryStoreBackend(8 << 10, 4, 1);
+		
+		// 4 pages are recycled many times, allocator should retire them itself
+		for(int i = 0; i != 10000; ++i) {
+			int pp = backend.allocate(1000, 0);
+			backend.release(pp);
+		}
+		Assert.assertTrue(backend.getPagesInUse() <= 4);
+	}
+
+	@Test
+	public void test_pages_of_destroyed_fork_are_compacted() {
+		InHeapMemoryStoreBackend backend = new InHeapMemoryStoreBackend(8 << 10, 64, 1);
+		backend.createPageSet(1);
+		int pages = backend.getPagesInUse();
+		int[] chunks = new int[64];
+		for(int i = 0; i != chunks.length; ++i) {
+			chunks[i] = backend.allocate(1000, 0, 1);
+			// first int of chunk is reported as its hash
+			backend.writeInt(chunks[i], 0, i);
+		}
+		
+		backend.forkPageSet(1, 2);
+		Assert.assertTrue(backend.releasePageSet(2, false));
+		
+		// parent keeps every 4th chunk, pages returned to parent should account only its bytes
+		for(int i = 0; i != chunks.length; ++i) {
+			if (i % 4 != 0) {
+				backend.release(chunks[i], 1);
+				chunks[i] = 0;
+			}
+		}
+		backend.retireEmptyPages();
+		Assert.assertEquals(16 * 1008, backend.getMemUsage());
+		Assert.assertTrue(backend.getPagesInUse() > pages + 4);
+		
+		int[] hashes = new int[16];
+		int[] owners = new int[16];
+		for(int n = 0; n != 100; ++n) {
+			int len = backend.collectHashesForEvacuation(hashes, owners, hashes.length, 0);
+			if (len == 0) {
+				break;
+			}
+			for(int i = 0; i != len; ++i) {
+				Assert.assertEquals(1, owners[i]);
+				int pp = chunks[hashes[i]];
+				if (pp != 0 && backend.isMarkedForRecycle(pp)) {
+					chunks[hashes[i]] = backend.relocate(pp, 0, 1);
+				}
+			}
+			backend.retireEmptyPages();
+		}
+		
+		Assert.assertEquals(16 * 1008, backend.getMemUsage());
+		Assert.assertTrue("Pages in use " + backend.getPagesInUse(), backend.getPagesInUse() <= pages + 3);
+		for(int i = 0; i < chunks.length; i += 4) {
+			Assert.assertEquals(i, backend.readInt(chunks[i], 0));
+		}
+	}
+}
@@ -0,0 +1,106 @@
+/**
+ *  Copyright 2011 Alexey Ragozin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.gridkit.offheap.jmemstore;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Ignore;
+
+/**
+ * Measures how many entries are read and compared with key per lookup of absent key,
+ * for 32 bit and 64 bit hash modes. Each entry read is counted via {@link MemoryStoreBackend#get(int)},
+ * reads of bucket lists are excluded.
+ * <br/>
+ * With 32 bit hashes expected rate is N / 2^32 (full hash collision with any of N stored keys),
+ * with 64 bit hashes it is N / 2^64. Result for given N is extrapolated to 1B entries.
+ *
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+@Ignore
+public class KeyCompareRateTest {
+
+	public static void main(String[] args) {
+		int entries = args.length > 0 ? Integer.parseInt(args[0]) : 4 << 20;
+		int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 16 << 20;
+		for(boolean wide: new boolean[]{false, true}) {
+			measure(entries, lookups, wide);
+		}
+	}
+
+	private static void measure(int entries, int lookups, boolean wide) {
+		final AtomicLong reads = new AtomicLong();
+		final boolean[] counting = new boolean[1];
+		final MemoryStoreBackend backend = new InHeapMemoryStoreBackend(1 << 20, 1024, 2);
+		MemoryStoreBackend counter = (MemoryStoreBackend) Proxy.newProxyInstance(
+				MemoryStoreBackend.class.getClassLoader(), 
+				new Class<?>[]{MemoryStoreBackend.class}, 
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (counting[0] && "get".equals(method.getName()) && !isBucketListRead()) {
+							reads.incrementAndGet();
+						}
+						try {
+							return method.invoke(backend, args);
+						}
+						catch(InvocationTargetException e) {
+							throw e.getCause();
+						}
+					}
+				});
+
+		BinaryHashTable table = new BinaryHashTable(counter, 1024, 0, HashFunction.DEFAULT, wide);
+		// random keys, structured keys may be permuted by hash function without collisions
+		Random rnd = new Random(0);
+		ByteChunk key = new ByteChunk(new byte[12]);
+		ByteChunk value = new ByteChunk(new byte[4]);
+		for(int i = 0; i != entries; ++i) {
+			rnd.nextBytes(key.array());
+			table.put(key, value);
+		}
+
+		counting[0] = true;
+		for(int i = 0; i != lookups; ++i) {
+			rnd.nextBytes(key.array());
+			if (table.get(key) != null) {
+				throw new AssertionError("Unexpected hit");
+			}
+		}
+		counting[0] = false;
+
+		double rate = (double)reads.get() / lookups;
+		double expected = entries / Math.pow(2, wide ? 64 : 32);
+		System.out.println(String.format("%s hash, %d entries: %d key compares per %d lookups, rate %.2e (expected %.2e), at 1B entries %.2e",
+				wide ? "64 bit" : "32 bit", entries, reads.get(), lookups, rate, expected, rate * (1e9 / entries)));
+		table.destroy();
+	}
+
+	// bucket lists are read by BinaryHashTable.getEntries(), they are not entries
+	private static boolean isBucketListRead() {
+		for(StackTraceElement e: new Throwable().getStackTrace()) {
+			if (e.getClassName().equals(BinaryHashTable.class.getName())) {
+				return "getEntries".equals(e.getMethodName());
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,78 @@
+/**
+ *  Copyright 2011 Alexey Ragozin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.gridkit.offheap.jmemstore;
+
+import java.util.Random;
+
+import org.junit.Ignore;
+
+/**
+ * Measures write path overhead of attached {@link MutationStream}.
+ *
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+@Ignore
+public class MutationStreamSpeedTest {
+
+	private static int KEY_SPACE = 100000;
+	private static int ROUND = 1000000;
+
+	public static void main(String[] args) {
+		OffHeapBinaryStoreManager2 storeMan = new OffHeapBinaryStoreManager2("MutationStreamSpeedTest", 1 << 20, 512l << 20);
+
+		MutationListener listener = new MutationListener() {
+			long events;
+
+			@Override
+			public void onMutations(MutationEvent[] batch, int count) {
+				events += count;
+			}
+
+			@Override
+			public void onOverflow(long lostEvents) {
+			}
+		};
+
+		BinaryKeyValueStore plain = storeMan.createKeyValueStore();
+		BinaryKeyValueStore streamed = storeMan.createKeyValueStore();
+		MutationStream stream = new MutationStream("speed", listener, 1 << 14, MutationStream.OVERFLOW_BLOCK, 1);
+		streamed.setMutationStream(stream);
+
+		ByteChunk[] keys = new ByteChunk[KEY_SPACE];
+		Random rnd = new Random(0);
+		for(int i = 0; i != keys.length; ++i) {
+			byte[] key = new byte[16];
+			rnd.nextBytes(key);
+			keys[i] = new ByteChunk(key);
+		}
+		ByteChunk value = new ByteChunk(new byte[100]);
+
+		while(true) {
+			long plainTime = run(plain, keys, value);
+			long streamTime = run(streamed, keys, value);
+			System.out.println("Plain put: " + (plainTime / ROUND) + "ns/op, with stream: " + (streamTime / ROUND) + "ns/op, overhead " + String.format("%.1f%%", 100d * (streamTime - plainTime) / plainTime) + ", lag " + stream.getLag());
+		}
+	}
+
+	private static long run(BinaryKeyValueStore store, ByteChunk[] keys, ByteChunk value) {
+		long start = System.nanoTime();
+		for(int i = 0; i != ROUND; ++i) {
+			store.put(keys[i % keys.length], value);
+		}
+		return System.nanoTime() - start;
+	}
+}
@@ -0,0 +1,117 @@
+/**
+ *  Copyright 2011 Alexey Ragozin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.gridkit.offheap.jmemstore;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+public class MutationStreamTest {
+
+	@Test
+	public void events_are_delivered_in_order() throws InterruptedException {
+		InHeapMemoryStoreBackend pageManager = new InHeapMemoryStoreBackend(8 << 10, 16, 2);
+		PagedBinaryStoreManager storeMan = new PagedBinaryStoreManager("MutationStreamTest", pageManager);
+		BinaryKeyValueStore store = storeMan.createKeyValueStore();
+
+		CollectingListener listener = new CollectingListener();
+		MutationStream stream = new MutationStream("test", listener, 4, MutationStream.OVERFLOW_BLOCK, 1);
+		store.setMutationStream(stream);
+
+		ByteChunk key = new ByteChunk("AAAA".getBytes());
+		for(int i = 0; i != 20; ++i) {
+			store.put(key, new ByteChunk(("V" + i).getBytes()));
+		}
+		// missing key, no event expected
+		store.remove(new ByteChunk("BBBB".getBytes()));
+		store.remove(key);
+		store.clear();
+
+		stream.close();
+
+		Assert.assertEquals(22, listener.events.size());
+		for(int i = 0; i != 20; ++i) {
+			Assert.assertEquals("PUT [41414141] -> " + new ByteChunk(("V" + i).getBytes()), listener.events.get(i));
+		}
+		Assert.assertTrue(listener.events.get(20).startsWith("REMOVE [41414141]"));
+		Assert.assertTrue(listener.events.get(21).startsWith("CLEAR"));
+		Assert.assertEquals(0, stream.getLostEvents());
+
+		storeMan.close();
+	}
+
+	@Test
+	public void overflow_is_reported() throws InterruptedException {
+		InHeapMemoryStoreBackend pageManager = new InHeapMemoryStoreBackend(8 << 10, 16, 2);
+		PagedBinaryStoreManager storeMan = new PagedBinaryStoreManager("MutationStreamTest", pageManager);
+		BinaryKeyValueStore store = storeMan.createKeyValueStore();
+
+		CollectingListener listener = new CollectingListener();
+		listener.blocked = true;
+		MutationStream stream = new MutationStream("test", listener, 4, MutationStream.OVERFLOW_DROP, 1);
+		store.setMutationStream(stream);
+
+		ByteChunk key = new ByteChunk("AAAA".getBytes());
+		for(int i = 0; i != 100; ++i) {
+			store.put(key, key);
+		}
+		Assert.assertTrue(stream.getLostEvents() > 0);
+
+		synchronized(listener) {
+			listener.blocked = false;
+			listener.notifyAll();
+		}
+		stream.close();
+
+		Assert.assertEquals(100, listener.events.size() + listener.lost);
+
+		storeMan.close();
+	}
+
+	private static class CollectingListener implements MutationListener {
+
+		List<String> events = new ArrayList<String>();
+		long lost;
+		boolean blocked;
+
+		@Override
+		public synchronized void onMutations(MutationEvent[] batch, int count) {
+			while(blocked) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+			for(int i = 0; i != count; ++i) {
+				String text = batch[i].toString();
+				events.add(text.substring(0, text.lastIndexOf(" v")));
+			}
+		}
+
+		@Override
+		public synchronized void onOverflow(long lostEvents) {
+			lost += lostEvents;
+		}
+	}
+}
@@ -0,0 +1,163 @@
+/**
+ *  Copyright 2011 Alexey Ragozin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.gridkit.offheap.jmemstore;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+public class NearCacheKeyValueStoreTest {
+
+	@Test
+	public void consistency() {
+		MemoryStoreBackend pageManager = new InHeapMemoryStoreBackend(64 << 10, 256, 2);
+		PagedBinaryStoreManager storeMan = new PagedBinaryStoreManager("NearCacheKeyValueStoreTest", pageManager);
+		NearCacheKeyValueStore store = new NearCacheKeyValueStore(storeMan.createKeyValueStore(), 256, 64 << 10);
+
+		Random rnd = new Random(1);
+		Map<String, String> refMap = new HashMap<String, String>();
+		long[] version = new long[1];
+		for(int n = 0; n != 200000; ++n) {
+			String key = String.valueOf(skewed(rnd, 2000));
+			int op = rnd.nextInt(10);
+			if (op == 0) {
+				String val = "v" + n;
+				refMap.put(key, val);
+				store.put(chunk(key), chunk(val));
+			}
+			else if (op == 1) {
+				refMap.remove(key);
+				store.remove(chunk(key));
+			}
+			else if (op == 2) {
+				ByteChunk val = store.getWithVersion(chunk(key), version);
+				if (val != null) {
+					String nval = "c" + n;
+					Assert.assertTrue(store.putIfVersion(chunk(key), chunk(nval), version[0]) != BinaryKeyValueStore.NO_VERSION);
+					refMap.put(key, nval);
+				}
+			}
+			else {
+				String val = refMap.get(key);
+				ByteChunk bval = store.get(chunk(key));
+				if (val == null) {
+					Assert.assertNull(bval);
+				}
+				else {
+					Assert.assertEquals(val, new String(bval.array(), bval.offset(), bval.lenght()));
+				}
+			}
+			if (n == 150000) {
+				store.clear();
+				refMap.clear();
+			}
+		}
+		Assert.assertEquals(refMap.size(), store.size());
+		Assert.assertTrue(store.getCachedEntryCount() <= 256);
+
+		storeMan.close();
+	}
+
+	@Test
+	public void hot_keys_hit_ratio() {
+		MemoryStoreBackend pageManager = new InHeapMemoryStoreBackend(64 << 10, 256, 2);
+		PagedBinaryStoreManager storeMan = new PagedBinaryStoreManager("NearCacheKeyValueStoreTest", pageManager);
+		NearCacheKeyValueStore store = new NearCacheKeyValueStore(storeMan.createKeyValueStore(), 256);
+
+		for(int i = 0; i != 2000; ++i) {
+			store.put(chunk(String.valueOf(i)), chunk("v" + i));
+		}
+		Random rnd = new Random(1);
+		for(int n = 0; n != 100000; ++n) {
+			String key = String.valueOf(skewed(rnd, 2000));
+			if (n % 100 == 0) {
+				store.put(chunk(key), chunk("u" + n));
+			}
+			else {
+				Assert.assertNotNull(store.get(chunk(key)));
+			}
+		}
+		// about 80% of reads go to 100 hot keys, cold keys should not wash them out of cache
+		Assert.assertTrue("Hits: " + store.getHitCount() + " misses: " + store.getMissCount(), store.getHitCount() > 3 * store.getMissCount());
+
+		storeMan.close();
+	}
+
+	@Test
+	public void concurrent_invalidation() throws InterruptedException {
+		MemoryStoreBackend pageManager = new InHeapMemoryStoreBackend(64 << 10, 256, 2);
+		PagedBinaryStoreManager storeMan = new PagedBinaryStoreManager("NearCacheKeyValueStoreTest", pageManager);
+		final NearCacheKeyValueStore store = new NearCacheKeyValueStore(storeMan.createKeyValueStore(), 16);
+		final ByteChunk key = chunk("counter");
+		final int updates = 20000;
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+
+		Thread[] readers = new Thread[2];
+		for(int i = 0; i != readers.length; ++i) {
+			readers[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						int last = 0;
+						while(last < updates) {
+							ByteChunk val = store.get(key);
+							if (val != null) {
+								int n = val.intAt(0);
+								// cache should never go back in time
+								Assert.assertTrue(n >= last);
+								last = n;
+							}
+						}
+					}
+					catch(Throwable e) {
+						error.set(e);
+					}
+				}
+			};
+			readers[i].start();
+		}
+		ByteChunk val = new ByteChunk(new byte[4]);
+		for(int i = 1; i <= updates; ++i) {
+			val.putInt(0, i);
+			store.put(key, val);
+		}
+		for(Thread reader: readers) {
+			reader.join(60000);
+		}
+		Assert.assertNull(error.get());
+		Assert.assertEquals(updates, store.get(key).intAt(0));
+
+		storeMan.close();
+	}
+
+	private static int skewed(Random rnd, int range) {
+		// roughly 80% of keys fall into first 5% of range
+		return rnd.nextInt(5) == 0 ? rnd.nextInt(range) : rnd.nextInt(range / 20);
+	}
+
+	private static ByteChunk chunk(String text) {
+		return new ByteChunk(text.getBytes());
+	}
+}
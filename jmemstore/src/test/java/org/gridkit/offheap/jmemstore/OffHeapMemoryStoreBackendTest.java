@@ -0,0 +1,224 @@
+/**
+ *  Copyright 2011 Alexey Ragozin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.gridkit.offheap.jmemstore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+public class OffHeapMemoryStoreBackendTest {
+
+	@Test
+	public void test_release_of_empty_page_is_deferred() {
+		OffHeapMemoryStoreBackend backend = new OffHeapMemoryStoreBackend(8 << 10, 16, 1);
+		
+		List<Integer> firstPage = new ArrayList<Integer>();
+		int page = -1;
+		while(true) {
+			int pp = backend.allocate(1000, 0);
+			if (page == -1) {
+				page = backend.page(pp);
+			}
+			if (backend.page(pp) != page) {
+				// allocator has switched to next page
+				break;
+			}
+			firstPage.add(pp);
+		}
+		int pages = backend.getPagesInUse();
+		Assert.assertEquals(2, pages);
+		for(int pp: firstPage) {
+			backend.release(pp);
+		}
+		Assert.assertEquals(pages, backend.getPagesInUse());
+		
+		backend.retireEmptyPages();
+		Assert.assertEquals(pages - 1, backend.getPagesInUse());
+	}
+
+	@Test(timeout = 10000)
+	public void test_allocation_without_maintenance() {
+		OffHeapMemoryStoreBackend backend = new OffHeapMemoryStoreBackend(8 << 10, 4, 1);
+		
+		// 4 pages are recycled many times, allocator should retire them itself
+		for(int i = 0; i != 10000; ++i) {
+			int pp = backend.allocate(1000, 0);
+			backend.release(pp);
+		}
+		Assert.assertTrue(backend.getPagesInUse() <= 4);
+	}
+
+	@Test(timeout = 10000)
+	public void test_allocation_waits_for_maintenance_thread() throws InterruptedException {
+		final OffHeapMemoryStoreBackend backend = new OffHeapMemoryStoreBackend(8 << 10, 2, 1);
+		Thread maintenance = new Thread() {
+			@Override
+			public void run() {
+				while(!isInterrupted()) {
+					// only woken up by allocator
+					LockSupport.park();
+					if (!isInterrupted()) {
+						backend.retireEmptyPages();
+					}
+				}
+			}
+		};
+		backend.setMaintenanceThread(maintenance);
+		maintenance.start();
+		
+		// only one spare page, each page switch needs page retired by maintenance thread
+		for(int i = 0; i != 1000; ++i) {
+			int pp = backend.allocate(1000, 0);
+			backend.release(pp);
+		}
+		maintenance.interrupt();
+		maintenance.join();
+		Assert.assertTrue(backend.getPagesInUse() <= 2);
+	}
+
+	@Test
+	public void test_release_of_page_set() {
+		OffHeapMemoryStoreBackend backend = new OffHeapMemoryStoreBackend(8 << 10, 32, 1);
+		int owner = 7;
+		backend.createPageSet(owner);
+		
+		int shared = backend.allocate(1000, 0);
+		for(int i = 0; i != 50; ++i) {
+			int pp = backend.allocate(1000, 0, owner);
+			Assert.assertTrue(backend.page(pp) != backend.page(shared));
+		}
+		int pages = backend.getPagesInUse();
+		
+		// owner's pages are dropped without releasing chunks, new page is started for further allocations
+		Assert.assertTrue(backend.releasePageSet(owner, true));
+		backend.retireEmptyPages();
+		Assert.assertEquals(1008, backend.getMemUsage());
+		Assert.assertEquals(2, backend.getPagesInUse());
+		Assert.assertTrue(pages > 2);
+		
+		Assert.assertTrue(backend.releasePageSet(owner, false));
+		backend.retireEmptyPages();
+		Assert.assertEquals(1, backend.getPagesInUse());
+		Assert.assertFalse(backend.releasePageSet(owner, false));
+	}
+
+	@Test
+	public void test_shared_page_is_released_by_last_side() {
+		OffHeapMemoryStoreBackend backend = new OffHeapMemoryStoreBackend(8 << 10, 32, 1);
+		backend.createPageSet(1);
+		int[] chunks = new int[20];
+		for(int i = 0; i != chunks.length; ++i) {
+			chunks[i] = backend.allocate(1000, 0, 1);
+		}
+		int pages = backend.getPagesInUse();
+		long mem = backend.getMemUsage();
+		
+		backend.forkPageSet(1, 2);
+		// both sides continue on new pages
+		Assert.assertEquals(pages + 2, backend.getPagesInUse());
+		
+		for(int pp: chunks) {
+			backend.release(pp, 1);
+		}
+		backend.retireEmptyPages();
+		Assert.assertEquals(pages + 2, backend.getPagesInUse());
+		Assert.assertEquals(mem, backend.getMemUsage());
+		
+		for(int pp: chunks) {
+			backend.release(pp, 2);
+		}
+		backend.retireEmptyPages();
+		Assert.assertEquals(3, backend.getPagesInUse());
+		Assert.assertEquals(0, backend.getMemUsage());
+	}
+
+	@Test
+	public void test_pages_of_destroyed_fork_are_compacted() {
+		OffHeapMemoryStoreBackend backend = new OffHeapMemoryStoreBackend(8 << 10, 64, 1);
+		backend.createPageSet(1);
+		int pages = backend.getPagesInUse();
+		int[] chunks = new int[64];
+		for(int i = 0; i != chunks.length; ++i) {
+			chunks[i] = backend.allocate(1000, 0, 1);
+			// first int of chunk is reported as its hash
+			backend.writeInt(chunks[i], 0, i);
+		}
+		
+		backend.forkPageSet(1, 2);
+		Assert.assertTrue(backend.releasePageSet(2, false));
+		
+		// parent keeps every 4th chunk, pages returned to parent should account only its bytes
+		for(int i = 0; i != chunks.length; ++i) {
+			if (i % 4 != 0) {
+				backend.release(chunks[i], 1);
+				chunks[i] = 0;
+			}
+		}
+		backend.retireEmptyPages();
+		Assert.assertEquals(16 * 1008, backend.getMemUsage());
+		Assert.assertTrue(backend.getPagesInUse() > pages + 4);
+		
+		int[] hashes = new int[16];
+		int[] owners = new int[16];
+		for(int n = 0; n != 100; ++n) {
+			int len = backend.collectHashesForEvacuation(hashes, owners, hashes.length, 0);
+			if (len == 0) {
+				break;
+			}
+			for(int i = 0; i != len; ++i) {
+				Assert.assertEquals(1, owners[i]);
+				int pp = chunks[hashes[i]];
+				if (pp != 0 && backend.isMarkedForRecycle(pp)) {
+					chunks[hashes[i]] = backend.relocate(pp, 0, 1);
+				}
+			}
+			backend.retireEmptyPages();
+		}
+		
+		Assert.assertEquals(16 * 1008, backend.getMemUsage());
+		Assert.assertTrue("Pages in use " + backend.getPagesInUse(), backend.getPagesInUse() <= pages + 3);
+		for(int i = 0; i < chunks.length; i += 4) {
+			Assert.assertEquals(i, backend.readInt(chunks[i], 0));
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void test_fork_of_empty_page_set() {
+		// one spare page, empty current page of parent is released only after switching
+		OffHeapMemoryStoreBackend backend = new OffHeapMemoryStoreBackend(8 << 10, 4, 1);
+		backend.createPageSet(1);
+		backend.forkPageSet(1, 2);
+		backend.retireEmptyPages();
+		Assert.assertEquals(3, backend.getPagesInUse());
+		
+		for(int i = 0; i != 100; ++i) {
+			int pp1 = backend.allocate(1000, 0, 1);
+			int pp2 = backend.allocate(1000, 0, 2);
+			Assert.assertTrue(backend.page(pp1) != backend.page(pp2));
+			backend.release(pp1, 1);
+			backend.release(pp2, 2);
+			backend.retireEmptyPages();
+		}
+		Assert.assertEquals(0, backend.getMemUsage());
+	}
+}
@@ -0,0 +1,185 @@
+/**
+ *  Copyright 2011 Alexey Ragozin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.gridkit.offheap.jmemstore;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+public class PagePoolTest {
+
+	@Test(expected = IllegalArgumentException.class)
+	public void test_over_reservation() {
+		PagePool pool = new PagePool(4 << 10, 8);
+		pool.createQuota(5, 8);
+		pool.createQuota(4, 8);
+	}
+
+	@Test
+	public void test_borrowing_of_unreserved_pages() {
+		PagePool pool = new PagePool(4 << 10, 8);
+		PagePool.Quota a = pool.createQuota(2, 8);
+		PagePool.Quota b = pool.createQuota(2, 8);
+
+		// own reservation and 4 unreserved pages
+		for(int i = 0; i != 6; ++i) {
+			Assert.assertTrue(b.tryAllocate() >= 0);
+		}
+		Assert.assertEquals(-1, b.tryAllocate());
+		// idle reservation of 'a' is not lent
+		Assert.assertTrue(a.tryAllocate() >= 0);
+		Assert.assertTrue(a.tryAllocate() >= 0);
+		Assert.assertEquals(-1, a.tryAllocate());
+		Assert.assertEquals(8, pool.getPagesInUse());
+	}
+
+	@Test
+	public void test_page_limit_of_borrower() {
+		PagePool pool = new PagePool(4 << 10, 8);
+		PagePool.Quota a = pool.createQuota(4, 8);
+		PagePool.Quota b = pool.createQuota(2, 8);
+
+		// reservation of 'a' is not counted as available for 'b'
+		Assert.assertEquals(4, b.getPageLimit());
+		Assert.assertEquals(6, a.getPageLimit());
+
+		for(int i = 0; i != 6; ++i) {
+			b.tryAllocate();
+		}
+		// 'b' has no headroom left, 'a' still sees its reservation
+		Assert.assertEquals(4, b.getPagesInUse());
+		Assert.assertEquals(4, b.getPageLimit());
+		Assert.assertEquals(4, a.getPageLimit());
+	}
+
+	@Test(timeout = 10000)
+	public void test_reservation_is_available_while_borrower_holds_pages() {
+		PagePool pool = new PagePool(4 << 10, 4);
+		PagePool.Quota a = pool.createQuota(2, 4);
+		PagePool.Quota b = pool.createQuota(0, 4);
+
+		// borrower takes everything it could and keeps it
+		while(b.tryAllocate() >= 0) {
+		}
+		Assert.assertEquals(2, b.getPagesInUse());
+
+		// would block forever if reserved pages were lent
+		a.allocate();
+		a.allocate();
+		Assert.assertEquals(2, a.getPagesInUse());
+		Assert.assertEquals(4, pool.getPagesInUse());
+	}
+
+	@Test(timeout = 10000)
+	public void test_late_reservation_waits_for_borrowers() throws InterruptedException {
+		PagePool pool = new PagePool(4 << 10, 4);
+		PagePool.Quota b = pool.createQuota(0, 4);
+		int[] pages = new int[4];
+		for(int i = 0; i != 4; ++i) {
+			pages[i] = b.tryAllocate();
+		}
+		final PagePool.Quota a = pool.createQuota(2, 4);
+
+		Thread reserver = new Thread() {
+			@Override
+			public void run() {
+				a.allocate();
+			}
+		};
+		reserver.start();
+		while(reserver.getState() != Thread.State.WAITING) {
+			Thread.sleep(1);
+		}
+
+		b.release(pages[0]);
+		// released page is reserved and cannot be borrowed again
+		Assert.assertEquals(-1, b.tryAllocate());
+		reserver.join();
+		Assert.assertEquals(1, a.getPagesInUse());
+		Assert.assertEquals(3, b.getPagesInUse());
+	}
+
+	@Test
+	public void test_close_of_quota() {
+		PagePool pool = new PagePool(4 << 10, 8);
+		PagePool.Quota a = pool.createQuota(4, 8);
+		PagePool.Quota b = pool.createQuota(2, 8);
+		for(int i = 0; i != 3; ++i) {
+			a.tryAllocate();
+		}
+		b.tryAllocate();
+
+		a.close();
+		Assert.assertEquals(1, pool.getPagesInUse());
+		Assert.assertEquals(2, pool.getReservedPages());
+		// whole pool except own page is available to 'b' now
+		Assert.assertEquals(8, b.getPageLimit());
+		try {
+			a.tryAllocate();
+			Assert.fail("Closed quota should not allocate");
+		}
+		catch(IllegalStateException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void test_close_of_store_manager() {
+		PagePool pool = new PagePool(4 << 10, 64);
+		OffHeapBinaryStoreManager2 storeMan = new OffHeapBinaryStoreManager2("close-test", pool, 16 << 10, 256 << 10);
+		BinaryKeyValueStore store = storeMan.createKeyValueStore();
+		for(int i = 0; i != 1000; ++i) {
+			store.put(new ByteChunk(("k" + i).getBytes()), new ByteChunk(("v" + i).getBytes()));
+		}
+		Assert.assertTrue(pool.getPagesInUse() > 0);
+		Assert.assertEquals(4, pool.getReservedPages());
+		Assert.assertTrue(isThreadAlive("PagedMemoryBinaryStore-close-test-ServiceThread"));
+
+		storeMan.close();
+		Assert.assertEquals(0, pool.getPagesInUse());
+		Assert.assertEquals(0, pool.getReservedPages());
+		// maintenance thread is joined by close
+		Assert.assertFalse(isThreadAlive("PagedMemoryBinaryStore-close-test-ServiceThread"));
+	}
+
+	private static boolean isThreadAlive(String name) {
+		for(Thread thread: Thread.getAllStackTraces().keySet()) {
+			if (name.equals(thread.getName()) && thread.isAlive()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Test
+	public void test_backends_sharing_pool() {
+		PagePool pool = new PagePool(4 << 10, 8);
+		OffHeapMemoryStoreBackend a = new OffHeapMemoryStoreBackend(pool, 4, 8, 1);
+		OffHeapMemoryStoreBackend b = new OffHeapMemoryStoreBackend(pool, 2, 6, 1);
+
+		// fill 4 pages, 'b' has to borrow 2 unreserved pages
+		for(int i = 0; i != 3 * 8 + 1; ++i) {
+			b.allocate(480, 0);
+		}
+		Assert.assertEquals(4, b.getPagesInUse());
+		Assert.assertEquals(4, b.getPageLimit());
+		Assert.assertEquals(4, a.getPageLimit());
+		Assert.assertEquals(a.getPagesInUse() + b.getPagesInUse(), pool.getPagesInUse());
+	}
+}
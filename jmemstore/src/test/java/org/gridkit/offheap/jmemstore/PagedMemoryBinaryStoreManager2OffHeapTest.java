@@ -58,6 +58,14 @@ public class PagedMemoryBinaryStoreManager2OffHeapTest extends BaseBinaryStoreMa
 		return storeMan;
 	}
 
+	@Ignore @Override
+	protected BinaryStoreManager createCompactingStoreManager(int compactionWorkers, float compactionCpuBudget) {
+		MemoryStoreBackend pageManager = new OffHeapMemoryStoreBackend(64 << 10, 256, 2);
+		
+		PagedBinaryStoreManager storeMan = new PagedBinaryStoreManager("test_compaction", pageManager, compactionWorkers, compactionCpuBudget);
+		return storeMan;
+	}
+
 	
 	
 }
@@ -55,6 +55,14 @@ public class PagedMemoryBinaryStoreManager2Test extends BaseBinaryStoreManagerTe
 		return storeMan;
 	}
 
+	@Ignore @Override
+	protected BinaryStoreManager createCompactingStoreManager(int compactionWorkers, float compactionCpuBudget) {
+		InHeapMemoryStoreBackend pageManager = new InHeapMemoryStoreBackend(64 << 10, 256, 2);
+		
+		PagedBinaryStoreManager storeMan = new PagedBinaryStoreManager("test_compaction", pageManager, compactionWorkers, compactionCpuBudget);
+		return storeMan;
+	}
+
 	
 	
 }